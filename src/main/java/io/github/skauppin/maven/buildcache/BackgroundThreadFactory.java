@@ -0,0 +1,24 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BackgroundThreadFactory implements ThreadFactory {
+
+  private final String namePrefix;
+  private final int priority;
+  private final AtomicInteger count = new AtomicInteger();
+
+  BackgroundThreadFactory(String namePrefix, int priority) {
+    this.namePrefix = namePrefix;
+    this.priority = priority;
+  }
+
+  @Override
+  public Thread newThread(Runnable r) {
+    Thread thread = new Thread(r, namePrefix + count.incrementAndGet());
+    thread.setDaemon(true);
+    thread.setPriority(priority);
+    return thread;
+  }
+}
@@ -0,0 +1,203 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * Encodes and decodes the subset of the Bazel remote execution {@code ActionResult} protobuf
+ * message that a cache entry needs: a single output file and the digest of its content.
+ *
+ * <pre>
+ * message ActionResult { repeated OutputFile output_files = 2; }
+ * message OutputFile { string path = 1; Digest digest = 2; }
+ * message Digest { string hash = 1; int64 size_bytes = 2; }
+ * </pre>
+ */
+class BazelActionResult {
+
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_FIXED64 = 1;
+  private static final int WIRE_LENGTH_DELIMITED = 2;
+  private static final int WIRE_FIXED32 = 5;
+
+  private static final int ACTION_RESULT_OUTPUT_FILES = 2;
+  private static final int OUTPUT_FILE_PATH = 1;
+  private static final int OUTPUT_FILE_DIGEST = 2;
+  private static final int DIGEST_HASH = 1;
+  private static final int DIGEST_SIZE_BYTES = 2;
+
+  private BazelActionResult() {}
+
+  static byte[] encode(String path, Digest digest) {
+    ByteArrayOutputStream digestMessage = new ByteArrayOutputStream();
+    writeString(digestMessage, DIGEST_HASH, digest.getHash());
+    if (digest.getSizeBytes() != 0) {
+      writeTag(digestMessage, DIGEST_SIZE_BYTES, WIRE_VARINT);
+      writeVarint(digestMessage, digest.getSizeBytes());
+    }
+
+    ByteArrayOutputStream outputFile = new ByteArrayOutputStream();
+    writeString(outputFile, OUTPUT_FILE_PATH, path);
+    writeBytes(outputFile, OUTPUT_FILE_DIGEST, digestMessage.toByteArray());
+
+    ByteArrayOutputStream actionResult = new ByteArrayOutputStream();
+    writeBytes(actionResult, ACTION_RESULT_OUTPUT_FILES, outputFile.toByteArray());
+    return actionResult.toByteArray();
+  }
+
+  /**
+   * Returns the digest of the first output file, or empty if the message has no output files or
+   * it can't be parsed.
+   */
+  static Optional<Digest> decode(byte[] actionResult) {
+    try {
+      byte[] outputFile = findField(actionResult, ACTION_RESULT_OUTPUT_FILES);
+      byte[] digestMessage = outputFile != null ? findField(outputFile, OUTPUT_FILE_DIGEST) : null;
+      if (digestMessage == null) {
+        return Optional.empty();
+      }
+      Reader reader = new Reader(digestMessage);
+      String hash = "";
+      long sizeBytes = 0;
+      while (reader.hasMore()) {
+        long tag = reader.readVarint();
+        int field = (int) (tag >>> 3);
+        int wireType = (int) (tag & 7);
+        if (field == DIGEST_HASH && wireType == WIRE_LENGTH_DELIMITED) {
+          hash = new String(reader.readBytes(), StandardCharsets.UTF_8);
+        } else if (field == DIGEST_SIZE_BYTES && wireType == WIRE_VARINT) {
+          sizeBytes = reader.readVarint();
+        } else {
+          reader.skip(wireType);
+        }
+      }
+      return hash.isEmpty() ? Optional.empty() : Optional.of(new Digest(hash, sizeBytes));
+    } catch (IllegalArgumentException e) {
+      return Optional.empty();
+    }
+  }
+
+  private static byte[] findField(byte[] message, int fieldNumber) {
+    Reader reader = new Reader(message);
+    while (reader.hasMore()) {
+      long tag = reader.readVarint();
+      int field = (int) (tag >>> 3);
+      int wireType = (int) (tag & 7);
+      if (field == fieldNumber && wireType == WIRE_LENGTH_DELIMITED) {
+        return reader.readBytes();
+      }
+      reader.skip(wireType);
+    }
+    return null;
+  }
+
+  private static void writeString(ByteArrayOutputStream out, int field, String value) {
+    writeBytes(out, field, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void writeBytes(ByteArrayOutputStream out, int field, byte[] value) {
+    writeTag(out, field, WIRE_LENGTH_DELIMITED);
+    writeVarint(out, value.length);
+    out.write(value, 0, value.length);
+  }
+
+  private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+    writeVarint(out, (field << 3) | wireType);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  static class Digest {
+    private final String hash;
+    private final long sizeBytes;
+
+    Digest(String hash, long sizeBytes) {
+      this.hash = hash;
+      this.sizeBytes = sizeBytes;
+    }
+
+    String getHash() {
+      return hash;
+    }
+
+    long getSizeBytes() {
+      return sizeBytes;
+    }
+  }
+
+  private static class Reader {
+    private final byte[] buffer;
+    private int position;
+
+    private Reader(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    private boolean hasMore() {
+      return position < buffer.length;
+    }
+
+    private long readVarint() {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("malformed varint");
+    }
+
+    private byte[] readBytes() {
+      long length = readVarint();
+      if (length < 0 || length > buffer.length - position) {
+        throw new IllegalArgumentException("truncated message");
+      }
+      byte[] value = new byte[(int) length];
+      System.arraycopy(buffer, position, value, 0, value.length);
+      position += value.length;
+      return value;
+    }
+
+    private void skip(int wireType) {
+      switch (wireType) {
+        case WIRE_VARINT:
+          readVarint();
+          break;
+        case WIRE_FIXED64:
+          advance(8);
+          break;
+        case WIRE_LENGTH_DELIMITED:
+          readBytes();
+          break;
+        case WIRE_FIXED32:
+          advance(4);
+          break;
+        default:
+          throw new IllegalArgumentException("unsupported wire type " + wireType);
+      }
+    }
+
+    private void advance(int count) {
+      if (count > buffer.length - position) {
+        throw new IllegalArgumentException("truncated message");
+      }
+      position += count;
+    }
+
+    private byte readByte() {
+      if (position >= buffer.length) {
+        throw new IllegalArgumentException("truncated message");
+      }
+      return buffer[position++];
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Bloom filter of remote cache entry paths, readable from a memory-mapped file.
+ */
+class BloomFilter {
+
+  private static final int MAGIC = 0x42434246; // "BCBF"
+  private static final int HEADER_SIZE = 16;
+  private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+  private static final int MAX_HASH_COUNT = 32;
+
+  private final ByteBuffer buffer;
+  private final int hashCount;
+  private final long bitCount;
+
+  private BloomFilter(ByteBuffer buffer, int hashCount, long bitCount) {
+    this.buffer = buffer;
+    this.hashCount = hashCount;
+    this.bitCount = bitCount;
+  }
+
+  static BloomFilter create(int expectedEntries) {
+    int entries = Math.max(1, expectedEntries);
+    long bitCount = Math.max(64, (long) Math.ceil(
+        -entries * Math.log(FALSE_POSITIVE_PROBABILITY) / (Math.log(2) * Math.log(2))));
+    int hashCount = (int) Math.max(1,
+        Math.min(MAX_HASH_COUNT, Math.round((double) bitCount / entries * Math.log(2))));
+
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (int) ((bitCount + 7) / 8));
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, hashCount);
+    buffer.putLong(8, bitCount);
+    return new BloomFilter(buffer, hashCount, bitCount);
+  }
+
+  static BloomFilter read(ByteBuffer buffer) {
+    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IllegalArgumentException("not a key filter");
+    }
+    int hashCount = buffer.getInt(4);
+    long bitCount = buffer.getLong(8);
+    if (hashCount < 1 || hashCount > MAX_HASH_COUNT || bitCount < 1
+        || (bitCount + 7) / 8 > buffer.limit() - HEADER_SIZE) {
+      throw new IllegalArgumentException("invalid key filter header");
+    }
+    return new BloomFilter(buffer, hashCount, bitCount);
+  }
+
+  boolean mightContain(String key) {
+    long[] hashes = hash(key);
+    for (int i = 0; i < hashCount; i++) {
+      long bit = Math.floorMod(hashes[0] + i * hashes[1], bitCount);
+      if ((buffer.get(HEADER_SIZE + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void put(String key) {
+    long[] hashes = hash(key);
+    for (int i = 0; i < hashCount; i++) {
+      long bit = Math.floorMod(hashes[0] + i * hashes[1], bitCount);
+      int index = HEADER_SIZE + (int) (bit >>> 3);
+      buffer.put(index, (byte) (buffer.get(index) | (1 << (bit & 7))));
+    }
+  }
+
+  byte[] toByteArray() {
+    byte[] bytes = new byte[HEADER_SIZE + (int) ((bitCount + 7) / 8)];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(i);
+    }
+    return bytes;
+  }
+
+  long getBitCount() {
+    return bitCount;
+  }
+
+  /**
+   * Returns the number of entries the filter holds at its target false positive probability.
+   */
+  long getCapacity() {
+    return (long) (bitCount * Math.log(2) * Math.log(2) / -Math.log(FALSE_POSITIVE_PROBABILITY));
+  }
+
+  /**
+   * Estimates the number of entries put in the filter from the number of bits set.
+   */
+  long estimateEntries() {
+    long setBits = 0;
+    for (int i = HEADER_SIZE; i < HEADER_SIZE + (bitCount + 7) / 8; i++) {
+      setBits += Integer.bitCount(buffer.get(i) & 0xFF);
+    }
+    if (setBits >= bitCount) {
+      return Long.MAX_VALUE;
+    }
+    return Math.round(-(double) bitCount / hashCount * Math.log(1 - (double) setBits / bitCount));
+  }
+
+  private static long[] hash(String key) {
+    // two independent hashes combined as h1 + i * h2 (Kirsch and Mitzenmacher)
+    ByteBuffer md5 = ByteBuffer.wrap(DigestUtils.md5(key.getBytes(StandardCharsets.UTF_8)));
+    return new long[] {md5.getLong(0), md5.getLong(8) | 1};
+  }
+}
@@ -7,16 +7,24 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import org.apache.commons.lang3.time.StopWatch;
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.execution.ProjectDependencyGraph;
 import org.apache.maven.lifecycle.LifecycleExecutor;
 import org.apache.maven.lifecycle.MavenExecutionPlan;
 import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.PluginConfigurationException;
+import org.apache.maven.plugin.PluginManagerException;
 import org.apache.maven.plugin.PluginParameterExpressionEvaluator;
 import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.component.annotations.Component;
@@ -51,11 +59,11 @@ public class BuildCache {
   public static final String BUILD_CACHE_IGNORE = "buildcache.ignore";
   public static final String BUILD_CACHE_FULL_CLEAN = "buildcache.fullclean";
 
-  private static final String CONFIG_FILENAME = "buildcache.xml";
+  static final String CONFIG_FILENAME = "buildcache.xml";
   private static final String MVN_DIR = ".mvn";
-  private static final String USER_M2_DIR = ".m2";
+  static final String USER_M2_DIR = ".m2";
   private static final String MAVEN_CONF_DIR = "conf";
-  private static final String USER_M2_CACHE_DIR = "buildcache";
+  static final String USER_M2_CACHE_DIR = "buildcache";
   private static final String CLASSES_DIR = "classes";
   private static final String TEST_CLASSES_DIR = "test-classes";
 
@@ -74,6 +82,39 @@ public class BuildCache {
   @Requirement
   private HashUtil hashUtil;
 
+  @Requirement
+  private ObjectStore objectStore;
+
+  @Requirement
+  private CacheWriter cacheWriter;
+
+  @Requirement
+  private CacheIndex cacheIndex;
+
+  @Requirement
+  private ExecutionTimeRegister executionTimeRegister;
+
+  @Requirement
+  private CacheLock cacheLock;
+
+  @Requirement
+  private CacheTiers cacheTiers;
+
+  @Requirement
+  private ReadOnlyCaches readOnlyCaches;
+
+  @Requirement
+  private RemoteCache remoteCache;
+
+  @Requirement
+  private RemotePrefetcher remotePrefetcher;
+
+  @Requirement
+  private RemoteUploader remoteUploader;
+
+  @Requirement
+  private CacheDaemonClient cacheDaemonClient;
+
   private boolean initialized = false;
   private boolean error = false;
   private String errorMessage = null;
@@ -169,7 +210,16 @@ public class BuildCache {
         throw new InitializationError(String.format("Invalid config file  %s", config), e);
       }
 
+      cacheDaemonClient.initialize(configuration);
       cacheCleanupExecutor.initialize(configuration);
+      objectStore.initialize(configuration);
+      cacheWriter.initialize(configuration);
+      cacheLock.initialize(configuration);
+      cacheTiers.initialize(configuration);
+      readOnlyCaches.initialize(configuration);
+      remoteCache.initialize(configuration);
+      remotePrefetcher.initialize(configuration);
+      remoteUploader.initialize(configuration);
 
       if (fullCacheClean) {
         try {
@@ -202,11 +252,19 @@ public class BuildCache {
     return buildCacheProfile;
   }
 
+  public boolean isLinkRestoreMode() {
+    return configuration.isLinkRestoreMode();
+  }
+
+  public boolean isDeferredRestore() {
+    return configuration.isDeferredRestore();
+  }
+
   public void cleanProject(MavenSession session) {
     MavenProject project = session.getCurrentProject();
     try {
       File projectCacheDir = getProjectCacheDirectory(project).toFile();
-      cacheCleanupExecutor.projectCacheCleanup(projectCacheDir);
+      cacheCleanupExecutor.submitProjectCleanup(projectCacheDir);
 
     } catch (Exception e) {
       logger.error(String.format("buildcache: failed to perform cache cleanup for %s",
@@ -214,6 +272,40 @@ public class BuildCache {
     }
   }
 
+  public void finishSession() {
+    if (configuration.isDeferredRestoreAtSessionEnd()) {
+      List<ProjectBuildStatus> projectStatuses;
+      synchronized (projectStatusMap) {
+        projectStatuses = new ArrayList<>(projectStatusMap.values());
+      }
+      for (ProjectBuildStatus projectStatus : projectStatuses) {
+        restorePendingClasses(projectStatus.getMainCompile());
+        restorePendingClasses(projectStatus.getTestCompile());
+      }
+    }
+
+    List<String> writeErrors = cacheWriter.awaitCompletion();
+    if (!writeErrors.isEmpty()) {
+      logger.warn(String.format("buildcache: %d cache entries could not be written",
+          writeErrors.size()));
+      writeErrors.forEach(e -> logger.warn(String.format("buildcache:   %s", e)));
+    }
+    remotePrefetcher.shutdown();
+    remoteUploader.awaitCompletion();
+    remoteCache.publishKeyFilter();
+    remoteCache.logSummary();
+    cacheCleanupExecutor.awaitCompletion();
+    cacheIndex.flushAccessTimes();
+
+    try {
+      cacheCleanupExecutor.enforceTotalCacheSize();
+    } catch (Exception e) {
+      logger.error("buildcache: failed to enforce total cache size limit", e);
+    }
+    cacheCleanupExecutor.releaseEntries();
+    cacheDaemonClient.close();
+  }
+
   public ProjectBuildStatus getProjectStatus(MavenSession session) {
     return getProjectStatus(session, null);
   }
@@ -248,57 +340,351 @@ public class BuildCache {
 
   public boolean useCachedMainClasses(MavenSession session) {
     Path zipFile = getMainClassesZipFile(session);
-    return unzipCachedClasses(session, zipFile, CLASSES_DIR);
+    return unzipCachedClasses(session, getProjectStatus(session).getMainCompile(), zipFile,
+        CLASSES_DIR);
   }
 
   public boolean useCachedTestClasses(MavenSession session) {
     Path zipFile = getTestClassesZipFile(session);
-    return unzipCachedClasses(session, zipFile, TEST_CLASSES_DIR);
+    return unzipCachedClasses(session, getProjectStatus(session).getTestCompile(), zipFile,
+        TEST_CLASSES_DIR);
+  }
+
+  /**
+   * Restores the pending classes the current project depends on. If the classes of a phase can't
+   * be restored, the phase is no longer a cache hit and its skipped mojos are executed instead.
+   */
+  public void restorePendingClasses(MavenSession session,
+      BuildCachePluginManager.MojoExecutor executor) throws MojoFailureException,
+      MojoExecutionException, PluginConfigurationException, PluginManagerException {
+    MavenProject project = session.getCurrentProject();
+
+    ProjectDependencyGraph graph = session.getProjectDependencyGraph();
+    if (graph != null) {
+      for (MavenProject upstream : graph.getUpstreamProjects(project, true)) {
+        ProjectBuildStatus upstreamStatus = projectStatusMap.get(getProjectId(upstream));
+        if (upstreamStatus != null) {
+          restorePendingClasses(session, upstream, upstreamStatus.getMainCompile(),
+              this::cacheMainClasses, executor);
+          if (dependsOnTestClasses(project, upstream)) {
+            restorePendingClasses(session, upstream, upstreamStatus.getTestCompile(),
+                this::cacheTestClasses, executor);
+          }
+        }
+      }
+    }
+
+    ProjectBuildStatus projectStatus = projectStatusMap.get(getProjectId(project));
+    if (projectStatus != null) {
+      restorePendingClasses(session, project, projectStatus.getMainCompile(),
+          this::cacheMainClasses, executor);
+      restorePendingClasses(session, project, projectStatus.getTestCompile(),
+          this::cacheTestClasses, executor);
+    }
+  }
+
+  private void restorePendingClasses(MavenSession session, MavenProject project,
+      ProjectBuildStatus.Phase phase, Consumer<MavenSession> cacheClasses,
+      BuildCachePluginManager.MojoExecutor executor) throws MojoFailureException,
+      MojoExecutionException, PluginConfigurationException, PluginManagerException {
+    // held while the skipped mojos are executed so that other projects wait for the classes
+    synchronized (phase) {
+      if (restorePendingClasses(phase)) {
+        return;
+      }
+      List<MojoExecution> skippedExecutions = phase.getSkippedExecutions();
+      phase.clearSkippedExecutions();
+      if (skippedExecutions.isEmpty()) {
+        return;
+      }
+      MavenSession projectSession = session.clone();
+      projectSession.setCurrentProject(project);
+      for (MojoExecution mojoExecution : skippedExecutions) {
+        logger.info(String.format("buildcache: executing %s of %s", mojoExecution,
+            getProjectId(project)));
+        StopWatch watch = StopWatch.createStarted();
+        executor.executeMojo(projectSession, mojoExecution);
+        executionTimeRegister.record(project, mojoExecution, watch.getTime(), false);
+      }
+      if (project != session.getCurrentProject()) {
+        // an upstream project has already succeeded, so its classes aren't cached at project end
+        logger.info(String.format("buildcache: caching %s classes (%s)", getProjectId(project),
+            phase.getPhaseHash()));
+        cacheClasses.accept(projectSession);
+      }
+    }
+  }
+
+  private boolean restorePendingClasses(ProjectBuildStatus.Phase phase) {
+    synchronized (phase) {
+      if (!phase.hasPendingRestore()) {
+        return true;
+      }
+      Path zipFile = phase.getPendingRestoreZipFile();
+      Path classesPath = phase.getPendingRestoreClassesPath();
+      phase.clearPendingRestore();
+      logger.debug(String.format("buildcache: restoring deferred classes %s", zipFile));
+      if (restoreClasses(zipFile, classesPath)) {
+        phase.clearSkippedExecutions();
+        return true;
+      }
+      logger.warn(String.format("buildcache: failed to restore deferred classes %s", zipFile));
+      phase.clearCacheHit();
+      return false;
+    }
+  }
+
+  private boolean dependsOnTestClasses(MavenProject project, MavenProject upstream) {
+    return project.getDependencies().stream()
+        .anyMatch(d -> upstream.getGroupId().equals(d.getGroupId())
+            && upstream.getArtifactId().equals(d.getArtifactId())
+            && ("test-jar".equals(d.getType()) || "tests".equals(d.getClassifier())));
   }
 
   public boolean isTestExecutionCacheHit(MavenSession session) {
-    Path testCacheFile = getTestCacheFile(session);
-    return checkTestExecutionCacheHit(testCacheFile);
+    return checkTestExecutionCacheHit(session, getTestCacheKey(session));
   }
 
   public boolean isIntegrationTestExecutionCacheHit(MavenSession session) {
-    Path testCacheFile = getIntegrationTestCacheFile(session);
-    return checkTestExecutionCacheHit(testCacheFile);
+    return checkTestExecutionCacheHit(session, getIntegrationTestCacheKey(session));
   }
 
-  private boolean checkTestExecutionCacheHit(Path testCacheFile) {
-    boolean cacheHit = fileUtil.fileExists(testCacheFile);
+  private boolean checkTestExecutionCacheHit(MavenSession session, String key) {
+    Path projectCacheDir = getProjectCacheDirectory(session.getCurrentProject());
+    cacheCleanupExecutor.protectEntry(projectCacheDir, key);
+    boolean cacheHit = cacheIndex.get(projectCacheDir, key).isPresent();
+    if (!cacheHit && !buildCacheIgnore) {
+      cacheHit = findReadOnlyTestExecution(projectCacheDir, key)
+          || findRemoteTestExecution(projectCacheDir, key);
+    }
     if (!cacheHit) {
       return false;
     }
-    if (checkBuildCacheIgnore(testCacheFile)) {
+    if (buildCacheIgnore) {
+      logger.info(String.format("buildcache: deleting cache entry: %s",
+          projectCacheDir.resolve(key)));
+      cacheIndex.remove(projectCacheDir, key);
       return false;
     }
 
-    testCacheFile.toFile().setLastModified(System.currentTimeMillis());
+    cacheIndex.touch(projectCacheDir, key, System.currentTimeMillis());
     return true;
   }
 
-  private boolean unzipCachedClasses(MavenSession session, Path zipFile, String classesDir) {
-    boolean cacheHit = fileUtil.fileExists(zipFile);
+  private boolean unzipCachedClasses(MavenSession session, ProjectBuildStatus.Phase phase,
+      Path zipFile, String classesDir) {
+    cacheCleanupExecutor.protectEntry(zipFile.getParent(), zipFile.getFileName().toString());
+    boolean cacheHit = cacheTiers.find(zipFile).isPresent() || fileUtil.fileExists(zipFile);
+    if (!cacheHit && !buildCacheIgnore) {
+      cacheHit = findReadOnlyZipFile(zipFile) || downloadRemoteZipFile(zipFile);
+    }
     if (!cacheHit) {
       return false;
     }
     if (checkBuildCacheIgnore(zipFile)) {
+      cacheTiers.delete(zipFile);
       return false;
     }
 
     Path classesPath = Paths.get(session.getCurrentProject().getBuild().getDirectory(), classesDir);
-    fileUtil.mkdirs(classesPath);
 
+    cacheIndex.touch(zipFile.getParent(), zipFile.getFileName().toString(),
+        System.currentTimeMillis());
+
+    if (configuration.isDeferredRestore()) {
+      phase.setPendingRestore(zipFile, classesPath);
+      return true;
+    }
+    return restoreClasses(zipFile, classesPath);
+  }
+
+  private boolean findReadOnlyTestExecution(Path projectCacheDir, String key) {
+    Optional<ReadOnlyCaches.TestExecution> testExecution =
+        readOnlyCaches.findTestExecution(projectCacheDir, key);
+    if (!testExecution.isPresent()) {
+      return false;
+    }
+    if (testExecution.get().isCopyToPrimary()) {
+      CacheIndex.Entry entry = testExecution.get().getEntry();
+      cacheIndex.put(projectCacheDir, new CacheIndex.Entry(key, entry.getKind(), 0,
+          System.currentTimeMillis(), entry.getDurationMillis()));
+    }
+    return true;
+  }
+
+  private boolean findReadOnlyZipFile(Path zipFile) {
+    Optional<Path> layerFile = readOnlyCaches.findZipFile(zipFile);
+    if (!layerFile.isPresent()) {
+      return false;
+    }
+    if (readOnlyCaches.copyToPrimary(layerFile.get(), zipFile)) {
+      putZipFileIndexEntry(zipFile);
+    }
+    return true;
+  }
+
+  private boolean findRemoteTestExecution(Path projectCacheDir, String key) {
+    if (!remoteCache.isEnabled()) {
+      return false;
+    }
+    String remotePath = getRemotePath(projectCacheDir, key);
+    String kind = key.startsWith(CacheIndex.KIND_IT_TEST) ? CacheIndex.KIND_IT_TEST
+        : CacheIndex.KIND_TEST;
+    if (!remotePrefetcher.awaitExists(remotePath)
+        .orElseGet(() -> shouldUseRemote(projectCacheDir, kind, false)
+            && remoteCache.exists(remotePath))) {
+      return false;
+    }
+    cacheIndex.put(projectCacheDir,
+        new CacheIndex.Entry(key, kind, 0, System.currentTimeMillis(), 0));
+    return true;
+  }
+
+  private boolean downloadRemoteZipFile(Path zipFile) {
+    String key = zipFile.getFileName().toString();
+    if (!remoteCache.isEnabled()) {
+      return false;
+    }
+    String remotePath = getRemotePath(zipFile.getParent(), key);
+    Optional<Boolean> prefetched = remotePrefetcher.awaitDownload(remotePath);
+    if (prefetched.isPresent()) {
+      // prefetched downloads are indexed by the prefetcher
+      return prefetched.get();
+    }
+    if (!shouldUseRemote(zipFile.getParent(), getZipFileKind(key), true)
+        || !remoteCache.download(remotePath, zipFile)) {
+      return false;
+    }
+    logger.debug(String.format("buildcache: downloaded %s from remote cache", zipFile));
+    putZipFileIndexEntry(zipFile);
+    return true;
+  }
+
+  private void putZipFileIndexEntry(Path zipFile) {
+    String key = zipFile.getFileName().toString();
+    cacheIndex.put(zipFile.getParent(), new CacheIndex.Entry(key, getZipFileKind(key),
+        zipFile.toFile().length(), System.currentTimeMillis(), 0));
+  }
+
+  private static String getZipFileKind(String key) {
+    return key.startsWith(CacheIndex.KIND_TEST_CLASSES) ? CacheIndex.KIND_TEST_CLASSES
+        : CacheIndex.KIND_CLASSES;
+  }
+
+  private boolean shouldUseRemote(Path projectCacheDir, String kind, boolean download) {
+    if (isRemoteFasterThanBuild(projectCacheDir, kind, download)) {
+      return true;
+    }
+    logger.debug(String.format("buildcache: skipping remote cache, building %s of %s is faster",
+        kind, projectCacheDir));
+    remoteCache.recordSkippedAsSlower();
+    return false;
+  }
+
+  private boolean isRemoteFasterThanBuild(Path projectCacheDir, String kind, boolean download) {
+    // remote entries are indexed without a duration, so this is the latest local build time
+    return remoteCache.isFasterThanBuild(() -> cacheIndex.getEntries(projectCacheDir).stream()
+        .filter(e -> kind.equals(e.getKind()) && e.getDurationMillis() > 0)
+        .max(Comparator.comparingLong(CacheIndex.Entry::getCreated))
+        .map(CacheIndex.Entry::getDurationMillis).orElse(0L), download);
+  }
+
+  private void prefetchTestEntries(ProjectBuildStatus projectStatus, MavenSession session) {
+    if (!remotePrefetcher.isEnabled() || buildCacheIgnore || projectStatus.isMavenTestSkip()
+        || !projectStatus.getMainCompile().isCacheHit()) {
+      return;
+    }
+    MavenProject project = session.getCurrentProject();
+    Path projectCacheDir = getProjectCacheDirectory(project);
     try {
-      fileUtil.unzip(zipFile, classesPath);
+      Path zipFile = getTestClassesZipFile(session);
+      if (!fileUtil.fileExists(zipFile) && !readOnlyCaches.findZipFile(zipFile).isPresent()
+          && isRemoteFasterThanBuild(projectCacheDir, CacheIndex.KIND_TEST_CLASSES, true)) {
+        remotePrefetcher.prefetch(
+            getRemotePath(projectCacheDir, zipFile.getFileName().toString()), zipFile,
+            CacheIndex.KIND_TEST_CLASSES);
+      }
+
+      // the test execution keys only depend on inputs that are known after test-compile has been
+      // configured, so they are computed ahead of time without configuring the phases
+      ProjectBuildStatus nextPhases = new ProjectBuildStatus();
+      nextPhases.setMavenExecutionPlan(projectStatus.getMavenExecutionPlan());
+      nextPhases.getMainCompile().setPhaseHash(projectStatus.getMainCompile().getPhaseHash());
+      nextPhases.getTestCompile().setPhaseHash(projectStatus.getTestCompile().getPhaseHash());
+
+      if (!projectStatus.isSkipTests() && !projectStatus.isTestSubset()) {
+        hashUtil.setProjectTestPhaseDetails(nextPhases, project,
+            configuration.getTestExecutionTriggers(project));
+        prefetchTestExecution(projectCacheDir, getTestCacheKey(nextPhases), CacheIndex.KIND_TEST);
+      }
+      if (!projectStatus.isSkipTests() && !projectStatus.isSkipItTests()
+          && !projectStatus.isItTestSubset()) {
+        hashUtil.setProjectIntegrationTestPhaseDetails(nextPhases, project,
+            configuration.getIntegrationTestExecutionTriggers(project));
+        prefetchTestExecution(projectCacheDir, getIntegrationTestCacheKey(nextPhases),
+            CacheIndex.KIND_IT_TEST);
+      }
     } catch (Exception e) {
-      logger.error("buildcache: could not extract classes from cache zip file", e);
+      logger.debug(String.format("buildcache: failed to prefetch remote entries for %s: %s",
+          getProjectId(project), e));
+    }
+  }
+
+  private void prefetchTestExecution(Path projectCacheDir, String key, String kind) {
+    if (!cacheIndex.get(projectCacheDir, key).isPresent()
+        && !readOnlyCaches.findTestExecution(projectCacheDir, key).isPresent()
+        && isRemoteFasterThanBuild(projectCacheDir, kind, false)) {
+      remotePrefetcher.prefetchExists(getRemotePath(projectCacheDir, key));
+    }
+  }
+
+  private void uploadRemoteZipFile(Path zipFile, CacheIndex.Entry entry) {
+    if (remoteUploader.isEnabled()) {
+      remoteUploader.submit(getRemotePath(zipFile.getParent(), entry.getKey()), zipFile,
+          entry.getSize(), entry.getDurationMillis());
+    }
+  }
+
+  private String getRemotePath(Path projectCacheDir, String key) {
+    Path relativePath = Paths.get(configuration.getCacheDirectory()).relativize(projectCacheDir);
+    return relativePath.resolve(key).toString().replace(File.separatorChar, '/');
+  }
+
+  private boolean restoreClasses(Path zipFile, Path classesPath) {
+    Optional<CacheLock.Lock> lock = cacheLock.acquireShared(zipFile.getParent());
+    if (!lock.isPresent()) {
       return false;
     }
-    zipFile.toFile().setLastModified(System.currentTimeMillis());
-    return true;
+    try {
+      fileUtil.mkdirs(classesPath);
+
+      if (configuration.isLinkRestoreMode()
+          && objectStore.link(getManifestFile(zipFile), classesPath, getLinksFile(classesPath))) {
+        return true;
+      }
+
+      Optional<Path> tierFile = cacheTiers.find(zipFile);
+      Path sourceFile = tierFile.orElseGet(() -> findPrimaryOrReadOnlyZipFile(zipFile));
+      try {
+        fileUtil.unzip(sourceFile, classesPath);
+      } catch (Exception e) {
+        logger.error("buildcache: could not extract classes from cache zip file", e);
+        return false;
+      }
+      if (sourceFile.equals(zipFile) && cacheTiers.hasTiers()) {
+        cacheTiers.promote(zipFile);
+      }
+      return true;
+    } finally {
+      lock.get().close();
+    }
+  }
+
+  private Path findPrimaryOrReadOnlyZipFile(Path zipFile) {
+    if (!readOnlyCaches.hasLayers() || fileUtil.fileExists(zipFile)) {
+      return zipFile;
+    }
+    return readOnlyCaches.findZipFile(zipFile).orElse(zipFile);
   }
 
   private boolean checkBuildCacheIgnore(Path cacheFile) {
@@ -310,40 +696,151 @@ public class BuildCache {
     return true;
   }
 
+  public void unlinkMainClasses(MavenSession session) {
+    unlinkClasses(session, CLASSES_DIR);
+  }
+
+  public void unlinkTestClasses(MavenSession session) {
+    unlinkClasses(session, TEST_CLASSES_DIR);
+  }
+
+  private void unlinkClasses(MavenSession session, String classesDir) {
+    Path classesPath = Paths.get(session.getCurrentProject().getBuild().getDirectory(), classesDir);
+    try {
+      objectStore.unlink(classesPath, getLinksFile(classesPath));
+    } catch (Exception e) {
+      logger.error("buildcache: failed to replace linked classes with copies", e);
+    }
+  }
+
   public void cacheMainClasses(MavenSession session) {
     Path zipFile = getMainClassesZipFile(session);
-    createClassesZipFile(session, zipFile, CLASSES_DIR);
+    createClassesZipFile(session, zipFile, CLASSES_DIR,
+        indexEntry(session, zipFile, CacheIndex.KIND_CLASSES, MojoExecUtil.PHASE_COMPILE));
   }
 
   public void cacheTestClasses(MavenSession session) {
     Path zipFile = getTestClassesZipFile(session);
-    createClassesZipFile(session, zipFile, TEST_CLASSES_DIR);
+    createClassesZipFile(session, zipFile, TEST_CLASSES_DIR, indexEntry(session, zipFile,
+        CacheIndex.KIND_TEST_CLASSES, MojoExecUtil.PHASE_TEST_COMPILE));
   }
 
   public void cacheTestExecution(MavenSession session) {
-    Path testCacheFile = getTestCacheFile(session);
-    createFile(testCacheFile, "");
+    cacheTestExecution(session, getTestCacheKey(session), CacheIndex.KIND_TEST,
+        MojoExecUtil.PHASE_TEST);
   }
 
   public void cacheIntegrationTestExecution(MavenSession session) {
-    Path testCacheFile = getIntegrationTestCacheFile(session);
-    createFile(testCacheFile, "");
+    cacheTestExecution(session, getIntegrationTestCacheKey(session), CacheIndex.KIND_IT_TEST,
+        MojoExecUtil.PHASE_IT);
+  }
+
+  private void cacheTestExecution(MavenSession session, String key, String kind,
+      List<String> lifecyclePhases) {
+    Path projectCacheDir = getProjectCacheDirectory(session.getCurrentProject());
+    CacheIndex.Entry entry = newIndexEntry(session, key, kind, 0, lifecyclePhases);
+    cacheIndex.put(projectCacheDir, entry);
+    if (remoteUploader.isEnabled()) {
+      remoteUploader.submit(getRemotePath(projectCacheDir, key), new byte[0],
+          entry.getDurationMillis());
+    }
+  }
+
+  private Function<Long, CacheIndex.Entry> indexEntry(MavenSession session, Path zipFile,
+      String kind, List<String> lifecyclePhases) {
+    long durationMillis = executionTimeRegister
+        .getExecutionTimeMillis(session.getCurrentProject(), lifecyclePhases);
+    return size -> new CacheIndex.Entry(zipFile.getFileName().toString(), kind, size,
+        System.currentTimeMillis(), durationMillis);
+  }
+
+  private CacheIndex.Entry newIndexEntry(MavenSession session, String key, String kind,
+      long size, List<String> lifecyclePhases) {
+    long durationMillis = executionTimeRegister
+        .getExecutionTimeMillis(session.getCurrentProject(), lifecyclePhases);
+    return new CacheIndex.Entry(key, kind, size, System.currentTimeMillis(), durationMillis);
   }
 
-  private void createClassesZipFile(MavenSession session, Path zipFile, String classesDir) {
+  private void createClassesZipFile(MavenSession session, Path zipFile, String classesDir,
+      Function<Long, CacheIndex.Entry> indexEntry) {
+    cacheCleanupExecutor.protectEntry(zipFile.getParent(), zipFile.getFileName().toString());
     Path classesPath = Paths.get(session.getCurrentProject().getBuild().getDirectory(), classesDir);
     String[] classFiles = fileUtil.scanClassFilesFromDirectory(classesPath);
+
+    if (cacheWriter.isAsync()) {
+      Map<String, byte[]> snapshot;
+      try {
+        snapshot = fileUtil.readFiles(classesPath, classFiles);
+      } catch (Exception e) {
+        logger.error("buildcache: failed to read classes for caching", e);
+        return;
+      }
+      Path previousZipFile = findPreviousZipFile(zipFile, classesDir);
+      cacheWriter.submit(zipFile.getFileName().toString(), () -> {
+        Optional<CacheLock.Lock> lock = cacheLock.acquireExclusive(zipFile.getParent());
+        if (!lock.isPresent()) {
+          return;
+        }
+        CacheIndex.Entry entry;
+        try {
+          writeClassesZipFile(zipFile, previousZipFile, snapshot);
+          entry = indexEntry.apply(zipFile.toFile().length());
+          cacheIndex.put(zipFile.getParent(), entry);
+        } finally {
+          lock.get().close();
+        }
+        uploadRemoteZipFile(zipFile, entry);
+      });
+      return;
+    }
+
+    Optional<CacheLock.Lock> lock = cacheLock.acquireExclusive(zipFile.getParent());
+    if (!lock.isPresent()) {
+      return;
+    }
     try {
-      fileUtil.createZipFile(zipFile, classesPath, classFiles);
+      if (configuration.isLinkRestoreMode()) {
+        objectStore.store(getManifestFile(zipFile), classesPath, classFiles);
+      }
+      fileUtil.createZipFile(zipFile, findPreviousZipFile(zipFile, classesDir), classesPath,
+          classFiles);
+      CacheIndex.Entry entry = indexEntry.apply(zipFile.toFile().length());
+      cacheIndex.put(zipFile.getParent(), entry);
+      uploadRemoteZipFile(zipFile, entry);
     } catch (Exception e) {
       logger.error("buildcache: failed to create class zip file", e);
       try {
         fileUtil.deleteFile(zipFile);
       } catch (Exception ee) {
       }
+    } finally {
+      lock.get().close();
+    }
+  }
+
+  private void writeClassesZipFile(Path zipFile, Path previousZipFile,
+      Map<String, byte[]> snapshot) throws IOException {
+    try {
+      if (configuration.isLinkRestoreMode()) {
+        objectStore.store(getManifestFile(zipFile), snapshot);
+      }
+      fileUtil.createZipFile(zipFile, previousZipFile, snapshot);
+    } catch (IOException | RuntimeException e) {
+      fileUtil.deleteFile(zipFile);
+      throw e;
     }
   }
 
+  private Path findPreviousZipFile(Path zipFile, String classesDir) {
+    String prefix = classesDir + "-";
+    String name = zipFile.getFileName().toString();
+    return cacheIndex.getEntries(zipFile.getParent()).stream()
+        .filter(e -> e.getKey().startsWith(prefix) && e.getKey().endsWith(".zip")
+            && !e.getKey().equals(name))
+        .max(Comparator.comparingLong(CacheIndex.Entry::getCreated))
+        .map(e -> zipFile.resolveSibling(e.getKey())).orElse(null);
+  }
+
   public void writeMainCompileDetails(MavenSession session) {
     Path mainCompileDetailsFile = getMainCompileDetailsFile(session);
     createFile(mainCompileDetailsFile,
@@ -398,10 +895,13 @@ public class BuildCache {
     return getProjectCacheDirectory(session.getCurrentProject()).resolve(filename);
   }
 
-  private Path getTestCacheFile(MavenSession session) {
-    String testCompileHash = getProjectStatus(session).getTest().getPhaseHash();
-    String filename = String.format("test-%s.ok", testCompileHash);
-    return getProjectCacheDirectory(session.getCurrentProject()).resolve(filename);
+  private String getTestCacheKey(MavenSession session) {
+    return getTestCacheKey(getProjectStatus(session));
+  }
+
+  private String getTestCacheKey(ProjectBuildStatus projectStatus) {
+    String testCompileHash = projectStatus.getTest().getPhaseHash();
+    return String.format("test-%s", testCompileHash);
   }
 
   private Path getTestDetailsFile(MavenSession session) {
@@ -410,10 +910,13 @@ public class BuildCache {
     return getProjectCacheDirectory(session.getCurrentProject()).resolve(filename);
   }
 
-  private Path getIntegrationTestCacheFile(MavenSession session) {
-    String itTestCompileHash = getProjectStatus(session).getIntegrationTest().getPhaseHash();
-    String filename = String.format("it-test-%s.ok", itTestCompileHash);
-    return getProjectCacheDirectory(session.getCurrentProject()).resolve(filename);
+  private String getIntegrationTestCacheKey(MavenSession session) {
+    return getIntegrationTestCacheKey(getProjectStatus(session));
+  }
+
+  private String getIntegrationTestCacheKey(ProjectBuildStatus projectStatus) {
+    String itTestCompileHash = projectStatus.getIntegrationTest().getPhaseHash();
+    return String.format("it-test-%s", itTestCompileHash);
   }
 
   private Path getIntegrationTestDetailsFile(MavenSession session) {
@@ -422,6 +925,17 @@ public class BuildCache {
     return getProjectCacheDirectory(session.getCurrentProject()).resolve(filename);
   }
 
+  private Path getManifestFile(Path zipFile) {
+    String filename = zipFile.getFileName().toString().replaceAll("\\.zip$", "")
+        + ObjectStore.MANIFEST_EXTENSION;
+    return zipFile.resolveSibling(filename);
+  }
+
+  private Path getLinksFile(Path classesPath) {
+    return classesPath
+        .resolveSibling(String.format("buildcache-%s.links", classesPath.getFileName()));
+  }
+
   private Path getProjectCacheDirectory(MavenProject project) {
     return Paths.get(configuration.getCacheDirectory())
         .resolve(Paths.get("", project.getGroupId().split("\\."))).resolve(project.getArtifactId());
@@ -465,6 +979,7 @@ public class BuildCache {
       hashUtil.setProjectTestCompilePhaseDetails(projectStatus, this, session.getCurrentProject(),
           configuration.getTestCompileTriggers(session.getCurrentProject()),
           this.compilePhaseProperties);
+      prefetchTestEntries(projectStatus, session);
     });
   }
 
@@ -523,6 +1038,50 @@ public class BuildCache {
     this.hashUtil = hashUtil;
   }
 
+  void setObjectStore(ObjectStore objectStore) {
+    this.objectStore = objectStore;
+  }
+
+  void setCacheWriter(CacheWriter cacheWriter) {
+    this.cacheWriter = cacheWriter;
+  }
+
+  void setCacheIndex(CacheIndex cacheIndex) {
+    this.cacheIndex = cacheIndex;
+  }
+
+  void setExecutionTimeRegister(ExecutionTimeRegister executionTimeRegister) {
+    this.executionTimeRegister = executionTimeRegister;
+  }
+
+  void setCacheLock(CacheLock cacheLock) {
+    this.cacheLock = cacheLock;
+  }
+
+  void setCacheTiers(CacheTiers cacheTiers) {
+    this.cacheTiers = cacheTiers;
+  }
+
+  void setReadOnlyCaches(ReadOnlyCaches readOnlyCaches) {
+    this.readOnlyCaches = readOnlyCaches;
+  }
+
+  void setRemoteCache(RemoteCache remoteCache) {
+    this.remoteCache = remoteCache;
+  }
+
+  void setRemotePrefetcher(RemotePrefetcher remotePrefetcher) {
+    this.remotePrefetcher = remotePrefetcher;
+  }
+
+  void setRemoteUploader(RemoteUploader remoteUploader) {
+    this.remoteUploader = remoteUploader;
+  }
+
+  void setCacheDaemonClient(CacheDaemonClient cacheDaemonClient) {
+    this.cacheDaemonClient = cacheDaemonClient;
+  }
+
   void setConfiguration(Configuration configuration) {
     this.configuration = configuration;
   }
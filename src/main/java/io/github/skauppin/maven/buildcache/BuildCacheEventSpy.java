@@ -85,6 +85,9 @@ public class BuildCacheEventSpy extends AbstractEventSpy {
       }
 
     } else if (event instanceof MavenExecutionResult) {
+      if (buildCache.isInitialized()) {
+        buildCache.finishSession();
+      }
       if (buildCache.isBuildCacheProfile()) {
         executionTimeRegister.logExecutionTimes();
       }
@@ -75,6 +75,14 @@ public class BuildCachePluginManager extends DefaultBuildPluginManager implement
       return true;
     }
 
+    boolean delegate = checkCache(session, mojoExecution);
+    if (delegate) {
+      prepareExecution(session, mojoExecution);
+    }
+    return delegate;
+  }
+
+  private boolean checkCache(MavenSession session, MojoExecution mojoExecution) {
     ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session, mojoExecution);
     if (projectStatus.isBuildCacheDisabled() //
         || MojoExecUtil.isBuildCacheIgnoredPhase(mojoExecution) //
@@ -99,13 +107,33 @@ public class BuildCachePluginManager extends DefaultBuildPluginManager implement
             delegate = false;
           }
         }
+        if (phase.isCacheHit() && phase.hasPendingRestore()) {
+          phase.addSkippedExecution(mojoExecution);
+        }
 
         phase.setVisited();
       }
     }
+
     return delegate;
   }
 
+  private void prepareExecution(MavenSession session, MojoExecution mojoExecution)
+      throws MojoFailureException, MojoExecutionException, PluginConfigurationException,
+      PluginManagerException {
+    if (buildCache.isDeferredRestore() && MojoExecUtil.usesClasses(mojoExecution)) {
+      buildCache.restorePendingClasses(session, delegate);
+    }
+
+    if (buildCache.isLinkRestoreMode()) {
+      if (MojoExecUtil.isCompileRelatedPhase(mojoExecution)) {
+        buildCache.unlinkMainClasses(session);
+      } else if (MojoExecUtil.isTestCompileRelatedPhase(mojoExecution)) {
+        buildCache.unlinkTestClasses(session);
+      }
+    }
+  }
+
   void setLogger(Logger logger) {
     this.logger = logger;
   }
@@ -2,11 +2,32 @@ package io.github.skauppin.maven.buildcache;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import org.apache.commons.lang3.time.StopWatch;
 import org.codehaus.plexus.component.annotations.Component;
 import org.codehaus.plexus.component.annotations.Requirement;
@@ -15,8 +36,23 @@ import org.codehaus.plexus.logging.Logger;
 @Component(role = CacheCleanupExecutor.class)
 public class CacheCleanupExecutor {
 
+  static final long RECONCILIATION_INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+
+  private static final int FULL_CLEAN_PARALLELISM =
+      Math.max(4, Runtime.getRuntime().availableProcessors());
+
+  static final long COST_CREDIT_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+  static final long MIN_ENTRY_SIZE_BYTES = 4096;
+
+  private static final String ZIP_EXTENSION = ".zip";
+  private static final String[] ENTRY_FILE_EXTENSIONS =
+      {ZIP_EXTENSION, ".txt", ObjectStore.MANIFEST_EXTENSION, ".ok",
+          ChunkedTransfer.CHUNK_INDEX_EXTENSION};
+
   private static Pattern buildCacheFilePattern =
-      Pattern.compile("[0-9a-f]{32}-(classes|test|test-classes)\\..{2,3}");
+      Pattern.compile("([0-9a-f]{32}-(classes|test|test-classes)"
+          + "|(classes|test-classes|test|it-test)-[0-9a-f]{32})\\..{2,3}");
 
   public static boolean isBuildCacheFile(String filename) {
     return buildCacheFilePattern.matcher(filename).matches();
@@ -39,13 +75,39 @@ public class CacheCleanupExecutor {
   @Requirement
   private Logger logger;
 
+  @Requirement
+  private ObjectStore objectStore;
+
+  @Requirement
+  private CacheIndex cacheIndex;
+
+  @Requirement
+  private CacheLedger cacheLedger;
+
+  @Requirement
+  private CacheLock cacheLock;
+
+  @Requirement
+  private CacheDaemonClient daemonClient;
+
+  @Requirement
+  private CacheTiers cacheTiers;
+
   private FileUtil fileUtil = new FileUtil();
 
   private Configuration configuration;
 
+  private long nowMillis;
   private long cacheEntryExpirationLimit = -1;
   private boolean performTotalCacheSizeCheck = false;
-  private long totalCacheSizeLimitBytes = 0;
+  private long totalCacheSizeLimitBytes = Long.MAX_VALUE;
+  private long minFreeDiskSpaceBytes = 0;
+  private long targetFreeDiskSpaceBytes = 0;
+
+  private ThreadPoolExecutor backgroundExecutor;
+  private final Set<File> pendingCleanups = ConcurrentHashMap.newKeySet();
+  private final Set<File> sessionDirectories = ConcurrentHashMap.newKeySet();
+  private final Set<Path> protectedEntries = ConcurrentHashMap.newKeySet();
 
   public void initialize(Configuration configuration) {
     initialize(configuration, System.currentTimeMillis());
@@ -53,6 +115,8 @@ public class CacheCleanupExecutor {
 
   void initialize(Configuration configuration, long nowMillis) {
     this.configuration = configuration;
+    this.nowMillis = nowMillis;
+    cacheLedger.initialize(configuration);
 
     if (configuration.hasProjectCacheMaxAge()) {
       this.cacheEntryExpirationLimit = nowMillis - configuration.getProjectCacheMaxAge().toMillis();
@@ -62,67 +126,437 @@ public class CacheCleanupExecutor {
       this.performTotalCacheSizeCheck = true;
       this.totalCacheSizeLimitBytes = toBytes(configuration.getTotalCacheMaxSizeMb());
     }
+
+    if (configuration.hasMinFreeDiskSpaceMb()) {
+      this.performTotalCacheSizeCheck = true;
+      this.minFreeDiskSpaceBytes = toBytes(configuration.getMinFreeDiskSpaceMb());
+      this.targetFreeDiskSpaceBytes = toBytes(configuration.getTargetFreeDiskSpaceMb());
+    }
   }
 
   public boolean hasExpired(File cachedFile) {
-    return this.cacheEntryExpirationLimit > 0
-        && cachedFile.lastModified() < this.cacheEntryExpirationLimit;
+    return hasExpired(cachedFile.lastModified());
+  }
+
+  private boolean hasExpired(long lastAccess) {
+    return this.cacheEntryExpirationLimit > 0 && lastAccess < this.cacheEntryExpirationLimit;
   }
 
   public void fullCacheCleanup() throws IOException {
     StopWatch watch = StopWatch.createStarted();
 
     Context context = new Context(fileUtil, true);
+    ForkJoinPool pool = new ForkJoinPool(FULL_CLEAN_PARALLELISM);
+    try {
+      File cacheDirectory = new File(configuration.getCacheDirectory());
+      pool.invoke(new DirectoryCleanupTask(context, cacheDirectory));
+
+      long[] deletedObjects = objectStore.collectGarbage(new ArrayList<>(context.manifestFiles));
+      context.deletedFileCount.addAndGet(deletedObjects[0]);
+      context.deletedFileSizeBytes.addAndGet(deletedObjects[1]);
+
+      long totalCacheSizeBytes = context.totalCacheSizeBytes.get();
+      long limitBytes =
+          performTotalCacheSizeCheck ? getTotalCacheSizeLimit(totalCacheSizeBytes) : Long.MAX_VALUE;
+      if (totalCacheSizeBytes > limitBytes) {
+        assignEvictionPriorities(context.allCacheEntries);
+        // the lowest priority entries that cover the excess, the highest priority on top
+        PriorityQueue<CacheEntry> toDelete = new PriorityQueue<>(
+            Comparator.comparingLong((CacheEntry e) -> e.evictionPriority).reversed());
+        long excessBytes = totalCacheSizeBytes - limitBytes;
+        long toDeleteBytes = 0;
+        for (CacheEntry entry : context.allCacheEntries) {
+          toDelete.add(entry);
+          toDeleteBytes += entry.size;
+          while (toDeleteBytes - toDelete.peek().size >= excessBytes) {
+            toDeleteBytes -= toDelete.poll().size;
+          }
+        }
+        Map<File, List<CacheEntry>> toDeleteByDirectory = toDelete.stream()
+            .collect(Collectors.groupingBy(e -> e.directory, Collectors.toList()));
+        Set<CacheEntry> deleted = ConcurrentHashMap.newKeySet();
+        pool.submit(() -> toDeleteByDirectory.entrySet().parallelStream().forEach(e -> {
+          Optional<CacheLock.Lock> lock = cacheLock.acquireExclusive(e.getKey().toPath());
+          if (lock.isPresent()) {
+            try {
+              e.getValue().forEach(entry -> deleteEntry(context, entry));
+              deleted.addAll(e.getValue());
+            } finally {
+              lock.get().close();
+            }
+          }
+        })).join();
+        context.allCacheEntries.removeAll(deleted);
+      }
+    } finally {
+      pool.shutdown();
+    }
 
-    cleanupDirectory(context, new File(configuration.getCacheDirectory()));
-
-    if (performTotalCacheSizeCheck && context.totalCacheSizeBytes > totalCacheSizeLimitBytes) {
-      context.sortEntries();
-      while (context.totalCacheSizeBytes > totalCacheSizeLimitBytes) {
-        context.deleteEntry();
+    if (performTotalCacheSizeCheck) {
+      Map<String, List<CacheEntry>> projectEntries = new HashMap<>();
+      for (CacheEntry entry : context.allCacheEntries) {
+        projectEntries.computeIfAbsent(getProjectKey(entry.directory), k -> new ArrayList<>())
+            .add(entry);
       }
+      Map<String, CacheLedger.Usage> usages = new HashMap<>();
+      projectEntries.forEach((project, entries) -> usages.put(project, getUsage(entries)));
+      cacheLedger.replace(getCacheRoot(), usages);
     }
 
     long execTimeSeconds = watch.getTime() / 1000;
     logger.info(String.format("buildcache: full clean deleted %d files (%s) in %d seconds",
-        context.deletedFileCount, byteAmountForOutput(context.deletedFileSizeBytes),
+        context.deletedFileCount.get(), byteAmountForOutput(context.deletedFileSizeBytes.get()),
         execTimeSeconds));
   }
 
+  public synchronized void submitProjectCleanup(File projectCacheDirectory) {
+    sessionDirectories.add(projectCacheDirectory);
+    if (daemonClient.isConnected()) {
+      try {
+        daemonClient.submitProjectCleanup(projectCacheDirectory);
+        return;
+      } catch (IOException e) {
+        // continue without the daemon
+      }
+    }
+    if (!pendingCleanups.add(projectCacheDirectory)) {
+      return;
+    }
+    if (backgroundExecutor == null) {
+      backgroundExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<>(),
+          new BackgroundThreadFactory("buildcache-cleanup-", Thread.MIN_PRIORITY));
+    }
+    backgroundExecutor.execute(() -> {
+      pendingCleanups.remove(projectCacheDirectory);
+      try {
+        projectCacheCleanup(projectCacheDirectory);
+      } catch (Exception e) {
+        logger.error(String.format("buildcache: failed to perform cache cleanup for %s",
+            projectCacheDirectory), e);
+      }
+    });
+  }
+
+  public void awaitCompletion() {
+    ThreadPoolExecutor executor;
+    synchronized (this) {
+      executor = backgroundExecutor;
+      backgroundExecutor = null;
+    }
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+          logger.info("buildcache: waiting for cache cleanup to complete");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public void enforceTotalCacheSize() throws IOException {
+    List<File> directories = new ArrayList<>(sessionDirectories);
+    sessionDirectories.clear();
+    if (daemonClient.isConnected()) {
+      try {
+        daemonClient.enforceTotalCacheSize();
+        return;
+      } catch (IOException e) {
+        // continue without the daemon
+      }
+    }
+    if (!performTotalCacheSizeCheck) {
+      return;
+    }
+
+    Path cacheRoot = getCacheRoot();
+    if (!cacheLedger.exists(cacheRoot)) {
+      logger.info("buildcache: cache size ledger not found, performing full clean");
+      fullCacheCleanup();
+      return;
+    }
+
+    Map<String, CacheLedger.Usage> updates = new HashMap<>();
+    for (File directory : directories) {
+      updates.put(getProjectKey(directory), getUsage(getIndexEntries(directory)));
+    }
+    Map<String, CacheLedger.Usage> ledger = cacheLedger.update(cacheRoot, updates);
+
+    long totalCacheSizeBytes = CacheLedger.getTotalSizeBytes(ledger);
+    long limitBytes = getTotalCacheSizeLimit(totalCacheSizeBytes);
+    if (totalCacheSizeBytes <= limitBytes) {
+      return;
+    }
+
+    Context context = new Context(fileUtil, false);
+    PriorityQueue<Map.Entry<String, CacheLedger.Usage>> projects = new PriorityQueue<>(
+        Comparator.comparingLong(e -> e.getValue().getOldestLastAccess()));
+    projects.addAll(ledger.entrySet());
+    Map<String, CacheLedger.Usage> changes = new HashMap<>();
+    int lockedProjects = 0;
+
+    // the oldest last access of a project is a lower bound of the eviction priorities of its
+    // entries, a project is queued again with its lowest actual priority once it has been read
+    while (totalCacheSizeBytes > limitBytes && !projects.isEmpty()) {
+      Map.Entry<String, CacheLedger.Usage> project = projects.poll();
+      long nextPriority =
+          projects.isEmpty() ? Long.MAX_VALUE : projects.peek().getValue().getOldestLastAccess();
+
+      File directory = cacheRoot.resolve(project.getKey()).toFile();
+      Optional<CacheLock.Lock> lock = cacheLock.acquireExclusive(directory.toPath());
+      if (!lock.isPresent()) {
+        lockedProjects++;
+        continue;
+      }
+      try {
+        List<CacheEntry> entries = getIndexEntries(directory);
+        CacheLedger.Usage actual = getUsage(entries);
+        totalCacheSizeBytes += actual.getSizeBytes() - project.getValue().getSizeBytes();
+
+        List<CacheEntry> evictable = new ArrayList<>();
+        entries.stream().filter(e -> e.size > 0 && !isProtected(e)).forEach(evictable::add);
+        assignEvictionPriorities(evictable);
+        Collections.sort(evictable, Comparator.comparingLong(e -> e.evictionPriority));
+        while (totalCacheSizeBytes > limitBytes && !evictable.isEmpty()
+            && evictable.get(0).evictionPriority <= nextPriority) {
+          CacheEntry entry = evictable.remove(0);
+          entries.remove(entry);
+          totalCacheSizeBytes -= entry.size;
+          deleteEntry(context, entry);
+        }
+
+        CacheLedger.Usage usage = getUsage(entries);
+        changes.put(project.getKey(), usage);
+        if (!evictable.isEmpty()) {
+          projects.add(new AbstractMap.SimpleEntry<>(project.getKey(), new CacheLedger.Usage(
+              usage.getSizeBytes(), evictable.get(0).evictionPriority)));
+        }
+      } finally {
+        lock.get().close();
+      }
+    }
+    cacheLedger.update(cacheRoot, changes);
+
+    logger.info(String.format("buildcache: total cache size limit deleted %d files (%s)",
+        context.deletedFileCount.get(), byteAmountForOutput(context.deletedFileSizeBytes.get())));
+
+    if (lockedProjects > 0) {
+      logger.info(String.format("buildcache: %d locked project cache directories were skipped",
+          lockedProjects));
+    } else if (totalCacheSizeBytes > totalCacheSizeLimitBytes) {
+      logger.warn("buildcache: total cache size limit could not be reached, "
+          + "cache size ledger will be rebuilt");
+      cacheLedger.invalidate(cacheRoot);
+    } else if (totalCacheSizeBytes > limitBytes) {
+      logger.warn("buildcache: free disk space target could not be reached by evicting the cache");
+    }
+  }
+
+  private long getTotalCacheSizeLimit(long totalCacheSizeBytes) {
+    if (minFreeDiskSpaceBytes <= 0) {
+      return totalCacheSizeLimitBytes;
+    }
+    long usableSpaceBytes;
+    try {
+      usableSpaceBytes = fileUtil.getUsableSpace(getCacheRoot());
+    } catch (IOException e) {
+      logger.error("buildcache: failed to read free disk space of the cache directory", e);
+      return totalCacheSizeLimitBytes;
+    }
+    if (usableSpaceBytes >= minFreeDiskSpaceBytes) {
+      return totalCacheSizeLimitBytes;
+    }
+    logger.info(String.format("buildcache: free disk space %s is below %s, evicting cache entries",
+        byteAmountForOutput(usableSpaceBytes), byteAmountForOutput(minFreeDiskSpaceBytes)));
+    long watermarkLimitBytes =
+        Math.max(0, totalCacheSizeBytes - (targetFreeDiskSpaceBytes - usableSpaceBytes));
+    return Math.min(totalCacheSizeLimitBytes, watermarkLimitBytes);
+  }
+
+  private List<CacheEntry> getIndexEntries(File directory) {
+    List<CacheEntry> entries = new ArrayList<>();
+    for (CacheIndex.Entry indexEntry : cacheIndex.getEntries(directory.toPath())) {
+      CacheEntry entry = new CacheEntry(directory, indexEntry.getKey(),
+          indexEntry.getLastAccess(), indexEntry.getSize(), null);
+      entry.durationMillis = indexEntry.getDurationMillis();
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  private static CacheLedger.Usage getUsage(Collection<CacheEntry> entries) {
+    long sizeBytes = 0;
+    long oldestLastAccess = Long.MAX_VALUE;
+    for (CacheEntry entry : entries) {
+      sizeBytes += entry.size;
+      if (entry.size > 0) {
+        oldestLastAccess = Math.min(oldestLastAccess, entry.lastAccess);
+      }
+    }
+    return new CacheLedger.Usage(sizeBytes, oldestLastAccess);
+  }
+
+  private Path getCacheRoot() {
+    return Paths.get(configuration.getCacheDirectory());
+  }
+
+  private String getProjectKey(File directory) {
+    return getCacheRoot().relativize(directory.toPath()).toString().replace(File.separatorChar,
+        '/');
+  }
+
+  public void protectEntry(Path projectCacheDirectory, String key) {
+    protectedEntries.add(projectCacheDirectory.resolve(key));
+    if (daemonClient.isConnected()) {
+      try {
+        daemonClient.protectEntry(projectCacheDirectory, key);
+      } catch (IOException e) {
+        // continue without the daemon
+      }
+    }
+  }
+
+  public void releaseEntry(Path projectCacheDirectory, String key) {
+    protectedEntries.remove(projectCacheDirectory.resolve(key));
+  }
+
+  public void releaseEntries() {
+    protectedEntries.clear();
+  }
+
+  private boolean isProtected(CacheEntry entry) {
+    return !protectedEntries.isEmpty()
+        && protectedEntries.contains(entry.directory.toPath().resolve(entry.key));
+  }
+
   public void projectCacheCleanup(File projectCacheDirectory) throws IOException {
     Context context = new Context(fileUtil, false);
+    Path directory = projectCacheDirectory.toPath();
+
+    if (cacheIndex.getReconciledAt(directory) > nowMillis - RECONCILIATION_INTERVAL_MILLIS) {
+      Optional<CacheLock.Lock> lock = cacheLock.acquireExclusive(directory);
+      if (lock.isPresent()) {
+        try {
+          enforceLimits(context, getIndexEntries(projectCacheDirectory));
+        } finally {
+          lock.get().close();
+        }
+      }
+      return;
+    }
+    // the directory is listed without the lock, the lock is only held for the deletes
     cleanupDirectory(context, projectCacheDirectory);
   }
 
-  private void cleanupDirectory(Context context, File directory) throws IOException {
+  private List<File> cleanupDirectory(Context context, File directory) {
 
     List<File> directories = new ArrayList<>();
-    List<File> cachedFiles = new ArrayList<>();
-
-    int cacheEntries = 0;
-    long dirSizeBytes = 0;
+    Map<String, CacheEntry> entries = new LinkedHashMap<>();
+    boolean hasCacheIndex = false;
 
     File[] files = fileUtil.listFiles(directory);
     if (files == null) {
-      return;
+      return directories;
     }
 
     for (File file : files) {
       if (file.isDirectory()) {
-        directories.add(file);
+        if (!isObjectStoreDirectory(file)) {
+          directories.add(file);
+        }
 
       } else if (isBuildCacheFile(file.getName())) {
+        String key = getEntryKey(file.getName());
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+          entry = new CacheEntry(directory, key, 0, 0, new LinkedHashMap<>());
+          entries.put(key, entry);
+        }
+        long size = file.length();
+        entry.files.put(file, size);
+        entry.size += size;
+        entry.lastAccess = Math.max(entry.lastAccess, file.lastModified());
 
-        if (hasExpired(file)) {
-          context.deleteFile(file);
-          continue;
+      } else if (CacheIndex.INDEX_FILE.equals(file.getName())) {
+        hasCacheIndex = true;
 
-        } else if (countsAsCacheEntry(file)) {
-          cacheEntries++;
-        }
+      } else if (FileUtil.isStaleTempFile(file, nowMillis)) {
+        context.deleteFile(file, file.length());
+        continue;
+      }
+
+      if (context.isFullClean && file.getName().endsWith(ObjectStore.MANIFEST_EXTENSION)) {
+        context.manifestFiles.add(file);
+      }
+    }
+
+    if (!hasCacheIndex && entries.isEmpty()) {
+      return directories;
+    }
+
+    Optional<CacheLock.Lock> lock = cacheLock.acquireExclusive(directory.toPath());
+    if (!lock.isPresent()) {
+      return directories;
+    }
+    try {
+      reconcile(directory, entries);
+      enforceLimits(context, new ArrayList<>(entries.values()));
+    } finally {
+      lock.get().close();
+    }
+    return directories;
+  }
+
+  private void reconcile(File directory, Map<String, CacheEntry> entries) {
+    Path path = directory.toPath();
+    Set<String> indexedKeys = new HashSet<>();
+    for (CacheIndex.Entry indexEntry : cacheIndex.getEntries(path)) {
+      indexedKeys.add(indexEntry.getKey());
+      CacheEntry entry = entries.get(indexEntry.getKey());
+      if (entry != null) {
+        entry.lastAccess = Math.max(entry.lastAccess, indexEntry.getLastAccess());
+        entry.durationMillis = indexEntry.getDurationMillis();
+
+      } else if (isTestResult(indexEntry.getKey())) {
+        entry = new CacheEntry(directory, indexEntry.getKey(), indexEntry.getLastAccess(),
+            indexEntry.getSize(), new LinkedHashMap<>());
+        entry.durationMillis = indexEntry.getDurationMillis();
+        entries.put(indexEntry.getKey(), entry);
+
+      } else if (!new File(directory, indexEntry.getKey()).exists()) {
+        // the entry may have been written after the directory was listed
+        cacheIndex.remove(path, indexEntry.getKey());
+      }
+    }
+
+    for (CacheEntry entry : entries.values()) {
+      if (!indexedKeys.contains(entry.key) && isIndexedEntry(entry)) {
+        cacheIndex.put(path, new CacheIndex.Entry(entry.key, getEntryKind(entry.key), entry.size,
+            entry.lastAccess, entry.lastAccess, 0));
+      }
+    }
+    cacheIndex.setReconciledAt(path, nowMillis);
+  }
+
+  private void enforceLimits(Context context, List<CacheEntry> entries) {
+    List<CacheEntry> remaining = new ArrayList<>();
+    int cacheEntries = 0;
+    long dirSizeBytes = 0;
 
-        dirSizeBytes += file.length();
-        cachedFiles.add(file);
+    for (CacheEntry entry : entries) {
+      boolean isProtected = isProtected(entry);
+      if (!isProtected && hasExpired(entry.lastAccess)) {
+        deleteEntry(context, entry);
+        continue;
+      }
+      if (entry.countsAsCacheEntry()) {
+        cacheEntries++;
+      }
+      dirSizeBytes += entry.size;
+      if (!isProtected) {
+        remaining.add(entry);
       }
     }
 
@@ -136,38 +570,121 @@ public class CacheCleanupExecutor {
           configuration.hasProjectCacheMaxEntries() ? configuration.getProjectCacheMaxEntries()
               : Integer.MAX_VALUE;
 
-      sortLastModifiedAscending(cachedFiles);
+      assignEvictionPriorities(remaining);
+      Collections.sort(remaining, Comparator.comparingLong(e -> e.evictionPriority));
 
-      while (dirSizeBytes > dirSizeLimitBytes || cacheEntries > cacheEntriesLimit) {
-        File toDelete = cachedFiles.remove(0);
-        if (countsAsCacheEntry(toDelete)) {
+      while ((dirSizeBytes > dirSizeLimitBytes || cacheEntries > cacheEntriesLimit)
+          && !remaining.isEmpty()) {
+        CacheEntry toDelete = remaining.remove(0);
+        if (toDelete.countsAsCacheEntry()) {
           cacheEntries--;
         }
-        dirSizeBytes -= toDelete.length();
-        context.deleteFile(toDelete);
+        dirSizeBytes -= toDelete.size;
+        deleteEntry(context, toDelete);
       }
     }
 
-    if (!context.isFullClean) {
-      return;
+    if (context.isFullClean && performTotalCacheSizeCheck) {
+      context.allCacheEntries.addAll(remaining);
+      context.totalCacheSizeBytes.addAndGet(dirSizeBytes);
     }
+  }
 
-    if (performTotalCacheSizeCheck) {
-      context.allCacheEntries.addAll(cachedFiles);
-      context.totalCacheSizeBytes += dirSizeBytes;
+  private void deleteEntry(Context context, CacheEntry entry) {
+    if (entry.files != null) {
+      entry.files.forEach(context::deleteFile);
+      entry.files.keySet().stream().filter(f -> f.getName().endsWith(ZIP_EXTENSION))
+          .forEach(f -> cacheTiers.delete(f.toPath()));
+    } else {
+      String baseName = getBaseName(entry.key);
+      for (String extension : ENTRY_FILE_EXTENSIONS) {
+        File file = new File(entry.directory, baseName + extension);
+        if (file.exists()) {
+          context.deleteFile(file, file.length());
+        }
+      }
+      if (entry.key.endsWith(ZIP_EXTENSION)) {
+        cacheTiers.delete(new File(entry.directory, entry.key).toPath());
+      }
+    }
+    cacheIndex.remove(entry.directory.toPath(), entry.key);
+  }
+
+  private void assignEvictionPriorities(Collection<CacheEntry> entries) {
+    double maxValue = 0;
+    if (configuration.isCostAwareEviction()) {
+      for (CacheEntry entry : entries) {
+        maxValue = Math.max(maxValue, entry.getValuePerByte());
+      }
+    }
+    for (CacheEntry entry : entries) {
+      entry.evictionPriority = entry.lastAccess;
+      if (maxValue > 0) {
+        entry.evictionPriority += (long) (COST_CREDIT_MILLIS * entry.getValuePerByte() / maxValue);
+      }
+    }
+  }
+
+  private class DirectoryCleanupTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Context context;
+    private final File directory;
+
+    private DirectoryCleanupTask(Context context, File directory) {
+      this.context = context;
+      this.directory = directory;
+    }
+
+    @Override
+    protected void compute() {
+      List<DirectoryCleanupTask> subtasks = new ArrayList<>();
+      for (File subdir : cleanupDirectory(context, directory)) {
+        subtasks.add(new DirectoryCleanupTask(context, subdir));
+      }
+      invokeAll(subtasks);
     }
+  }
+
+  private static String getEntryKey(String filename) {
+    String baseName = filename.substring(0, filename.lastIndexOf('.'));
+    return isTestResult(baseName) ? baseName : baseName + ZIP_EXTENSION;
+  }
+
+  private static String getBaseName(String key) {
+    return key.endsWith(ZIP_EXTENSION) ? key.substring(0, key.length() - ZIP_EXTENSION.length())
+        : key;
+  }
 
-    for (File subdir : directories) {
-      cleanupDirectory(context, subdir);
+  private static boolean isTestResult(String key) {
+    return (key.startsWith(CacheIndex.KIND_TEST + "-")
+        && !key.startsWith(CacheIndex.KIND_TEST_CLASSES + "-"))
+        || key.startsWith(CacheIndex.KIND_IT_TEST + "-");
+  }
+
+  private static boolean isIndexedEntry(CacheEntry entry) {
+    return isTestResult(entry.key) || entry.countsAsCacheEntry();
+  }
+
+  private static String getEntryKind(String key) {
+    if (key.startsWith(CacheIndex.KIND_TEST_CLASSES + "-")) {
+      return CacheIndex.KIND_TEST_CLASSES;
+    } else if (key.startsWith(CacheIndex.KIND_CLASSES + "-")) {
+      return CacheIndex.KIND_CLASSES;
+    } else if (key.startsWith(CacheIndex.KIND_IT_TEST + "-")) {
+      return CacheIndex.KIND_IT_TEST;
     }
+    return CacheIndex.KIND_TEST;
   }
 
   private long toBytes(long megaBytes) {
     return megaBytes * 1024 * 1024;
   }
 
-  private boolean countsAsCacheEntry(File file) {
-    return file.getName().endsWith(".zip");
+  private boolean isObjectStoreDirectory(File directory) {
+    return ObjectStore.OBJECTS_DIR.equals(directory.getName())
+        && new File(configuration.getCacheDirectory()).equals(directory.getParentFile());
   }
 
   void setLogger(Logger logger) {
@@ -178,35 +695,78 @@ public class CacheCleanupExecutor {
     this.fileUtil = fileUtil;
   }
 
+  void setObjectStore(ObjectStore objectStore) {
+    this.objectStore = objectStore;
+  }
+
+  void setCacheIndex(CacheIndex cacheIndex) {
+    this.cacheIndex = cacheIndex;
+  }
+
+  void setCacheLedger(CacheLedger cacheLedger) {
+    this.cacheLedger = cacheLedger;
+  }
+
+  void setCacheLock(CacheLock cacheLock) {
+    this.cacheLock = cacheLock;
+  }
+
+  void setCacheDaemonClient(CacheDaemonClient daemonClient) {
+    this.daemonClient = daemonClient;
+  }
+
+  void setCacheTiers(CacheTiers cacheTiers) {
+    this.cacheTiers = cacheTiers;
+  }
+
+  private static class CacheEntry {
+    private final File directory;
+    private final String key;
+    private long lastAccess;
+    private long size;
+    private final Map<File, Long> files;
+    private long durationMillis;
+    private long evictionPriority;
+
+    private CacheEntry(File directory, String key, long lastAccess, long size,
+        Map<File, Long> files) {
+      this.directory = directory;
+      this.key = key;
+      this.lastAccess = lastAccess;
+      this.size = size;
+      this.files = files;
+    }
+
+    private double getValuePerByte() {
+      return durationMillis / (double) Math.max(size, MIN_ENTRY_SIZE_BYTES);
+    }
+
+    private boolean countsAsCacheEntry() {
+      return files == null ? key.endsWith(ZIP_EXTENSION)
+          : files.keySet().stream().anyMatch(f -> f.getName().endsWith(ZIP_EXTENSION));
+    }
+  }
+
   private static class Context {
 
     private boolean isFullClean;
     private FileUtil fileUtil;
 
-    private List<File> allCacheEntries = new ArrayList<>();
-    private long totalCacheSizeBytes = 0;
-    private int deletedFileCount = 0;
-    private long deletedFileSizeBytes = 0;
+    private Queue<CacheEntry> allCacheEntries = new ConcurrentLinkedQueue<>();
+    private Queue<File> manifestFiles = new ConcurrentLinkedQueue<>();
+    private AtomicLong totalCacheSizeBytes = new AtomicLong();
+    private AtomicLong deletedFileCount = new AtomicLong();
+    private AtomicLong deletedFileSizeBytes = new AtomicLong();
 
     private Context(FileUtil fileUtil, boolean isFullClean) {
       this.fileUtil = fileUtil;
       this.isFullClean = isFullClean;
     }
 
-    private void deleteFile(File file) {
-      deletedFileCount++;
-      deletedFileSizeBytes += file.length();
+    private void deleteFile(File file, long size) {
+      deletedFileCount.incrementAndGet();
+      deletedFileSizeBytes.addAndGet(size);
       fileUtil.deleteFile(file);
     }
-
-    private void sortEntries() {
-      sortLastModifiedAscending(allCacheEntries);
-    }
-
-    private void deleteEntry() {
-      File toDelete = allCacheEntries.remove(0);
-      totalCacheSizeBytes -= toDelete.length();
-      deleteFile(toDelete);
-    }
   }
 }
@@ -0,0 +1,482 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import org.apache.commons.codec.binary.Hex;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+
+/**
+ * Cache server shared by the concurrent builds of a host. It keeps the cache indexes of the
+ * recently used projects in memory, and does the cache cleanup and the total cache size
+ * enforcement of all the builds, so that they don't each scan, lock and evict the same
+ * directories. It also does the remote cache uploads of the builds that use the same remote cache
+ * as the daemon. Builds find the daemon from the {@link #DAEMON_FILE} of the cache directory,
+ * which holds the port of the daemon and the token that the builds authenticate with.
+ *
+ * <p>
+ * The protocol is line based. A request is a command and its arguments separated by tabs, and a
+ * response is {@link #OK} followed by the results, or {@link #ERROR} and a message.
+ */
+public class CacheDaemon implements AutoCloseable {
+
+  public static final String DAEMON_FILE = "buildcache.daemon";
+
+  static final String HELLO = "hello";
+  static final String GET = "get";
+  static final String ENTRIES = "entries";
+  static final String PUT = "put";
+  static final String TOUCH = "touch";
+  static final String REMOVE = "remove";
+  static final String PROTECT = "protect";
+  static final String CLEAN = "clean";
+  static final String ENFORCE = "enforce";
+  static final String UPLOAD = "upload";
+
+  static final String OK = "ok";
+  static final String ERROR = "error";
+  static final String SEPARATOR = "\t";
+
+  static final int ENTRY_FIELDS = 6;
+
+  static final int MAX_LOADED_INDEXES = 1000;
+  private static final int MAX_UPLOADED_PATHS = 10000;
+  private static final long MAINTENANCE_INTERVAL_MILLIS = 10000;
+
+  public static void main(String[] args) throws Exception {
+    Logger logger = new ConsoleLogger(Logger.LEVEL_INFO, "buildcache-daemon");
+
+    Path userM2Dir = Paths.get(System.getProperty(BuildCache.USER_HOME), BuildCache.USER_M2_DIR);
+    Path configFile =
+        args.length > 0 ? Paths.get(args[0]) : userM2Dir.resolve(BuildCache.CONFIG_FILENAME);
+    String defaultCacheDir = userM2Dir.resolve(BuildCache.USER_M2_CACHE_DIR).toString();
+
+    Configuration configuration = new Configuration();
+    if (Files.exists(configFile)) {
+      try (InputStream in = new FileInputStream(configFile.toFile())) {
+        configuration.readCacheConfiguration(in, defaultCacheDir);
+      }
+    } else {
+      configuration.setCachingDefaults(defaultCacheDir);
+    }
+
+    CacheDaemon daemon = create(configuration, logger);
+    Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+    daemon.start();
+    daemon.awaitClose();
+  }
+
+  static CacheDaemon create(Configuration configuration, Logger logger) throws IOException {
+    CacheDaemonClient daemonClient = new CacheDaemonClient();
+    FileUtil fileUtil = new FileUtil();
+    fileUtil.setLogger(logger);
+    HashUtil hashUtil = new HashUtil();
+    hashUtil.setLogger(logger);
+    hashUtil.setFileUtil(fileUtil);
+
+    CacheLock cacheLock = new CacheLock();
+    cacheLock.setLogger(logger);
+    cacheLock.initialize(configuration);
+
+    CacheIndex cacheIndex = new CacheIndex();
+    cacheIndex.setLogger(logger);
+    cacheIndex.setFileUtil(fileUtil);
+    cacheIndex.setCacheDaemonClient(daemonClient);
+    cacheIndex.setCacheLock(cacheLock);
+
+    ObjectStore objectStore = new ObjectStore();
+    objectStore.setLogger(logger);
+    objectStore.setHashUtil(hashUtil);
+    objectStore.setFileUtil(fileUtil);
+    objectStore.initialize(configuration);
+
+    CacheTiers cacheTiers = new CacheTiers();
+    cacheTiers.setLogger(logger);
+    cacheTiers.setFileUtil(fileUtil);
+    cacheTiers.setCacheIndex(cacheIndex);
+    cacheTiers.setCacheLock(cacheLock);
+    cacheTiers.initialize(configuration);
+
+    CacheCleanupExecutor cacheCleanupExecutor = new CacheCleanupExecutor();
+    cacheCleanupExecutor.setLogger(logger);
+    cacheCleanupExecutor.setFileUtil(fileUtil);
+    cacheCleanupExecutor.setObjectStore(objectStore);
+    cacheCleanupExecutor.setCacheIndex(cacheIndex);
+    cacheCleanupExecutor.setCacheLedger(new CacheLedger());
+    cacheCleanupExecutor.setCacheLock(cacheLock);
+    cacheCleanupExecutor.setCacheDaemonClient(daemonClient);
+    cacheCleanupExecutor.setCacheTiers(cacheTiers);
+
+    RemoteCache remoteCache = new RemoteCache();
+    remoteCache.setLogger(logger);
+    remoteCache.setFileUtil(fileUtil);
+    remoteCache.initialize(configuration);
+
+    RemoteUploader remoteUploader = new RemoteUploader();
+    remoteUploader.setLogger(logger);
+    remoteUploader.setRemoteCache(remoteCache);
+    remoteUploader.setCacheDaemonClient(daemonClient);
+    remoteUploader.initialize(configuration);
+
+    return new CacheDaemon(configuration, logger, fileUtil, cacheIndex, cacheCleanupExecutor,
+        remoteUploader);
+  }
+
+  private final Configuration configuration;
+  private final Logger logger;
+  private final FileUtil fileUtil;
+  private final CacheIndex cacheIndex;
+  private final CacheCleanupExecutor cacheCleanupExecutor;
+  private final RemoteUploader remoteUploader;
+
+  private final Path daemonFile;
+  private final String token;
+  private final ServerSocket serverSocket;
+  private final ExecutorService connectionExecutor;
+  private final ScheduledExecutorService maintenanceExecutor;
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean closing = new AtomicBoolean();
+  private final CountDownLatch closed = new CountDownLatch(1);
+
+  private final Map<Path, Integer> protectedEntries = new HashMap<>();
+  private final AtomicBoolean enforcementPending = new AtomicBoolean();
+  private final Set<String> pendingUploads = new HashSet<>();
+  private final Map<String, Boolean> uploadedPaths =
+      new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_UPLOADED_PATHS;
+        }
+      };
+
+  CacheDaemon(Configuration configuration, Logger logger, FileUtil fileUtil,
+      CacheIndex cacheIndex, CacheCleanupExecutor cacheCleanupExecutor,
+      RemoteUploader remoteUploader) throws IOException {
+    this.configuration = configuration;
+    this.logger = logger;
+    this.fileUtil = fileUtil;
+    this.cacheIndex = cacheIndex;
+    this.cacheCleanupExecutor = cacheCleanupExecutor;
+    this.remoteUploader = remoteUploader;
+
+    this.daemonFile = Paths.get(configuration.getCacheDirectory(), DAEMON_FILE);
+    byte[] random = new byte[16];
+    new SecureRandom().nextBytes(random);
+    this.token = Hex.encodeHexString(random);
+    this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    this.connectionExecutor = Executors.newCachedThreadPool(
+        new BackgroundThreadFactory("buildcache-daemon-", Thread.NORM_PRIORITY));
+    this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+        new BackgroundThreadFactory("buildcache-maintenance-", Thread.MIN_PRIORITY));
+  }
+
+  void start() throws IOException {
+    if (isRunning(daemonFile)) {
+      close();
+      throw new IOException(String.format("another cache daemon is using %s", daemonFile));
+    }
+    cacheCleanupExecutor.initialize(configuration);
+    byte[] content = String.format("%d\n%s\n", getPort(), token)
+        .getBytes(StandardCharsets.UTF_8);
+    Files.createDirectories(daemonFile.getParent());
+    fileUtil.writeAtomically(daemonFile, tmp -> {
+      Files.write(tmp, content);
+      restrictToOwner(tmp);
+    });
+
+    connectionExecutor.execute(this::accept);
+    maintenanceExecutor.scheduleWithFixedDelay(this::maintain, MAINTENANCE_INTERVAL_MILLIS,
+        MAINTENANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    logger.info(String.format("buildcache: cache daemon serving %s on port %d, remote uploads %s",
+        configuration.getCacheDirectory(), getPort(),
+        remoteUploader.isEnabled() ? "enabled" : "disabled"));
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  void awaitClose() throws InterruptedException {
+    closed.await();
+  }
+
+  @Override
+  public void close() {
+    if (!closing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      // nothing to do
+    }
+    for (Socket connection : connections) {
+      try {
+        connection.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+    }
+    connectionExecutor.shutdownNow();
+    maintenanceExecutor.shutdownNow();
+    try {
+      List<String> lines = Files.readAllLines(daemonFile, StandardCharsets.UTF_8);
+      if (lines.size() > 1 && token.equals(lines.get(1))) {
+        Files.delete(daemonFile);
+      }
+    } catch (IOException e) {
+      // removed already, or replaced by another daemon
+    }
+    remoteUploader.awaitCompletion();
+    cacheCleanupExecutor.awaitCompletion();
+    cacheIndex.flushAccessTimes();
+    closed.countDown();
+  }
+
+  private static boolean isRunning(Path daemonFile) {
+    try (Socket socket = new Socket()) {
+      int port = Integer.parseInt(Files.readAllLines(daemonFile, StandardCharsets.UTF_8).get(0));
+      socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+          CacheDaemonClient.TIMEOUT_MILLIS);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  private static void restrictToOwner(Path file) throws IOException {
+    try {
+      Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+    } catch (UnsupportedOperationException e) {
+      // not a POSIX file system
+    }
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        connections.add(socket);
+        connectionExecutor.execute(() -> serve(socket));
+      } catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          logger.error("buildcache: failed to accept a cache daemon connection", e);
+        }
+      }
+    }
+  }
+
+  private void serve(Socket connection) {
+    Set<Path> protectedByConnection = new HashSet<>();
+    try (Socket socket = connection;
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Writer writer = new BufferedWriter(
+            new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+      socket.setTcpNoDelay(true);
+      String line = reader.readLine();
+      String[] hello = line != null ? line.split(SEPARATOR, -1) : new String[0];
+      if (!isAuthenticated(hello)) {
+        return;
+      }
+      boolean remoteUpload = isRemoteUploadEnabled(hello);
+      respond(writer, String.join(SEPARATOR, OK, Boolean.toString(remoteUpload)));
+
+      while ((line = reader.readLine()) != null) {
+        String response;
+        try {
+          response = handle(line.split(SEPARATOR, -1), protectedByConnection, remoteUpload);
+        } catch (RuntimeException e) {
+          response = String.join(SEPARATOR, ERROR, String.valueOf(e));
+        }
+        respond(writer, response);
+      }
+    } catch (IOException e) {
+      logger.debug(String.format("buildcache: cache daemon connection closed: %s", e));
+    } finally {
+      connections.remove(connection);
+      release(protectedByConnection);
+    }
+  }
+
+  private boolean isAuthenticated(String[] hello) {
+    return hello.length >= 2 && HELLO.equals(hello[0]) && MessageDigest.isEqual(
+        token.getBytes(StandardCharsets.UTF_8), hello[1].getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns true if the daemon uploads to the remote cache that the build sent in its hello.
+   */
+  private boolean isRemoteUploadEnabled(String[] hello) {
+    return remoteUploader.isEnabled() && configuration.hasRemoteUrl() && hello.length >= 3
+        && configuration.getRemoteUrl().equals(hello[2]);
+  }
+
+  private static void respond(Writer writer, String response) throws IOException {
+    writer.write(response);
+    writer.write('\n');
+    writer.flush();
+  }
+
+  private String handle(String[] request, Set<Path> protectedByConnection,
+      boolean remoteUpload) {
+    List<String> results = new ArrayList<>();
+    results.add(OK);
+    switch (request[0]) {
+      case GET:
+        cacheIndex.get(Paths.get(request[1]), request[2])
+            .ifPresent(entry -> results.addAll(toFields(entry)));
+        break;
+      case ENTRIES:
+        cacheIndex.getEntries(Paths.get(request[1]))
+            .forEach(entry -> results.addAll(toFields(entry)));
+        break;
+      case PUT:
+        cacheIndex.put(Paths.get(request[1]), fromFields(request, 2));
+        break;
+      case TOUCH:
+        cacheIndex.touch(Paths.get(request[1]), request[2], Long.parseLong(request[3]));
+        break;
+      case REMOVE:
+        cacheIndex.remove(Paths.get(request[1]), request[2]);
+        break;
+      case PROTECT:
+        protect(Paths.get(request[1]).resolve(request[2]), protectedByConnection);
+        break;
+      case CLEAN:
+        cacheCleanupExecutor.submitProjectCleanup(Paths.get(request[1]).toFile());
+        break;
+      case ENFORCE:
+        scheduleEnforcement();
+        break;
+      case UPLOAD:
+        if (!remoteUpload) {
+          return String.join(SEPARATOR, ERROR, "remote uploads are not enabled for the build");
+        }
+        upload(request[1], request[2], Long.parseLong(request[3]), Long.parseLong(request[4]));
+        break;
+      default:
+        return String.join(SEPARATOR, ERROR, "unknown request " + request[0]);
+    }
+    return String.join(SEPARATOR, results);
+  }
+
+  private void protect(Path entry, Set<Path> protectedByConnection) {
+    if (!protectedByConnection.add(entry)) {
+      return;
+    }
+    synchronized (protectedEntries) {
+      if (protectedEntries.merge(entry, 1, Integer::sum) == 1) {
+        cacheCleanupExecutor.protectEntry(entry.getParent(), entry.getFileName().toString());
+      }
+    }
+  }
+
+  private void release(Set<Path> protectedByConnection) {
+    synchronized (protectedEntries) {
+      for (Path entry : protectedByConnection) {
+        if (protectedEntries.computeIfPresent(entry, (e, count) -> count > 1 ? count - 1
+            : null) == null) {
+          cacheCleanupExecutor.releaseEntry(entry.getParent(), entry.getFileName().toString());
+        }
+      }
+    }
+  }
+
+  private void scheduleEnforcement() {
+    // the requests of the builds finishing at the same time are served by a single enforcement
+    if (enforcementPending.compareAndSet(false, true)) {
+      maintenanceExecutor.execute(() -> {
+        enforcementPending.set(false);
+        try {
+          cacheCleanupExecutor.enforceTotalCacheSize();
+        } catch (Exception e) {
+          logger.error("buildcache: failed to enforce total cache size limit", e);
+        }
+      });
+    }
+  }
+
+  private void upload(String path, String file, long size, long durationMillis) {
+    synchronized (uploadedPaths) {
+      if (uploadedPaths.get(path) != null || !pendingUploads.add(path)) {
+        return;
+      }
+    }
+    Consumer<Boolean> completion = uploaded -> {
+      synchronized (uploadedPaths) {
+        pendingUploads.remove(path);
+        if (uploaded) {
+          uploadedPaths.put(path, Boolean.TRUE);
+        }
+      }
+    };
+    if (file.isEmpty()) {
+      remoteUploader.submit(path, new byte[0], durationMillis, completion);
+    } else {
+      remoteUploader.submit(path, Paths.get(file), size, durationMillis, completion);
+    }
+  }
+
+  private void maintain() {
+    try {
+      // the expiration limits of the cleanup are relative to the time of initialization
+      cacheCleanupExecutor.initialize(configuration);
+      cacheIndex.flushAccessTimes();
+      cacheIndex.retainRecent(MAX_LOADED_INDEXES);
+    } catch (RuntimeException e) {
+      logger.error("buildcache: cache daemon maintenance failed", e);
+    }
+  }
+
+  static List<String> toFields(CacheIndex.Entry entry) {
+    List<String> fields = new ArrayList<>(ENTRY_FIELDS);
+    fields.add(entry.getKey());
+    fields.add(entry.getKind());
+    fields.add(Long.toString(entry.getSize()));
+    fields.add(Long.toString(entry.getCreated()));
+    fields.add(Long.toString(entry.getLastAccess()));
+    fields.add(Long.toString(entry.getDurationMillis()));
+    return fields;
+  }
+
+  static CacheIndex.Entry fromFields(String[] fields, int offset) {
+    return new CacheIndex.Entry(fields[offset], fields[offset + 1],
+        Long.parseLong(fields[offset + 2]), Long.parseLong(fields[offset + 3]),
+        Long.parseLong(fields[offset + 4]), Long.parseLong(fields[offset + 5]));
+  }
+}
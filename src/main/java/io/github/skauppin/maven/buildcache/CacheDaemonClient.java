@@ -0,0 +1,189 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Connection of a build to the {@link CacheDaemon} of the host. While the client is connected,
+ * the cache index, the cache cleanup and the remote cache uploads are handled by the daemon. If
+ * the connection fails, the client disconnects and the build does them itself for the rest of
+ * the session.
+ */
+@Component(role = CacheDaemonClient.class)
+public class CacheDaemonClient {
+
+  static final int TIMEOUT_MILLIS = 10000;
+
+  @Requirement
+  private Logger logger;
+
+  private volatile Socket socket;
+  private volatile boolean remoteUpload;
+  private BufferedReader reader;
+  private Writer writer;
+
+  public synchronized void initialize(Configuration configuration) {
+    close();
+    Path daemonFile = Paths.get(configuration.getCacheDirectory(), CacheDaemon.DAEMON_FILE);
+    if (!Files.exists(daemonFile)) {
+      return;
+    }
+    int port = 0;
+    try {
+      List<String> lines = Files.readAllLines(daemonFile, StandardCharsets.UTF_8);
+      port = Integer.parseInt(lines.get(0));
+      Socket connection = new Socket();
+      socket = connection;
+      connection.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+          TIMEOUT_MILLIS);
+      connection.setSoTimeout(TIMEOUT_MILLIS);
+      connection.setTcpNoDelay(true);
+      reader = new BufferedReader(
+          new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+      writer = new BufferedWriter(
+          new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8));
+      String remoteUrl = configuration.hasRemoteUrl() ? configuration.getRemoteUrl() : "";
+      String[] response = send(CacheDaemon.HELLO, lines.get(1), remoteUrl);
+      remoteUpload = response.length > 1 && Boolean.parseBoolean(response[1]);
+      logger.info(String.format("buildcache: using cache daemon on port %d", port));
+
+    } catch (IOException | RuntimeException e) {
+      close();
+      logger.warn(String.format("buildcache: cache daemon %s on port %d is not available: %s",
+          daemonFile, port, e));
+    }
+  }
+
+  public boolean isConnected() {
+    return socket != null;
+  }
+
+  /**
+   * Returns true if the daemon uploads to the same remote cache as the build.
+   */
+  public boolean isRemoteUploadEnabled() {
+    return socket != null && remoteUpload;
+  }
+
+  public synchronized void close() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+      socket = null;
+      remoteUpload = false;
+      reader = null;
+      writer = null;
+    }
+  }
+
+  public Optional<CacheIndex.Entry> get(Path projectCacheDir, String key) throws IOException {
+    List<CacheIndex.Entry> entries =
+        toEntries(request(CacheDaemon.GET, projectCacheDir.toString(), key));
+    return entries.isEmpty() ? Optional.empty() : Optional.of(entries.get(0));
+  }
+
+  public List<CacheIndex.Entry> getEntries(Path projectCacheDir) throws IOException {
+    return toEntries(request(CacheDaemon.ENTRIES, projectCacheDir.toString()));
+  }
+
+  public void put(Path projectCacheDir, CacheIndex.Entry entry) throws IOException {
+    List<String> fields = new ArrayList<>();
+    fields.add(CacheDaemon.PUT);
+    fields.add(projectCacheDir.toString());
+    fields.addAll(CacheDaemon.toFields(entry));
+    request(fields.toArray(new String[fields.size()]));
+  }
+
+  public void touch(Path projectCacheDir, String key, long accessTime) throws IOException {
+    request(CacheDaemon.TOUCH, projectCacheDir.toString(), key, Long.toString(accessTime));
+  }
+
+  public void remove(Path projectCacheDir, String key) throws IOException {
+    request(CacheDaemon.REMOVE, projectCacheDir.toString(), key);
+  }
+
+  public void protectEntry(Path projectCacheDir, String key) throws IOException {
+    request(CacheDaemon.PROTECT, projectCacheDir.toString(), key);
+  }
+
+  public void submitProjectCleanup(File projectCacheDirectory) throws IOException {
+    request(CacheDaemon.CLEAN, projectCacheDirectory.toString());
+  }
+
+  public void enforceTotalCacheSize() throws IOException {
+    request(CacheDaemon.ENFORCE);
+  }
+
+  /**
+   * Submits an upload of the file, or of an empty entry if the file is null.
+   */
+  public void submitUpload(String path, Path file, long size, long durationMillis)
+      throws IOException {
+    request(CacheDaemon.UPLOAD, path, file == null ? "" : file.toString(), Long.toString(size),
+        Long.toString(durationMillis));
+  }
+
+  private static List<CacheIndex.Entry> toEntries(String[] response) {
+    List<CacheIndex.Entry> entries = new ArrayList<>();
+    for (int i = 1; i + CacheDaemon.ENTRY_FIELDS <= response.length;
+        i += CacheDaemon.ENTRY_FIELDS) {
+      entries.add(CacheDaemon.fromFields(response, i));
+    }
+    return entries;
+  }
+
+  private synchronized String[] request(String... fields) throws IOException {
+    if (socket == null) {
+      throw new IOException("not connected to the cache daemon");
+    }
+    try {
+      return send(fields);
+    } catch (IOException | RuntimeException e) {
+      logger.warn(String.format(
+          "buildcache: cache daemon request failed, continuing without the daemon: %s", e));
+      close();
+      throw e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+  }
+
+  private String[] send(String... fields) throws IOException {
+    writer.write(String.join(CacheDaemon.SEPARATOR, fields));
+    writer.write('\n');
+    writer.flush();
+    String line = reader.readLine();
+    if (line == null) {
+      throw new EOFException("connection closed by the cache daemon");
+    }
+    String[] response = line.split(CacheDaemon.SEPARATOR, -1);
+    if (!CacheDaemon.OK.equals(response[0])) {
+      throw new IOException(line);
+    }
+    return response;
+  }
+
+  void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+}
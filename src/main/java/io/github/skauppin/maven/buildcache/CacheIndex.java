@@ -0,0 +1,477 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+
+@Component(role = CacheIndex.class)
+public class CacheIndex {
+
+  public static final String INDEX_FILE = "buildcache.index";
+
+  public static final String KIND_CLASSES = "classes";
+  public static final String KIND_TEST_CLASSES = "test-classes";
+  public static final String KIND_TEST = "test";
+  public static final String KIND_IT_TEST = "it-test";
+
+  private static final String PUT = "put";
+  private static final String ACCESS = "access";
+  private static final String REMOVE = "remove";
+  private static final String RECONCILED = "reconciled";
+
+  private static final int COMPACTION_MIN_RECORDS = 64;
+  private static final int COMPACTION_RATIO = 4;
+
+  @Requirement
+  private Logger logger;
+
+  @Requirement
+  private FileUtil fileUtil;
+
+  @Requirement
+  private CacheLock cacheLock;
+
+  @Requirement
+  private CacheDaemonClient daemonClient;
+
+  private final Map<Path, ProjectIndex> indexes = new ConcurrentHashMap<>();
+  private final AtomicLong useCount = new AtomicLong();
+
+  public Optional<Entry> get(Path projectCacheDir, String key) {
+    if (daemonClient.isConnected()) {
+      try {
+        return daemonClient.get(projectCacheDir, key);
+      } catch (IOException e) {
+        // the index file is up to date, continue without the daemon
+      }
+    }
+    return get(getIndex(projectCacheDir), key);
+  }
+
+  public Optional<Entry> getReadOnly(Path projectCacheDir, String key) {
+    return get(indexes.computeIfAbsent(projectCacheDir,
+        d -> new ProjectIndex(d.resolve(INDEX_FILE), true)), key);
+  }
+
+  private Optional<Entry> get(ProjectIndex index, String key) {
+    synchronized (index) {
+      index.load();
+      Entry entry = index.entries.get(key);
+      if (entry == null) {
+        index.refresh();
+        entry = index.entries.get(key);
+      }
+      return Optional.ofNullable(entry);
+    }
+  }
+
+  public List<Entry> getEntries(Path projectCacheDir) {
+    if (daemonClient.isConnected()) {
+      try {
+        return daemonClient.getEntries(projectCacheDir);
+      } catch (IOException e) {
+        // continue without the daemon
+      }
+    }
+    ProjectIndex index = getIndex(projectCacheDir);
+    synchronized (index) {
+      index.load();
+      index.refresh();
+      return new ArrayList<>(index.entries.values());
+    }
+  }
+
+  public void put(Path projectCacheDir, Entry entry) {
+    if (daemonClient.isConnected()) {
+      try {
+        daemonClient.put(projectCacheDir, entry);
+        return;
+      } catch (IOException e) {
+        // continue without the daemon
+      }
+    }
+    ProjectIndex index = getIndex(projectCacheDir);
+    Optional<CacheLock.Lock> lock = cacheLock.acquireShared(projectCacheDir);
+    try {
+      synchronized (index) {
+        index.load();
+        index.entries.put(entry.key, entry);
+        index.append(String.format("%s %s %s %d %d %d %d", PUT, entry.key, entry.kind, entry.size,
+            entry.created, entry.lastAccess, entry.durationMillis));
+      }
+    } finally {
+      lock.ifPresent(CacheLock.Lock::close);
+    }
+  }
+
+  public void touch(Path projectCacheDir, String key, long accessTime) {
+    if (daemonClient.isConnected()) {
+      try {
+        daemonClient.touch(projectCacheDir, key, accessTime);
+        return;
+      } catch (IOException e) {
+        // continue without the daemon
+      }
+    }
+    ProjectIndex index = getIndex(projectCacheDir);
+    synchronized (index) {
+      index.load();
+      Entry entry = index.entries.get(key);
+      if (entry != null) {
+        entry.lastAccess = accessTime;
+        index.pendingAccess.put(key, accessTime);
+      }
+    }
+  }
+
+  public void flushAccessTimes() {
+    indexes.values().forEach(this::flushAccessTimes);
+  }
+
+  private void flushAccessTimes(ProjectIndex index) {
+    Optional<CacheLock.Lock> lock = cacheLock.acquireShared(index.indexFile.getParent());
+    try {
+      synchronized (index) {
+        if (index.pendingAccess.isEmpty()) {
+          return;
+        }
+        List<String> records = new ArrayList<>();
+        index.pendingAccess.forEach((key, accessTime) -> records
+            .add(String.format("%s %s %d", ACCESS, key, accessTime)));
+        index.pendingAccess.clear();
+        index.append(records);
+      }
+    } finally {
+      lock.ifPresent(CacheLock.Lock::close);
+    }
+  }
+
+  /**
+   * Drops the least recently used project indexes from memory, so that at most the given number
+   * of them stay loaded. The pending access times of the dropped indexes are written first.
+   */
+  public void retainRecent(int maxIndexes) {
+    int excess = indexes.size() - maxIndexes;
+    if (excess <= 0) {
+      return;
+    }
+    List<Path> leastRecentlyUsed = indexes.entrySet().stream()
+        .sorted(Comparator.comparingLong(e -> e.getValue().lastUsed)).limit(excess)
+        .map(Map.Entry::getKey).collect(Collectors.toList());
+    for (Path projectCacheDir : leastRecentlyUsed) {
+      ProjectIndex index = indexes.remove(projectCacheDir);
+      if (index != null) {
+        flushAccessTimes(index);
+      }
+    }
+  }
+
+  int getLoadedIndexCount() {
+    return indexes.size();
+  }
+
+  public void remove(Path projectCacheDir, String key) {
+    if (daemonClient.isConnected()) {
+      try {
+        daemonClient.remove(projectCacheDir, key);
+        return;
+      } catch (IOException e) {
+        // continue without the daemon
+      }
+    }
+    ProjectIndex index = getIndex(projectCacheDir);
+    Optional<CacheLock.Lock> lock = cacheLock.acquireShared(projectCacheDir);
+    try {
+      synchronized (index) {
+        index.load();
+        index.pendingAccess.remove(key);
+        if (index.entries.remove(key) != null) {
+          index.append(String.format("%s %s", REMOVE, key));
+        }
+      }
+    } finally {
+      lock.ifPresent(CacheLock.Lock::close);
+    }
+  }
+
+  public long getReconciledAt(Path projectCacheDir) {
+    ProjectIndex index = getIndex(projectCacheDir);
+    synchronized (index) {
+      index.load();
+      index.refresh();
+      return index.reconciledAt;
+    }
+  }
+
+  public void setReconciledAt(Path projectCacheDir, long reconciledAt) {
+    ProjectIndex index = getIndex(projectCacheDir);
+    Optional<CacheLock.Lock> lock = cacheLock.acquireShared(projectCacheDir);
+    try {
+      synchronized (index) {
+        index.load();
+        index.reconciledAt = reconciledAt;
+        index.append(String.format("%s %d", RECONCILED, reconciledAt));
+      }
+    } finally {
+      lock.ifPresent(CacheLock.Lock::close);
+    }
+  }
+
+  private ProjectIndex getIndex(Path projectCacheDir) {
+    ProjectIndex index = indexes.computeIfAbsent(projectCacheDir,
+        d -> new ProjectIndex(d.resolve(INDEX_FILE), false));
+    index.lastUsed = useCount.incrementAndGet();
+    return index;
+  }
+
+  void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
+  void setFileUtil(FileUtil fileUtil) {
+    this.fileUtil = fileUtil;
+  }
+
+  void setCacheLock(CacheLock cacheLock) {
+    this.cacheLock = cacheLock;
+  }
+
+  void setCacheDaemonClient(CacheDaemonClient daemonClient) {
+    this.daemonClient = daemonClient;
+  }
+
+  public static class Entry {
+    private final String key;
+    private final String kind;
+    private final long size;
+    private final long created;
+    private long lastAccess;
+    private final long durationMillis;
+
+    public Entry(String key, String kind, long size, long created, long durationMillis) {
+      this(key, kind, size, created, created, durationMillis);
+    }
+
+    Entry(String key, String kind, long size, long created, long lastAccess,
+        long durationMillis) {
+      this.key = key;
+      this.kind = kind;
+      this.size = size;
+      this.created = created;
+      this.lastAccess = lastAccess;
+      this.durationMillis = durationMillis;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public String getKind() {
+      return kind;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getCreated() {
+      return created;
+    }
+
+    public long getLastAccess() {
+      return lastAccess;
+    }
+
+    public long getDurationMillis() {
+      return durationMillis;
+    }
+  }
+
+  private class ProjectIndex {
+
+    private final Path indexFile;
+    private final boolean readOnly;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Map<String, Long> pendingAccess = new LinkedHashMap<>();
+    private long reconciledAt = 0;
+    private Object fileKey = null;
+    private long lastModified = 0;
+    private long readOffset = 0;
+    private int records = 0;
+    private boolean loaded = false;
+    private volatile long lastUsed;
+
+    private ProjectIndex(Path indexFile, boolean readOnly) {
+      this.indexFile = indexFile;
+      this.readOnly = readOnly;
+    }
+
+    private void load() {
+      if (!loaded) {
+        refresh();
+        loaded = true;
+        if (readOnly) {
+          return;
+        }
+        try {
+          compactIfNeeded();
+        } catch (IOException e) {
+          logger.error(String.format("buildcache: failed to compact cache index %s", indexFile),
+              e);
+        }
+      }
+    }
+
+    private void refresh() {
+      BasicFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(indexFile, BasicFileAttributes.class);
+      } catch (IOException e) {
+        return;
+      }
+      if (attributes.size() == readOffset && Objects.equals(attributes.fileKey(), fileKey)
+          && attributes.lastModifiedTime().toMillis() == lastModified) {
+        return;
+      }
+      try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+        Object key = attributes.fileKey();
+        long size = channel.size();
+        if (size < readOffset || (fileKey != null && !fileKey.equals(key))) {
+          entries.clear();
+          reconciledAt = 0;
+          records = 0;
+          readOffset = 0;
+        }
+        fileKey = key;
+        lastModified = attributes.lastModifiedTime().toMillis();
+        if (size == readOffset) {
+          return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) (size - readOffset));
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, readOffset + buffer.position()) < 0) {
+            break;
+          }
+        }
+        int end = buffer.position();
+        while (end > 0 && buffer.get(end - 1) != '\n') {
+          end--;
+        }
+        String content = new String(buffer.array(), 0, end, StandardCharsets.UTF_8);
+        for (String line : content.split("\n")) {
+          apply(line);
+        }
+        readOffset += end;
+        pendingAccess.forEach((k, accessTime) -> {
+          Entry entry = entries.get(k);
+          if (entry != null) {
+            entry.lastAccess = Math.max(entry.lastAccess, accessTime);
+          }
+        });
+
+      } catch (IOException e) {
+        logger.error(String.format("buildcache: failed to read cache index %s", indexFile), e);
+      }
+    }
+
+    private void apply(String line) {
+      String[] parts = line.split(" ");
+      try {
+        if (PUT.equals(parts[0]) && parts.length == 7) {
+          entries.put(parts[1], new Entry(parts[1], parts[2], Long.parseLong(parts[3]),
+              Long.parseLong(parts[4]), Long.parseLong(parts[5]), Long.parseLong(parts[6])));
+        } else if (ACCESS.equals(parts[0]) && parts.length == 3) {
+          Entry entry = entries.get(parts[1]);
+          if (entry != null) {
+            entry.lastAccess = Math.max(entry.lastAccess, Long.parseLong(parts[2]));
+          }
+        } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+          entries.remove(parts[1]);
+        } else if (RECONCILED.equals(parts[0]) && parts.length == 2) {
+          reconciledAt = Math.max(reconciledAt, Long.parseLong(parts[1]));
+        } else {
+          return;
+        }
+        records++;
+      } catch (NumberFormatException e) {
+        logger.debug(String.format("buildcache: invalid cache index record '%s'", line));
+      }
+    }
+
+    private void append(String record) {
+      append(Collections.singletonList(record));
+    }
+
+    private void append(List<String> newRecords) {
+      StringBuilder content = new StringBuilder();
+      newRecords.forEach(r -> content.append(r).append('\n'));
+      byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+      try {
+        Files.createDirectories(indexFile.getParent());
+        Files.write(indexFile, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        records += newRecords.size();
+        BasicFileAttributes attributes = Files.readAttributes(indexFile, BasicFileAttributes.class);
+        if (readOffset + bytes.length == attributes.size()) {
+          readOffset += bytes.length;
+          lastModified = attributes.lastModifiedTime().toMillis();
+        }
+      } catch (IOException e) {
+        logger.error(String.format("buildcache: failed to update cache index %s", indexFile), e);
+      }
+    }
+
+    private void compactIfNeeded() throws IOException {
+      if (records < COMPACTION_MIN_RECORDS || records < COMPACTION_RATIO * entries.size()) {
+        return;
+      }
+      // records appended by another build during the rewrite would be lost without the lock
+      Optional<CacheLock.Lock> lock = cacheLock.tryAcquireExclusive(indexFile.getParent());
+      if (!lock.isPresent()) {
+        return;
+      }
+      try {
+        refresh();
+        compact();
+      } finally {
+        lock.get().close();
+      }
+    }
+
+    private void compact() throws IOException {
+      StringBuilder content = new StringBuilder();
+      if (reconciledAt > 0) {
+        content.append(String.format("%s %d\n", RECONCILED, reconciledAt));
+      }
+      for (Entry entry : entries.values()) {
+        content.append(String.format("%s %s %s %d %d %d %d\n", PUT, entry.key, entry.kind,
+            entry.size, entry.created, entry.lastAccess, entry.durationMillis));
+      }
+      fileUtil.writeFile(indexFile, content.toString());
+      records = entries.size();
+      BasicFileAttributes attributes = Files.readAttributes(indexFile, BasicFileAttributes.class);
+      readOffset = attributes.size();
+      fileKey = attributes.fileKey();
+      lastModified = attributes.lastModifiedTime().toMillis();
+    }
+  }
+}
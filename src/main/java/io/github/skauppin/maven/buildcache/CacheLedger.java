@@ -0,0 +1,149 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.codehaus.plexus.component.annotations.Component;
+
+@Component(role = CacheLedger.class)
+public class CacheLedger {
+
+  public static final String LEDGER_FILE = "buildcache.ledger";
+
+  private static final long POLL_INTERVAL_MILLIS = 20;
+
+  private long timeoutMillis = Configuration.DEFAULT_LOCK_TIMEOUT_MILLIS;
+
+  public void initialize(Configuration configuration) {
+    this.timeoutMillis = configuration.getLockTimeoutMillis();
+  }
+
+  public boolean exists(Path cacheDirectory) {
+    return Files.exists(cacheDirectory.resolve(LEDGER_FILE));
+  }
+
+  public synchronized Map<String, Usage> update(Path cacheDirectory, Map<String, Usage> updates)
+      throws IOException {
+    return write(cacheDirectory, updates, false);
+  }
+
+  public synchronized Map<String, Usage> replace(Path cacheDirectory, Map<String, Usage> usages)
+      throws IOException {
+    return write(cacheDirectory, usages, true);
+  }
+
+  public synchronized void invalidate(Path cacheDirectory) throws IOException {
+    Files.deleteIfExists(cacheDirectory.resolve(LEDGER_FILE));
+  }
+
+  private Map<String, Usage> write(Path cacheDirectory, Map<String, Usage> usages,
+      boolean replace) throws IOException {
+    Files.createDirectories(cacheDirectory);
+    Path ledgerFile = cacheDirectory.resolve(LEDGER_FILE);
+    try (FileChannel channel = FileChannel.open(ledgerFile, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+      FileLock lock = lock(channel);
+      try {
+        Map<String, Usage> ledger = replace ? new TreeMap<>() : parse(channel);
+        usages.forEach((project, usage) -> {
+          if (usage.getSizeBytes() > 0) {
+            ledger.put(project, usage);
+          } else {
+            ledger.remove(project);
+          }
+        });
+
+        StringBuilder content = new StringBuilder();
+        ledger.forEach((project, usage) -> content.append(String.format("%s %d %d\n", project,
+            usage.getSizeBytes(), usage.getOldestLastAccess())));
+        ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+        channel.truncate(0);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer, buffer.position());
+        }
+        channel.force(false);
+        return ledger;
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  private FileLock lock(FileChannel channel) throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (true) {
+      try {
+        FileLock lock = channel.tryLock();
+        if (lock != null) {
+          return lock;
+        }
+      } catch (OverlappingFileLockException e) {
+        // held by another channel of this process
+      }
+      if (System.nanoTime() >= deadline) {
+        throw new IOException(String.format("timed out waiting for lock on %s", LEDGER_FILE));
+      }
+      try {
+        Thread.sleep(POLL_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  private Map<String, Usage> parse(FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, buffer.position()) < 0) {
+        break;
+      }
+    }
+    Map<String, Usage> ledger = new TreeMap<>();
+    String content = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+    for (String line : content.split("\n")) {
+      String[] parts = line.split(" ");
+      if (parts.length != 3) {
+        continue;
+      }
+      try {
+        ledger.put(parts[0], new Usage(Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+      } catch (NumberFormatException e) {
+        // ignore corrupted line, the project is added back when it is cleaned up
+      }
+    }
+    return ledger;
+  }
+
+  public static long getTotalSizeBytes(Map<String, Usage> ledger) {
+    return ledger.values().stream().mapToLong(Usage::getSizeBytes).sum();
+  }
+
+  public static class Usage {
+    private final long sizeBytes;
+    private final long oldestLastAccess;
+
+    public Usage(long sizeBytes, long oldestLastAccess) {
+      this.sizeBytes = sizeBytes;
+      this.oldestLastAccess = oldestLastAccess;
+    }
+
+    public long getSizeBytes() {
+      return sizeBytes;
+    }
+
+    public long getOldestLastAccess() {
+      return oldestLastAccess;
+    }
+  }
+}
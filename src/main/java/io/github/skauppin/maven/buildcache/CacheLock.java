@@ -0,0 +1,188 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+
+@Component(role = CacheLock.class)
+public class CacheLock {
+
+  public static final String LOCK_FILE = "buildcache.lock";
+
+  private static final long POLL_INTERVAL_MILLIS = 20;
+
+  @Requirement
+  private Logger logger;
+
+  private long timeoutMillis = Configuration.DEFAULT_LOCK_TIMEOUT_MILLIS;
+
+  private final Map<Path, DirectoryLock> locks = new ConcurrentHashMap<>();
+
+  public void initialize(Configuration configuration) {
+    this.timeoutMillis = configuration.getLockTimeoutMillis();
+  }
+
+  public Optional<Lock> acquireShared(Path projectCacheDir) {
+    return acquire(projectCacheDir, true, timeoutMillis);
+  }
+
+  public Optional<Lock> acquireExclusive(Path projectCacheDir) {
+    return acquire(projectCacheDir, false, timeoutMillis);
+  }
+
+  /**
+   * Acquires an exclusive lock only if it is available right away.
+   */
+  public Optional<Lock> tryAcquireExclusive(Path projectCacheDir) {
+    return acquire(projectCacheDir, false, 0);
+  }
+
+  private Optional<Lock> acquire(Path projectCacheDir, boolean shared, long timeoutMillis) {
+    DirectoryLock directoryLock = locks.computeIfAbsent(
+        projectCacheDir.toAbsolutePath().normalize(), d -> new DirectoryLock(d.resolve(LOCK_FILE)));
+    java.util.concurrent.locks.Lock threadLock = shared ? directoryLock.threadLock.readLock()
+        : directoryLock.threadLock.writeLock();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+    try {
+      if (threadLock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        boolean locked = false;
+        try {
+          locked = directoryLock.lockFile(shared, deadline);
+        } finally {
+          if (!locked) {
+            threadLock.unlock();
+          }
+        }
+        if (locked) {
+          return Optional.of(new Lock(directoryLock, threadLock));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    }
+
+    if (timeoutMillis == 0) {
+      return Optional.empty();
+    }
+    logger.info(String.format("buildcache: timed out waiting for %s lock on %s",
+        shared ? "shared" : "exclusive", projectCacheDir));
+    return Optional.empty();
+  }
+
+  void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
+  public static class Lock implements AutoCloseable {
+    private final DirectoryLock directoryLock;
+    private final java.util.concurrent.locks.Lock threadLock;
+    private boolean released = false;
+
+    private Lock(DirectoryLock directoryLock, java.util.concurrent.locks.Lock threadLock) {
+      this.directoryLock = directoryLock;
+      this.threadLock = threadLock;
+    }
+
+    @Override
+    public void close() {
+      if (released) {
+        return;
+      }
+      released = true;
+      directoryLock.unlockFile();
+      threadLock.unlock();
+    }
+  }
+
+  private class DirectoryLock {
+
+    private final Path lockFile;
+    private final ReentrantReadWriteLock threadLock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private FileLock fileLock;
+    private int holders = 0;
+
+    private DirectoryLock(Path lockFile) {
+      this.lockFile = lockFile;
+    }
+
+    private synchronized boolean lockFile(boolean shared, long deadline)
+        throws InterruptedException {
+      if (holders > 0) {
+        holders++;
+        return true;
+      }
+      try {
+        Files.createDirectories(lockFile.getParent());
+        channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        while (true) {
+          try {
+            fileLock = channel.tryLock(0, Long.MAX_VALUE, shared);
+          } catch (OverlappingFileLockException e) {
+            fileLock = null;
+          }
+          if (fileLock != null) {
+            holders = 1;
+            return true;
+          }
+          if (System.nanoTime() >= deadline) {
+            closeChannel();
+            return false;
+          }
+          try {
+            Thread.sleep(POLL_INTERVAL_MILLIS);
+          } catch (InterruptedException e) {
+            closeChannel();
+            throw e;
+          }
+        }
+      } catch (IOException e) {
+        // file locking is not supported everywhere, for example on some network filesystems
+        logger.debug(String.format("buildcache: failed to lock %s: %s", lockFile, e));
+        closeChannel();
+        holders = 1;
+        return true;
+      }
+    }
+
+    private synchronized void unlockFile() {
+      if (--holders > 0) {
+        return;
+      }
+      try {
+        if (fileLock != null) {
+          fileLock.release();
+        }
+      } catch (IOException e) {
+        logger.debug(String.format("buildcache: failed to unlock %s: %s", lockFile, e));
+      }
+      fileLock = null;
+      closeChannel();
+    }
+
+    private void closeChannel() {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+        }
+        channel = null;
+      }
+    }
+  }
+}
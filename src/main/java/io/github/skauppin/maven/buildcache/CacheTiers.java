@@ -0,0 +1,285 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+
+@Component(role = CacheTiers.class)
+public class CacheTiers {
+
+  @Requirement
+  private Logger logger;
+
+  @Requirement
+  private FileUtil fileUtil;
+
+  @Requirement
+  private CacheIndex cacheIndex;
+
+  @Requirement
+  private CacheLock cacheLock;
+
+  private Path cacheDirectory;
+  private List<Tier> tiers = Collections.emptyList();
+
+  public void initialize(Configuration configuration) {
+    this.cacheDirectory = Paths.get(configuration.getCacheDirectory());
+    this.tiers = configuration.getTiers().stream()
+        .map(t -> new Tier(Paths.get(t.getDirectory()), t.getMaxSizeMb() * 1024L * 1024L))
+        .collect(Collectors.toList());
+  }
+
+  public boolean hasTiers() {
+    return !tiers.isEmpty();
+  }
+
+  public Optional<Path> find(Path zipFile) {
+    Path relativePath = relativize(zipFile);
+    if (relativePath == null) {
+      return Optional.empty();
+    }
+    for (Tier tier : tiers) {
+      Path tierFile = tier.directory.resolve(relativePath);
+      if (fileUtil.fileExists(tierFile)) {
+        long now = System.currentTimeMillis();
+        tier.touch(relativePath, now);
+        cacheIndex.touch(zipFile.getParent(), zipFile.getFileName().toString(), now);
+        return Optional.of(tierFile);
+      }
+    }
+    return Optional.empty();
+  }
+
+  public void promote(Path zipFile) {
+    Path relativePath = relativize(zipFile);
+    if (relativePath == null || tiers.isEmpty()) {
+      return;
+    }
+    Tier tier = tiers.get(0);
+    Path tierFile = tier.directory.resolve(relativePath);
+    Optional<CacheLock.Lock> lock = cacheLock.acquireExclusive(tier.directory);
+    if (!lock.isPresent()) {
+      return;
+    }
+    try {
+      load(tier);
+      fileUtil.writeAtomically(tierFile,
+          tmp -> Files.copy(zipFile, tmp, StandardCopyOption.REPLACE_EXISTING));
+      tier.add(relativePath, Files.size(tierFile));
+      enforceLimits(0);
+    } catch (IOException e) {
+      logger.error(String.format("buildcache: failed to promote %s to %s", zipFile,
+          tier.directory), e);
+    } finally {
+      lock.get().close();
+    }
+  }
+
+  public void delete(Path zipFile) {
+    Path relativePath = relativize(zipFile);
+    if (relativePath == null) {
+      return;
+    }
+    for (Tier tier : tiers) {
+      tier.remove(relativePath);
+      fileUtil.deleteFile(tier.directory.resolve(relativePath));
+    }
+  }
+
+  /**
+   * Evicts the least recently used files of the tier until it fits its limit, demoting them to
+   * the next tier. The caller holds the lock of the tier and has just loaded it.
+   */
+  private void enforceLimits(int tierIndex) throws IOException {
+    Tier tier = tiers.get(tierIndex);
+    Tier nextTier = tierIndex + 1 < tiers.size() ? tiers.get(tierIndex + 1) : null;
+
+    List<Map.Entry<Path, Long>> evicted = tier.evict();
+    if (evicted.isEmpty()) {
+      return;
+    }
+    Optional<CacheLock.Lock> lock = nextTier != null
+        ? cacheLock.acquireExclusive(nextTier.directory)
+        : Optional.empty();
+    try {
+      boolean demoted = false;
+      if (lock.isPresent()) {
+        load(nextTier);
+      }
+      for (Map.Entry<Path, Long> entry : evicted) {
+        Path file = tier.directory.resolve(entry.getKey());
+        if (lock.isPresent()) {
+          Path target = nextTier.directory.resolve(entry.getKey());
+          try {
+            fileUtil.writeAtomically(target,
+                tmp -> Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING));
+          } catch (NoSuchFileException e) {
+            continue;
+          }
+          nextTier.add(entry.getKey(), entry.getValue());
+          demoted = true;
+        }
+        fileUtil.deleteFile(file);
+      }
+      if (demoted) {
+        enforceLimits(tierIndex + 1);
+      }
+    } finally {
+      lock.ifPresent(CacheLock.Lock::close);
+    }
+  }
+
+  /**
+   * Reads the files of the tier, least recently used first. Other builds and the daemon write to
+   * the same tiers, so this is done again under the lock of the tier every time before it is
+   * written to.
+   */
+  private void load(Tier tier) throws IOException {
+    synchronized (tier) {
+      // files already known keep their order when the access times are equal
+      Map<Path, Integer> order = new HashMap<>();
+      if (tier.files != null) {
+        for (Path relativePath : tier.files.keySet()) {
+          order.put(relativePath, order.size());
+        }
+      }
+      List<TierFile> files = new ArrayList<>();
+      if (Files.isDirectory(tier.directory)) {
+        Files.walkFileTree(tier.directory, new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+            String name = file.getFileName().toString();
+            if (attributes.isRegularFile() && !FileUtil.isTempFile(name)
+                && !CacheLock.LOCK_FILE.equals(name)) {
+              Path relativePath = tier.directory.relativize(file);
+              long lastAccess = cacheIndex
+                  .getReadOnly(cacheDirectory.resolve(relativePath).getParent(),
+                      name)
+                  .map(CacheIndex.Entry::getLastAccess)
+                  .orElse(attributes.lastModifiedTime().toMillis());
+              lastAccess = Math.max(lastAccess, tier.accessed.getOrDefault(relativePath, 0L));
+              files.add(new TierFile(relativePath, attributes.size(), lastAccess));
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) {
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      }
+      Collections.sort(files, Comparator.comparingLong((TierFile f) -> f.lastAccess)
+          .thenComparingInt(f -> order.getOrDefault(f.relativePath, -1)));
+      tier.files = new LinkedHashMap<>(16, 0.75f, true);
+      tier.sizeBytes = 0;
+      tier.accessed.keySet()
+          .retainAll(files.stream().map(f -> f.relativePath).collect(Collectors.toSet()));
+      for (TierFile file : files) {
+        tier.add(file.relativePath, file.size);
+      }
+    }
+  }
+
+  private Path relativize(Path zipFile) {
+    if (cacheDirectory == null || !zipFile.startsWith(cacheDirectory)) {
+      return null;
+    }
+    return cacheDirectory.relativize(zipFile);
+  }
+
+  void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
+  void setFileUtil(FileUtil fileUtil) {
+    this.fileUtil = fileUtil;
+  }
+
+  void setCacheIndex(CacheIndex cacheIndex) {
+    this.cacheIndex = cacheIndex;
+  }
+
+  void setCacheLock(CacheLock cacheLock) {
+    this.cacheLock = cacheLock;
+  }
+
+  private static class Tier {
+    private final Path directory;
+    private final long maxSizeBytes;
+    // sizes of the files in access order, null until the tier is loaded
+    private Map<Path, Long> files;
+    private long sizeBytes;
+    // access times of the files found through this instance
+    private final Map<Path, Long> accessed = new HashMap<>();
+
+    private Tier(Path directory, long maxSizeBytes) {
+      this.directory = directory;
+      this.maxSizeBytes = maxSizeBytes;
+    }
+
+    private synchronized void touch(Path relativePath, long lastAccess) {
+      accessed.put(relativePath, lastAccess);
+      if (files != null) {
+        files.get(relativePath);
+      }
+    }
+
+    private synchronized void add(Path relativePath, long size) {
+      Long previous = files.put(relativePath, size);
+      sizeBytes += size - (previous != null ? previous : 0);
+    }
+
+    private synchronized void remove(Path relativePath) {
+      accessed.remove(relativePath);
+      Long size = files != null ? files.remove(relativePath) : null;
+      if (size != null) {
+        sizeBytes -= size;
+      }
+    }
+
+    private synchronized List<Map.Entry<Path, Long>> evict() {
+      List<Map.Entry<Path, Long>> evicted = new ArrayList<>();
+      Iterator<Map.Entry<Path, Long>> iterator = files.entrySet().iterator();
+      while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+        Map.Entry<Path, Long> file = iterator.next();
+        evicted.add(new AbstractMap.SimpleEntry<>(file));
+        sizeBytes -= file.getValue();
+        iterator.remove();
+      }
+      return evicted;
+    }
+  }
+
+  private static class TierFile {
+    private final Path relativePath;
+    private final long size;
+    private final long lastAccess;
+
+    private TierFile(Path relativePath, long size, long lastAccess) {
+      this.relativePath = relativePath;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+
+@Component(role = CacheWriter.class)
+public class CacheWriter {
+
+  private static final int WRITER_THREADS = 2;
+
+  @Requirement
+  private Logger logger;
+
+  private ThreadPoolExecutor executor;
+
+  private List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+  public void initialize(Configuration configuration) {
+    if (configuration.isAsyncCacheWrite()) {
+      executor = new ThreadPoolExecutor(WRITER_THREADS, WRITER_THREADS, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(configuration.getCacheWriteQueueSize()),
+          new BackgroundThreadFactory("buildcache-writer-", Thread.NORM_PRIORITY - 1),
+          new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+  }
+
+  public boolean isAsync() {
+    return executor != null;
+  }
+
+  public void submit(String description, WriteTask task) {
+    Runnable runnable = () -> {
+      try {
+        task.write();
+      } catch (Exception e) {
+        logger.error(String.format("buildcache: failed to write %s", description), e);
+        errors.add(String.format("%s (%s)", description, e));
+      }
+    };
+
+    if (executor == null) {
+      runnable.run();
+    } else {
+      executor.execute(runnable);
+    }
+  }
+
+  public List<String> awaitCompletion() {
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+          logger.info(String.format("buildcache: waiting for %d cache writes to complete",
+              executor.getQueue().size() + executor.getActiveCount()));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      executor = null;
+    }
+    List<String> result = new ArrayList<>(errors);
+    errors.clear();
+    return result;
+  }
+
+  void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
+  @FunctionalInterface
+  public interface WriteTask {
+    void write() throws Exception;
+  }
+}
@@ -0,0 +1,203 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Transfers cache entries as content-defined chunks, fetching only chunks missing locally.
+ */
+class ChunkedTransfer {
+
+  static final String CHUNK_INDEX_EXTENSION = ".chk";
+
+  private static final String ZIP_EXTENSION = ".zip";
+
+  // how many local entries without a chunk index are indexed when looking for local chunks
+  private static final int MAX_INDEXED_LOCAL_ENTRIES = 4;
+
+  private final Logger logger;
+  private final FileUtil fileUtil;
+  private final RemoteCache remoteCache;
+
+  ChunkedTransfer(Logger logger, FileUtil fileUtil, RemoteCache remoteCache) {
+    this.logger = logger;
+    this.fileUtil = fileUtil;
+    this.remoteCache = remoteCache;
+  }
+
+  boolean upload(String path, Path file) throws IOException {
+    byte[] content = Files.readAllBytes(file);
+    List<ContentChunker.Chunk> chunks = ContentChunker.split(content);
+
+    Set<String> checked = new HashSet<>();
+    long uploadedBytes = 0;
+    for (ContentChunker.Chunk chunk : chunks) {
+      if (!checked.add(chunk.getHash()) || remoteCache.hasChunk(chunk.getHash())) {
+        continue;
+      }
+      byte[] data =
+          Arrays.copyOfRange(content, chunk.getOffset(), chunk.getOffset() + chunk.getLength());
+      if (!remoteCache.uploadChunk(chunk.getHash(), data)) {
+        return false;
+      }
+      uploadedBytes += data.length;
+    }
+
+    // the index is uploaded last, so it never refers to a missing chunk
+    byte[] index = ContentChunker.format(chunks);
+    if (!remoteCache.uploadEntry(getChunkIndexPath(path), index)) {
+      return false;
+    }
+    if (fileUtil.fileExists(file)) {
+      Path indexFile = getChunkIndexFile(file);
+      fileUtil.writeAtomically(indexFile, tmp -> Files.write(tmp, index));
+    }
+    logger.debug(String.format("buildcache: uploaded %s, %d of %d bytes sent", path,
+        uploadedBytes, content.length));
+    return true;
+  }
+
+  boolean download(String path, Path target) throws IOException {
+    Path indexFile = getChunkIndexFile(target);
+    if (!remoteCache.downloadEntry(getChunkIndexPath(path), indexFile)) {
+      return false;
+    }
+    List<ContentChunker.Chunk> chunks;
+    try {
+      chunks = ContentChunker.parse(Files.readAllBytes(indexFile));
+    } catch (IllegalArgumentException e) {
+      fileUtil.deleteFile(indexFile);
+      throw new IOException("invalid chunk index: " + e.getMessage(), e);
+    }
+    try {
+      Map<String, LocalChunk> localChunks = findLocalChunks(target);
+      Map<String, byte[]> downloaded = new HashMap<>();
+      long[] downloadedBytes = {0};
+      long totalBytes = chunks.stream().mapToLong(ContentChunker.Chunk::getLength).sum();
+
+      fileUtil.writeAtomically(target, tmp -> {
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+          for (ContentChunker.Chunk chunk : chunks) {
+            byte[] data = readLocalChunk(localChunks.get(chunk.getHash()), chunk.getHash());
+            if (data == null) {
+              data = downloaded.get(chunk.getHash());
+            }
+            if (data == null) {
+              data = remoteCache.downloadChunk(chunk.getHash()).orElseThrow(
+                  () -> new IOException("chunk " + chunk.getHash() + " not found"));
+              downloaded.put(chunk.getHash(), data);
+              downloadedBytes[0] += data.length;
+            }
+            out.write(data);
+          }
+        }
+      });
+      logger.debug(String.format("buildcache: downloaded %s, %d of %d bytes received", path,
+          downloadedBytes[0], totalBytes));
+      return true;
+    } catch (IOException e) {
+      fileUtil.deleteFile(indexFile);
+      throw e;
+    }
+  }
+
+  private Map<String, LocalChunk> findLocalChunks(Path target) throws IOException {
+    Map<String, LocalChunk> localChunks = new HashMap<>();
+    Path directory = target.getParent();
+    if (directory == null || !Files.isDirectory(directory)) {
+      return localChunks;
+    }
+    String kind = getKind(target.getFileName().toString());
+    List<Path> zipFiles;
+    try (Stream<Path> files = Files.list(directory)) {
+      zipFiles = files.filter(f -> !f.equals(target))
+          .filter(f -> isZipFileOfKind(f.getFileName().toString(), kind))
+          .collect(Collectors.toList());
+    }
+
+    int indexed = 0;
+    zipFiles.sort(Comparator.comparingLong((Path f) -> f.toFile().lastModified()).reversed());
+    for (Path zipFile : zipFiles) {
+      Path indexFile = getChunkIndexFile(zipFile);
+      try {
+        List<ContentChunker.Chunk> chunks;
+        if (fileUtil.fileExists(indexFile)) {
+          chunks = ContentChunker.parse(Files.readAllBytes(indexFile));
+        } else if (indexed++ < MAX_INDEXED_LOCAL_ENTRIES) {
+          chunks = ContentChunker.split(Files.readAllBytes(zipFile));
+          byte[] index = ContentChunker.format(chunks);
+          fileUtil.writeAtomically(indexFile, tmp -> Files.write(tmp, index));
+        } else {
+          continue;
+        }
+        for (ContentChunker.Chunk chunk : chunks) {
+          localChunks.putIfAbsent(chunk.getHash(), new LocalChunk(zipFile.toFile(), chunk));
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        // evicted or an invalid index, the chunks are downloaded instead
+        logger.debug(String.format("buildcache: can't read chunks of %s: %s", zipFile, e));
+      }
+    }
+    return localChunks;
+  }
+
+  private byte[] readLocalChunk(LocalChunk localChunk, String hash) {
+    if (localChunk == null) {
+      return null;
+    }
+    byte[] data = new byte[localChunk.chunk.getLength()];
+    try (RandomAccessFile in = new RandomAccessFile(localChunk.file, "r")) {
+      in.seek(localChunk.chunk.getOffset());
+      in.readFully(data);
+    } catch (IOException e) {
+      return null;
+    }
+    return hash.equals(DigestUtils.sha256Hex(data)) ? data : null;
+  }
+
+  static String getChunkIndexPath(String path) {
+    String basePath = path.endsWith(ZIP_EXTENSION)
+        ? path.substring(0, path.length() - ZIP_EXTENSION.length())
+        : path;
+    return basePath + CHUNK_INDEX_EXTENSION;
+  }
+
+  static Path getChunkIndexFile(Path zipFile) {
+    return zipFile.resolveSibling(getChunkIndexPath(zipFile.getFileName().toString()));
+  }
+
+  private static String getKind(String zipName) {
+    int hashStart = zipName.lastIndexOf('-');
+    return hashStart < 0 ? "" : zipName.substring(0, hashStart + 1);
+  }
+
+  private static boolean isZipFileOfKind(String filename, String kind) {
+    return filename.endsWith(ZIP_EXTENSION) && getKind(filename).equals(kind)
+        && !FileUtil.isTempFile(filename);
+  }
+
+  private static class LocalChunk {
+    private final File file;
+    private final ContentChunker.Chunk chunk;
+
+    private LocalChunk(File file, ContentChunker.Chunk chunk) {
+      this.file = file;
+      this.chunk = chunk;
+    }
+  }
+}
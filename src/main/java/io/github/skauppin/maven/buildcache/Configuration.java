@@ -2,6 +2,8 @@ package io.github.skauppin.maven.buildcache;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -37,12 +39,58 @@ public class Configuration {
   private static final Duration DEFAULT_PROJECT_CACHE_MAX_AGE = Duration.ofDays(90);
   private static final Integer DEFAULT_TOTAL_CACHE_MAX_SIZE_MB = null;
 
+  private static final int DEFAULT_CACHE_WRITE_QUEUE_SIZE = 16;
+  static final int DEFAULT_LOCK_TIMEOUT_MILLIS = 10000;
+  private static final int DEFAULT_REMOTE_TIMEOUT_MILLIS = 5000;
+  private static final int DEFAULT_REMOTE_PREFETCH_THREADS = 4;
+  private static final int DEFAULT_REMOTE_UPLOAD_THREADS = 2;
+  private static final int DEFAULT_REMOTE_UPLOAD_DRAIN_TIMEOUT_MILLIS = 30000;
+  private static final int DEFAULT_REMOTE_KEY_FILTER_ENTRIES = 250000;
+  private static final String DEFAULT_REMOTE_S3_REGION = "us-east-1";
+
+  public static final String RESTORE_MODE_COPY = "copy";
+  public static final String RESTORE_MODE_LINK = "link";
+
+  public static final String EVICTION_POLICY_LRU = "lru";
+  public static final String EVICTION_POLICY_COST_AWARE = "cost-aware";
+
+  public static final String REMOTE_PROTOCOL_HTTP = "http";
+  public static final String REMOTE_PROTOCOL_BAZEL = "bazel";
+  public static final String REMOTE_PROTOCOL_S3 = "s3";
+
   private static final String CONFIGURATION_ELEMENT = "configuration";
   private static final String CACHEDIR_ELEMENT = "cache-directory";
   private static final String PROJECT_CACHE_MAX_SIZE_ELEMENT = "project-cache-max-size";
   private static final String PROJECT_CACHE_MAX_ENTRIES_ELEMENT = "project-cache-max-entries";
   private static final String PROJECT_CACHE_MAX_AGE_ELEMENT = "project-cache-max-age";
   private static final String TOTAL_CACHE_MAX_SIZE_ELEMENT = "total-cache-max-size";
+  private static final String RESTORE_MODE_ELEMENT = "restore-mode";
+  private static final String ASYNC_CACHE_WRITE_ELEMENT = "async-cache-write";
+  private static final String CACHE_WRITE_QUEUE_SIZE_ELEMENT = "cache-write-queue-size";
+  private static final String DEFERRED_RESTORE_ELEMENT = "deferred-restore";
+  private static final String DEFERRED_RESTORE_AT_SESSION_END_ELEMENT =
+      "deferred-restore-at-session-end";
+  private static final String EVICTION_POLICY_ELEMENT = "eviction-policy";
+  private static final String MIN_FREE_DISK_SPACE_ELEMENT = "min-free-disk-space";
+  private static final String TARGET_FREE_DISK_SPACE_ELEMENT = "target-free-disk-space";
+  private static final String LOCK_TIMEOUT_ELEMENT = "lock-timeout";
+  private static final String TIERS_ELEMENT = "tiers";
+  private static final String TIER_ELEMENT = "tier";
+  private static final String TIER_MAX_SIZE_ELEMENT = "max-size";
+  private static final String READ_ONLY_CACHES_ELEMENT = "read-only-caches";
+  private static final String READ_ONLY_CACHE_ELEMENT = "read-only-cache";
+  private static final String COPY_TO_PRIMARY_ELEMENT = "copy-to-primary";
+  private static final String REMOTE_URL_ELEMENT = "remote-url";
+  private static final String REMOTE_PROTOCOL_ELEMENT = "remote-protocol";
+  private static final String REMOTE_UPLOAD_ELEMENT = "remote-upload";
+  private static final String REMOTE_CHUNKING_ELEMENT = "remote-chunking";
+  private static final String REMOTE_TIMEOUT_ELEMENT = "remote-timeout";
+  private static final String REMOTE_PREFETCH_THREADS_ELEMENT = "remote-prefetch-threads";
+  private static final String REMOTE_UPLOAD_THREADS_ELEMENT = "remote-upload-threads";
+  private static final String REMOTE_UPLOAD_DRAIN_TIMEOUT_ELEMENT = "remote-upload-drain-timeout";
+  private static final String REMOTE_KEY_FILTER_ELEMENT = "remote-key-filter";
+  private static final String REMOTE_KEY_FILTER_ENTRIES_ELEMENT = "remote-key-filter-entries";
+  private static final String REMOTE_S3_REGION_ELEMENT = "remote-s3-region";
 
   private static final Pattern MEGABYTE_PATTERN =
       Pattern.compile("\\s*([0-9]+)\\s*(M|MB)?\\s*", Pattern.CASE_INSENSITIVE);
@@ -73,6 +121,28 @@ public class Configuration {
   private Integer projectCacheMaxEntries;
   private Duration projectCacheMaxAge;
   private Integer totalCacheMaxSizeMb;
+  private String restoreMode = RESTORE_MODE_COPY;
+  private boolean asyncCacheWrite = false;
+  private int cacheWriteQueueSize = DEFAULT_CACHE_WRITE_QUEUE_SIZE;
+  private boolean deferredRestore = false;
+  private boolean deferredRestoreAtSessionEnd = false;
+  private String evictionPolicy = EVICTION_POLICY_LRU;
+  private Integer minFreeDiskSpaceMb;
+  private Integer targetFreeDiskSpaceMb;
+  private int lockTimeoutMillis = DEFAULT_LOCK_TIMEOUT_MILLIS;
+  private final List<Tier> tiers = new ArrayList<>();
+  private final List<ReadOnlyCache> readOnlyCaches = new ArrayList<>();
+  private String remoteUrl;
+  private String remoteProtocol = REMOTE_PROTOCOL_HTTP;
+  private boolean remoteUpload = true;
+  private boolean remoteChunking = false;
+  private int remoteTimeoutMillis = DEFAULT_REMOTE_TIMEOUT_MILLIS;
+  private int remotePrefetchThreads = DEFAULT_REMOTE_PREFETCH_THREADS;
+  private int remoteUploadThreads = DEFAULT_REMOTE_UPLOAD_THREADS;
+  private int remoteUploadDrainTimeoutMillis = DEFAULT_REMOTE_UPLOAD_DRAIN_TIMEOUT_MILLIS;
+  private boolean remoteKeyFilter = false;
+  private int remoteKeyFilterEntries = DEFAULT_REMOTE_KEY_FILTER_ENTRIES;
+  private String remoteS3Region = DEFAULT_REMOTE_S3_REGION;
 
   public void readCacheConfiguration(InputStream inputStream, String defaultCacheDir)
       throws ParserConfigurationException, SAXException, IOException {
@@ -84,6 +154,7 @@ public class Configuration {
     if (this.cacheDirectory == null) {
       this.cacheDirectory = defaultCacheDir;
     }
+    validateReadOnlyCaches();
   }
 
   public void readProjectConfiguration(InputStream inputStream)
@@ -121,6 +192,120 @@ public class Configuration {
         parseDuration(getChildTextContent(configurationElement, PROJECT_CACHE_MAX_AGE_ELEMENT));
     this.totalCacheMaxSizeMb =
         parseMegabytes(getChildTextContent(configurationElement, TOTAL_CACHE_MAX_SIZE_ELEMENT));
+    this.restoreMode =
+        parseRestoreMode(getChildTextContent(configurationElement, RESTORE_MODE_ELEMENT));
+    this.asyncCacheWrite = "true"
+        .equalsIgnoreCase(getChildTextContent(configurationElement, ASYNC_CACHE_WRITE_ELEMENT));
+    Integer queueSize =
+        parseNumber(getChildTextContent(configurationElement, CACHE_WRITE_QUEUE_SIZE_ELEMENT));
+    if (queueSize != null) {
+      this.cacheWriteQueueSize = Math.max(1, queueSize);
+    }
+    this.deferredRestore = "true"
+        .equalsIgnoreCase(getChildTextContent(configurationElement, DEFERRED_RESTORE_ELEMENT));
+    this.deferredRestoreAtSessionEnd = "true".equalsIgnoreCase(
+        getChildTextContent(configurationElement, DEFERRED_RESTORE_AT_SESSION_END_ELEMENT));
+    this.evictionPolicy =
+        parseEvictionPolicy(getChildTextContent(configurationElement, EVICTION_POLICY_ELEMENT));
+    this.minFreeDiskSpaceMb =
+        parseMegabytes(getChildTextContent(configurationElement, MIN_FREE_DISK_SPACE_ELEMENT));
+    this.targetFreeDiskSpaceMb =
+        parseMegabytes(getChildTextContent(configurationElement, TARGET_FREE_DISK_SPACE_ELEMENT));
+    Integer lockTimeout =
+        parseNumber(getChildTextContent(configurationElement, LOCK_TIMEOUT_ELEMENT));
+    if (lockTimeout != null) {
+      this.lockTimeoutMillis = lockTimeout;
+    }
+    Element tiersElement = getFirstChildElement(configurationElement, TIERS_ELEMENT);
+    if (tiersElement != null) {
+      readTiers(tiersElement);
+    }
+    Element readOnlyCachesElement =
+        getFirstChildElement(configurationElement, READ_ONLY_CACHES_ELEMENT);
+    if (readOnlyCachesElement != null) {
+      readReadOnlyCaches(readOnlyCachesElement);
+    }
+    this.remoteUrl = getChildTextContent(configurationElement, REMOTE_URL_ELEMENT);
+    this.remoteProtocol =
+        parseRemoteProtocol(getChildTextContent(configurationElement, REMOTE_PROTOCOL_ELEMENT));
+    this.remoteUpload = !"false"
+        .equalsIgnoreCase(getChildTextContent(configurationElement, REMOTE_UPLOAD_ELEMENT));
+    this.remoteChunking = "true"
+        .equalsIgnoreCase(getChildTextContent(configurationElement, REMOTE_CHUNKING_ELEMENT));
+    Integer remoteTimeout =
+        parseNumber(getChildTextContent(configurationElement, REMOTE_TIMEOUT_ELEMENT));
+    if (remoteTimeout != null) {
+      this.remoteTimeoutMillis = remoteTimeout;
+    }
+    Integer remotePrefetchThreads =
+        parseNumber(getChildTextContent(configurationElement, REMOTE_PREFETCH_THREADS_ELEMENT));
+    if (remotePrefetchThreads != null) {
+      this.remotePrefetchThreads = remotePrefetchThreads;
+    }
+    Integer remoteUploadThreads =
+        parseNumber(getChildTextContent(configurationElement, REMOTE_UPLOAD_THREADS_ELEMENT));
+    if (remoteUploadThreads != null && remoteUploadThreads > 0) {
+      this.remoteUploadThreads = remoteUploadThreads;
+    }
+    Integer remoteUploadDrainTimeout = parseNumber(
+        getChildTextContent(configurationElement, REMOTE_UPLOAD_DRAIN_TIMEOUT_ELEMENT));
+    if (remoteUploadDrainTimeout != null) {
+      this.remoteUploadDrainTimeoutMillis = remoteUploadDrainTimeout;
+    }
+    this.remoteKeyFilter = "true"
+        .equalsIgnoreCase(getChildTextContent(configurationElement, REMOTE_KEY_FILTER_ELEMENT));
+    Integer remoteKeyFilterEntries = parseNumber(
+        getChildTextContent(configurationElement, REMOTE_KEY_FILTER_ENTRIES_ELEMENT));
+    if (remoteKeyFilterEntries != null && remoteKeyFilterEntries > 0) {
+      this.remoteKeyFilterEntries = remoteKeyFilterEntries;
+    }
+    String remoteS3Region = getChildTextContent(configurationElement, REMOTE_S3_REGION_ELEMENT);
+    if (remoteS3Region != null && !remoteS3Region.trim().isEmpty()) {
+      this.remoteS3Region = remoteS3Region.trim();
+    }
+  }
+
+  private void readTiers(Element tiersElement) {
+    NodeList tierElements = tiersElement.getElementsByTagName(TIER_ELEMENT);
+    for (int i = 0; i < tierElements.getLength(); i++) {
+      Element tierElement = (Element) tierElements.item(i);
+      String directory = getChildTextContent(tierElement, DIRECTORY_ELEMENT);
+      Integer maxSizeMb = parseMegabytes(getChildTextContent(tierElement, TIER_MAX_SIZE_ELEMENT));
+      if (directory == null || maxSizeMb == null) {
+        throw new ConfigurationException(String.format(
+            "Invalid XML configuration: <%s> requires <%s> and <%s>", TIER_ELEMENT,
+            DIRECTORY_ELEMENT, TIER_MAX_SIZE_ELEMENT));
+      }
+      tiers.add(new Tier(directory, maxSizeMb));
+    }
+  }
+
+  private void readReadOnlyCaches(Element readOnlyCachesElement) {
+    NodeList cacheElements = readOnlyCachesElement.getElementsByTagName(READ_ONLY_CACHE_ELEMENT);
+    for (int i = 0; i < cacheElements.getLength(); i++) {
+      Element cacheElement = (Element) cacheElements.item(i);
+      String directory = getChildTextContent(cacheElement, DIRECTORY_ELEMENT);
+      if (directory == null) {
+        throw new ConfigurationException(String.format(
+            "Invalid XML configuration: <%s> requires <%s>", READ_ONLY_CACHE_ELEMENT,
+            DIRECTORY_ELEMENT));
+      }
+      boolean copyToPrimary = "true"
+          .equalsIgnoreCase(getChildTextContent(cacheElement, COPY_TO_PRIMARY_ELEMENT));
+      readOnlyCaches.add(new ReadOnlyCache(directory, copyToPrimary));
+    }
+  }
+
+  private void validateReadOnlyCaches() {
+    Path cacheDir = Paths.get(cacheDirectory).toAbsolutePath().normalize();
+    for (ReadOnlyCache readOnlyCache : readOnlyCaches) {
+      Path dir = Paths.get(readOnlyCache.getDirectory()).toAbsolutePath().normalize();
+      if (dir.startsWith(cacheDir) || cacheDir.startsWith(dir)) {
+        throw new ConfigurationException(String.format(
+            "Invalid XML configuration: read-only cache %s overlaps with <%s> %s",
+            readOnlyCache.getDirectory(), CACHEDIR_ELEMENT, cacheDirectory));
+      }
+    }
   }
 
   public void setCachingDefaults(String defaultCacheDir) {
@@ -252,6 +437,121 @@ public class Configuration {
     return totalCacheMaxSizeMb;
   }
 
+  public String getRestoreMode() {
+    return restoreMode;
+  }
+
+  public boolean isLinkRestoreMode() {
+    return RESTORE_MODE_LINK.equals(restoreMode);
+  }
+
+  public boolean isAsyncCacheWrite() {
+    return asyncCacheWrite;
+  }
+
+  public int getCacheWriteQueueSize() {
+    return cacheWriteQueueSize;
+  }
+
+  public boolean isDeferredRestore() {
+    return deferredRestore;
+  }
+
+  public boolean isDeferredRestoreAtSessionEnd() {
+    return deferredRestoreAtSessionEnd;
+  }
+
+  public String getEvictionPolicy() {
+    return evictionPolicy;
+  }
+
+  public boolean isCostAwareEviction() {
+    return EVICTION_POLICY_COST_AWARE.equals(evictionPolicy);
+  }
+
+  public boolean hasMinFreeDiskSpaceMb() {
+    return minFreeDiskSpaceMb != null;
+  }
+
+  public Integer getMinFreeDiskSpaceMb() {
+    return minFreeDiskSpaceMb;
+  }
+
+  public Integer getTargetFreeDiskSpaceMb() {
+    if (targetFreeDiskSpaceMb == null || minFreeDiskSpaceMb == null) {
+      return minFreeDiskSpaceMb;
+    }
+    return Math.max(minFreeDiskSpaceMb, targetFreeDiskSpaceMb);
+  }
+
+  public int getLockTimeoutMillis() {
+    return lockTimeoutMillis;
+  }
+
+  public List<Tier> getTiers() {
+    return tiers;
+  }
+
+  public List<ReadOnlyCache> getReadOnlyCaches() {
+    return readOnlyCaches;
+  }
+
+  public boolean hasRemoteUrl() {
+    return remoteUrl != null;
+  }
+
+  public String getRemoteUrl() {
+    return remoteUrl;
+  }
+
+  public String getRemoteProtocol() {
+    return remoteProtocol;
+  }
+
+  public boolean isBazelRemoteProtocol() {
+    return REMOTE_PROTOCOL_BAZEL.equals(remoteProtocol);
+  }
+
+  public boolean isS3RemoteProtocol() {
+    return REMOTE_PROTOCOL_S3.equals(remoteProtocol);
+  }
+
+  public boolean isRemoteUpload() {
+    return remoteUpload;
+  }
+
+  public boolean isRemoteChunking() {
+    return remoteChunking;
+  }
+
+  public int getRemoteTimeoutMillis() {
+    return remoteTimeoutMillis;
+  }
+
+  public int getRemotePrefetchThreads() {
+    return remotePrefetchThreads;
+  }
+
+  public int getRemoteUploadThreads() {
+    return remoteUploadThreads;
+  }
+
+  public int getRemoteUploadDrainTimeoutMillis() {
+    return remoteUploadDrainTimeoutMillis;
+  }
+
+  public boolean isRemoteKeyFilter() {
+    return remoteKeyFilter;
+  }
+
+  public int getRemoteKeyFilterEntries() {
+    return remoteKeyFilterEntries;
+  }
+
+  public String getRemoteS3Region() {
+    return remoteS3Region;
+  }
+
   List<FileSet> getMainCompileTriggers(MavenProject project) {
     return relativize(getOrEmpty(MAIN_COMPILE, project), project);
   }
@@ -313,6 +613,43 @@ public class Configuration {
     return Duration.ofDays(parse(NUMBER_PATTERN, str, "number or duration"));
   }
 
+  static String parseRestoreMode(String str) {
+    if (str == null) {
+      return RESTORE_MODE_COPY;
+    }
+    String mode = str.trim().toLowerCase();
+    if (!RESTORE_MODE_COPY.equals(mode) && !RESTORE_MODE_LINK.equals(mode)) {
+      throw new ConfigurationException(
+          String.format("Invalid XML configuration: '%s' is not valid restore mode", str));
+    }
+    return mode;
+  }
+
+  static String parseEvictionPolicy(String str) {
+    if (str == null) {
+      return EVICTION_POLICY_LRU;
+    }
+    String policy = str.trim().toLowerCase();
+    if (!EVICTION_POLICY_LRU.equals(policy) && !EVICTION_POLICY_COST_AWARE.equals(policy)) {
+      throw new ConfigurationException(
+          String.format("Invalid XML configuration: '%s' is not valid eviction policy", str));
+    }
+    return policy;
+  }
+
+  static String parseRemoteProtocol(String str) {
+    if (str == null) {
+      return REMOTE_PROTOCOL_HTTP;
+    }
+    String protocol = str.trim().toLowerCase();
+    if (!REMOTE_PROTOCOL_HTTP.equals(protocol) && !REMOTE_PROTOCOL_BAZEL.equals(protocol)
+        && !REMOTE_PROTOCOL_S3.equals(protocol)) {
+      throw new ConfigurationException(
+          String.format("Invalid XML configuration: '%s' is not valid remote protocol", str));
+    }
+    return protocol;
+  }
+
   static Integer parse(Pattern pattern, String str, String errorMessageValueName) {
     if (str == null) {
       return null;
@@ -325,6 +662,42 @@ public class Configuration {
     return Integer.parseInt(m.group(1));
   }
 
+  public static class Tier {
+    private final String directory;
+    private final int maxSizeMb;
+
+    public Tier(String directory, int maxSizeMb) {
+      this.directory = directory;
+      this.maxSizeMb = maxSizeMb;
+    }
+
+    public String getDirectory() {
+      return directory;
+    }
+
+    public int getMaxSizeMb() {
+      return maxSizeMb;
+    }
+  }
+
+  public static class ReadOnlyCache {
+    private final String directory;
+    private final boolean copyToPrimary;
+
+    public ReadOnlyCache(String directory, boolean copyToPrimary) {
+      this.directory = directory;
+      this.copyToPrimary = copyToPrimary;
+    }
+
+    public String getDirectory() {
+      return directory;
+    }
+
+    public boolean isCopyToPrimary() {
+      return copyToPrimary;
+    }
+  }
+
   public static class ConfigurationException extends RuntimeException {
 
     private static final long serialVersionUID = 1L;
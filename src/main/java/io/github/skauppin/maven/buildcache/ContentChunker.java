@@ -0,0 +1,131 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Splits content at FastCDC style content-defined boundaries.
+ */
+class ContentChunker {
+
+  static final int MIN_CHUNK_SIZE = 8 * 1024;
+  static final int AVERAGE_CHUNK_SIZE = 32 * 1024;
+  static final int MAX_CHUNK_SIZE = 128 * 1024;
+
+  // the gear hash shifts one bit per byte, so the high bits depend on the last 64 bytes
+  private static final long MASK_SMALL = 0xFFFF800000000000L; // 17 bits
+  private static final long MASK_LARGE = 0xFFF8000000000000L; // 13 bits
+
+  private static final long[] GEAR = new long[256];
+
+  static {
+    long seed = 0x6275696c64636163L;
+    for (int i = 0; i < GEAR.length; i++) {
+      // SplitMix64, so that every JVM computes the same boundaries
+      seed += 0x9E3779B97F4A7C15L;
+      long z = seed;
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      GEAR[i] = z ^ (z >>> 31);
+    }
+  }
+
+  private ContentChunker() {}
+
+  static List<Chunk> split(byte[] content) {
+    List<Chunk> chunks = new ArrayList<>();
+    MessageDigest digest = DigestUtils.getSha256Digest();
+    int offset = 0;
+    while (offset < content.length) {
+      int end = findBoundary(content, offset);
+      digest.update(content, offset, end - offset);
+      chunks.add(new Chunk(Hex.encodeHexString(digest.digest()), offset, end - offset));
+      offset = end;
+    }
+    return chunks;
+  }
+
+  private static int findBoundary(byte[] content, int offset) {
+    int remaining = content.length - offset;
+    if (remaining <= MIN_CHUNK_SIZE) {
+      return content.length;
+    }
+    int normal = offset + Math.min(remaining, AVERAGE_CHUNK_SIZE);
+    int limit = offset + Math.min(remaining, MAX_CHUNK_SIZE);
+    long hash = 0;
+    int i = offset + MIN_CHUNK_SIZE;
+    for (; i < normal; i++) {
+      hash = (hash << 1) + GEAR[content[i] & 0xFF];
+      if ((hash & MASK_SMALL) == 0) {
+        return i + 1;
+      }
+    }
+    for (; i < limit; i++) {
+      hash = (hash << 1) + GEAR[content[i] & 0xFF];
+      if ((hash & MASK_LARGE) == 0) {
+        return i + 1;
+      }
+    }
+    return limit;
+  }
+
+  /**
+   * Formats a chunk index with a line {@code <sha256> <length>} for every chunk, in order.
+   */
+  static byte[] format(List<Chunk> chunks) {
+    StringBuilder buffer = new StringBuilder();
+    for (Chunk chunk : chunks) {
+      buffer.append(chunk.getHash()).append(' ').append(chunk.getLength()).append('\n');
+    }
+    return buffer.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  static List<Chunk> parse(byte[] index) {
+    List<Chunk> chunks = new ArrayList<>();
+    long offset = 0;
+    for (String line : new String(index, StandardCharsets.UTF_8).split("\n")) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] fields = line.split(" ");
+      if (fields.length != 2 || !fields[0].matches("[0-9a-f]{64}")) {
+        throw new IllegalArgumentException("invalid chunk index line: " + line);
+      }
+      int length = Integer.parseInt(fields[1]);
+      if (length <= 0 || offset + length > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("invalid chunk length: " + line);
+      }
+      chunks.add(new Chunk(fields[0], (int) offset, length));
+      offset += length;
+    }
+    return chunks;
+  }
+
+  static class Chunk {
+    private final String hash;
+    private final int offset;
+    private final int length;
+
+    Chunk(String hash, int offset, int length) {
+      this.hash = hash;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    String getHash() {
+      return hash;
+    }
+
+    int getOffset() {
+      return offset;
+    }
+
+    int getLength() {
+      return length;
+    }
+  }
+}
@@ -29,6 +29,19 @@ public class ExecutionTimeRegister {
         execTimeMillis, skipped);
   }
 
+  public long getExecutionTimeMillis(MavenProject project, List<String> lifecyclePhases) {
+    ProjectExecution projectExec = projectExecutions.get(BuildCache.getProjectId(project));
+    if (projectExec == null) {
+      return 0;
+    }
+    synchronized (projectExec.mojoExecTimes) {
+      return projectExec.mojoExecTimes.stream()
+          .filter(t -> !t.isSkipped()
+              && lifecyclePhases.contains(t.getMojoExecution().getLifecyclePhase()))
+          .mapToLong(MojoExecutionTime::getExecTimeMillis).sum();
+    }
+  }
+
   Map<String, ProjectExecution> getProjectExecutions() {
     return this.projectExecutions;
   }
@@ -6,15 +6,27 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -26,11 +38,26 @@ import org.apache.maven.shared.model.fileset.util.FileSetManager;
 import org.codehaus.plexus.component.annotations.Component;
 import org.codehaus.plexus.component.annotations.Requirement;
 import org.codehaus.plexus.logging.Logger;
-import com.google.common.io.Files;
 
 @Component(role = FileUtil.class)
 public class FileUtil {
 
+  public static final String TEMP_FILE_PREFIX = ".";
+  public static final String TEMP_FILE_SUFFIX = ".tmp";
+  public static final long STALE_TEMP_FILE_MILLIS = TimeUnit.HOURS.toMillis(1);
+  // a fixed entry time keeps the zip bytes of unchanged classes identical between builds
+  public static final long ZIP_ENTRY_TIME =
+      new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+
+  public static boolean isTempFile(String filename) {
+    return filename.startsWith(TEMP_FILE_PREFIX) && filename.endsWith(TEMP_FILE_SUFFIX);
+  }
+
+  public static boolean isStaleTempFile(File file, long nowMillis) {
+    return isTempFile(file.getName())
+        && file.lastModified() < nowMillis - STALE_TEMP_FILE_MILLIS;
+  }
+
   @Requirement
   private Logger logger;
 
@@ -156,18 +183,87 @@ public class FileUtil {
 
   public boolean createZipFile(Path zipFile, Path archiveBaseDir, String[] archiveFiles)
       throws FileNotFoundException, IOException {
-    zipFile.getParent().toFile().mkdirs();
-    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile.toFile()))) {
-      for (String file : archiveFiles) {
-        ZipEntry entry = new ZipEntry(file);
-        zip.putNextEntry(entry);
-        IOUtils.copy(new FileInputStream(archiveBaseDir.resolve(file).toFile()), zip);
-        zip.closeEntry();
+    writeAtomically(zipFile, tmp -> {
+      try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(tmp.toFile()))) {
+        for (String file : archiveFiles) {
+          zip.putNextEntry(newZipEntry(file));
+          try (InputStream in = new FileInputStream(archiveBaseDir.resolve(file).toFile())) {
+            IOUtils.copy(in, zip);
+          }
+          zip.closeEntry();
+        }
       }
+    });
+    return true;
+  }
+
+  public boolean createZipFile(Path zipFile, Map<String, byte[]> archiveFiles)
+      throws FileNotFoundException, IOException {
+    writeAtomically(zipFile, tmp -> {
+      try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(tmp.toFile()))) {
+        for (Map.Entry<String, byte[]> file : archiveFiles.entrySet()) {
+          zip.putNextEntry(newZipEntry(file.getKey()));
+          zip.write(file.getValue());
+          zip.closeEntry();
+        }
+      }
+    });
+    return true;
+  }
+
+  private static ZipEntry newZipEntry(String name) {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setTime(ZIP_ENTRY_TIME);
+    return entry;
+  }
+
+  public boolean createZipFile(Path zipFile, Path previousZipFile, Path archiveBaseDir,
+      String[] archiveFiles) throws IOException {
+    if (previousZipFile == null || archiveFiles.length > IncrementalZipWriter.MAX_ENTRIES) {
+      return createZipFile(zipFile, archiveBaseDir, archiveFiles);
+    }
+    return createIncrementalZipFile(zipFile, previousZipFile, Arrays.asList(archiveFiles),
+        file -> readFile(archiveBaseDir.resolve(file)));
+  }
+
+  public boolean createZipFile(Path zipFile, Path previousZipFile,
+      Map<String, byte[]> archiveFiles) throws IOException {
+    if (previousZipFile == null || archiveFiles.size() > IncrementalZipWriter.MAX_ENTRIES) {
+      return createZipFile(zipFile, archiveFiles);
     }
+    return createIncrementalZipFile(zipFile, previousZipFile, archiveFiles.keySet(),
+        archiveFiles::get);
+  }
+
+  private boolean createIncrementalZipFile(Path zipFile, Path previousZipFile,
+      Collection<String> archiveFiles, ContentReader reader) throws IOException {
+    writeAtomically(zipFile, tmp -> {
+      try (IncrementalZipWriter zip = new IncrementalZipWriter(tmp, previousZipFile)) {
+        for (String file : archiveFiles) {
+          zip.write(file, reader.read(file));
+        }
+        zip.finish();
+        logger.debug(String.format("buildcache: reused %d of %d compressed files from %s",
+            zip.getReusedEntries(), archiveFiles.size(), previousZipFile.getFileName()));
+      }
+    });
     return true;
   }
 
+  private byte[] readFile(Path file) throws IOException {
+    try (InputStream in = new FileInputStream(file.toFile())) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  public Map<String, byte[]> readFiles(Path baseDir, String[] files) throws IOException {
+    Map<String, byte[]> contents = new LinkedHashMap<>();
+    for (String file : files) {
+      contents.put(file, readFile(baseDir.resolve(file)));
+    }
+    return contents;
+  }
+
   public boolean unzip(Path zipFile, Path targetDir) throws FileNotFoundException, IOException {
     try (ZipFile zip = new ZipFile(zipFile.toFile())) {
       Enumeration<? extends ZipEntry> entries = zip.entries();
@@ -175,6 +271,8 @@ public class FileUtil {
         ZipEntry zipEntry = entries.nextElement();
         Path targetFile = targetDir.resolve(zipEntry.getName());
         targetFile.getParent().toFile().mkdirs();
+        // the file may be a hard link into the object store, which must not be written through
+        Files.deleteIfExists(targetFile);
         try (FileOutputStream out = new FileOutputStream(targetFile.toFile());
             InputStream in = zip.getInputStream(zipEntry)) {
           IOUtils.copy(in, out);
@@ -188,7 +286,32 @@ public class FileUtil {
     if (content == null) {
       return;
     }
-    Files.asCharSink(file.toFile(), Charset.forName("UTF-8")).write(content);
+    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    writeAtomically(file, tmp -> Files.write(tmp, bytes));
+  }
+
+  public void writeAtomically(Path file, TempFileWriter writer) throws IOException {
+    Path tmp = createTempFile(file);
+    try {
+      writer.write(tmp);
+      moveAtomically(tmp, file);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  public Path createTempFile(Path file) throws IOException {
+    Files.createDirectories(file.getParent());
+    return Files.createTempFile(file.getParent(),
+        TEMP_FILE_PREFIX + file.getFileName().toString() + ".", TEMP_FILE_SUFFIX);
+  }
+
+  public void moveAtomically(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
   }
 
   public void deleteFile(Path file) {
@@ -210,12 +333,77 @@ public class FileUtil {
     return path.toFile().mkdirs();
   }
 
+  /**
+   * Lists the files of the directory like {@link File#listFiles()}, but reads the attributes of
+   * each file once: isDirectory(), length() and lastModified() of the listed files don't access
+   * the file system again.
+   */
   public File[] listFiles(File directory) {
-    return directory.listFiles();
+    List<File> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+      for (Path path : stream) {
+        try {
+          files.add(new ListedFile(path, Files.readAttributes(path, BasicFileAttributes.class)));
+        } catch (IOException e) {
+          // deleted after it was listed
+        }
+      }
+    } catch (IOException | DirectoryIteratorException e) {
+      return null;
+    }
+    return files.toArray(new File[files.size()]);
+  }
+
+  public long getUsableSpace(Path path) throws IOException {
+    Path existing = path.toAbsolutePath();
+    while (!Files.exists(existing) && existing.getParent() != null) {
+      existing = existing.getParent();
+    }
+    return Files.getFileStore(existing).getUsableSpace();
   }
 
   void setLogger(Logger logger) {
     this.logger = logger;
   }
 
+  private static class ListedFile extends File {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean directory;
+    private final long length;
+    private final long lastModified;
+
+    private ListedFile(Path path, BasicFileAttributes attributes) {
+      super(path.toString());
+      this.directory = attributes.isDirectory();
+      this.length = attributes.size();
+      this.lastModified = attributes.lastModifiedTime().toMillis();
+    }
+
+    @Override
+    public boolean isDirectory() {
+      return directory;
+    }
+
+    @Override
+    public long length() {
+      return length;
+    }
+
+    @Override
+    public long lastModified() {
+      return lastModified;
+    }
+  }
+
+  @FunctionalInterface
+  public interface TempFileWriter {
+    void write(Path tmp) throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface ContentReader {
+    byte[] read(String file) throws IOException;
+  }
 }
@@ -238,6 +238,10 @@ public class HashUtil {
     return DigestUtils.md5Hex(Arrays.toString(strings));
   }
 
+  public String hash(byte[] content) {
+    return DigestUtils.md5Hex(content);
+  }
+
   public String hashFileContent(File f) throws IOException {
     try (FileInputStream in = new FileInputStream(f)) {
       return DigestUtils.md5Hex(in);
@@ -0,0 +1,344 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip file reusing the compressed data of entries that are unchanged (same name, CRC and
+ * size) in a previous zip file. Zip64 archives are not supported.
+ */
+class IncrementalZipWriter implements Closeable {
+
+  static final int MAX_ENTRIES = 0xFFFF;
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int VERSION = 20;
+  private static final int ENCRYPTED_FLAG = 0x1;
+  private static final int UTF8_FLAG = 0x800;
+  private static final long MAX_SIZE = 0xFFFFFFFFL;
+  private static final int DOS_TIME = toDosTime(FileUtil.ZIP_ENTRY_TIME);
+
+  private final FileChannel out;
+  private final FileChannel previous;
+  private final Map<String, Entry> previousEntries;
+  private final List<Entry> entries = new ArrayList<>();
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final byte[] deflateBuffer = new byte[8192];
+
+  private long offset = 0;
+  private int reusedEntries = 0;
+
+  IncrementalZipWriter(Path zipFile, Path previousZipFile) throws IOException {
+    FileChannel previousChannel = null;
+    Map<String, Entry> previousEntries = Collections.emptyMap();
+    if (previousZipFile != null) {
+      try {
+        previousChannel = FileChannel.open(previousZipFile, StandardOpenOption.READ);
+        previousEntries = readCentralDirectory(previousChannel);
+      } catch (IOException e) {
+        closeQuietly(previousChannel);
+        previousChannel = null;
+        previousEntries = Collections.emptyMap();
+      }
+    }
+    this.previous = previousChannel;
+    this.previousEntries = previousEntries;
+    this.out = FileChannel.open(zipFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  int getReusedEntries() {
+    return reusedEntries;
+  }
+
+  void write(String name, byte[] content) throws IOException {
+    if (entries.size() >= MAX_ENTRIES) {
+      throw new IOException("too many zip entries");
+    }
+    CRC32 crc = new CRC32();
+    crc.update(content);
+
+    Entry entry = new Entry(name);
+    entry.crc = crc.getValue();
+    entry.size = content.length;
+    entry.offset = offset;
+
+    Entry previousEntry = previousEntries.get(name);
+    if (previousEntry != null && previousEntry.crc == entry.crc
+        && previousEntry.size == entry.size) {
+      entry.method = previousEntry.method;
+      entry.compressedSize = previousEntry.compressedSize;
+      writeLocalHeader(entry);
+      copyRaw(previousEntry);
+      reusedEntries++;
+
+    } else {
+      byte[] compressed = deflate(content);
+      entry.method = ZipEntry.DEFLATED;
+      entry.compressedSize = compressed.length;
+      writeLocalHeader(entry);
+      write(ByteBuffer.wrap(compressed));
+    }
+    entries.add(entry);
+  }
+
+  void finish() throws IOException {
+    long centralDirectoryOffset = offset;
+    for (Entry entry : entries) {
+      writeCentralHeader(entry);
+    }
+    long centralDirectorySize = offset - centralDirectoryOffset;
+    if (offset > MAX_SIZE) {
+      throw new IOException("zip file too large");
+    }
+
+    ByteBuffer buffer = newBuffer(END_OF_CENTRAL_DIRECTORY_SIZE);
+    buffer.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) entries.size());
+    buffer.putShort((short) entries.size());
+    buffer.putInt((int) centralDirectorySize);
+    buffer.putInt((int) centralDirectoryOffset);
+    buffer.putShort((short) 0);
+    ((Buffer) buffer).flip();
+    write(buffer);
+  }
+
+  @Override
+  public void close() throws IOException {
+    deflater.end();
+    closeQuietly(previous);
+    out.close();
+  }
+
+  private byte[] deflate(byte[] content) {
+    deflater.reset();
+    deflater.setInput(content);
+    deflater.finish();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+    while (!deflater.finished()) {
+      int n = deflater.deflate(deflateBuffer);
+      compressed.write(deflateBuffer, 0, n);
+    }
+    return compressed.toByteArray();
+  }
+
+  private void copyRaw(Entry previousEntry) throws IOException {
+    ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE);
+    readFully(previous, header, previousEntry.offset);
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw new IOException("invalid local header in previous zip file");
+    }
+    long position = previousEntry.offset + LOCAL_HEADER_SIZE + unsignedShort(header, 26)
+        + unsignedShort(header, 28);
+    long remaining = previousEntry.compressedSize;
+    while (remaining > 0) {
+      long n = previous.transferTo(position, remaining, out);
+      if (n <= 0) {
+        throw new IOException("unexpected end of previous zip file");
+      }
+      position += n;
+      remaining -= n;
+    }
+    offset += previousEntry.compressedSize;
+  }
+
+  private void writeLocalHeader(Entry entry) throws IOException {
+    checkSize(entry);
+    ByteBuffer buffer = newBuffer(LOCAL_HEADER_SIZE + entry.nameBytes.length);
+    buffer.putInt(LOCAL_HEADER_SIGNATURE);
+    buffer.putShort((short) VERSION);
+    buffer.putShort((short) UTF8_FLAG);
+    buffer.putShort((short) entry.method);
+    buffer.putInt(DOS_TIME);
+    buffer.putInt((int) entry.crc);
+    buffer.putInt((int) entry.compressedSize);
+    buffer.putInt((int) entry.size);
+    buffer.putShort((short) entry.nameBytes.length);
+    buffer.putShort((short) 0);
+    buffer.put(entry.nameBytes);
+    ((Buffer) buffer).flip();
+    write(buffer);
+  }
+
+  private void writeCentralHeader(Entry entry) throws IOException {
+    ByteBuffer buffer = newBuffer(CENTRAL_HEADER_SIZE + entry.nameBytes.length);
+    buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+    buffer.putShort((short) VERSION);
+    buffer.putShort((short) VERSION);
+    buffer.putShort((short) UTF8_FLAG);
+    buffer.putShort((short) entry.method);
+    buffer.putInt(DOS_TIME);
+    buffer.putInt((int) entry.crc);
+    buffer.putInt((int) entry.compressedSize);
+    buffer.putInt((int) entry.size);
+    buffer.putShort((short) entry.nameBytes.length);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putInt(0);
+    buffer.putInt((int) entry.offset);
+    buffer.put(entry.nameBytes);
+    ((Buffer) buffer).flip();
+    write(buffer);
+  }
+
+  private void checkSize(Entry entry) throws IOException {
+    if (entry.size >= MAX_SIZE || entry.compressedSize >= MAX_SIZE || entry.offset >= MAX_SIZE) {
+      throw new IOException("zip file too large");
+    }
+  }
+
+  private void write(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      offset += out.write(buffer);
+    }
+  }
+
+  static Map<String, Entry> readCentralDirectory(FileChannel channel) throws IOException {
+    long size = channel.size();
+    int tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+    ByteBuffer tail = newBuffer(tailSize);
+    readFully(channel, tail, size - tailSize);
+
+    int eocd = -1;
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        eocd = i;
+        break;
+      }
+    }
+    if (eocd < 0) {
+      throw new IOException("end of central directory not found");
+    }
+
+    int entryCount = unsignedShort(tail, eocd + 10);
+    long centralDirectorySize = unsignedInt(tail, eocd + 12);
+    long centralDirectoryOffset = unsignedInt(tail, eocd + 16);
+    if (entryCount == 0xFFFF || centralDirectorySize == MAX_SIZE
+        || centralDirectoryOffset == MAX_SIZE) {
+      throw new IOException("zip64 is not supported");
+    }
+
+    ByteBuffer centralDirectory = newBuffer((int) centralDirectorySize);
+    readFully(channel, centralDirectory, centralDirectoryOffset);
+
+    Map<String, Entry> entries = new HashMap<>();
+    int p = 0;
+    for (int i = 0; i < entryCount; i++) {
+      if (centralDirectory.getInt(p) != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException("invalid central directory");
+      }
+      int flags = unsignedShort(centralDirectory, p + 8);
+      int method = unsignedShort(centralDirectory, p + 10);
+      int nameLength = unsignedShort(centralDirectory, p + 28);
+      int extraLength = unsignedShort(centralDirectory, p + 30);
+      int commentLength = unsignedShort(centralDirectory, p + 32);
+
+      byte[] nameBytes = new byte[nameLength];
+      ((Buffer) centralDirectory).position(p + CENTRAL_HEADER_SIZE);
+      centralDirectory.get(nameBytes);
+
+      Entry entry = new Entry(new String(nameBytes, StandardCharsets.UTF_8));
+      entry.method = method;
+      entry.crc = unsignedInt(centralDirectory, p + 16);
+      entry.compressedSize = unsignedInt(centralDirectory, p + 20);
+      entry.size = unsignedInt(centralDirectory, p + 24);
+      entry.offset = unsignedInt(centralDirectory, p + 42);
+
+      boolean reusable = (flags & ENCRYPTED_FLAG) == 0
+          && (method == ZipEntry.DEFLATED || method == ZipEntry.STORED)
+          && entry.compressedSize != MAX_SIZE && entry.size != MAX_SIZE
+          && entry.offset != MAX_SIZE;
+      if (reusable) {
+        entries.put(entry.name, entry);
+      }
+      p += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    ((Buffer) buffer).clear();
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position + buffer.position());
+      if (n < 0) {
+        throw new IOException("unexpected end of zip file");
+      }
+    }
+    ((Buffer) buffer).flip();
+  }
+
+  private static ByteBuffer newBuffer(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int unsignedShort(ByteBuffer buffer, int index) {
+    return buffer.getShort(index) & 0xFFFF;
+  }
+
+  private static long unsignedInt(ByteBuffer buffer, int index) {
+    return buffer.getInt(index) & MAX_SIZE;
+  }
+
+  private static int toDosTime(long millis) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(millis);
+    int year = Math.max(calendar.get(Calendar.YEAR), 1980);
+    return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+        | calendar.get(Calendar.DAY_OF_MONTH) << 16
+        | calendar.get(Calendar.HOUR_OF_DAY) << 11
+        | calendar.get(Calendar.MINUTE) << 5
+        | calendar.get(Calendar.SECOND) >> 1;
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+    }
+  }
+
+  static class Entry {
+    private final String name;
+    private final byte[] nameBytes;
+    private int method;
+    private long crc;
+    private long compressedSize;
+    private long size;
+    private long offset;
+
+    private Entry(String name) {
+      this.name = name;
+      this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -32,6 +32,19 @@ public class MojoExecUtil {
           "post-integration-test"
       );
 
+  public static final List<String> PHASES_BEFORE_COMPILE =
+      Arrays.asList(
+          "pre-clean",
+          "clean",
+          "post-clean",
+          "validate",
+          "initialize",
+          "generate-sources",
+          "process-sources",
+          "generate-resources",
+          "process-resources"
+      );
+
   //@formatter:on
 
   private MojoExecUtil() {}
@@ -56,4 +69,12 @@ public class MojoExecUtil {
   public static boolean isIntegrationTestRelatedPhase(MojoExecution mojoExecution) {
     return PHASE_IT.contains(mojoExecution.getLifecyclePhase());
   }
+
+  /**
+   * Returns false for a mojo bound to a phase before compile, which runs before any classes are
+   * compiled. A mojo executed from the command line has no phase and may use the classes.
+   */
+  public static boolean usesClasses(MojoExecution mojoExecution) {
+    return !PHASES_BEFORE_COMPILE.contains(mojoExecution.getLifecyclePhase());
+  }
 }
@@ -0,0 +1,275 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+
+@Component(role = ObjectStore.class)
+public class ObjectStore {
+
+  public static final String OBJECTS_DIR = "objects";
+  public static final String MANIFEST_EXTENSION = ".lnk";
+
+  @Requirement
+  private Logger logger;
+
+  @Requirement
+  private HashUtil hashUtil;
+
+  @Requirement
+  private FileUtil fileUtil;
+
+  private Path objectsDirectory;
+
+  public void initialize(Configuration configuration) {
+    this.objectsDirectory = Paths.get(configuration.getCacheDirectory(), OBJECTS_DIR);
+  }
+
+  public Path getObjectsDirectory() {
+    return objectsDirectory;
+  }
+
+  public void store(Path manifestFile, Path baseDir, String[] files) throws IOException {
+    StringBuilder manifest = new StringBuilder();
+    for (String file : files) {
+      Path source = baseDir.resolve(file);
+      String hash = hashUtil.hashFileContent(source.toFile());
+      Path blob = getBlob(hash);
+      if (!Files.exists(blob)) {
+        storeBlob(blob, tmp -> Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING));
+      }
+      appendManifestEntry(manifest, hash, blob, file);
+    }
+    fileUtil.writeFile(manifestFile, manifest.toString());
+  }
+
+  public void store(Path manifestFile, Map<String, byte[]> contents) throws IOException {
+    StringBuilder manifest = new StringBuilder();
+    for (Map.Entry<String, byte[]> file : contents.entrySet()) {
+      byte[] content = file.getValue();
+      String hash = hashUtil.hash(content);
+      Path blob = getBlob(hash);
+      if (!Files.exists(blob)) {
+        storeBlob(blob, tmp -> Files.write(tmp, content));
+      }
+      appendManifestEntry(manifest, hash, blob, file.getKey());
+    }
+    fileUtil.writeFile(manifestFile, manifest.toString());
+  }
+
+  private void appendManifestEntry(StringBuilder manifest, String hash, Path blob, String file)
+      throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(blob, BasicFileAttributes.class);
+    manifest.append(hash).append(' ').append(attributes.size()).append(' ')
+        .append(attributes.lastModifiedTime().toMillis()).append(' ').append(file).append('\n');
+  }
+
+  private void storeBlob(Path blob, FileUtil.TempFileWriter writer) throws IOException {
+    Path tmp = fileUtil.createTempFile(blob);
+    try {
+      writer.write(tmp);
+      setReadOnly(tmp);
+      Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException e) {
+      // stored concurrently by another build
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  public boolean link(Path manifestFile, Path targetDir, Path linksFile) {
+    if (!Files.exists(manifestFile)) {
+      return false;
+    }
+
+    try {
+      List<ManifestEntry> entries = readManifest(manifestFile);
+      for (ManifestEntry entry : entries) {
+        if (entry.lastModified < 0) {
+          return false; // written by an earlier version, without modification times
+        }
+        Path blob = getBlob(entry.hash);
+        if (!isIntact(blob, entry)) {
+          logger.warn(String.format(
+              "buildcache: object store entry %s is missing or modified, using zip file",
+              entry.hash));
+          Files.deleteIfExists(blob);
+          return false;
+        }
+      }
+
+      boolean linkSupported = true;
+      StringBuilder links = new StringBuilder();
+      for (ManifestEntry entry : entries) {
+        Path blob = getBlob(entry.hash);
+        Path target = targetDir.resolve(entry.path);
+        Files.createDirectories(target.getParent());
+        Files.deleteIfExists(target);
+
+        if (linkSupported) {
+          try {
+            Files.createLink(target, blob);
+            links.append(entry.path).append('\n');
+            continue;
+          } catch (IOException | UnsupportedOperationException e) {
+            logger.debug(String.format("buildcache: hard link not supported for %s, copying files",
+                targetDir), e);
+            linkSupported = false;
+          }
+        }
+        Files.copy(blob, target);
+        target.toFile().setWritable(true);
+      }
+      fileUtil.writeFile(linksFile, links.toString());
+      return true;
+
+    } catch (Exception e) {
+      logger.error("buildcache: could not link classes from object store", e);
+      return false;
+    }
+  }
+
+  public void unlink(Path targetDir, Path linksFile) throws IOException {
+    if (!Files.exists(linksFile)) {
+      return;
+    }
+    for (String path : Files.readAllLines(linksFile, StandardCharsets.UTF_8)) {
+      if (path.isEmpty()) {
+        continue;
+      }
+      Path target = targetDir.resolve(path);
+      if (!Files.exists(target)) {
+        continue;
+      }
+      Path tmp = fileUtil.createTempFile(target);
+      try {
+        Files.copy(target, tmp, StandardCopyOption.REPLACE_EXISTING);
+        tmp.toFile().setWritable(true);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    }
+    Files.delete(linksFile);
+  }
+
+  public long[] collectGarbage(List<File> manifestFiles) throws IOException {
+    long[] deleted = new long[2];
+    if (objectsDirectory == null || !Files.isDirectory(objectsDirectory)) {
+      return deleted;
+    }
+
+    Set<String> referenced = new HashSet<>();
+    for (File manifestFile : manifestFiles) {
+      if (manifestFile.exists()) {
+        readManifest(manifestFile.toPath()).forEach(e -> referenced.add(e.hash));
+      }
+    }
+
+    List<Path> blobs;
+    try (Stream<Path> stream = Files.walk(objectsDirectory, 2)) {
+      blobs = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    long now = System.currentTimeMillis();
+    for (Path blob : blobs) {
+      if (FileUtil.isTempFile(blob.getFileName().toString())) {
+        if (FileUtil.isStaleTempFile(blob.toFile(), now)) {
+          deleted[0]++;
+          deleted[1] += Files.size(blob);
+          Files.deleteIfExists(blob);
+        }
+        continue;
+      }
+      String hash = blob.getParent().getFileName().toString() + blob.getFileName().toString();
+      if (!referenced.contains(hash)) {
+        deleted[0]++;
+        deleted[1] += Files.size(blob);
+        Files.deleteIfExists(blob);
+      }
+    }
+    return deleted;
+  }
+
+  // a blob modified in place keeps neither its size nor its modification time, unless the tool
+  // modifying it restores the modification time
+  private static boolean isIntact(Path blob, ManifestEntry entry) throws IOException {
+    if (!Files.exists(blob)) {
+      return false;
+    }
+    BasicFileAttributes attributes = Files.readAttributes(blob, BasicFileAttributes.class);
+    return attributes.size() == entry.size
+        && attributes.lastModifiedTime().toMillis() == entry.lastModified;
+  }
+
+  Path getBlob(String hash) {
+    return objectsDirectory.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+  }
+
+  private List<ManifestEntry> readManifest(Path manifestFile) throws IOException {
+    List<ManifestEntry> entries = new ArrayList<>();
+    for (String line : Files.readAllLines(manifestFile, StandardCharsets.UTF_8)) {
+      String[] parts = line.split(" ", 4);
+      if (parts.length == 4 && isNumber(parts[2])) {
+        entries.add(new ManifestEntry(parts[0], Long.parseLong(parts[1]),
+            Long.parseLong(parts[2]), parts[3]));
+      } else if (parts.length >= 3) {
+        parts = line.split(" ", 3);
+        entries.add(new ManifestEntry(parts[0], Long.parseLong(parts[1]), -1, parts[2]));
+      }
+    }
+    return entries;
+  }
+
+  private static boolean isNumber(String value) {
+    return !value.isEmpty() && value.chars().allMatch(Character::isDigit);
+  }
+
+  private void setReadOnly(Path path) throws IOException {
+    if (Files.getFileAttributeView(path, PosixFileAttributeView.class) != null) {
+      path.toFile().setReadOnly();
+    }
+  }
+
+  void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
+  void setHashUtil(HashUtil hashUtil) {
+    this.hashUtil = hashUtil;
+  }
+
+  void setFileUtil(FileUtil fileUtil) {
+    this.fileUtil = fileUtil;
+  }
+
+  private static class ManifestEntry {
+    private final String hash;
+    private final long size;
+    private final long lastModified;
+    private final String path;
+
+    private ManifestEntry(String hash, long size, long lastModified, String path) {
+      this.hash = hash;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.path = path;
+    }
+  }
+}
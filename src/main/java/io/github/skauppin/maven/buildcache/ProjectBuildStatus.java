@@ -1,8 +1,12 @@
 package io.github.skauppin.maven.buildcache;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 import org.apache.maven.lifecycle.MavenExecutionPlan;
+import org.apache.maven.plugin.MojoExecution;
 
 public class ProjectBuildStatus {
 
@@ -119,6 +123,9 @@ public class ProjectBuildStatus {
     private boolean cacheHit = false;
     private transient String phadeDetails = null;
     private String phaseHash = null;
+    private transient Path pendingRestoreZipFile = null;
+    private transient Path pendingRestoreClassesPath = null;
+    private transient List<MojoExecution> skippedExecutions = new ArrayList<>();
 
     public Phase(String name) {
       this.name = name;
@@ -138,6 +145,10 @@ public class ProjectBuildStatus {
       return true;
     }
 
+    public void clearCacheHit() {
+      this.cacheHit = false;
+    }
+
     public boolean isVisited() {
       return this.visited;
     }
@@ -166,6 +177,43 @@ public class ProjectBuildStatus {
       this.phaseHash = phaseHash;
     }
 
+    public boolean hasPendingRestore() {
+      return pendingRestoreZipFile != null;
+    }
+
+    public Path getPendingRestoreZipFile() {
+      return pendingRestoreZipFile;
+    }
+
+    public Path getPendingRestoreClassesPath() {
+      return pendingRestoreClassesPath;
+    }
+
+    public void setPendingRestore(Path zipFile, Path classesPath) {
+      this.pendingRestoreZipFile = zipFile;
+      this.pendingRestoreClassesPath = classesPath;
+    }
+
+    public void clearPendingRestore() {
+      setPendingRestore(null, null);
+    }
+
+    /**
+     * Records a mojo execution skipped while the restore of the cached classes is pending, to be
+     * executed if the restore fails.
+     */
+    public void addSkippedExecution(MojoExecution mojoExecution) {
+      this.skippedExecutions.add(mojoExecution);
+    }
+
+    public List<MojoExecution> getSkippedExecutions() {
+      return skippedExecutions;
+    }
+
+    public void clearSkippedExecutions() {
+      this.skippedExecutions = new ArrayList<>();
+    }
+
     public boolean isConfigured() {
       return configured;
     }
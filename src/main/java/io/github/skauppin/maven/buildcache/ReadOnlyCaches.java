@@ -0,0 +1,135 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+
+@Component(role = ReadOnlyCaches.class)
+public class ReadOnlyCaches {
+
+  @Requirement
+  private Logger logger;
+
+  @Requirement
+  private FileUtil fileUtil;
+
+  @Requirement
+  private CacheIndex cacheIndex;
+
+  private Path cacheDirectory;
+  private List<Layer> layers = Collections.emptyList();
+
+  public void initialize(Configuration configuration) {
+    this.cacheDirectory = Paths.get(configuration.getCacheDirectory());
+    this.layers = configuration.getReadOnlyCaches().stream()
+        .map(c -> new Layer(Paths.get(c.getDirectory()), c.isCopyToPrimary()))
+        .collect(Collectors.toList());
+  }
+
+  public boolean hasLayers() {
+    return !layers.isEmpty();
+  }
+
+  public Optional<Path> findZipFile(Path zipFile) {
+    Path relativePath = relativize(zipFile);
+    if (relativePath == null) {
+      return Optional.empty();
+    }
+    for (Layer layer : layers) {
+      Path layerFile = layer.directory.resolve(relativePath);
+      if (fileUtil.fileExists(layerFile)) {
+        return Optional.of(layerFile);
+      }
+    }
+    return Optional.empty();
+  }
+
+  public boolean copyToPrimary(Path layerFile, Path zipFile) {
+    if (!getLayer(layerFile).map(l -> l.copyToPrimary).orElse(false)) {
+      return false;
+    }
+    try {
+      fileUtil.writeAtomically(zipFile,
+          tmp -> Files.copy(layerFile, tmp, StandardCopyOption.REPLACE_EXISTING));
+      return true;
+    } catch (IOException e) {
+      logger.error(String.format("buildcache: failed to copy %s to %s", layerFile, zipFile), e);
+      return false;
+    }
+  }
+
+  public Optional<TestExecution> findTestExecution(Path projectCacheDir, String key) {
+    Path relativePath = relativize(projectCacheDir);
+    if (relativePath == null) {
+      return Optional.empty();
+    }
+    for (Layer layer : layers) {
+      Optional<CacheIndex.Entry> entry =
+          cacheIndex.getReadOnly(layer.directory.resolve(relativePath), key);
+      if (entry.isPresent()) {
+        return Optional.of(new TestExecution(entry.get(), layer.copyToPrimary));
+      }
+    }
+    return Optional.empty();
+  }
+
+  private Optional<Layer> getLayer(Path layerFile) {
+    return layers.stream().filter(l -> layerFile.startsWith(l.directory)).findFirst();
+  }
+
+  private Path relativize(Path path) {
+    if (cacheDirectory == null || !path.startsWith(cacheDirectory)) {
+      return null;
+    }
+    return cacheDirectory.relativize(path);
+  }
+
+  void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
+  void setFileUtil(FileUtil fileUtil) {
+    this.fileUtil = fileUtil;
+  }
+
+  void setCacheIndex(CacheIndex cacheIndex) {
+    this.cacheIndex = cacheIndex;
+  }
+
+  public static class TestExecution {
+    private final CacheIndex.Entry entry;
+    private final boolean copyToPrimary;
+
+    private TestExecution(CacheIndex.Entry entry, boolean copyToPrimary) {
+      this.entry = entry;
+      this.copyToPrimary = copyToPrimary;
+    }
+
+    public CacheIndex.Entry getEntry() {
+      return entry;
+    }
+
+    public boolean isCopyToPrimary() {
+      return copyToPrimary;
+    }
+  }
+
+  private static class Layer {
+    private final Path directory;
+    private final boolean copyToPrimary;
+
+    private Layer(Path directory, boolean copyToPrimary) {
+      this.directory = directory;
+      this.copyToPrimary = copyToPrimary;
+    }
+  }
+}
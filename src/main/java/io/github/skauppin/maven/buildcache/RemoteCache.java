@@ -0,0 +1,895 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+
+@Component(role = RemoteCache.class)
+public class RemoteCache {
+
+  @Requirement
+  private Logger logger;
+
+  @Requirement
+  private FileUtil fileUtil;
+
+  private static final String ACTION_CACHE_PREFIX = "ac/";
+  private static final String CONTENT_STORE_PREFIX = "cas/";
+  private static final String CHUNK_PREFIX = "chunks/";
+
+  static final String KEY_FILTER_FILE = "buildcache.bloom";
+  private static final int MAX_KEY_FILTER_ATTEMPTS = 3;
+  private static final long MAX_KEY_FILTER_ENTRIES = 100_000_000L;
+
+  // S3 requires at least 5 MB for every part but the last
+  static final int S3_PART_SIZE = 16 * 1024 * 1024;
+  private static final int MAX_RANGE_RETRIES = 2;
+  private static final int HTTP_PRECONDITION_FAILED = 412;
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+  private String baseUrl;
+  private boolean bazel;
+  private boolean s3;
+  private S3Signer s3Signer;
+  private int s3PartSize = S3_PART_SIZE;
+  private boolean upload;
+  private ChunkedTransfer chunkedTransfer;
+  private RemoteCircuitBreaker circuitBreaker = new RemoteCircuitBreaker(0);
+  private volatile long requestDeadline;
+
+  private Path keyFilterFile;
+  private int keyFilterEntries;
+  private volatile BloomFilter keyFilter;
+  private final Set<String> uploadedKeys = ConcurrentHashMap.newKeySet();
+
+  public void initialize(Configuration configuration) {
+    if (configuration.hasRemoteUrl()) {
+      String url = configuration.getRemoteUrl();
+      this.baseUrl = url.endsWith("/") ? url : url + "/";
+      this.bazel = configuration.isBazelRemoteProtocol();
+      this.s3 = configuration.isS3RemoteProtocol();
+      this.s3Signer = s3 ? S3Signer.fromEnvironment(configuration.getRemoteS3Region()).orElse(null)
+          : null;
+      if (s3 && s3Signer == null) {
+        logger.debug("buildcache: no AWS credentials, sending unsigned S3 requests");
+      }
+      this.upload = configuration.isRemoteUpload();
+      this.circuitBreaker = new RemoteCircuitBreaker(configuration.getRemoteTimeoutMillis());
+      this.chunkedTransfer = configuration.isRemoteChunking()
+          ? new ChunkedTransfer(logger, fileUtil, this)
+          : null;
+    } else {
+      this.baseUrl = null;
+    }
+    this.keyFilter = null;
+    this.uploadedKeys.clear();
+    if (isEnabled() && configuration.isRemoteKeyFilter()) {
+      this.keyFilterFile = Paths.get(configuration.getCacheDirectory(), KEY_FILTER_FILE);
+      this.keyFilterEntries = configuration.getRemoteKeyFilterEntries();
+      loadKeyFilter();
+    } else {
+      this.keyFilterFile = null;
+    }
+  }
+
+  public boolean isEnabled() {
+    return baseUrl != null;
+  }
+
+  public boolean isUploadEnabled() {
+    return isEnabled() && upload;
+  }
+
+  public boolean exists(String path) {
+    if (!isEnabled() || !mightContain(path) || !circuitBreaker.allowRequest()) {
+      return false;
+    }
+    try {
+      HttpURLConnection connection = openLookup(bazel ? actionCachePath(path) : path, "HEAD");
+      try {
+        return checkResponse(connection, path);
+      } finally {
+        connection.disconnect();
+      }
+    } catch (IOException e) {
+      logger.warn(String.format("buildcache: remote cache lookup of %s failed: %s", path, e));
+      return false;
+    }
+  }
+
+  public boolean download(String path, Path target) {
+    if (!isEnabled() || !mightContain(path) || !circuitBreaker.allowRequest()) {
+      return false;
+    }
+    try {
+      long start = System.currentTimeMillis();
+      boolean downloaded = chunkedTransfer != null ? chunkedTransfer.download(path, target)
+          : downloadEntry(path, target);
+      if (downloaded) {
+        circuitBreaker.recordDownload(System.currentTimeMillis() - start);
+      }
+      return downloaded;
+    } catch (IOException e) {
+      logger.warn(String.format("buildcache: remote cache download of %s failed: %s", path, e));
+      return false;
+    }
+  }
+
+  boolean downloadEntry(String path, Path target) throws IOException {
+    if (s3) {
+      return downloadRanges(path, target);
+    }
+    if (!bazel) {
+      return download(path, path, target, null);
+    }
+    Optional<BazelActionResult.Digest> digest = getActionResult(path);
+    return digest.isPresent() && download(path, CONTENT_STORE_PREFIX + digest.get().getHash(),
+        target, digest.get().getHash());
+  }
+
+  private boolean download(String path, String urlPath, Path target, String sha256)
+      throws IOException {
+    HttpURLConnection connection = open(urlPath, "GET");
+    try {
+      if (!checkResponse(connection, path)) {
+        return false;
+      }
+      try (InputStream in = connection.getInputStream()) {
+        fileUtil.writeAtomically(target, tmp -> {
+          if (sha256 == null) {
+            Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            return;
+          }
+          DigestInputStream digestIn = new DigestInputStream(in, DigestUtils.getSha256Digest());
+          Files.copy(digestIn, tmp, StandardCopyOption.REPLACE_EXISTING);
+          String actual = Hex.encodeHexString(digestIn.getMessageDigest().digest());
+          if (!sha256.equals(actual)) {
+            throw new IOException(String.format("content digest %s doesn't match %s", actual,
+                sha256));
+          }
+        });
+      } catch (SocketException | SocketTimeoutException e) {
+        recordFailure();
+        throw e;
+      }
+      return true;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Downloads an S3 object in ranges of the part size. A range that breaks off is requested again
+   * from the last byte received, and the ETag of the object makes sure that every range comes
+   * from the same object.
+   */
+  private boolean downloadRanges(String path, Path target) throws IOException {
+    HttpURLConnection connection = openRange(path, 0, null);
+    try {
+      int status = getResponseCode(connection, true);
+      if (status == HTTP_RANGE_NOT_SATISFIABLE) {
+        // an empty object has no ranges
+        fileUtil.writeAtomically(target, tmp -> Files.write(tmp, new byte[0]));
+        return true;
+      }
+      if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+        logLookupFailure(path, status);
+        return false;
+      }
+      // a server without range support sends the whole object
+      long size = status == HttpURLConnection.HTTP_PARTIAL ? getObjectSize(connection) : -1;
+      String etag = connection.getHeaderField("ETag");
+      fileUtil.writeAtomically(target, tmp -> {
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          OutputStream out = Channels.newOutputStream(channel);
+          HttpURLConnection range = connection;
+          int retries = 0;
+          while (true) {
+            try (InputStream in = range.getInputStream()) {
+              IOUtils.copy(in, out);
+            } catch (IOException e) {
+              if (e instanceof SocketException || e instanceof SocketTimeoutException) {
+                recordFailure();
+              }
+              if (size < 0 || retries++ >= MAX_RANGE_RETRIES) {
+                throw e;
+              }
+              logger.debug(String.format(
+                  "buildcache: resuming remote cache download of %s at byte %d: %s", path,
+                  channel.size(), e));
+            } finally {
+              range.disconnect();
+            }
+            if (size < 0 || channel.size() >= size) {
+              break;
+            }
+            range = openRange(path, channel.size(), etag);
+            int rangeStatus = getResponseCode(range, false);
+            if (rangeStatus != HttpURLConnection.HTTP_PARTIAL) {
+              range.disconnect();
+              throw new IOException(String.format("range of %s not available: HTTP %d", path,
+                  rangeStatus));
+            }
+          }
+        }
+      });
+      return true;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private HttpURLConnection openRange(String path, long start, String etag) throws IOException {
+    Map<String, String> headers = new TreeMap<>();
+    headers.put("Range", String.format("bytes=%d-%d", start, start + s3PartSize - 1));
+    if (etag != null) {
+      headers.put("If-Match", etag);
+    }
+    return open(path, "GET", headers, null);
+  }
+
+  private static long getObjectSize(HttpURLConnection connection) throws IOException {
+    // Content-Range: bytes [first]-[last]/[size]
+    String contentRange = connection.getHeaderField("Content-Range");
+    if (contentRange != null) {
+      try {
+        return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+      } catch (NumberFormatException e) {
+        // handled below
+      }
+    }
+    throw new IOException("invalid Content-Range: " + contentRange);
+  }
+
+  private Optional<BazelActionResult.Digest> getActionResult(String path) throws IOException {
+    HttpURLConnection connection = openLookup(actionCachePath(path), "GET");
+    try {
+      if (!checkResponse(connection, path)) {
+        return Optional.empty();
+      }
+      byte[] actionResult;
+      try (InputStream in = connection.getInputStream()) {
+        actionResult = IOUtils.toByteArray(in);
+      }
+      Optional<BazelActionResult.Digest> digest = BazelActionResult.decode(actionResult);
+      if (!digest.isPresent()) {
+        logger.warn(String.format("buildcache: remote cache entry %s has no output file", path));
+      }
+      return digest;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Limits the timeouts of the requests opened from now on so that they end by the given time,
+   * or removes the limit if the deadline is 0.
+   */
+  public void setRequestDeadline(long deadlineMillis) {
+    this.requestDeadline = deadlineMillis;
+  }
+
+  public boolean upload(String path, Path file) {
+    if (!isUploadEnabled() || !circuitBreaker.allowRequest()) {
+      return false;
+    }
+    try {
+      boolean uploaded;
+      if (chunkedTransfer != null) {
+        uploaded = chunkedTransfer.upload(path, file);
+      } else if (s3 && Files.size(file) > s3PartSize) {
+        uploaded = uploadMultipart(path, file);
+      } else {
+        uploaded = uploadEntry(path, Files.readAllBytes(file));
+      }
+      return uploaded && addKey(path);
+    } catch (IOException e) {
+      logger.warn(String.format("buildcache: remote cache upload of %s failed: %s", path, e));
+      return false;
+    }
+  }
+
+  public boolean upload(String path, byte[] content) {
+    return isUploadEnabled() && circuitBreaker.allowRequest() && uploadEntry(path, content)
+        && addKey(path);
+  }
+
+  boolean uploadEntry(String path, byte[] content) {
+    if (s3 && content.length > s3PartSize) {
+      return uploadMultipart(path, content.length,
+          (offset, part) -> System.arraycopy(content, (int) offset, part, 0, part.length));
+    }
+    if (!bazel) {
+      return put(path, path, content);
+    }
+    // the blob is uploaded first, so the action cache never refers to a missing blob
+    String sha256 = DigestUtils.sha256Hex(content);
+    String fileName = path.substring(path.lastIndexOf('/') + 1);
+    byte[] actionResult = BazelActionResult.encode(fileName,
+        new BazelActionResult.Digest(sha256, content.length));
+    return put(path, CONTENT_STORE_PREFIX + sha256, content)
+        && put(path, actionCachePath(path), actionResult);
+  }
+
+  private boolean put(String path, String urlPath, byte[] content) {
+    try {
+      HttpURLConnection connection = send(path, urlPath, "PUT", content);
+      if (connection == null) {
+        return false;
+      }
+      connection.disconnect();
+      return true;
+    } catch (IOException e) {
+      logger.warn(String.format("buildcache: remote cache upload of %s failed: %s", path, e));
+      return false;
+    }
+  }
+
+  /**
+   * Sends a request with a body, and returns the connection for reading the response or null if
+   * the request failed.
+   */
+  private HttpURLConnection send(String path, String urlPath, String method, byte[] content)
+      throws IOException {
+    HttpURLConnection connection = open(urlPath, method, Collections.emptyMap(), content);
+    try {
+      int status = write(connection, content);
+      if (status / 100 != 2) {
+        logger.warn(String.format("buildcache: remote cache upload of %s failed: HTTP %d", path,
+            status));
+        connection.disconnect();
+        return null;
+      }
+      return connection;
+    } catch (IOException e) {
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  private int write(HttpURLConnection connection, byte[] content) throws IOException {
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(content.length);
+    connection.setRequestProperty("Content-Type", "application/octet-stream");
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(content);
+    } catch (SocketException | SocketTimeoutException e) {
+      recordFailure();
+      throw e;
+    }
+    return getResponseCode(connection, false);
+  }
+
+  /**
+   * Uploads the file in parts read from the file one at a time, so that only one part is held
+   * in memory.
+   */
+  private boolean uploadMultipart(String path, Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return uploadMultipart(path, channel.size(), (offset, part) -> {
+        ByteBuffer buffer = ByteBuffer.wrap(part);
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, offset + buffer.position()) < 0) {
+            throw new EOFException(String.format("%s ended at %d bytes", file,
+                offset + buffer.position()));
+          }
+        }
+      });
+    }
+  }
+
+  private boolean uploadMultipart(String path, long size, PartReader partReader) {
+    String uploadQuery;
+    try {
+      HttpURLConnection connection = send(path, path + "?uploads", "POST", new byte[0]);
+      if (connection == null) {
+        return false;
+      }
+      uploadQuery = "uploadId=" + S3Signer.uriEncode(readXmlElement(connection, "UploadId")
+          .orElseThrow(() -> new IOException("no upload id in response")));
+    } catch (IOException e) {
+      logger.warn(String.format("buildcache: remote cache upload of %s failed: %s", path, e));
+      return false;
+    }
+
+    boolean completed = false;
+    try {
+      StringBuilder parts = new StringBuilder("<CompleteMultipartUpload>");
+      int partNumber = 1;
+      for (long offset = 0; offset < size; offset += s3PartSize, partNumber++) {
+        byte[] part = new byte[(int) Math.min(s3PartSize, size - offset)];
+        partReader.read(offset, part);
+        HttpURLConnection connection = send(path,
+            String.format("%s?partNumber=%d&%s", path, partNumber, uploadQuery), "PUT", part);
+        if (connection == null) {
+          return false;
+        }
+        String etag = connection.getHeaderField("ETag");
+        connection.disconnect();
+        if (etag == null) {
+          throw new IOException("no ETag for part " + partNumber);
+        }
+        parts.append(String.format("<Part><PartNumber>%d</PartNumber><ETag>%s</ETag></Part>",
+            partNumber, etag));
+      }
+      parts.append("</CompleteMultipartUpload>");
+
+      HttpURLConnection connection = send(path, path + "?" + uploadQuery, "POST",
+          parts.toString().getBytes(StandardCharsets.UTF_8));
+      if (connection == null) {
+        return false;
+      }
+      // the status is sent before the parts have been combined, so an error is in the body
+      Optional<String> error = readXmlElement(connection, "Code");
+      if (error.isPresent()) {
+        throw new IOException("completing the upload failed: " + error.get());
+      }
+      completed = true;
+      return true;
+    } catch (IOException e) {
+      logger.warn(String.format("buildcache: remote cache upload of %s failed: %s", path, e));
+      return false;
+    } finally {
+      if (!completed) {
+        abortMultipartUpload(path, uploadQuery);
+      }
+    }
+  }
+
+  private void abortMultipartUpload(String path, String uploadQuery) {
+    try {
+      HttpURLConnection connection = open(path + "?" + uploadQuery, "DELETE");
+      try {
+        getResponseCode(connection, false);
+      } finally {
+        connection.disconnect();
+      }
+    } catch (IOException e) {
+      logger.debug(String.format("buildcache: aborting upload of %s failed: %s", path, e));
+    }
+  }
+
+  private static Optional<String> readXmlElement(HttpURLConnection connection, String name)
+      throws IOException {
+    String body;
+    try (InputStream in = connection.getInputStream()) {
+      body = IOUtils.toString(in, StandardCharsets.UTF_8);
+    } finally {
+      connection.disconnect();
+    }
+    return findXmlElements(body, name).stream().findFirst();
+  }
+
+  private static List<String> findXmlElements(String body, String name) {
+    List<String> values = new ArrayList<>();
+    Matcher m = Pattern.compile("<" + name + ">([^<]*)</" + name + ">").matcher(body);
+    while (m.find()) {
+      values.add(m.group(1));
+    }
+    return values;
+  }
+
+  /**
+   * Adds the keys uploaded in this session to the key filter in the remote cache. The keys are
+   * merged into the latest filter, which is replaced only if no other build has changed it since
+   * it was downloaded, so that keys published by other builds are kept.
+   */
+  public void publishKeyFilter() {
+    if (keyFilterFile == null || uploadedKeys.isEmpty() || !isUploadEnabled()
+        || !circuitBreaker.allowRequest()) {
+      return;
+    }
+    for (int attempt = 1; attempt <= MAX_KEY_FILTER_ATTEMPTS; attempt++) {
+      try {
+        if (bazel ? mergeBazelKeyFilter() : mergeKeyFilter()) {
+          uploadedKeys.clear();
+          return;
+        }
+      } catch (IOException e) {
+        logger.warn(String.format("buildcache: remote cache key filter not published: %s", e));
+        return;
+      }
+    }
+    logger.warn("buildcache: remote cache key filter not published, it was changed by other "
+        + "builds");
+  }
+
+  /**
+   * Returns false if the filter was changed by another build after it was downloaded.
+   */
+  private boolean mergeKeyFilter() throws IOException {
+    Map<String, String> headers = new TreeMap<>();
+    BloomFilter filter = null;
+    HttpURLConnection connection = open(KEY_FILTER_FILE, "GET");
+    try {
+      int status = getResponseCode(connection, false);
+      if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+        headers.put("If-None-Match", "*");
+      } else if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException(String.format("HTTP %d", status));
+      } else {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null) {
+          headers.put("If-Match", etag);
+        }
+        try (InputStream in = connection.getInputStream()) {
+          filter = BloomFilter.read(ByteBuffer.wrap(IOUtils.toByteArray(in)));
+        } catch (IllegalArgumentException e) {
+          logger.warn(String.format("buildcache: replacing remote cache key filter: %s", e));
+        }
+      }
+    } finally {
+      connection.disconnect();
+    }
+
+    Optional<BloomFilter> merged = mergeKeys(filter);
+    if (!merged.isPresent()) {
+      return true;
+    }
+    byte[] content = merged.get().toByteArray();
+    connection = open(KEY_FILTER_FILE, "PUT", headers, content);
+    try {
+      int status = write(connection, content);
+      if (status == HTTP_PRECONDITION_FAILED) {
+        return false;
+      }
+      if (status / 100 != 2) {
+        throw new IOException(String.format("HTTP %d", status));
+      }
+      logKeysAdded();
+      return true;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * The action cache of a Bazel remote cache has no conditional updates, so the filter is
+   * replaced unconditionally.
+   */
+  private boolean mergeBazelKeyFilter() throws IOException {
+    BloomFilter filter = null;
+    Path tmp = fileUtil.createTempFile(keyFilterFile);
+    try {
+      if (downloadEntry(KEY_FILTER_FILE, tmp)) {
+        filter = BloomFilter.read(ByteBuffer.wrap(Files.readAllBytes(tmp)));
+      }
+    } catch (IllegalArgumentException e) {
+      logger.warn(String.format("buildcache: replacing remote cache key filter: %s", e));
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    Optional<BloomFilter> merged = mergeKeys(filter);
+    if (!merged.isPresent()) {
+      return true;
+    }
+    if (!uploadEntry(KEY_FILTER_FILE, merged.get().toByteArray())) {
+      throw new IOException("upload failed");
+    }
+    logKeysAdded();
+    return true;
+  }
+
+  /**
+   * Returns the filter with the uploaded keys added, or empty if the filter is full and can't be
+   * rebuilt, because the protocol has no listing of the remote cache entries. On S3 a new filter
+   * is built from the listing of the bucket, so it holds the entries uploaded without the filter.
+   */
+  private Optional<BloomFilter> mergeKeys(BloomFilter filter) throws IOException {
+    if (s3 && (filter == null || isFull(filter))) {
+      List<String> keys = listS3Keys();
+      long entries = Math.min(MAX_KEY_FILTER_ENTRIES,
+          Math.max(keyFilterEntries, 2L * (keys.size() + uploadedKeys.size())));
+      logger.info(String.format("buildcache: building remote cache key filter for %d keys from "
+          + "%d remote cache entries", entries, keys.size()));
+      filter = BloomFilter.create((int) entries);
+      keys.forEach(filter::put);
+    } else if (filter != null && isFull(filter)) {
+      // an empty filter would make the entries missing from it misses, so the full filter, which
+      // lets almost every lookup through, is kept
+      logger.info("buildcache: remote cache key filter is full, delete " + KEY_FILTER_FILE
+          + " from the remote cache to start over with an empty filter");
+      return Optional.empty();
+    } else if (filter == null) {
+      filter = BloomFilter.create(keyFilterEntries);
+    }
+    uploadedKeys.forEach(filter::put);
+    return Optional.of(filter);
+  }
+
+  private static boolean isFull(BloomFilter filter) {
+    return filter.estimateEntries() > filter.getCapacity();
+  }
+
+  private void logKeysAdded() {
+    logger.debug(String.format("buildcache: added %d keys to remote cache key filter",
+        uploadedKeys.size()));
+  }
+
+  /**
+   * Lists the keys of the S3 objects under the remote-url, relative to it.
+   */
+  private List<String> listS3Keys() throws IOException {
+    URL url = new URL(baseUrl);
+    // path-style URLs have the bucket as the first path segment
+    boolean virtualHosted = url.getHost().matches(".+\\.s3[.-].*");
+    int bucketEnd = virtualHosted ? 1 : url.getPath().indexOf('/', 1) + 1;
+    String bucketUrl = new URL(url, url.getPath().substring(0, bucketEnd)).toString();
+    String prefix = url.getPath().substring(bucketEnd);
+
+    List<String> keys = new ArrayList<>();
+    String continuationToken = null;
+    do {
+      String query = "?list-type=2&prefix=" + S3Signer.uriEncode(prefix);
+      if (continuationToken != null) {
+        query += "&continuation-token=" + S3Signer.uriEncode(continuationToken);
+      }
+      HttpURLConnection connection = open(new URL(bucketUrl + query), "GET",
+          Collections.emptyMap(), null, circuitBreaker.getMaxTimeoutMillis());
+      String body;
+      try {
+        int status = getResponseCode(connection, false);
+        if (status != HttpURLConnection.HTTP_OK) {
+          throw new IOException(String.format("listing failed with HTTP %d", status));
+        }
+        try (InputStream in = connection.getInputStream()) {
+          body = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+      } finally {
+        connection.disconnect();
+      }
+      for (String key : findXmlElements(body, "Key")) {
+        if (key.startsWith(prefix) && !key.equals(prefix + KEY_FILTER_FILE)) {
+          keys.add(key.substring(prefix.length()));
+        }
+      }
+      continuationToken = findXmlElements(body, "IsTruncated").contains("true")
+          ? findXmlElements(body, "NextContinuationToken").stream().findFirst().orElse(null)
+          : null;
+    } while (continuationToken != null);
+    return keys;
+  }
+
+  private void loadKeyFilter() {
+    try {
+      if (!downloadEntry(KEY_FILTER_FILE, keyFilterFile)) {
+        return;
+      }
+      BloomFilter filter;
+      try (FileChannel channel = FileChannel.open(keyFilterFile, StandardOpenOption.READ)) {
+        filter = BloomFilter.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+      if (isFull(filter)) {
+        logger.debug("buildcache: remote cache key filter is full, not using it");
+        return;
+      }
+      keyFilter = filter;
+    } catch (IOException | IllegalArgumentException e) {
+      logger.warn(String.format("buildcache: remote cache key filter not available: %s", e));
+    }
+  }
+
+  /**
+   * Returns false if the remote cache is expected to take longer to look up or download an entry
+   * than building it, based on the recent remote cache latencies and download times.
+   */
+  public boolean isFasterThanBuild(LongSupplier buildMillis, boolean download) {
+    long expectedMillis = download ? circuitBreaker.getExpectedDownloadMillis()
+        : circuitBreaker.getExpectedLookupMillis();
+    if (expectedMillis < 0) {
+      return true;
+    }
+    long millis = buildMillis.getAsLong();
+    return millis <= 0 || expectedMillis <= millis;
+  }
+
+  public void recordSkippedAsSlower() {
+    circuitBreaker.recordSkippedAsSlower();
+  }
+
+  public void logSummary() {
+    if (isEnabled() && circuitBreaker.hasActivity()) {
+      logger.info(String.format("buildcache: remote cache: %s", circuitBreaker.getSummary()));
+    }
+  }
+
+  private boolean mightContain(String path) {
+    BloomFilter filter = keyFilter;
+    return filter == null || filter.mightContain(path);
+  }
+
+  private boolean addKey(String path) {
+    if (keyFilterFile != null) {
+      uploadedKeys.add(path);
+    }
+    return true;
+  }
+
+  boolean hasChunk(String hash) {
+    String path = getChunkPath(hash);
+    try {
+      HttpURLConnection connection = openLookup(path, "HEAD");
+      try {
+        return checkResponse(connection, path);
+      } finally {
+        connection.disconnect();
+      }
+    } catch (IOException e) {
+      logger.warn(String.format("buildcache: remote cache lookup of %s failed: %s", path, e));
+      return false;
+    }
+  }
+
+  boolean uploadChunk(String hash, byte[] content) {
+    String path = getChunkPath(hash);
+    return put(path, path, content);
+  }
+
+  Optional<byte[]> downloadChunk(String hash) throws IOException {
+    String path = getChunkPath(hash);
+    HttpURLConnection connection = openLookup(path, "GET");
+    try {
+      if (!checkResponse(connection, path)) {
+        return Optional.empty();
+      }
+      byte[] content;
+      try (InputStream in = connection.getInputStream()) {
+        content = IOUtils.toByteArray(in);
+      }
+      if (!hash.equals(DigestUtils.sha256Hex(content))) {
+        throw new IOException(String.format("content of chunk %s doesn't match its hash", hash));
+      }
+      return Optional.of(content);
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private String getChunkPath(String hash) {
+    // a Bazel content store accepts any blob, so chunks are stored there
+    return (bazel ? CONTENT_STORE_PREFIX : CHUNK_PREFIX) + hash;
+  }
+
+  static String actionCachePath(String path) {
+    return ACTION_CACHE_PREFIX + DigestUtils.sha256Hex(path);
+  }
+
+  /**
+   * Opens a lookup or a small GET, which times out adaptively from the recent lookup latencies.
+   * Uploads and payload transfers keep the configured timeout.
+   */
+  private HttpURLConnection openLookup(String path, String method) throws IOException {
+    return open(path, method, Collections.emptyMap(), null, circuitBreaker.getTimeoutMillis());
+  }
+
+  private HttpURLConnection open(String path, String method) throws IOException {
+    return open(path, method, Collections.emptyMap(), null);
+  }
+
+  private HttpURLConnection open(String path, String method, Map<String, String> headers,
+      byte[] content) throws IOException {
+    return open(path, method, headers, content, circuitBreaker.getMaxTimeoutMillis());
+  }
+
+  private HttpURLConnection open(String path, String method, Map<String, String> headers,
+      byte[] content, int timeout) throws IOException {
+    return open(new URL(baseUrl + path), method, headers, content, timeout);
+  }
+
+  private HttpURLConnection open(URL url, String method, Map<String, String> headers,
+      byte[] content, int timeout) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod(method);
+    long deadline = requestDeadline;
+    if (deadline > 0) {
+      // a zero timeout would never time out
+      long remaining = Math.max(1, deadline - System.currentTimeMillis());
+      timeout = (int) (timeout > 0 ? Math.min(timeout, remaining) : remaining);
+    }
+    connection.setConnectTimeout(timeout);
+    connection.setReadTimeout(timeout);
+    connection.setUseCaches(false);
+    headers.forEach(connection::setRequestProperty);
+    if (s3Signer != null) {
+      String payloadSha256 =
+          content != null ? DigestUtils.sha256Hex(content) : S3Signer.EMPTY_PAYLOAD_SHA256;
+      s3Signer.sign(method, url, headers, payloadSha256, Instant.now())
+          .forEach(connection::setRequestProperty);
+    }
+    return connection;
+  }
+
+  private int getResponseCode(HttpURLConnection connection, boolean measureLatency)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    int status;
+    try {
+      status = connection.getResponseCode();
+    } catch (IOException e) {
+      recordFailure();
+      throw e;
+    }
+    if (status / 100 == 5) {
+      recordFailure();
+    } else {
+      circuitBreaker.recordSuccess(measureLatency ? System.currentTimeMillis() - start : -1);
+    }
+    return status;
+  }
+
+  private void recordFailure() {
+    long cooldownMillis = circuitBreaker.recordFailure();
+    if (cooldownMillis > 0) {
+      logger.warn(String.format(
+          "buildcache: remote cache is not responding, skipping it for %d seconds",
+          cooldownMillis / 1000));
+    }
+  }
+
+  private boolean checkResponse(HttpURLConnection connection, String path) throws IOException {
+    int status = getResponseCode(connection, true);
+    if (status == HttpURLConnection.HTTP_OK) {
+      return true;
+    }
+    logLookupFailure(path, status);
+    return false;
+  }
+
+  private void logLookupFailure(String path, int status) {
+    if (status != HttpURLConnection.HTTP_NOT_FOUND) {
+      logger.warn(String.format("buildcache: remote cache lookup of %s failed: HTTP %d", path,
+          status));
+    }
+  }
+
+  void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
+  void setFileUtil(FileUtil fileUtil) {
+    this.fileUtil = fileUtil;
+  }
+
+  void setS3PartSize(int s3PartSize) {
+    this.s3PartSize = s3PartSize;
+  }
+
+  @FunctionalInterface
+  private interface PartReader {
+    void read(long offset, byte[] part) throws IOException;
+  }
+}
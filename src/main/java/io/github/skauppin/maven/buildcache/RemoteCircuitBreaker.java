@@ -0,0 +1,199 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Skips remote cache requests after repeated failures and adapts timeouts to observed latency.
+ */
+class RemoteCircuitBreaker {
+
+  static final int FAILURE_THRESHOLD = 3;
+  static final long INITIAL_COOLDOWN_MILLIS = 30000;
+  static final long MAX_COOLDOWN_MILLIS = 5 * 60 * 1000;
+  static final int MIN_TIMEOUT_MILLIS = 500;
+
+  private static final int WINDOW_SIZE = 64;
+  private static final int MIN_TIMEOUT_SAMPLES = 10;
+  private static final int MIN_ESTIMATE_SAMPLES = 5;
+  private static final int TIMEOUT_LATENCY_MULTIPLIER = 4;
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int maxTimeoutMillis;
+  private final LongSupplier clock;
+
+  private final Samples latencies = new Samples();
+  private final Samples downloads = new Samples();
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long cooldownMillis = INITIAL_COOLDOWN_MILLIS;
+  private long openUntilMillis;
+  private long trialStartedMillis;
+
+  private int requests;
+  private int failures;
+  private int openCount;
+  private int skippedWhileOpen;
+  private int skippedAsSlower;
+
+  RemoteCircuitBreaker(int maxTimeoutMillis) {
+    this(maxTimeoutMillis, System::currentTimeMillis);
+  }
+
+  RemoteCircuitBreaker(int maxTimeoutMillis, LongSupplier clock) {
+    this.maxTimeoutMillis = maxTimeoutMillis;
+    this.clock = clock;
+  }
+
+  synchronized boolean allowRequest() {
+    long now = clock.getAsLong();
+    switch (state) {
+      case OPEN:
+        if (now < openUntilMillis) {
+          skippedWhileOpen++;
+          return false;
+        }
+        state = State.HALF_OPEN;
+        trialStartedMillis = now;
+        return true;
+      case HALF_OPEN:
+        // a trial that never completed doesn't keep the circuit half-open forever
+        if (now - trialStartedMillis < 2L * maxTimeoutMillis) {
+          skippedWhileOpen++;
+          return false;
+        }
+        trialStartedMillis = now;
+        return true;
+      default:
+        return true;
+    }
+  }
+
+  synchronized void recordSuccess(long latencyMillis) {
+    requests++;
+    if (latencyMillis >= 0) {
+      latencies.add(latencyMillis);
+    }
+    consecutiveFailures = 0;
+    if (state != State.CLOSED) {
+      state = State.CLOSED;
+      cooldownMillis = INITIAL_COOLDOWN_MILLIS;
+    }
+  }
+
+  /**
+   * Returns the cooldown if the failure opened the circuit, or 0 if it didn't.
+   */
+  synchronized long recordFailure() {
+    requests++;
+    failures++;
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN) {
+      cooldownMillis = Math.min(MAX_COOLDOWN_MILLIS, cooldownMillis * 2);
+      return open();
+    } else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+      return open();
+    }
+    return 0;
+  }
+
+  private long open() {
+    state = State.OPEN;
+    openUntilMillis = clock.getAsLong() + cooldownMillis;
+    openCount++;
+    return cooldownMillis;
+  }
+
+  synchronized void recordDownload(long durationMillis) {
+    downloads.add(durationMillis);
+  }
+
+  synchronized void recordSkippedAsSlower() {
+    skippedAsSlower++;
+  }
+
+  int getMaxTimeoutMillis() {
+    return maxTimeoutMillis;
+  }
+
+  synchronized int getTimeoutMillis() {
+    if (latencies.size() < MIN_TIMEOUT_SAMPLES) {
+      return maxTimeoutMillis;
+    }
+    long timeout = TIMEOUT_LATENCY_MULTIPLIER * latencies.percentile(0.99);
+    return (int) Math.max(Math.min(MIN_TIMEOUT_MILLIS, maxTimeoutMillis),
+        Math.min(maxTimeoutMillis, timeout));
+  }
+
+  /**
+   * Returns the 90th percentile of the recent lookup latencies, or -1 if there are too few
+   * samples.
+   */
+  synchronized long getExpectedLookupMillis() {
+    return latencies.size() < MIN_ESTIMATE_SAMPLES ? -1 : latencies.percentile(0.9);
+  }
+
+  /**
+   * Returns the 90th percentile of the recent download durations, or -1 if there are too few
+   * samples.
+   */
+  synchronized long getExpectedDownloadMillis() {
+    return downloads.size() < MIN_ESTIMATE_SAMPLES ? -1 : downloads.percentile(0.9);
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  synchronized String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    summary.append(String.format("%d requests, %d failed", requests, failures));
+    if (latencies.size() > 0) {
+      summary.append(String.format(", latency p50 %d ms p95 %d ms, timeout %d ms",
+          latencies.percentile(0.5), latencies.percentile(0.95), getTimeoutMillis()));
+    }
+    summary.append(", circuit ").append(state.name().toLowerCase().replace('_', '-'));
+    if (openCount > 0) {
+      summary.append(String.format(" (opened %d times)", openCount));
+    }
+    if (skippedWhileOpen > 0) {
+      summary.append(String.format(", %d requests skipped while open", skippedWhileOpen));
+    }
+    if (skippedAsSlower > 0) {
+      summary.append(String.format(", %d lookups skipped as slower than building",
+          skippedAsSlower));
+    }
+    return summary.toString();
+  }
+
+  synchronized boolean hasActivity() {
+    return requests > 0 || skippedWhileOpen > 0 || skippedAsSlower > 0;
+  }
+
+  private static class Samples {
+    private final long[] values = new long[WINDOW_SIZE];
+    private int count;
+    private int next;
+
+    private void add(long value) {
+      values[next] = value;
+      next = (next + 1) % values.length;
+      count = Math.min(count + 1, values.length);
+    }
+
+    private int size() {
+      return count;
+    }
+
+    private long percentile(double p) {
+      long[] sorted = Arrays.copyOf(values, count);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(p * count) - 1;
+      return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+  }
+}
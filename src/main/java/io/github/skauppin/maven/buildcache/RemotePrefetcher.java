@@ -0,0 +1,163 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+
+@Component(role = RemotePrefetcher.class)
+public class RemotePrefetcher {
+
+  @Requirement
+  private Logger logger;
+
+  @Requirement
+  private RemoteCache remoteCache;
+
+  @Requirement
+  private CacheIndex cacheIndex;
+
+  @Requirement
+  private CacheLock cacheLock;
+
+  @Requirement
+  private FileUtil fileUtil;
+
+  private ExecutorService executor;
+
+  private final Map<String, Future<Boolean>> downloads = new ConcurrentHashMap<>();
+  private final Map<String, Future<Boolean>> lookups = new ConcurrentHashMap<>();
+
+  public void initialize(Configuration configuration) {
+    shutdown();
+    int threads = configuration.getRemotePrefetchThreads();
+    if (remoteCache.isEnabled() && threads > 0) {
+      executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<>(), new BackgroundThreadFactory("buildcache-prefetch-",
+              Thread.NORM_PRIORITY));
+    }
+  }
+
+  public boolean isEnabled() {
+    return executor != null;
+  }
+
+  public void prefetch(String path, Path target, String kind) {
+    submit(downloads, path, () -> download(path, target, kind));
+  }
+
+  public void prefetchExists(String path) {
+    submit(lookups, path, () -> remoteCache.exists(path));
+  }
+
+  public Optional<Boolean> awaitDownload(String path) {
+    return await(downloads, path);
+  }
+
+  public Optional<Boolean> awaitExists(String path) {
+    return await(lookups, path);
+  }
+
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    downloads.clear();
+    lookups.clear();
+  }
+
+  /**
+   * Downloads next to the target file and moves the download in place under the exclusive lock,
+   * indexing it even if the session never waits for it.
+   */
+  private boolean download(String path, Path target, String kind) throws IOException {
+    Path tmp = fileUtil.createTempFile(target);
+    try {
+      if (!remoteCache.download(path, tmp)) {
+        return false;
+      }
+      Optional<CacheLock.Lock> lock = cacheLock.acquireExclusive(target.getParent());
+      if (!lock.isPresent()) {
+        return false;
+      }
+      try {
+        fileUtil.moveAtomically(tmp, target);
+        cacheIndex.put(target.getParent(), new CacheIndex.Entry(target.getFileName().toString(),
+            kind, Files.size(target), System.currentTimeMillis(), 0));
+      } finally {
+        lock.get().close();
+      }
+      return true;
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private void submit(Map<String, Future<Boolean>> requests, String path,
+      Callable<Boolean> request) {
+    ExecutorService current = executor;
+    if (current == null) {
+      return;
+    }
+    requests.computeIfAbsent(path, p -> {
+      try {
+        return current.submit(request);
+      } catch (RejectedExecutionException e) {
+        return null;
+      }
+    });
+  }
+
+  private Optional<Boolean> await(Map<String, Future<Boolean>> requests, String path) {
+    Future<Boolean> request = requests.remove(path);
+    if (request == null) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(request.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    } catch (ExecutionException e) {
+      logger.debug(String.format("buildcache: prefetch of %s failed: %s", path, e.getCause()));
+      return Optional.empty();
+    } catch (CancellationException e) {
+      return Optional.empty();
+    }
+  }
+
+  void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
+  void setRemoteCache(RemoteCache remoteCache) {
+    this.remoteCache = remoteCache;
+  }
+
+  void setCacheIndex(CacheIndex cacheIndex) {
+    this.cacheIndex = cacheIndex;
+  }
+
+  void setCacheLock(CacheLock cacheLock) {
+    this.cacheLock = cacheLock;
+  }
+
+  void setFileUtil(FileUtil fileUtil) {
+    this.fileUtil = fileUtil;
+  }
+}
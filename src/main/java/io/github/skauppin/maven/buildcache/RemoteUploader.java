@@ -0,0 +1,196 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+
+@Component(role = RemoteUploader.class)
+public class RemoteUploader {
+
+  private static final int MAX_ATTEMPTS = 3;
+  private static final Consumer<Boolean> IGNORE_COMPLETION = uploaded -> {
+  };
+
+  @Requirement
+  private Logger logger;
+
+  @Requirement
+  private RemoteCache remoteCache;
+
+  @Requirement
+  private CacheDaemonClient daemonClient;
+
+  private ThreadPoolExecutor executor;
+  private long drainTimeoutMillis;
+  private long retryBackoffMillis = 500;
+
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicInteger failed = new AtomicInteger();
+
+  public void initialize(Configuration configuration) {
+    if (remoteCache.isUploadEnabled()) {
+      remoteCache.setRequestDeadline(0);
+      int threads = configuration.getRemoteUploadThreads();
+      executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new PriorityBlockingQueue<>(),
+          new BackgroundThreadFactory("buildcache-upload-", Thread.NORM_PRIORITY - 1));
+      drainTimeoutMillis = configuration.getRemoteUploadDrainTimeoutMillis();
+    } else {
+      executor = null;
+    }
+  }
+
+  public boolean isEnabled() {
+    return executor != null;
+  }
+
+  public void submit(String path, Path file, long size, long durationMillis) {
+    submit(path, file, size, durationMillis, IGNORE_COMPLETION);
+  }
+
+  public void submit(String path, byte[] content, long durationMillis) {
+    submit(path, content, durationMillis, IGNORE_COMPLETION);
+  }
+
+  /**
+   * Submits an upload of the file, and calls the completion with the result of the upload.
+   */
+  public void submit(String path, Path file, long size, long durationMillis,
+      Consumer<Boolean> completion) {
+    submit(new Upload(path, file, null, size, durationMillis, completion));
+  }
+
+  public void submit(String path, byte[] content, long durationMillis,
+      Consumer<Boolean> completion) {
+    submit(new Upload(path, null, content, content.length, durationMillis, completion));
+  }
+
+  private void submit(Upload upload) {
+    if (executor == null) {
+      upload.completion.accept(false);
+      return;
+    }
+    if (daemonClient.isRemoteUploadEnabled()
+        && (upload.file != null || upload.content.length == 0)) {
+      try {
+        daemonClient.submitUpload(upload.path, upload.file, upload.size, upload.durationMillis);
+        return;
+      } catch (IOException e) {
+        // continue without the daemon
+      }
+    }
+    executor.execute(upload);
+  }
+
+  public void awaitCompletion() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    // uploads in progress can't be interrupted, so their requests time out with the drain
+    remoteCache.setRequestDeadline(System.currentTimeMillis() + drainTimeoutMillis);
+    try {
+      int pending = executor.getQueue().size() + executor.getActiveCount();
+      if (pending > 0) {
+        logger.info(String.format("buildcache: waiting for %d remote cache uploads", pending));
+      }
+      if (!executor.awaitTermination(drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        int active = executor.getActiveCount();
+        int abandoned = executor.shutdownNow().size() + active;
+        logger.warn(String.format(
+            "buildcache: remote cache uploads didn't complete in %d ms, %d uploads abandoned",
+            drainTimeoutMillis, abandoned));
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    executor = null;
+
+    int failedUploads = failed.getAndSet(0);
+    if (failedUploads > 0) {
+      logger.warn(String.format("buildcache: %d cache entries could not be uploaded",
+          failedUploads));
+    }
+  }
+
+  void setLogger(Logger logger) {
+    this.logger = logger;
+  }
+
+  void setRemoteCache(RemoteCache remoteCache) {
+    this.remoteCache = remoteCache;
+  }
+
+  void setCacheDaemonClient(CacheDaemonClient daemonClient) {
+    this.daemonClient = daemonClient;
+  }
+
+  void setRetryBackoffMillis(long retryBackoffMillis) {
+    this.retryBackoffMillis = retryBackoffMillis;
+  }
+
+  private class Upload implements Runnable, Comparable<Upload> {
+    private final String path;
+    private final Path file;
+    private final byte[] content;
+    private final long size;
+    private final long durationMillis;
+    private final Consumer<Boolean> completion;
+    private final double valuePerByte;
+    private final long order = sequence.getAndIncrement();
+
+    private Upload(String path, Path file, byte[] content, long size, long durationMillis,
+        Consumer<Boolean> completion) {
+      this.path = path;
+      this.file = file;
+      this.content = content;
+      this.size = size;
+      this.durationMillis = durationMillis;
+      this.completion = completion;
+      this.valuePerByte = durationMillis
+          / (double) Math.max(size, CacheCleanupExecutor.MIN_ENTRY_SIZE_BYTES);
+    }
+
+    @Override
+    public void run() {
+      for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+        if (file != null && !Files.exists(file)) {
+          completion.accept(false); // evicted before it was uploaded
+          return;
+        }
+        boolean uploaded =
+            file != null ? remoteCache.upload(path, file) : remoteCache.upload(path, content);
+        if (uploaded) {
+          completion.accept(true);
+          return;
+        }
+        if (attempt < MAX_ATTEMPTS) {
+          try {
+            Thread.sleep(retryBackoffMillis << (attempt - 1));
+          } catch (InterruptedException e) {
+            completion.accept(false);
+            return;
+          }
+        }
+      }
+      failed.incrementAndGet();
+      completion.accept(false);
+    }
+
+    @Override
+    public int compareTo(Upload other) {
+      int result = Double.compare(other.valuePerByte, valuePerByte);
+      return result != 0 ? result : Long.compare(order, other.order);
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package io.github.skauppin.maven.buildcache;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.digest.HmacAlgorithms;
+import org.apache.commons.codec.digest.HmacUtils;
+
+/**
+ * Signs S3 requests with AWS Signature Version 4. The credentials are read the same way as the
+ * AWS SDK reads them, from the {@code aws.accessKeyId}, {@code aws.secretAccessKey} and
+ * {@code aws.sessionToken} system properties or the {@code AWS_ACCESS_KEY_ID},
+ * {@code AWS_SECRET_ACCESS_KEY} and {@code AWS_SESSION_TOKEN} environment variables.
+ */
+class S3Signer {
+
+  static final String EMPTY_PAYLOAD_SHA256 = DigestUtils.sha256Hex(new byte[0]);
+
+  private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+  private static final String SERVICE = "s3";
+  private static final String TERMINATOR = "aws4_request";
+  private static final DateTimeFormatter DATE_TIME_FORMAT =
+      DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+  private final String accessKeyId;
+  private final String secretAccessKey;
+  private final String sessionToken;
+  private final String region;
+
+  S3Signer(String accessKeyId, String secretAccessKey, String sessionToken, String region) {
+    this.accessKeyId = accessKeyId;
+    this.secretAccessKey = secretAccessKey;
+    this.sessionToken = sessionToken;
+    this.region = region;
+  }
+
+  /**
+   * Returns a signer for the credentials of the environment, or empty if there are none and
+   * requests are sent unsigned.
+   */
+  static Optional<S3Signer> fromEnvironment(String region) {
+    String accessKeyId = getCredential("aws.accessKeyId", "AWS_ACCESS_KEY_ID");
+    String secretAccessKey = getCredential("aws.secretAccessKey", "AWS_SECRET_ACCESS_KEY");
+    if (accessKeyId == null || secretAccessKey == null) {
+      return Optional.empty();
+    }
+    String sessionToken = getCredential("aws.sessionToken", "AWS_SESSION_TOKEN");
+    return Optional.of(new S3Signer(accessKeyId, secretAccessKey, sessionToken, region));
+  }
+
+  private static String getCredential(String property, String variable) {
+    String value = System.getProperty(property);
+    if (value == null || value.isEmpty()) {
+      value = System.getenv(variable);
+    }
+    return value == null || value.isEmpty() ? null : value;
+  }
+
+  /**
+   * Signs a request and returns the headers to add to it. The host header and the given headers
+   * are signed too, and they have to be sent with the same values.
+   */
+  Map<String, String> sign(String method, URL url, Map<String, String> headers,
+      String payloadSha256, Instant time) {
+    String dateTime = DATE_TIME_FORMAT.format(time);
+    String scope = String.format("%s/%s/%s/%s", dateTime.substring(0, 8), region, SERVICE,
+        TERMINATOR);
+
+    Map<String, String> added = new LinkedHashMap<>();
+    added.put("x-amz-content-sha256", payloadSha256);
+    added.put("x-amz-date", dateTime);
+    if (sessionToken != null) {
+      added.put("x-amz-security-token", sessionToken);
+    }
+    Map<String, String> signedHeaders = new TreeMap<>();
+    headers.forEach((name, value) -> signedHeaders.put(name.toLowerCase(Locale.ROOT),
+        value.trim()));
+    signedHeaders.put("host", getHost(url));
+    signedHeaders.putAll(added);
+    String signedHeaderNames = String.join(";", signedHeaders.keySet());
+
+    StringBuilder canonicalRequest = new StringBuilder();
+    canonicalRequest.append(method).append('\n');
+    canonicalRequest.append(url.getPath().isEmpty() ? "/" : url.getPath()).append('\n');
+    canonicalRequest.append(getCanonicalQuery(url.getQuery())).append('\n');
+    signedHeaders.forEach(
+        (name, value) -> canonicalRequest.append(name).append(':').append(value).append('\n'));
+    canonicalRequest.append('\n').append(signedHeaderNames).append('\n').append(payloadSha256);
+
+    String stringToSign = String.join("\n", ALGORITHM, dateTime, scope,
+        DigestUtils.sha256Hex(canonicalRequest.toString()));
+    byte[] key = hmac(("AWS4" + secretAccessKey).getBytes(StandardCharsets.UTF_8),
+        dateTime.substring(0, 8));
+    key = hmac(key, region);
+    key = hmac(key, SERVICE);
+    key = hmac(key, TERMINATOR);
+    String signature = Hex.encodeHexString(hmac(key, stringToSign));
+
+    added.put("Authorization", String.format("%s Credential=%s/%s, SignedHeaders=%s, Signature=%s",
+        ALGORITHM, accessKeyId, scope, signedHeaderNames, signature));
+    return added;
+  }
+
+  private static String getHost(URL url) {
+    int port = url.getPort();
+    return port == -1 || port == url.getDefaultPort() ? url.getHost()
+        : url.getHost() + ":" + port;
+  }
+
+  private static String getCanonicalQuery(String query) {
+    if (query == null || query.isEmpty()) {
+      return "";
+    }
+    List<String> parameters = new ArrayList<>();
+    for (String parameter : query.split("&")) {
+      parameters.add(parameter.contains("=") ? parameter : parameter + "=");
+    }
+    Collections.sort(parameters);
+    return String.join("&", parameters);
+  }
+
+  private static byte[] hmac(byte[] key, String data) {
+    return new HmacUtils(HmacAlgorithms.HMAC_SHA_256, key).hmac(data);
+  }
+
+  /**
+   * Encodes a query parameter value, leaving only the unreserved characters as they are.
+   */
+  static String uriEncode(String value) {
+    StringBuilder encoded = new StringBuilder();
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      char c = (char) (b & 0xFF);
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+          || c == '-' || c == '_' || c == '.' || c == '~') {
+        encoded.append(c);
+      } else {
+        encoded.append(String.format("%%%02X", b & 0xFF));
+      }
+    }
+    return encoded.toString();
+  }
+}
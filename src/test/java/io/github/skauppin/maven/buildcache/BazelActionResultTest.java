@@ -0,0 +1,55 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+public class BazelActionResultTest {
+
+  private static final String HASH =
+      "039058c6f2c0cb492c533b0a4d14ef77cc0f78abccced5287d84a1a2011cfb81";
+
+  @Test
+  public void testEncodeAndDecode() {
+    byte[] actionResult =
+        BazelActionResult.encode("classes-1111.zip", new BazelActionResult.Digest(HASH, 300));
+
+    Optional<BazelActionResult.Digest> digest = BazelActionResult.decode(actionResult);
+    assertEquals(HASH, digest.get().getHash());
+    assertEquals(300, digest.get().getSizeBytes());
+  }
+
+  @Test
+  public void testEncodeAndDecodeEmptyBlob() {
+    byte[] actionResult =
+        BazelActionResult.encode("test-1111", new BazelActionResult.Digest(HASH, 0));
+
+    Optional<BazelActionResult.Digest> digest = BazelActionResult.decode(actionResult);
+    assertEquals(HASH, digest.get().getHash());
+    assertEquals(0, digest.get().getSizeBytes());
+  }
+
+  @Test
+  public void testDecodeSkipsUnknownFields() {
+    byte[] outputFiles =
+        BazelActionResult.encode("classes-1111.zip", new BazelActionResult.Digest(HASH, 300));
+    byte[] exitCode = {0x20, 0x01}; // exit_code = 4, varint
+    byte[] fixed64 = {0x49, 0, 0, 0, 0, 0, 0, 0, 0}; // field 9, fixed64
+    byte[] actionResult = new byte[exitCode.length + fixed64.length + outputFiles.length];
+    System.arraycopy(exitCode, 0, actionResult, 0, exitCode.length);
+    System.arraycopy(fixed64, 0, actionResult, exitCode.length, fixed64.length);
+    System.arraycopy(outputFiles, 0, actionResult, exitCode.length + fixed64.length,
+        outputFiles.length);
+
+    assertEquals(HASH, BazelActionResult.decode(actionResult).get().getHash());
+  }
+
+  @Test
+  public void testDecodeInvalid() {
+    assertFalse(BazelActionResult.decode(new byte[0]).isPresent());
+    assertFalse(BazelActionResult.decode(new byte[] {0x12, 0x10, 0x0a}).isPresent());
+    assertFalse(BazelActionResult.decode(new byte[] {(byte) 0xff}).isPresent());
+    assertFalse(BazelActionResult.decode(new byte[] {0x20, 0x01}).isPresent());
+  }
+}
@@ -0,0 +1,106 @@
+package io.github.skauppin.maven.buildcache;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Minimal in-memory stub of the bazel-remote HTTP API for tests. Like bazel-remote, it rejects
+ * blobs that don't match their hash and action results that refer to missing blobs.
+ */
+public class BazelCacheServer implements AutoCloseable {
+
+  private static final Pattern SHA256_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+  private final HttpServer server;
+  private final Map<String, byte[]> actionCache = new ConcurrentHashMap<>();
+  private final Map<String, byte[]> contentStore = new ConcurrentHashMap<>();
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+
+  public BazelCacheServer() throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/ac/", e -> handle(e, actionCache, true));
+    this.server.createContext("/cas/", e -> handle(e, contentStore, false));
+    this.server.start();
+  }
+
+  public String getUrl() {
+    return String.format("http://localhost:%d", server.getAddress().getPort());
+  }
+
+  public Map<String, byte[]> getActionCache() {
+    return actionCache;
+  }
+
+  public Map<String, byte[]> getContentStore() {
+    return contentStore;
+  }
+
+  public List<String> getRequests() {
+    return requests;
+  }
+
+  private void handle(HttpExchange exchange, Map<String, byte[]> store, boolean actionResult)
+      throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    String hash = path.substring(path.lastIndexOf('/') + 1);
+    requests.add(method + " " + path.substring(1));
+    // the JDK server can't reuse a keep-alive connection after a HEAD response
+    exchange.getResponseHeaders().set("Connection", "close");
+
+    try {
+      if (!SHA256_PATTERN.matcher(hash).matches()) {
+        exchange.sendResponseHeaders(400, -1);
+      } else if ("PUT".equals(method)) {
+        byte[] content;
+        try (InputStream in = exchange.getRequestBody()) {
+          content = IOUtils.toByteArray(in);
+        }
+        if (actionResult ? !isValidActionResult(content)
+            : !hash.equals(DigestUtils.sha256Hex(content))) {
+          exchange.sendResponseHeaders(400, -1);
+        } else {
+          store.put(hash, content);
+          exchange.sendResponseHeaders(200, -1);
+        }
+      } else if (!store.containsKey(hash)) {
+        exchange.sendResponseHeaders(404, -1);
+      } else if ("HEAD".equals(method)) {
+        exchange.sendResponseHeaders(200, -1);
+      } else if ("GET".equals(method)) {
+        byte[] content = store.get(hash);
+        exchange.sendResponseHeaders(200, content.length == 0 ? -1 : content.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(content);
+        }
+      } else {
+        exchange.sendResponseHeaders(405, -1);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private boolean isValidActionResult(byte[] content) {
+    Optional<BazelActionResult.Digest> digest = BazelActionResult.decode(content);
+    return digest.isPresent() && contentStore.containsKey(digest.get().getHash());
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+}
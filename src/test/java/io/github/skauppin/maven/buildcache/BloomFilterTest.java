@@ -0,0 +1,79 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+public class BloomFilterTest {
+
+  @Test
+  public void testMightContain() {
+    BloomFilter filter = BloomFilter.create(1000);
+    for (int i = 0; i < 1000; i++) {
+      filter.put(String.format("com/test/test-lib/classes-%d.zip", i));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(filter.mightContain(String.format("com/test/test-lib/classes-%d.zip", i)));
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (filter.mightContain(String.format("com/test/test-lib/test-%d", i))) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 300, "false positives: " + falsePositives);
+  }
+
+  @Test
+  public void testEmpty() {
+    BloomFilter filter = BloomFilter.create(1000);
+    assertFalse(filter.mightContain("com/test/test-lib/classes-1111.zip"));
+    assertEquals(9586, filter.getBitCount());
+  }
+
+  @Test
+  public void testEstimateEntries() {
+    BloomFilter filter = BloomFilter.create(1000);
+    assertEquals(1000, filter.getCapacity());
+    assertEquals(0, filter.estimateEntries());
+
+    for (int i = 0; i < 500; i++) {
+      filter.put(String.format("com/test/test-lib/classes-%d.zip", i));
+    }
+    assertTrue(Math.abs(filter.estimateEntries() - 500) < 25, "" + filter.estimateEntries());
+
+    for (int i = 500; i < 2000; i++) {
+      filter.put(String.format("com/test/test-lib/classes-%d.zip", i));
+    }
+    assertTrue(Math.abs(filter.estimateEntries() - 2000) < 100, "" + filter.estimateEntries());
+  }
+
+  @Test
+  public void testReadSerialized() {
+    BloomFilter filter = BloomFilter.create(100);
+    filter.put("com/test/test-lib/classes-1111.zip");
+
+    BloomFilter read = BloomFilter.read(ByteBuffer.wrap(filter.toByteArray()));
+    assertTrue(read.mightContain("com/test/test-lib/classes-1111.zip"));
+    assertFalse(read.mightContain("com/test/test-lib/classes-2222.zip"));
+    assertEquals(filter.getBitCount(), read.getBitCount());
+
+    read.put("com/test/test-lib/classes-2222.zip");
+    assertTrue(read.mightContain("com/test/test-lib/classes-2222.zip"));
+  }
+
+  @Test
+  public void testReadInvalid() {
+    assertThrows(IllegalArgumentException.class, () -> BloomFilter.read(ByteBuffer.allocate(8)));
+    assertThrows(IllegalArgumentException.class,
+        () -> BloomFilter.read(ByteBuffer.wrap(new byte[64])));
+
+    byte[] truncated = BloomFilter.create(100).toByteArray();
+    assertThrows(IllegalArgumentException.class,
+        () -> BloomFilter.read(ByteBuffer.wrap(truncated, 0, truncated.length - 1).slice()));
+  }
+}
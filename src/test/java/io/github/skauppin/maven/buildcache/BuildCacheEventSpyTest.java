@@ -170,11 +170,24 @@ public class BuildCacheEventSpyTest {
     buildCacheEventSpy.onEvent(mavenExecutionResult);
 
     Mockito.verifyNoInteractions(executionTimeRegister);
+    Mockito.verify(buildCache).isInitialized();
     Mockito.verify(buildCache).isBuildCacheProfile();
     Mockito.verifyNoMoreInteractions(buildCache);
     Mockito.verifyNoInteractions(logger);
   }
 
+  @Test
+  public void testMavenExecutionResultWhenInitialized() throws Exception {
+    Mockito.when(buildCache.isInitialized()).thenReturn(true);
+
+    buildCacheEventSpy.onEvent(mavenExecutionResult);
+
+    Mockito.verify(buildCache).isInitialized();
+    Mockito.verify(buildCache).finishSession();
+    Mockito.verify(buildCache).isBuildCacheProfile();
+    Mockito.verifyNoMoreInteractions(buildCache);
+  }
+
   @Test
   public void testMavenExecutionResultWhenProfile() throws Exception {
     Mockito.when(buildCache.isBuildCacheProfile()).thenReturn(true);
@@ -182,6 +195,7 @@ public class BuildCacheEventSpyTest {
     buildCacheEventSpy.onEvent(mavenExecutionResult);
 
     Mockito.verify(executionTimeRegister, Mockito.times(1)).logExecutionTimes();
+    Mockito.verify(buildCache).isInitialized();
     Mockito.verify(buildCache).isBuildCacheProfile();
     Mockito.verifyNoMoreInteractions(buildCache);
     Mockito.verifyNoInteractions(logger);
@@ -334,6 +334,83 @@ public class BuildCachePluginManagerTest {
     runEnabledTest("integration-test", projectStatus, ExpectedTryCacheUse.NONE, expectDelegated);
   }
 
+  @Test
+  public void compileDelegatedUnlinksClassesInLinkRestoreMode() throws Exception {
+    Mockito.when(buildCache.isLinkRestoreMode()).thenReturn(true);
+
+    MojoExecution mojoExecution = Mockito.mock(MojoExecution.class);
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("compile");
+    Mockito.when(buildCache.getProjectStatus(session, mojoExecution)).thenReturn(projectStatus);
+
+    manager.executeMojo(session, mojoExecution);
+
+    Mockito.verify(buildCache, Mockito.times(1)).unlinkMainClasses(session);
+    Mockito.verify(buildCache, Mockito.never()).unlinkTestClasses(session);
+    Mockito.verify(delegate, Mockito.times(1)).executeMojo(session, mojoExecution);
+  }
+
+  @Test
+  public void compileNotDelegatedDoesNotUnlinkClasses() throws Exception {
+    Mockito.when(buildCache.isLinkRestoreMode()).thenReturn(true);
+    Mockito.when(buildCache.useCachedMainClasses(session)).thenReturn(true);
+
+    MojoExecution mojoExecution = Mockito.mock(MojoExecution.class);
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("compile");
+    Mockito.when(buildCache.getProjectStatus(session, mojoExecution)).thenReturn(projectStatus);
+
+    manager.executeMojo(session, mojoExecution);
+
+    Mockito.verify(buildCache, Mockito.never()).unlinkMainClasses(session);
+    Mockito.verify(delegate, Mockito.never()).executeMojo(session, mojoExecution);
+  }
+
+  @Test
+  public void delegatedMojoRestoresDeferredClasses() throws Exception {
+    Mockito.when(buildCache.isDeferredRestore()).thenReturn(true);
+
+    MojoExecution mojoExecution = Mockito.mock(MojoExecution.class);
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("package");
+    Mockito.when(mojoExecution.getArtifactId()).thenReturn("maven-jar-plugin");
+    Mockito.when(buildCache.getProjectStatus(session, mojoExecution)).thenReturn(projectStatus);
+
+    manager.executeMojo(session, mojoExecution);
+
+    Mockito.verify(buildCache, Mockito.times(1)).restorePendingClasses(session, delegate);
+    Mockito.verify(delegate, Mockito.times(1)).executeMojo(session, mojoExecution);
+  }
+
+  @Test
+  public void resourcesMojoDoesNotRestoreDeferredClasses() throws Exception {
+    Mockito.when(buildCache.isDeferredRestore()).thenReturn(true);
+
+    MojoExecution mojoExecution = Mockito.mock(MojoExecution.class);
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("process-resources");
+    Mockito.when(mojoExecution.getArtifactId()).thenReturn("maven-resources-plugin");
+    Mockito.when(buildCache.getProjectStatus(session, mojoExecution)).thenReturn(projectStatus);
+
+    manager.executeMojo(session, mojoExecution);
+
+    Mockito.verify(buildCache, Mockito.never()).restorePendingClasses(Mockito.any(),
+        Mockito.any());
+    Mockito.verify(delegate, Mockito.times(1)).executeMojo(session, mojoExecution);
+  }
+
+  @Test
+  public void cacheHitWithPendingRestoreRecordsSkippedMojo() throws Exception {
+    Mockito.when(buildCache.isDeferredRestore()).thenReturn(true);
+    Mockito.when(mainCompilePhase.isCacheHit()).thenReturn(true);
+    Mockito.when(mainCompilePhase.hasPendingRestore()).thenReturn(true);
+
+    MojoExecution mojoExecution = Mockito.mock(MojoExecution.class);
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("compile");
+    Mockito.when(buildCache.getProjectStatus(session, mojoExecution)).thenReturn(projectStatus);
+
+    manager.executeMojo(session, mojoExecution);
+
+    Mockito.verify(mainCompilePhase).addSkippedExecution(mojoExecution);
+    Mockito.verify(delegate, Mockito.never()).executeMojo(session, mojoExecution);
+  }
+
   //
   // disabled
   //
@@ -379,6 +456,8 @@ public class BuildCachePluginManagerTest {
     Mockito.verify(buildCache, Mockito.times(1)).isInitializationError();
     Mockito.verify(buildCache, Mockito.times(1)).isBuildCacheDisabled();
     Mockito.verify(buildCache, Mockito.times(1)).getProjectStatus(session, mojoExecution);
+    Mockito.verify(buildCache, Mockito.times(1)).isDeferredRestore();
+    Mockito.verify(buildCache, Mockito.times(1)).isLinkRestoreMode();
     Mockito.verifyNoMoreInteractions(buildCache);
 
     Mockito.verify(projectStatus, Mockito.times(1)).isBuildCacheDisabled();
@@ -411,6 +490,8 @@ public class BuildCachePluginManagerTest {
     Mockito.verify(buildCache, Mockito.times(1)).isInitializationError();
     Mockito.verify(buildCache, Mockito.times(1)).isBuildCacheDisabled();
     Mockito.verify(buildCache, Mockito.times(1)).getProjectStatus(session, mojoExecution);
+    Mockito.verify(buildCache, Mockito.times(1)).isDeferredRestore();
+    Mockito.verify(buildCache, Mockito.times(1)).isLinkRestoreMode();
     Mockito.verifyNoMoreInteractions(buildCache);
     Mockito.verify(projectStatus, Mockito.times(1)).isBuildCacheDisabled();
     Mockito.verifyNoMoreInteractions(projectStatus);
@@ -507,6 +588,11 @@ public class BuildCachePluginManagerTest {
       Mockito.verify(buildCache, Mockito.never()).isIntegrationTestExecutionCacheHit(session);
     }
 
+    if (expectDelegated) {
+      Mockito.verify(buildCache, Mockito.times(1)).isDeferredRestore();
+      Mockito.verify(buildCache, Mockito.times(1)).isLinkRestoreMode();
+    }
+
     Mockito.verifyNoMoreInteractions(buildCache);
 
     if (expectDelegated) {
@@ -3,6 +3,7 @@ package io.github.skauppin.maven.buildcache;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -10,10 +11,17 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
 import javax.xml.parsers.ParserConfigurationException;
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.execution.ProjectDependencyGraph;
 import org.apache.maven.lifecycle.LifecycleExecutor;
 import org.apache.maven.lifecycle.LifecycleNotFoundException;
 import org.apache.maven.lifecycle.MavenExecutionPlan;
@@ -25,6 +33,8 @@ import org.codehaus.plexus.component.configurator.expression.ExpressionEvaluatio
 import org.codehaus.plexus.logging.Logger;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
@@ -40,6 +50,16 @@ public class BuildCacheTest {
   private HashUtil hashUtil;
   private Configuration configuration;
   private CacheCleanupExecutor fullCacheCleanupExecutor;
+  private ObjectStore objectStore;
+  private CacheWriter cacheWriter;
+  private CacheIndex cacheIndex;
+  private ExecutionTimeRegister executionTimeRegister;
+  private CacheLock cacheLock;
+  private CacheTiers cacheTiers;
+  private ReadOnlyCaches readOnlyCaches;
+  private RemoteCache remoteCache;
+  private RemotePrefetcher remotePrefetcher;
+  private RemoteUploader remoteUploader;
   private BuildCache buildCache;
 
   private MavenExecutionPlan mockMavenExecutionPlan;
@@ -55,6 +75,15 @@ public class BuildCacheTest {
     hashUtil = Mockito.mock(HashUtil.class);
     configuration = Mockito.mock(Configuration.class);
     fullCacheCleanupExecutor = Mockito.mock(CacheCleanupExecutor.class);
+    objectStore = Mockito.mock(ObjectStore.class);
+    cacheWriter = Mockito.mock(CacheWriter.class);
+    cacheIndex = Mockito.mock(CacheIndex.class);
+    executionTimeRegister = Mockito.mock(ExecutionTimeRegister.class);
+    cacheLock = Mockito.mock(CacheLock.class);
+    Mockito.when(cacheLock.acquireShared(Mockito.any()))
+        .thenReturn(Optional.of(Mockito.mock(CacheLock.Lock.class)));
+    Mockito.when(cacheLock.acquireExclusive(Mockito.any()))
+        .thenReturn(Optional.of(Mockito.mock(CacheLock.Lock.class)));
 
     Build build = Mockito.mock(Build.class);
     Mockito.when(build.getDirectory()).thenReturn("/project/target");
@@ -77,6 +106,24 @@ public class BuildCacheTest {
     buildCache.setHashUtil(hashUtil);
     buildCache.setConfiguration(configuration);
     buildCache.setCacheCleanupExecutor(fullCacheCleanupExecutor);
+    buildCache.setObjectStore(objectStore);
+    buildCache.setCacheWriter(cacheWriter);
+    buildCache.setCacheIndex(cacheIndex);
+    buildCache.setExecutionTimeRegister(executionTimeRegister);
+    buildCache.setCacheLock(cacheLock);
+    cacheTiers = Mockito.mock(CacheTiers.class);
+    buildCache.setCacheTiers(cacheTiers);
+    readOnlyCaches = Mockito.mock(ReadOnlyCaches.class);
+    buildCache.setReadOnlyCaches(readOnlyCaches);
+    remoteCache = Mockito.mock(RemoteCache.class);
+    Mockito.when(remoteCache.isFasterThanBuild(Mockito.any(), Mockito.anyBoolean()))
+        .thenReturn(true);
+    buildCache.setRemoteCache(remoteCache);
+    remotePrefetcher = Mockito.mock(RemotePrefetcher.class);
+    buildCache.setRemotePrefetcher(remotePrefetcher);
+    remoteUploader = Mockito.mock(RemoteUploader.class);
+    buildCache.setRemoteUploader(remoteUploader);
+    buildCache.setCacheDaemonClient(Mockito.mock(CacheDaemonClient.class));
   }
 
   @Test
@@ -188,7 +235,7 @@ public class BuildCacheTest {
   public void testCleanProject() throws IOException {
     File expectedProjectDir = new File("/home/user/.m2/buildcache/com/test/test-lib");
     buildCache.cleanProject(session);
-    Mockito.verify(fullCacheCleanupExecutor).projectCacheCleanup(expectedProjectDir);
+    Mockito.verify(fullCacheCleanupExecutor).submitProjectCleanup(expectedProjectDir);
   }
 
   @Test
@@ -297,6 +344,63 @@ public class BuildCacheTest {
     assertEquals("x", projectStatus.getTestCompile().getPhaseHash());
   }
 
+  @Test
+  public void testGetProjectStatusInTestCompilePhasePrefetchesRemoteEntries() throws Exception {
+
+    MojoExecution mojoExecution = HashUtilTest.mockMojoExecution("initialize");
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session, mojoExecution);
+    projectStatus.getMainCompile().setPhaseHash("a");
+    projectStatus.getMainCompile().setCacheHit();
+
+    Mockito.when(remotePrefetcher.isEnabled()).thenReturn(true);
+    Mockito.when(hashUtil.setProjectTestCompilePhaseDetails(Mockito.any(), Mockito.any(),
+        Mockito.eq(project), Mockito.any(), Mockito.any())).then(a -> {
+          a.getArgument(0, ProjectBuildStatus.class).getTestCompile().setPhaseHash("b");
+          return true;
+        });
+    Mockito.when(hashUtil.setProjectTestPhaseDetails(Mockito.any(), Mockito.eq(project),
+        Mockito.any())).then(a -> {
+          ProjectBuildStatus nextPhases = a.getArgument(0, ProjectBuildStatus.class);
+          assertEquals("a", nextPhases.getMainCompile().getPhaseHash());
+          assertEquals("b", nextPhases.getTestCompile().getPhaseHash());
+          nextPhases.getTest().setPhaseHash("c");
+          return true;
+        });
+    Mockito.when(hashUtil.setProjectIntegrationTestPhaseDetails(Mockito.any(), Mockito.eq(project),
+        Mockito.any())).then(a -> {
+          a.getArgument(0, ProjectBuildStatus.class).getIntegrationTest().setPhaseHash("d");
+          return true;
+        });
+
+    mojoExecution = HashUtilTest.mockMojoExecution("test-compile");
+    projectStatus = buildCache.getProjectStatus(session, mojoExecution);
+
+    Path cacheDir = Paths.get("/home/user/.m2/buildcache/com/test/test-lib");
+    Mockito.verify(remotePrefetcher).prefetch("com/test/test-lib/test-classes-b.zip",
+        cacheDir.resolve("test-classes-b.zip"), CacheIndex.KIND_TEST_CLASSES);
+    Mockito.verify(remotePrefetcher).prefetchExists("com/test/test-lib/test-c");
+    Mockito.verify(remotePrefetcher).prefetchExists("com/test/test-lib/it-test-d");
+
+    assertTrue(projectStatus.getTestCompile().isConfigured());
+    assertFalse(projectStatus.getTest().isConfigured());
+    assertNull(projectStatus.getTest().getPhaseHash());
+  }
+
+  @Test
+  public void testGetProjectStatusInTestCompilePhaseNoPrefetchWithoutMainCompileHit()
+      throws Exception {
+
+    MojoExecution mojoExecution = HashUtilTest.mockMojoExecution("initialize");
+    buildCache.getProjectStatus(session, mojoExecution);
+    Mockito.when(remotePrefetcher.isEnabled()).thenReturn(true);
+
+    mojoExecution = HashUtilTest.mockMojoExecution("test-compile");
+    buildCache.getProjectStatus(session, mojoExecution);
+
+    Mockito.verify(remotePrefetcher).isEnabled();
+    Mockito.verifyNoMoreInteractions(remotePrefetcher);
+  }
+
   @Test
   public void testGetProjectStatusInTestCompilePhase2ndTime() throws Exception {
 
@@ -402,6 +506,10 @@ public class BuildCacheTest {
     Mockito.verify(fileUtil, Mockito.times(1)).mkdirs(classesDir);
     Mockito.verify(fileUtil, Mockito.times(1)).unzip(zipFile, classesDir);
     Mockito.verifyNoMoreInteractions(fileUtil);
+    Mockito.verify(cacheIndex, Mockito.times(1)).touch(Mockito.eq(zipFile.getParent()),
+        Mockito.eq("classes-abcd-1234.zip"), Mockito.anyLong());
+    Mockito.verify(fullCacheCleanupExecutor).protectEntry(zipFile.getParent(),
+        "classes-abcd-1234.zip");
   }
 
   @Test
@@ -457,6 +565,212 @@ public class BuildCacheTest {
     Mockito.verifyNoMoreInteractions(fileUtil);
   }
 
+  @Test
+  public void testUseCachedMainClassesWhenLinkRestoreMode()
+      throws FileNotFoundException, IOException {
+    Mockito.when(configuration.isLinkRestoreMode()).thenReturn(true);
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getMainCompile().setPhaseHash("abcd-1234");
+
+    Path zipFile = Paths.get("/home/user/.m2/buildcache/com/test/test-lib/classes-abcd-1234.zip");
+    Path manifestFile =
+        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/classes-abcd-1234.lnk");
+    Path classesDir = Paths.get("/project/target/classes");
+    Path linksFile = Paths.get("/project/target/buildcache-classes.links");
+    Mockito.when(fileUtil.fileExists(zipFile)).thenReturn(true);
+    Mockito.when(objectStore.link(manifestFile, classesDir, linksFile)).thenReturn(true);
+
+    assertTrue(buildCache.useCachedMainClasses(session));
+
+    Mockito.verify(objectStore, Mockito.times(1)).link(manifestFile, classesDir, linksFile);
+    Mockito.verify(fileUtil, Mockito.never()).unzip(Mockito.any(), Mockito.any());
+  }
+
+  @Test
+  public void testUseCachedMainClassesWhenLinkRestoreFails()
+      throws FileNotFoundException, IOException {
+    Mockito.when(configuration.isLinkRestoreMode()).thenReturn(true);
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getMainCompile().setPhaseHash("abcd-1234");
+
+    Path zipFile = Paths.get("/home/user/.m2/buildcache/com/test/test-lib/classes-abcd-1234.zip");
+    Path classesDir = Paths.get("/project/target/classes");
+    Mockito.when(fileUtil.fileExists(zipFile)).thenReturn(true);
+    Mockito.when(objectStore.link(Mockito.any(), Mockito.any(), Mockito.any())).thenReturn(false);
+
+    assertTrue(buildCache.useCachedMainClasses(session));
+
+    Mockito.verify(fileUtil, Mockito.times(1)).unzip(zipFile, classesDir);
+  }
+
+  @Test
+  public void testUseCachedMainClassesWhenDeferredRestore() throws Exception {
+    Mockito.when(configuration.isDeferredRestore()).thenReturn(true);
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getMainCompile().setPhaseHash("abcd-1234");
+
+    Path zipFile = Paths.get("/home/user/.m2/buildcache/com/test/test-lib/classes-abcd-1234.zip");
+    Path classesDir = Paths.get("/project/target/classes");
+    Mockito.when(fileUtil.fileExists(zipFile)).thenReturn(true);
+
+    assertTrue(buildCache.useCachedMainClasses(session));
+
+    Mockito.verify(fileUtil, Mockito.times(1)).fileExists(zipFile);
+    Mockito.verifyNoMoreInteractions(fileUtil);
+    assertEquals(zipFile, projectStatus.getMainCompile().getPendingRestoreZipFile());
+    assertEquals(classesDir, projectStatus.getMainCompile().getPendingRestoreClassesPath());
+
+    BuildCachePluginManager.MojoExecutor executor =
+        Mockito.mock(BuildCachePluginManager.MojoExecutor.class);
+    buildCache.restorePendingClasses(session, executor);
+    buildCache.restorePendingClasses(session, executor);
+
+    Mockito.verify(fileUtil, Mockito.times(1)).mkdirs(classesDir);
+    Mockito.verify(fileUtil, Mockito.times(1)).unzip(zipFile, classesDir);
+    assertFalse(projectStatus.getMainCompile().hasPendingRestore());
+    Mockito.verifyNoInteractions(executor);
+  }
+
+  @Test
+  public void testFailedDeferredRestoreExecutesSkippedMojos() throws Exception {
+    Mockito.when(configuration.isDeferredRestore()).thenReturn(true);
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    ProjectBuildStatus.Phase phase = projectStatus.getMainCompile();
+    phase.setPhaseHash("abcd-1234");
+
+    Path zipFile = Paths.get("/home/user/.m2/buildcache/com/test/test-lib/classes-abcd-1234.zip");
+    Mockito.when(fileUtil.fileExists(zipFile)).thenReturn(true);
+    assertTrue(buildCache.useCachedMainClasses(session));
+    phase.setCacheHit();
+    MojoExecution compile = Mockito.mock(MojoExecution.class);
+    phase.addSkippedExecution(compile);
+
+    // the cache entry is locked by another build
+    Mockito.when(cacheLock.acquireShared(zipFile.getParent())).thenReturn(Optional.empty());
+    MavenSession projectSession = mockSessionClone(session);
+    List<MavenProject> executedProjects = new ArrayList<>();
+    BuildCachePluginManager.MojoExecutor executor =
+        (s, m) -> executedProjects.add(s.getCurrentProject());
+    buildCache.restorePendingClasses(session, executor);
+    buildCache.restorePendingClasses(session, executor);
+
+    assertEquals(Collections.singletonList(project), executedProjects);
+    Mockito.verify(executionTimeRegister).record(Mockito.eq(project), Mockito.eq(compile),
+        Mockito.anyLong(), Mockito.eq(false));
+    Mockito.verify(fileUtil, Mockito.never()).unzip(Mockito.any(), Mockito.any());
+    // cached when the project succeeds
+    Mockito.verify(fileUtil, Mockito.never()).createZipFile(Mockito.any(), Mockito.any(),
+        Mockito.any(Path.class), Mockito.any());
+    assertFalse(phase.hasPendingRestore());
+    assertFalse(phase.isCacheHit());
+    assertTrue(phase.getSkippedExecutions().isEmpty());
+    assertEquals(project, projectSession.getCurrentProject());
+  }
+
+  @Test
+  public void testFailedDeferredRestoreOfUpstreamProjectExecutesSkippedMojosOfUpstream()
+      throws Exception {
+    Mockito.when(configuration.isDeferredRestore()).thenReturn(true);
+
+    MavenProject upstream = Mockito.mock(MavenProject.class);
+    Mockito.when(upstream.getGroupId()).thenReturn("com.test");
+    Mockito.when(upstream.getArtifactId()).thenReturn("upstream-lib");
+    Build upstreamBuild = Mockito.mock(Build.class);
+    Mockito.when(upstreamBuild.getDirectory()).thenReturn("/upstream/target");
+    Mockito.when(upstream.getBuild()).thenReturn(upstreamBuild);
+    MavenSession upstreamSession = Mockito.mock(MavenSession.class);
+    Mockito.when(upstreamSession.getCurrentProject()).thenReturn(upstream);
+    ProjectBuildStatus.Phase phase = buildCache.getProjectStatus(upstreamSession).getMainCompile();
+    phase.setPhaseHash("1111");
+
+    Path upstreamCacheDir = Paths.get("/home/user/.m2/buildcache/com/test/upstream-lib");
+    Path zipFile = upstreamCacheDir.resolve("classes-1111.zip");
+    phase.setPendingRestore(zipFile, Paths.get("/upstream/target/classes"));
+    phase.setCacheHit();
+    MojoExecution compile = Mockito.mock(MojoExecution.class);
+    phase.addSkippedExecution(compile);
+
+    ProjectDependencyGraph graph = Mockito.mock(ProjectDependencyGraph.class);
+    Mockito.when(graph.getUpstreamProjects(project, true))
+        .thenReturn(Collections.singletonList(upstream));
+    Mockito.when(session.getProjectDependencyGraph()).thenReturn(graph);
+    Mockito.when(cacheLock.acquireShared(upstreamCacheDir)).thenReturn(Optional.empty());
+    Mockito.when(fileUtil.scanClassFilesFromDirectory(Paths.get("/upstream/target/classes")))
+        .thenReturn(new String[] {"Upstream.class"});
+
+    mockSessionClone(session);
+    List<MavenProject> executedProjects = new ArrayList<>();
+    buildCache.restorePendingClasses(session,
+        (s, m) -> executedProjects.add(s.getCurrentProject()));
+
+    assertEquals(Collections.singletonList(upstream), executedProjects);
+    assertEquals(project, session.getCurrentProject());
+    Mockito.verify(executionTimeRegister).record(Mockito.eq(upstream), Mockito.eq(compile),
+        Mockito.anyLong(), Mockito.eq(false));
+    // the upstream project has already succeeded, so the rebuilt classes are cached right away
+    Mockito.verify(fileUtil).createZipFile(Mockito.eq(zipFile), Mockito.any(),
+        Mockito.eq(Paths.get("/upstream/target/classes")),
+        Mockito.eq(new String[] {"Upstream.class"}));
+    assertFalse(phase.isCacheHit());
+  }
+
+  private static MavenSession mockSessionClone(MavenSession session) {
+    MavenSession clone = Mockito.mock(MavenSession.class);
+    MavenProject[] currentProject = {session.getCurrentProject()};
+    Mockito.doAnswer(i -> currentProject[0] = i.getArgument(0)).when(clone)
+        .setCurrentProject(Mockito.any());
+    Mockito.when(clone.getCurrentProject()).thenAnswer(i -> currentProject[0]);
+    Mockito.when(session.clone()).thenReturn(clone);
+    return clone;
+  }
+
+  @Test
+  public void testRestorePendingClassesOfUpstreamProjects() throws Exception {
+    Mockito.when(configuration.isDeferredRestore()).thenReturn(true);
+
+    MavenProject upstream = Mockito.mock(MavenProject.class);
+    Mockito.when(upstream.getGroupId()).thenReturn("com.test");
+    Mockito.when(upstream.getArtifactId()).thenReturn("upstream-lib");
+    MavenSession upstreamSession = Mockito.mock(MavenSession.class);
+    Mockito.when(upstreamSession.getCurrentProject()).thenReturn(upstream);
+    ProjectBuildStatus upstreamStatus = buildCache.getProjectStatus(upstreamSession);
+
+    Path mainZipFile = Paths.get("/cache/upstream-lib/classes-1111.zip");
+    Path mainClassesDir = Paths.get("/upstream/target/classes");
+    Path testZipFile = Paths.get("/cache/upstream-lib/test-classes-2222.zip");
+    upstreamStatus.getMainCompile().setPendingRestore(mainZipFile, mainClassesDir);
+    upstreamStatus.getTestCompile().setPendingRestore(testZipFile,
+        Paths.get("/upstream/target/test-classes"));
+
+    ProjectDependencyGraph graph = Mockito.mock(ProjectDependencyGraph.class);
+    Mockito.when(graph.getUpstreamProjects(project, true))
+        .thenReturn(Collections.singletonList(upstream));
+    Mockito.when(session.getProjectDependencyGraph()).thenReturn(graph);
+
+    buildCache.restorePendingClasses(session,
+        Mockito.mock(BuildCachePluginManager.MojoExecutor.class));
+
+    Mockito.verify(fileUtil, Mockito.times(1)).unzip(mainZipFile, mainClassesDir);
+    Mockito.verify(fileUtil, Mockito.never()).unzip(Mockito.eq(testZipFile), Mockito.any());
+    assertTrue(upstreamStatus.getTestCompile().hasPendingRestore());
+  }
+
+  @Test
+  public void testFinishSessionRestoresPendingClasses() throws IOException {
+    Mockito.when(configuration.isDeferredRestoreAtSessionEnd()).thenReturn(true);
+    Mockito.when(cacheWriter.awaitCompletion()).thenReturn(Collections.emptyList());
+
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    Path zipFile = Paths.get("/cache/test-lib/test-classes-1111.zip");
+    Path classesDir = Paths.get("/project/target/test-classes");
+    projectStatus.getTestCompile().setPendingRestore(zipFile, classesDir);
+
+    buildCache.finishSession();
+
+    Mockito.verify(fileUtil, Mockito.times(1)).unzip(zipFile, classesDir);
+    assertFalse(projectStatus.getTestCompile().hasPendingRestore());
+  }
+
   @Test
   public void testUseCachedTestClassesWhenCacheHit() throws FileNotFoundException, IOException {
     ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
@@ -476,15 +790,195 @@ public class BuildCacheTest {
     Mockito.verifyNoMoreInteractions(fileUtil);
   }
 
+  @Test
+  public void testUseCachedTestClassesFromTier() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTestCompile().setPhaseHash("abcd-1234");
+
+    Path zipFile =
+        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/test-classes-abcd-1234.zip");
+    Path tierFile = Paths.get("/dev/shm/buildcache/com/test/test-lib/test-classes-abcd-1234.zip");
+    Mockito.when(cacheTiers.find(zipFile)).thenReturn(Optional.of(tierFile));
+    Mockito.when(cacheTiers.hasTiers()).thenReturn(true);
+
+    assertTrue(buildCache.useCachedTestClasses(session));
+
+    Path classesDir = Paths.get("/project/target/test-classes");
+    Mockito.verify(fileUtil, Mockito.times(1)).mkdirs(classesDir);
+    Mockito.verify(fileUtil, Mockito.times(1)).unzip(tierFile, classesDir);
+    Mockito.verifyNoMoreInteractions(fileUtil);
+    Mockito.verify(cacheTiers, Mockito.never()).promote(Mockito.any());
+  }
+
+  @Test
+  public void testUseCachedTestClassesPromotesToTier() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTestCompile().setPhaseHash("abcd-1234");
+
+    Path zipFile =
+        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/test-classes-abcd-1234.zip");
+    Mockito.when(fileUtil.fileExists(zipFile)).thenReturn(true);
+    Mockito.when(cacheTiers.hasTiers()).thenReturn(true);
+
+    assertTrue(buildCache.useCachedTestClasses(session));
+
+    Mockito.verify(fileUtil, Mockito.times(1)).unzip(zipFile,
+        Paths.get("/project/target/test-classes"));
+    Mockito.verify(cacheTiers, Mockito.times(1)).promote(zipFile);
+  }
+
+  @Test
+  public void testUseCachedTestClassesFromReadOnlyCache() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTestCompile().setPhaseHash("abcd-1234");
+
+    Path zipFile =
+        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/test-classes-abcd-1234.zip");
+    Path layerFile = Paths.get("/mnt/nfs/buildcache/com/test/test-lib/test-classes-abcd-1234.zip");
+    Mockito.when(readOnlyCaches.hasLayers()).thenReturn(true);
+    Mockito.when(readOnlyCaches.findZipFile(zipFile)).thenReturn(Optional.of(layerFile));
+    Mockito.when(remoteCache.isEnabled()).thenReturn(true);
+    Mockito.when(cacheTiers.hasTiers()).thenReturn(true);
+
+    assertTrue(buildCache.useCachedTestClasses(session));
+
+    Path classesDir = Paths.get("/project/target/test-classes");
+    Mockito.verify(fileUtil, Mockito.times(1)).unzip(layerFile, classesDir);
+    Mockito.verify(readOnlyCaches).copyToPrimary(layerFile, zipFile);
+    Mockito.verify(cacheIndex, Mockito.never()).put(Mockito.any(), Mockito.any());
+    Mockito.verify(cacheTiers, Mockito.never()).promote(Mockito.any());
+    Mockito.verifyNoInteractions(remoteCache, remotePrefetcher);
+  }
+
+  @Test
+  public void testUseCachedTestClassesCopiedFromReadOnlyCache() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTestCompile().setPhaseHash("abcd-1234");
+
+    Path zipFile =
+        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/test-classes-abcd-1234.zip");
+    Path layerFile = Paths.get("/mnt/nfs/buildcache/com/test/test-lib/test-classes-abcd-1234.zip");
+    Mockito.when(readOnlyCaches.hasLayers()).thenReturn(true);
+    Mockito.when(readOnlyCaches.findZipFile(zipFile)).thenReturn(Optional.of(layerFile));
+    Mockito.when(readOnlyCaches.copyToPrimary(layerFile, zipFile)).then(a -> {
+      Mockito.when(fileUtil.fileExists(zipFile)).thenReturn(true);
+      return true;
+    });
+
+    assertTrue(buildCache.useCachedTestClasses(session));
+
+    Mockito.verify(fileUtil, Mockito.times(1)).unzip(zipFile,
+        Paths.get("/project/target/test-classes"));
+    ArgumentCaptor<CacheIndex.Entry> entry = ArgumentCaptor.forClass(CacheIndex.Entry.class);
+    Mockito.verify(cacheIndex, Mockito.times(1)).put(Mockito.eq(zipFile.getParent()),
+        entry.capture());
+    assertEquals("test-classes-abcd-1234.zip", entry.getValue().getKey());
+  }
+
+  @Test
+  public void testUseCachedTestClassesFromRemote() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTestCompile().setPhaseHash("abcd-1234");
+
+    Path zipFile =
+        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/test-classes-abcd-1234.zip");
+    Mockito.when(remoteCache.isEnabled()).thenReturn(true);
+    Mockito.when(remoteCache.download("com/test/test-lib/test-classes-abcd-1234.zip", zipFile))
+        .thenReturn(true);
+
+    assertTrue(buildCache.useCachedTestClasses(session));
+
+    Mockito.verify(fileUtil, Mockito.times(1)).unzip(zipFile,
+        Paths.get("/project/target/test-classes"));
+    ArgumentCaptor<CacheIndex.Entry> entry = ArgumentCaptor.forClass(CacheIndex.Entry.class);
+    Mockito.verify(cacheIndex, Mockito.times(1)).put(Mockito.eq(zipFile.getParent()),
+        entry.capture());
+    assertEquals("test-classes-abcd-1234.zip", entry.getValue().getKey());
+    assertEquals(CacheIndex.KIND_TEST_CLASSES, entry.getValue().getKind());
+  }
+
+  @Test
+  public void testUseCachedTestClassesSkipsRemoteSlowerThanBuild() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTestCompile().setPhaseHash("abcd-1234");
+
+    Path cacheDir = Paths.get("/home/user/.m2/buildcache/com/test/test-lib");
+    Mockito.when(cacheIndex.getEntries(cacheDir)).thenReturn(Arrays.asList(
+        new CacheIndex.Entry("test-classes-1.zip", CacheIndex.KIND_TEST_CLASSES, 0, 1000L, 400L),
+        new CacheIndex.Entry("test-classes-2.zip", CacheIndex.KIND_TEST_CLASSES, 0, 2000L, 0L),
+        new CacheIndex.Entry("test-classes-3.zip", CacheIndex.KIND_TEST_CLASSES, 0, 3000L, 200L),
+        new CacheIndex.Entry("classes-4.zip", CacheIndex.KIND_CLASSES, 0, 4000L, 900L)));
+    Mockito.when(remoteCache.isEnabled()).thenReturn(true);
+    Mockito.when(remoteCache.isFasterThanBuild(Mockito.any(), Mockito.eq(true))).then(a -> {
+      assertEquals(200L, a.getArgument(0, LongSupplier.class).getAsLong());
+      return false;
+    });
+
+    assertFalse(buildCache.useCachedTestClasses(session));
+
+    Mockito.verify(remoteCache, Mockito.never()).download(Mockito.any(), Mockito.any());
+    Mockito.verify(remoteCache).recordSkippedAsSlower();
+  }
+
+  @Test
+  public void testUseCachedTestClassesFromPrefetch() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTestCompile().setPhaseHash("abcd-1234");
+
+    Mockito.when(remoteCache.isEnabled()).thenReturn(true);
+    Mockito.when(remotePrefetcher.awaitDownload("com/test/test-lib/test-classes-abcd-1234.zip"))
+        .thenReturn(Optional.of(true));
+
+    assertTrue(buildCache.useCachedTestClasses(session));
+
+    Mockito.verify(remoteCache, Mockito.never()).download(Mockito.any(), Mockito.any());
+    Mockito.verify(cacheIndex, Mockito.never()).put(Mockito.any(), Mockito.any());
+  }
+
+  @Test
+  public void testUseCachedTestClassesWhenIgnoreSkipsRemote() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTestCompile().setPhaseHash("abcd-1234");
+
+    buildCache.setBuildCacheIgnore(true);
+    Mockito.when(remoteCache.isEnabled()).thenReturn(true);
+
+    assertFalse(buildCache.useCachedTestClasses(session));
+
+    Mockito.verify(remoteCache, Mockito.never()).download(Mockito.any(), Mockito.any());
+  }
+
+  @Test
+  public void testUseCachedTestClassesWhenLockTimesOut() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTestCompile().setPhaseHash("abcd-1234");
+
+    Path zipFile =
+        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/test-classes-abcd-1234.zip");
+    Mockito.when(fileUtil.fileExists(zipFile)).thenReturn(true);
+    Mockito.when(cacheLock.acquireShared(zipFile.getParent())).thenReturn(Optional.empty());
+
+    assertFalse(buildCache.useCachedTestClasses(session));
+
+    Mockito.verify(fileUtil, Mockito.times(1)).fileExists(zipFile);
+    Mockito.verifyNoMoreInteractions(fileUtil);
+  }
+
   @Test
   public void testIsTestExecutionCacheHitWhenCacheHit() throws FileNotFoundException, IOException {
     ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
     projectStatus.getTest().setPhaseHash("abcd-1234");
 
-    Path testCacheFile = Paths.get("/home/user/.m2/buildcache/com/test/test-lib/test-abcd-1234.ok");
-    Mockito.when(fileUtil.fileExists(testCacheFile)).thenReturn(true);
+    Path cacheDir = Paths.get("/home/user/.m2/buildcache/com/test/test-lib");
+    Mockito.when(cacheIndex.get(cacheDir, "test-abcd-1234")).thenReturn(Optional
+        .of(new CacheIndex.Entry("test-abcd-1234", CacheIndex.KIND_TEST, 0, 1000L, 100L)));
 
     assertTrue(buildCache.isTestExecutionCacheHit(session));
+
+    Mockito.verify(fullCacheCleanupExecutor).protectEntry(cacheDir, "test-abcd-1234");
+    Mockito.verify(cacheIndex, Mockito.times(1)).touch(Mockito.eq(cacheDir),
+        Mockito.eq("test-abcd-1234"), Mockito.anyLong());
+    Mockito.verifyNoInteractions(fileUtil);
   }
 
   @Test
@@ -495,12 +989,13 @@ public class BuildCacheTest {
 
     buildCache.setBuildCacheIgnore(true);
 
-    Path testCacheFile = Paths.get("/home/user/.m2/buildcache/com/test/test-lib/test-abcd-1234.ok");
-    Mockito.when(fileUtil.fileExists(testCacheFile)).thenReturn(true);
+    Path cacheDir = Paths.get("/home/user/.m2/buildcache/com/test/test-lib");
+    Mockito.when(cacheIndex.get(cacheDir, "test-abcd-1234")).thenReturn(Optional
+        .of(new CacheIndex.Entry("test-abcd-1234", CacheIndex.KIND_TEST, 0, 1000L, 100L)));
 
     assertFalse(buildCache.isTestExecutionCacheHit(session));
 
-    Mockito.verify(fileUtil, Mockito.times(1)).deleteFile(testCacheFile);
+    Mockito.verify(cacheIndex, Mockito.times(1)).remove(cacheDir, "test-abcd-1234");
   }
 
   @Test
@@ -509,10 +1004,81 @@ public class BuildCacheTest {
     ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
     projectStatus.getTest().setPhaseHash("abcd-1234");
 
-    Path testCacheFile = Paths.get("/home/user/.m2/.mvn/buildcache/test/abcd-1234-test.ok");
-    Mockito.when(fileUtil.fileExists(testCacheFile)).thenReturn(false);
+    Mockito.when(cacheIndex.get(Mockito.any(), Mockito.any())).thenReturn(Optional.empty());
 
     assertFalse(buildCache.isTestExecutionCacheHit(session));
+
+    Mockito.verify(cacheIndex, Mockito.never()).touch(Mockito.any(), Mockito.any(),
+        Mockito.anyLong());
+  }
+
+  @Test
+  public void testIsTestExecutionCacheHitFromReadOnlyCache() {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTest().setPhaseHash("abcd-1234");
+
+    Path cacheDir = Paths.get("/home/user/.m2/buildcache/com/test/test-lib");
+    ReadOnlyCaches.TestExecution testExecution = Mockito.mock(ReadOnlyCaches.TestExecution.class);
+    Mockito.when(testExecution.getEntry())
+        .thenReturn(new CacheIndex.Entry("test-abcd-1234", CacheIndex.KIND_TEST, 0, 1000L, 300L));
+    Mockito.when(testExecution.isCopyToPrimary()).thenReturn(true);
+    Mockito.when(readOnlyCaches.findTestExecution(cacheDir, "test-abcd-1234"))
+        .thenReturn(Optional.of(testExecution));
+    Mockito.when(remoteCache.isEnabled()).thenReturn(true);
+
+    assertTrue(buildCache.isTestExecutionCacheHit(session));
+
+    ArgumentCaptor<CacheIndex.Entry> entry = ArgumentCaptor.forClass(CacheIndex.Entry.class);
+    Mockito.verify(cacheIndex, Mockito.times(1)).put(Mockito.eq(cacheDir), entry.capture());
+    assertEquals("test-abcd-1234", entry.getValue().getKey());
+    assertEquals(300L, entry.getValue().getDurationMillis());
+    Mockito.verifyNoInteractions(remoteCache);
+  }
+
+  @Test
+  public void testIsTestExecutionCacheHitFromRemote() {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTest().setPhaseHash("abcd-1234");
+
+    Path cacheDir = Paths.get("/home/user/.m2/buildcache/com/test/test-lib");
+    Mockito.when(remoteCache.isEnabled()).thenReturn(true);
+    Mockito.when(remoteCache.exists("com/test/test-lib/test-abcd-1234")).thenReturn(true);
+
+    assertTrue(buildCache.isTestExecutionCacheHit(session));
+
+    ArgumentCaptor<CacheIndex.Entry> entry = ArgumentCaptor.forClass(CacheIndex.Entry.class);
+    Mockito.verify(cacheIndex, Mockito.times(1)).put(Mockito.eq(cacheDir), entry.capture());
+    assertEquals("test-abcd-1234", entry.getValue().getKey());
+    assertEquals(CacheIndex.KIND_TEST, entry.getValue().getKind());
+  }
+
+  @Test
+  public void testIsTestExecutionCacheHitSkipsRemoteSlowerThanBuild() {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTest().setPhaseHash("abcd-1234");
+
+    Mockito.when(remoteCache.isEnabled()).thenReturn(true);
+    Mockito.when(remoteCache.isFasterThanBuild(Mockito.any(), Mockito.eq(false)))
+        .thenReturn(false);
+
+    assertFalse(buildCache.isTestExecutionCacheHit(session));
+
+    Mockito.verify(remoteCache, Mockito.never()).exists(Mockito.any());
+    Mockito.verify(remoteCache).recordSkippedAsSlower();
+  }
+
+  @Test
+  public void testIsTestExecutionCacheHitFromPrefetch() {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTest().setPhaseHash("abcd-1234");
+
+    Mockito.when(remoteCache.isEnabled()).thenReturn(true);
+    Mockito.when(remotePrefetcher.awaitExists("com/test/test-lib/test-abcd-1234"))
+        .thenReturn(Optional.of(false));
+
+    assertFalse(buildCache.isTestExecutionCacheHit(session));
+
+    Mockito.verify(remoteCache, Mockito.never()).exists(Mockito.any());
   }
 
   @Test
@@ -521,9 +1087,9 @@ public class BuildCacheTest {
     ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
     projectStatus.getIntegrationTest().setPhaseHash("abcd-1234");
 
-    Path testCacheFile =
-        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/it-test-abcd-1234.ok");
-    Mockito.when(fileUtil.fileExists(testCacheFile)).thenReturn(true);
+    Path cacheDir = Paths.get("/home/user/.m2/buildcache/com/test/test-lib");
+    Mockito.when(cacheIndex.get(cacheDir, "it-test-abcd-1234")).thenReturn(Optional
+        .of(new CacheIndex.Entry("it-test-abcd-1234", CacheIndex.KIND_IT_TEST, 0, 1000L, 100L)));
 
     assertTrue(buildCache.isIntegrationTestExecutionCacheHit(session));
   }
@@ -541,8 +1107,110 @@ public class BuildCacheTest {
 
     Path zipFile = Paths.get("/home/user/.m2/buildcache/com/test/test-lib/classes-abcd-1234.zip");
     Mockito.verify(fileUtil, Mockito.times(1)).scanClassFilesFromDirectory(targetClasses);
-    Mockito.verify(fileUtil, Mockito.times(1)).createZipFile(zipFile, targetClasses, classFiles);
+    Mockito.verify(fileUtil, Mockito.times(1)).createZipFile(zipFile, null, targetClasses,
+        classFiles);
     Mockito.verifyNoMoreInteractions(fileUtil);
+
+    ArgumentCaptor<CacheIndex.Entry> entry = ArgumentCaptor.forClass(CacheIndex.Entry.class);
+    Mockito.verify(cacheIndex, Mockito.times(1)).put(Mockito.eq(zipFile.getParent()),
+        entry.capture());
+    assertEquals("classes-abcd-1234.zip", entry.getValue().getKey());
+    assertEquals(CacheIndex.KIND_CLASSES, entry.getValue().getKind());
+  }
+
+  @Test
+  public void testCacheMainClassesReusesPreviousEntry() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getMainCompile().setPhaseHash("abcd-1234");
+    Path targetClasses = Paths.get("/project/target/classes");
+    String[] classFiles = new String[] {"test.class"};
+    Mockito.when(fileUtil.scanClassFilesFromDirectory(targetClasses)).thenReturn(classFiles);
+    Path cacheDir = Paths.get("/home/user/.m2/buildcache/com/test/test-lib");
+    Mockito.when(cacheIndex.getEntries(cacheDir)).thenReturn(Arrays.asList(
+        new CacheIndex.Entry("classes-1111.zip", CacheIndex.KIND_CLASSES, 10, 1000L, 100L),
+        new CacheIndex.Entry("classes-2222.zip", CacheIndex.KIND_CLASSES, 10, 3000L, 100L),
+        new CacheIndex.Entry("test-classes-3333.zip", CacheIndex.KIND_TEST_CLASSES, 10, 4000L,
+            100L),
+        new CacheIndex.Entry("classes-abcd-1234.zip", CacheIndex.KIND_CLASSES, 10, 5000L, 100L),
+        new CacheIndex.Entry("test-4444", CacheIndex.KIND_TEST, 0, 6000L, 100L)));
+
+    buildCache.cacheMainClasses(session);
+
+    Mockito.verify(fileUtil).createZipFile(cacheDir.resolve("classes-abcd-1234.zip"),
+        cacheDir.resolve("classes-2222.zip"), targetClasses, classFiles);
+    Mockito.verify(fileUtil, Mockito.never()).listFiles(Mockito.any());
+  }
+
+  @Test
+  public void testCacheMainClassesUploadsToRemote() {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getMainCompile().setPhaseHash("abcd-1234");
+    Mockito.when(remoteUploader.isEnabled()).thenReturn(true);
+    Mockito.when(executionTimeRegister.getExecutionTimeMillis(project, MojoExecUtil.PHASE_COMPILE))
+        .thenReturn(1500L);
+
+    buildCache.cacheMainClasses(session);
+
+    Path zipFile = Paths.get("/home/user/.m2/buildcache/com/test/test-lib/classes-abcd-1234.zip");
+    Mockito.verify(remoteUploader, Mockito.times(1))
+        .submit("com/test/test-lib/classes-abcd-1234.zip", zipFile, 0L, 1500L);
+    Mockito.verifyNoInteractions(remoteCache);
+  }
+
+  @Test
+  public void testCacheTestExecutionUploadsToRemote() {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getTest().setPhaseHash("abcd-1234");
+    Mockito.when(remoteUploader.isEnabled()).thenReturn(true);
+    Mockito.when(executionTimeRegister.getExecutionTimeMillis(project, MojoExecUtil.PHASE_TEST))
+        .thenReturn(30000L);
+
+    buildCache.cacheTestExecution(session);
+
+    Mockito.verify(remoteUploader, Mockito.times(1)).submit("com/test/test-lib/test-abcd-1234",
+        new byte[0], 30000L);
+  }
+
+  @Test
+  public void testCacheMainClassesWhenLockTimesOut() throws IOException {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getMainCompile().setPhaseHash("abcd-1234");
+    projectStatus.getMainCompile().setPhaseDetails("abcd");
+    Path targetClasses = Paths.get("/project/target/classes");
+    Mockito.when(fileUtil.scanClassFilesFromDirectory(targetClasses))
+        .thenReturn(new String[] {"test.class"});
+    Path cacheDir = Paths.get("/home/user/.m2/buildcache/com/test/test-lib");
+    Mockito.when(cacheLock.acquireExclusive(cacheDir)).thenReturn(Optional.empty());
+
+    buildCache.cacheMainClasses(session);
+
+    Mockito.verify(fileUtil, Mockito.times(1)).scanClassFilesFromDirectory(targetClasses);
+    Mockito.verifyNoMoreInteractions(fileUtil);
+    Mockito.verify(cacheIndex, Mockito.never()).put(Mockito.any(), Mockito.any());
+  }
+
+  @Test
+  public void testCacheMainClassesWhenLinkRestoreMode() throws FileNotFoundException, IOException {
+    Mockito.when(configuration.isLinkRestoreMode()).thenReturn(true);
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getMainCompile().setPhaseHash("abcd-1234");
+    Path targetClasses = Paths.get("/project/target/classes");
+    String[] classFiles = new String[] {"test.class"};
+    Mockito.when(fileUtil.scanClassFilesFromDirectory(targetClasses)).thenReturn(classFiles);
+
+    buildCache.cacheMainClasses(session);
+
+    Path manifestFile =
+        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/classes-abcd-1234.lnk");
+    Mockito.verify(objectStore, Mockito.times(1)).store(manifestFile, targetClasses, classFiles);
+  }
+
+  @Test
+  public void testUnlinkMainClasses() throws IOException {
+    buildCache.unlinkMainClasses(session);
+
+    Mockito.verify(objectStore, Mockito.times(1)).unlink(Paths.get("/project/target/classes"),
+        Paths.get("/project/target/buildcache-classes.links"));
   }
 
   @Test
@@ -552,7 +1220,8 @@ public class BuildCacheTest {
     Path targetClasses = Paths.get("/project/target/classes");
     String[] classFiles = new String[] {"test.class"};
     Mockito.when(fileUtil.scanClassFilesFromDirectory(targetClasses)).thenReturn(classFiles);
-    Mockito.when(fileUtil.createZipFile(Mockito.any(), Mockito.any(), Mockito.any()))
+    Mockito.when(
+        fileUtil.createZipFile(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any()))
         .thenThrow(IOException.class);
 
     buildCache.cacheMainClasses(session);
@@ -561,6 +1230,74 @@ public class BuildCacheTest {
     Mockito.verify(fileUtil, Mockito.times(1)).deleteFile(zipFile);
   }
 
+  @Test
+  public void testCacheMainClassesWhenAsync() throws Exception {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getMainCompile().setPhaseHash("abcd-1234");
+    Path targetClasses = Paths.get("/project/target/classes");
+    String[] classFiles = new String[] {"test.class"};
+    Map<String, byte[]> snapshot = Collections.singletonMap("test.class", new byte[] {1});
+    Mockito.when(fileUtil.scanClassFilesFromDirectory(targetClasses)).thenReturn(classFiles);
+    Mockito.when(fileUtil.readFiles(targetClasses, classFiles)).thenReturn(snapshot);
+    Mockito.when(cacheWriter.isAsync()).thenReturn(true);
+
+    buildCache.cacheMainClasses(session);
+
+    Path zipFile = Paths.get("/home/user/.m2/buildcache/com/test/test-lib/classes-abcd-1234.zip");
+    ArgumentCaptor<CacheWriter.WriteTask> task =
+        ArgumentCaptor.forClass(CacheWriter.WriteTask.class);
+    Mockito.verify(cacheWriter).submit(Mockito.eq("classes-abcd-1234.zip"), task.capture());
+    Mockito.verify(fileUtil, Mockito.never()).createZipFile(zipFile, null, snapshot);
+
+    Mockito.verify(cacheIndex, Mockito.never()).put(Mockito.any(), Mockito.any());
+
+    task.getValue().write();
+    Mockito.verify(fileUtil, Mockito.times(1)).createZipFile(zipFile, null, snapshot);
+    Mockito.verify(cacheIndex, Mockito.times(1)).put(Mockito.eq(zipFile.getParent()),
+        Mockito.any());
+  }
+
+  @Test
+  public void testCacheMainClassesWhenAsyncWriteFails() throws Exception {
+    ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
+    projectStatus.getMainCompile().setPhaseHash("abcd-1234");
+    Path targetClasses = Paths.get("/project/target/classes");
+    Mockito.when(fileUtil.scanClassFilesFromDirectory(targetClasses)).thenReturn(new String[0]);
+    Mockito.when(fileUtil.readFiles(Mockito.any(), Mockito.any()))
+        .thenReturn(Collections.emptyMap());
+    Mockito.when(fileUtil.createZipFile(Mockito.any(), Mockito.any(), Mockito.anyMap()))
+        .thenThrow(IOException.class);
+    Mockito.when(cacheWriter.isAsync()).thenReturn(true);
+
+    buildCache.cacheMainClasses(session);
+
+    ArgumentCaptor<CacheWriter.WriteTask> task =
+        ArgumentCaptor.forClass(CacheWriter.WriteTask.class);
+    Mockito.verify(cacheWriter).submit(Mockito.any(), task.capture());
+    assertThrows(IOException.class, () -> task.getValue().write());
+
+    Path zipFile = Paths.get("/home/user/.m2/buildcache/com/test/test-lib/classes-abcd-1234.zip");
+    Mockito.verify(fileUtil, Mockito.times(1)).deleteFile(zipFile);
+  }
+
+  @Test
+  public void testFinishSession() throws IOException {
+    Mockito.when(cacheWriter.awaitCompletion()).thenReturn(Collections.singletonList("error"));
+    Logger logger = Mockito.mock(Logger.class);
+    buildCache.setLogger(logger);
+
+    buildCache.finishSession();
+
+    Mockito.verify(cacheWriter).awaitCompletion();
+    InOrder inOrder = Mockito.inOrder(fullCacheCleanupExecutor);
+    inOrder.verify(fullCacheCleanupExecutor).awaitCompletion();
+    inOrder.verify(fullCacheCleanupExecutor).enforceTotalCacheSize();
+    inOrder.verify(fullCacheCleanupExecutor).releaseEntries();
+    Mockito.verify(cacheIndex).flushAccessTimes();
+    Mockito.verify(logger).warn("buildcache: 1 cache entries could not be written");
+    Mockito.verify(logger).warn("buildcache:   error");
+  }
+
   @Test
   public void testCacheTestClasses() throws FileNotFoundException, IOException {
     ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
@@ -575,7 +1312,7 @@ public class BuildCacheTest {
     Path zipFile =
         Paths.get("/home/user/.m2/buildcache/com/test/test-lib/test-classes-abcd-1234.zip");
     Mockito.verify(fileUtil, Mockito.times(1)).scanClassFilesFromDirectory(targetTestClasses);
-    Mockito.verify(fileUtil, Mockito.times(1)).createZipFile(zipFile, targetTestClasses,
+    Mockito.verify(fileUtil, Mockito.times(1)).createZipFile(zipFile, null, targetTestClasses,
         classFiles);
     Mockito.verifyNoMoreInteractions(fileUtil);
   }
@@ -585,11 +1322,18 @@ public class BuildCacheTest {
     ProjectBuildStatus projectStatus = buildCache.getProjectStatus(session);
     projectStatus.getTest().setPhaseHash("abcd-1234");
 
+    Mockito.when(executionTimeRegister.getExecutionTimeMillis(project, MojoExecUtil.PHASE_TEST))
+        .thenReturn(1500L);
+
     buildCache.cacheTestExecution(session);
 
-    Path testSuccessCacheFile =
-        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/test-abcd-1234.ok");
-    Mockito.verify(fileUtil, Mockito.times(1)).writeFile(testSuccessCacheFile, "");
+    ArgumentCaptor<CacheIndex.Entry> entry = ArgumentCaptor.forClass(CacheIndex.Entry.class);
+    Mockito.verify(cacheIndex, Mockito.times(1))
+        .put(Mockito.eq(Paths.get("/home/user/.m2/buildcache/com/test/test-lib")), entry.capture());
+    assertEquals("test-abcd-1234", entry.getValue().getKey());
+    assertEquals(CacheIndex.KIND_TEST, entry.getValue().getKind());
+    assertEquals(1500L, entry.getValue().getDurationMillis());
+    Mockito.verifyNoInteractions(fileUtil);
   }
 
   @Test
@@ -599,9 +1343,11 @@ public class BuildCacheTest {
 
     buildCache.cacheIntegrationTestExecution(session);
 
-    Path testSuccessCacheFile =
-        Paths.get("/home/user/.m2/buildcache/com/test/test-lib/it-test-abcd-1234.ok");
-    Mockito.verify(fileUtil, Mockito.times(1)).writeFile(testSuccessCacheFile, "");
+    ArgumentCaptor<CacheIndex.Entry> entry = ArgumentCaptor.forClass(CacheIndex.Entry.class);
+    Mockito.verify(cacheIndex, Mockito.times(1))
+        .put(Mockito.eq(Paths.get("/home/user/.m2/buildcache/com/test/test-lib")), entry.capture());
+    assertEquals("it-test-abcd-1234", entry.getValue().getKey());
+    assertEquals(CacheIndex.KIND_IT_TEST, entry.getValue().getKind());
   }
 
   @Test
@@ -5,20 +5,36 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.codehaus.plexus.logging.Logger;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
 public class CacheCleanupExecutorTest {
 
   private Configuration configuration;
   private FileUtil fileUtil;
+  private ObjectStore objectStore;
+  private CacheIndex cacheIndex;
+  private CacheLedger cacheLedger;
+  private CacheLock cacheLock;
+  private CacheTiers cacheTiers;
   private Logger logger;
 
   private CacheCleanupExecutor executor;
@@ -26,7 +42,7 @@ public class CacheCleanupExecutorTest {
   private static final long NOW = toEpochMillis("2021-09-14T10:00:00Z");
 
   @BeforeEach
-  public void init() {
+  public void init() throws IOException {
     this.configuration = Mockito.mock(Configuration.class);
     Mockito.when(this.configuration.getCacheDirectory()).thenReturn("/user/home/.m2/buildcache");
     Mockito.when(this.configuration.getProjectCacheMaxAge()).thenReturn(null);
@@ -37,8 +53,23 @@ public class CacheCleanupExecutorTest {
     this.fileUtil = Mockito.mock(FileUtil.class);
     this.logger = Mockito.mock(Logger.class);
 
+    this.objectStore = Mockito.mock(ObjectStore.class);
+    Mockito.when(this.objectStore.collectGarbage(Mockito.any())).thenReturn(new long[2]);
+
     executor = new CacheCleanupExecutor();
     executor.setFileUtil(fileUtil);
+    executor.setObjectStore(objectStore);
+    this.cacheIndex = Mockito.mock(CacheIndex.class);
+    executor.setCacheIndex(cacheIndex);
+    this.cacheLedger = Mockito.mock(CacheLedger.class);
+    executor.setCacheLedger(cacheLedger);
+    this.cacheLock = Mockito.mock(CacheLock.class);
+    Mockito.when(cacheLock.acquireExclusive(Mockito.any()))
+        .thenReturn(Optional.of(Mockito.mock(CacheLock.Lock.class)));
+    executor.setCacheLock(cacheLock);
+    executor.setCacheDaemonClient(new CacheDaemonClient());
+    this.cacheTiers = Mockito.mock(CacheTiers.class);
+    executor.setCacheTiers(cacheTiers);
     executor.setLogger(logger);
   }
 
@@ -51,7 +82,12 @@ public class CacheCleanupExecutorTest {
     assertTrue(isBuildCacheFile("37c1e2c0853b2596629532054426fc8c-test.txt"));
     assertTrue(isBuildCacheFile("37c1e2c0853b2596629532054426fc8c-test.ok"));
 
+    assertTrue(isBuildCacheFile("classes-fada9a5d114c919f8406af300ac16c95.zip"));
+    assertTrue(isBuildCacheFile("test-classes-4196bea62dd477ad658a6c62553770d9.lnk"));
+    assertTrue(isBuildCacheFile("it-test-37c1e2c0853b2596629532054426fc8c.txt"));
+
     assertFalse(isBuildCacheFile("fada.zip"));
+    assertFalse(isBuildCacheFile(CacheIndex.INDEX_FILE));
     assertFalse(isBuildCacheFile("fada9a5d114c919f8406af300ac16c95-.zip"));
   }
 
@@ -160,9 +196,11 @@ public class CacheCleanupExecutorTest {
     executor.fullCacheCleanup();
 
     Mockito.verify(fileUtil).deleteFile(testFiles1[4]);
+    Mockito.verify(fileUtil).deleteFile(testFiles1[5]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[6]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[7]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[4]);
+    Mockito.verify(fileUtil).deleteFile(testFiles2[5]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[6]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[7]);
     Mockito.verify(fileUtil, Mockito.times(3)).listFiles(Mockito.any());
@@ -182,9 +220,11 @@ public class CacheCleanupExecutorTest {
     executor.fullCacheCleanup();
 
     Mockito.verify(fileUtil).deleteFile(testFiles1[4]);
+    Mockito.verify(fileUtil).deleteFile(testFiles1[5]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[6]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[7]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[4]);
+    Mockito.verify(fileUtil).deleteFile(testFiles2[5]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[6]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[7]);
     Mockito.verify(fileUtil, Mockito.times(3)).listFiles(Mockito.any());
@@ -208,11 +248,13 @@ public class CacheCleanupExecutorTest {
     executor.fullCacheCleanup();
 
     Mockito.verify(fileUtil).deleteFile(testFiles1[2]);
+    Mockito.verify(fileUtil).deleteFile(testFiles1[3]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[4]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[5]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[6]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[7]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[2]);
+    Mockito.verify(fileUtil).deleteFile(testFiles2[3]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[4]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[5]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[6]);
@@ -234,11 +276,13 @@ public class CacheCleanupExecutorTest {
     executor.fullCacheCleanup();
 
     Mockito.verify(fileUtil).deleteFile(testFiles1[2]);
+    Mockito.verify(fileUtil).deleteFile(testFiles1[3]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[4]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[5]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[6]);
     Mockito.verify(fileUtil).deleteFile(testFiles1[7]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[2]);
+    Mockito.verify(fileUtil).deleteFile(testFiles2[3]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[4]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[5]);
     Mockito.verify(fileUtil).deleteFile(testFiles2[6]);
@@ -247,6 +291,53 @@ public class CacheCleanupExecutorTest {
     Mockito.verifyNoMoreInteractions(fileUtil);
   }
 
+  @Test
+  public void testFullCleanupWithGlobalCacheSizeLimitOverManyDirectories() throws IOException {
+    Mockito.when(configuration.hasTotalCacheMaxSizeMb()).thenReturn(true);
+    Mockito.when(configuration.getTotalCacheMaxSizeMb()).thenReturn(1);
+
+    int dirCount = 64;
+    File[] dirs = new File[dirCount];
+    File[] zipFiles = new File[dirCount];
+    for (int i = 0; i < dirCount; i++) {
+      dirs[i] = mockDir("project" + i);
+      zipFiles[i] = mockFile("classes-" + hash('a') + ".zip",
+          Instant.ofEpochMilli(NOW).minusSeconds(dirCount - i).toString(), kb(32));
+    }
+    Mockito.when(fileUtil.listFiles(Mockito.any())).thenAnswer(invocation -> {
+      String dir = invocation.getArgument(0, File.class).getName();
+      if ("buildcache".equals(dir)) {
+        return dirs;
+      }
+      return new File[] {zipFiles[Integer.parseInt(dir.substring("project".length()))]};
+    });
+
+    executor.initialize(configuration, NOW);
+    executor.fullCacheCleanup();
+
+    for (int i = 0; i < dirCount / 2; i++) {
+      Mockito.verify(fileUtil).deleteFile(zipFiles[i]);
+    }
+    Mockito.verify(fileUtil, Mockito.times(dirCount + 1)).listFiles(Mockito.any());
+    Mockito.verifyNoMoreInteractions(fileUtil);
+    Mockito.verify(logger)
+        .info("buildcache: full clean deleted 32 files (1.0 Mb) in 0 seconds");
+  }
+
+  @Test
+  public void testFullCleanupCollectsObjectStoreGarbage() throws IOException {
+    File manifest =
+        mockFile("classes-aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa.lnk", "2021-09-14T10:00:00Z", 1);
+    mockCacheDirFiles(new File[] {manifest}, new File[0]);
+    Mockito.when(objectStore.collectGarbage(Mockito.any())).thenReturn(new long[] {2, 2048});
+
+    executor.initialize(configuration, NOW);
+    executor.fullCacheCleanup();
+
+    Mockito.verify(objectStore).collectGarbage(Arrays.asList(manifest));
+    Mockito.verify(logger).info("buildcache: full clean deleted 2 files (2.0 Kb) in 0 seconds");
+  }
+
   @Test
   public void testProjectCleanup() throws IOException {
     Mockito.when(configuration.hasProjectCacheMaxAge()).thenReturn(true);
@@ -311,6 +402,488 @@ public class CacheCleanupExecutorTest {
     return new File[] {f0, f1, f2, f3, f4, f5, f6, f7, f8};
   }
 
+  @Test
+  public void testProjectCleanupDeletesStaleTempFiles() throws IOException {
+    File stale = mockFile(".classes-abcd.zip.123.tmp", "2021-09-14T08:59:59Z", 1);
+    File inProgress = mockFile(".classes-efgh.zip.456.tmp", "2021-09-14T09:30:00Z", 1);
+    File dir = mockDir("test-lib");
+    Mockito.when(fileUtil.listFiles(dir)).thenReturn(new File[] {stale, inProgress});
+
+    executor.initialize(configuration, NOW);
+    executor.projectCacheCleanup(dir);
+
+    Mockito.verify(fileUtil).deleteFile(stale);
+    Mockito.verify(fileUtil).listFiles(dir);
+    Mockito.verifyNoMoreInteractions(fileUtil);
+  }
+
+  @Test
+  public void testProjectCleanupFromIndex() throws IOException {
+    Mockito.when(configuration.hasProjectCacheMaxAge()).thenReturn(true);
+    Mockito.when(configuration.getProjectCacheMaxAge()).thenReturn(Duration.ofDays(10));
+    Mockito.when(configuration.hasProjectCacheMaxEntries()).thenReturn(true);
+    Mockito.when(configuration.getProjectCacheMaxEntries()).thenReturn(1);
+
+    Path projectDir = Files.createTempDirectory("buildcache-maven-extension-");
+    try {
+      File zip1 = createFile(projectDir, "classes-" + hash('a') + ".zip");
+      File details1 = createFile(projectDir, "classes-" + hash('a') + ".txt");
+      File zip2 = createFile(projectDir, "classes-" + hash('b') + ".zip");
+
+      Mockito.when(cacheIndex.getReconciledAt(projectDir)).thenReturn(NOW - 1000);
+      Mockito.when(cacheIndex.getEntries(projectDir)).thenReturn(Arrays.asList(
+          indexEntry(zip1.getName(), "2021-09-13T10:00:00Z"),
+          indexEntry(zip2.getName(), "2021-09-14T10:00:00Z"),
+          indexEntry("test-" + hash('c'), "2021-09-01T10:00:00Z")));
+
+      executor.initialize(configuration, NOW);
+      executor.projectCacheCleanup(projectDir.toFile());
+
+      Mockito.verify(fileUtil).deleteFile(zip1);
+      Mockito.verify(fileUtil).deleteFile(details1);
+      Mockito.verifyNoMoreInteractions(fileUtil);
+      Mockito.verify(cacheIndex).remove(projectDir, zip1.getName());
+      Mockito.verify(cacheIndex).remove(projectDir, "test-" + hash('c'));
+      Mockito.verify(cacheIndex, Mockito.never()).remove(projectDir, zip2.getName());
+      Mockito.verify(cacheTiers).delete(zip1.toPath());
+      Mockito.verifyNoMoreInteractions(cacheTiers);
+    } finally {
+      FileUtils.deleteQuietly(projectDir.toFile());
+    }
+  }
+
+  @Test
+  public void testProjectCleanupReconcilesIndex() throws IOException {
+    File newZip = mockFile("classes-" + hash('a') + ".zip", "2021-09-14T09:00:00Z", kb(10));
+    File legacyTestResult = mockFile("test-" + hash('b') + ".ok", "2021-09-14T09:00:00Z", 0);
+    File index = mockFile(CacheIndex.INDEX_FILE, "2021-09-14T09:00:00Z", 1);
+    File projectDir = new File("project-dir");
+    Mockito.when(fileUtil.listFiles(projectDir))
+        .thenReturn(new File[] {newZip, legacyTestResult, index});
+
+    String missingZip = "test-classes-" + hash('c') + ".zip";
+    String testResult = "it-test-" + hash('d');
+    Mockito.when(cacheIndex.getEntries(projectDir.toPath())).thenReturn(Arrays.asList(
+        indexEntry(missingZip, "2021-09-14T08:00:00Z"),
+        indexEntry(testResult, "2021-09-14T08:00:00Z")));
+
+    executor.initialize(configuration, NOW);
+    executor.projectCacheCleanup(projectDir);
+
+    ArgumentCaptor<CacheIndex.Entry> added = ArgumentCaptor.forClass(CacheIndex.Entry.class);
+    Mockito.verify(cacheIndex, Mockito.times(2)).put(Mockito.eq(projectDir.toPath()),
+        added.capture());
+    assertEquals(newZip.getName(), added.getAllValues().get(0).getKey());
+    assertEquals(CacheIndex.KIND_CLASSES, added.getAllValues().get(0).getKind());
+    assertEquals(kb(10), added.getAllValues().get(0).getSize());
+    assertEquals("test-" + hash('b'), added.getAllValues().get(1).getKey());
+    assertEquals(CacheIndex.KIND_TEST, added.getAllValues().get(1).getKind());
+    Mockito.verify(cacheIndex).remove(projectDir.toPath(), missingZip);
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectDir.toPath(), testResult);
+    Mockito.verify(cacheIndex).setReconciledAt(projectDir.toPath(), NOW);
+  }
+
+  @Test
+  public void testProjectCleanupRemovesExpiredTestResults() throws IOException {
+    Mockito.when(configuration.hasProjectCacheMaxAge()).thenReturn(true);
+    Mockito.when(configuration.getProjectCacheMaxAge()).thenReturn(Duration.ofDays(10));
+
+    File index = mockFile(CacheIndex.INDEX_FILE, "2021-09-14T09:00:00Z", 1);
+    File projectDir = new File("project-dir");
+    Mockito.when(fileUtil.listFiles(projectDir)).thenReturn(new File[] {index});
+    Mockito.when(cacheIndex.getEntries(projectDir.toPath())).thenReturn(Arrays.asList(
+        indexEntry("test-" + hash('a'), "2021-09-01T08:00:00Z"),
+        indexEntry("test-" + hash('b'), "2021-09-14T08:00:00Z")));
+
+    executor.initialize(configuration, NOW);
+    executor.projectCacheCleanup(projectDir);
+
+    Mockito.verify(cacheIndex).remove(projectDir.toPath(), "test-" + hash('a'));
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectDir.toPath(), "test-" + hash('b'));
+    Mockito.verify(fileUtil, Mockito.never()).deleteFile(index);
+  }
+
+  @Test
+  public void testProjectCleanupKeepsProtectedEntries() throws IOException {
+    Mockito.when(configuration.hasProjectCacheMaxAge()).thenReturn(true);
+    Mockito.when(configuration.getProjectCacheMaxAge()).thenReturn(Duration.ofDays(10));
+    Mockito.when(configuration.hasProjectCacheMaxEntries()).thenReturn(true);
+    Mockito.when(configuration.getProjectCacheMaxEntries()).thenReturn(1);
+
+    File projectDir = new File("project-dir");
+    File expired = mockFile("classes-" + hash('a') + ".zip", "2021-09-01T10:00:00Z", 1);
+    File older = mockFile("classes-" + hash('b') + ".zip", "2021-09-13T10:00:00Z", 1);
+    File newer = mockFile("classes-" + hash('c') + ".zip", "2021-09-14T10:00:00Z", 1);
+    Mockito.when(fileUtil.listFiles(projectDir)).thenReturn(new File[] {expired, older, newer});
+
+    executor.initialize(configuration, NOW);
+    executor.protectEntry(projectDir.toPath(), expired.getName());
+    executor.protectEntry(projectDir.toPath(), older.getName());
+    executor.projectCacheCleanup(projectDir);
+
+    Mockito.verify(fileUtil).deleteFile(newer);
+    Mockito.verify(fileUtil).listFiles(projectDir);
+    Mockito.verifyNoMoreInteractions(fileUtil);
+  }
+
+  @Test
+  public void testBackgroundProjectCleanup() throws Exception {
+    Mockito.when(configuration.hasProjectCacheMaxAge()).thenReturn(true);
+    Mockito.when(configuration.getProjectCacheMaxAge()).thenReturn(Duration.ofDays(10));
+
+    File projectDir = new File("project-dir");
+    File expired = mockFile("classes-" + hash('a') + ".zip", "2021-09-01T10:00:00Z", 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Mockito.when(fileUtil.listFiles(Mockito.any())).thenAnswer(invocation -> {
+      if (projectDir.equals(invocation.getArgument(0))) {
+        return new File[] {expired};
+      }
+      started.countDown();
+      release.await();
+      return new File[0];
+    });
+
+    executor.initialize(configuration, NOW);
+    executor.submitProjectCleanup(new File("blocking-dir"));
+    started.await();
+    executor.submitProjectCleanup(projectDir);
+    executor.submitProjectCleanup(projectDir);
+    release.countDown();
+    executor.awaitCompletion();
+
+    Mockito.verify(fileUtil, Mockito.times(1)).listFiles(projectDir);
+    Mockito.verify(fileUtil).deleteFile(expired);
+  }
+
+  @Test
+  public void testProjectCleanupWithCostAwareEviction() throws IOException {
+    Mockito.when(configuration.hasProjectCacheMaxEntries()).thenReturn(true);
+    Mockito.when(configuration.getProjectCacheMaxEntries()).thenReturn(2);
+    Mockito.when(configuration.isCostAwareEviction()).thenReturn(true);
+
+    String slowCompile = "classes-" + hash('a') + ".zip";
+    String fastCompile = "classes-" + hash('b') + ".zip";
+    String largeFastCompile = "test-classes-" + hash('c') + ".zip";
+    Path projectDir = Paths.get("project-dir");
+    Mockito.when(cacheIndex.getReconciledAt(projectDir)).thenReturn(NOW);
+    Mockito.when(cacheIndex.getEntries(projectDir)).thenReturn(Arrays.asList(
+        indexEntry(slowCompile, "2021-09-10T10:00:00Z", kb(100), 240_000),
+        indexEntry(fastCompile, "2021-09-13T10:00:00Z", kb(100), 200),
+        indexEntry(largeFastCompile, "2021-09-14T10:00:00Z", kb(3000), 2000)));
+
+    executor.initialize(configuration, NOW);
+    executor.projectCacheCleanup(projectDir.toFile());
+
+    Mockito.verify(cacheIndex).remove(projectDir, fastCompile);
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectDir, slowCompile);
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectDir, largeFastCompile);
+  }
+
+  @Test
+  public void testProjectCleanupWithLruEviction() throws IOException {
+    Mockito.when(configuration.hasProjectCacheMaxEntries()).thenReturn(true);
+    Mockito.when(configuration.getProjectCacheMaxEntries()).thenReturn(2);
+
+    String slowCompile = "classes-" + hash('a') + ".zip";
+    String fastCompile = "classes-" + hash('b') + ".zip";
+    Path projectDir = Paths.get("project-dir");
+    Mockito.when(cacheIndex.getReconciledAt(projectDir)).thenReturn(NOW);
+    Mockito.when(cacheIndex.getEntries(projectDir)).thenReturn(Arrays.asList(
+        indexEntry(slowCompile, "2021-09-10T10:00:00Z", kb(100), 240_000),
+        indexEntry(fastCompile, "2021-09-13T10:00:00Z", kb(100), 200),
+        indexEntry("classes-" + hash('c') + ".zip", "2021-09-14T10:00:00Z", kb(100), 200)));
+
+    executor.initialize(configuration, NOW);
+    executor.projectCacheCleanup(projectDir.toFile());
+
+    Mockito.verify(cacheIndex).remove(projectDir, slowCompile);
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectDir, fastCompile);
+  }
+
+  @Test
+  public void testEnforceTotalCacheSizeWithoutLedgerPerformsFullClean() throws IOException {
+    Mockito.when(configuration.hasTotalCacheMaxSizeMb()).thenReturn(true);
+    Mockito.when(configuration.getTotalCacheMaxSizeMb()).thenReturn(1);
+    mockCacheDirFiles(new File[0], new File[0]);
+
+    executor.initialize(configuration, NOW);
+    executor.enforceTotalCacheSize();
+
+    Mockito.verify(cacheLedger).replace(Mockito.eq(Paths.get("/user/home/.m2/buildcache")),
+        Mockito.any());
+    Mockito.verify(logger).info("buildcache: cache size ledger not found, performing full clean");
+  }
+
+  @Test
+  public void testEnforceTotalCacheSizeEvictsOldestEntriesAcrossProjects() throws IOException {
+    Mockito.when(configuration.hasTotalCacheMaxSizeMb()).thenReturn(true);
+    Mockito.when(configuration.getTotalCacheMaxSizeMb()).thenReturn(1);
+
+    Path cacheRoot = Paths.get("/user/home/.m2/buildcache");
+    Path projectA = cacheRoot.resolve("project-a");
+    Path projectB = cacheRoot.resolve("project-b");
+    String a1 = "classes-" + hash('a') + ".zip";
+    String a2 = "classes-" + hash('b') + ".zip";
+    String b1 = "classes-" + hash('c') + ".zip";
+    String b2 = "classes-" + hash('d') + ".zip";
+    Mockito.when(cacheIndex.getEntries(projectA)).thenReturn(Arrays.asList(
+        indexEntry(a1, "2021-09-10T10:00:00Z", kb(512), 0),
+        indexEntry(a2, "2021-09-13T10:00:00Z", kb(256), 0)));
+    Mockito.when(cacheIndex.getEntries(projectB)).thenReturn(Arrays.asList(
+        indexEntry(b1, "2021-09-11T10:00:00Z", kb(256), 0),
+        indexEntry(b2, "2021-09-14T10:00:00Z", kb(256), 0)));
+
+    Map<String, CacheLedger.Usage> ledger = new TreeMap<>();
+    ledger.put("project-a", new CacheLedger.Usage(kb(768), toEpochMillis("2021-09-10T10:00:00Z")));
+    ledger.put("project-b", new CacheLedger.Usage(kb(512), toEpochMillis("2021-09-11T10:00:00Z")));
+    Mockito.when(cacheLedger.exists(cacheRoot)).thenReturn(true);
+    Mockito.when(cacheLedger.update(Mockito.eq(cacheRoot), Mockito.any())).thenReturn(ledger);
+
+    executor.initialize(configuration, NOW);
+    executor.enforceTotalCacheSize();
+
+    Mockito.verify(cacheIndex).remove(projectA, a1);
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectA, a2);
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectB, b1);
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectB, b2);
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Map<String, CacheLedger.Usage>> changes = ArgumentCaptor.forClass(Map.class);
+    Mockito.verify(cacheLedger, Mockito.times(2)).update(Mockito.eq(cacheRoot),
+        changes.capture());
+    assertEquals(kb(256), changes.getValue().get("project-a").getSizeBytes());
+    Mockito.verify(cacheLedger, Mockito.never()).invalidate(cacheRoot);
+    Mockito.verify(fileUtil, Mockito.never()).listFiles(Mockito.any());
+  }
+
+  @Test
+  public void testEnforceTotalCacheSizeWithCostAwareEviction() throws IOException {
+    Mockito.when(configuration.hasTotalCacheMaxSizeMb()).thenReturn(true);
+    Mockito.when(configuration.getTotalCacheMaxSizeMb()).thenReturn(1);
+    Mockito.when(configuration.isCostAwareEviction()).thenReturn(true);
+
+    Path cacheRoot = Paths.get("/user/home/.m2/buildcache");
+    Path projectA = cacheRoot.resolve("project-a");
+    Path projectB = cacheRoot.resolve("project-b");
+    String slowCompile = "classes-" + hash('a') + ".zip";
+    String fastCompile = "classes-" + hash('b') + ".zip";
+    String b1 = "classes-" + hash('c') + ".zip";
+    Mockito.when(cacheIndex.getEntries(projectA)).thenReturn(Arrays.asList(
+        indexEntry(slowCompile, "2021-09-10T10:00:00Z", kb(512), 240_000),
+        indexEntry(fastCompile, "2021-09-12T10:00:00Z", kb(512), 200)));
+    Mockito.when(cacheIndex.getEntries(projectB))
+        .thenReturn(Arrays.asList(indexEntry(b1, "2021-09-14T10:00:00Z", kb(256), 200)));
+
+    Map<String, CacheLedger.Usage> ledger = new TreeMap<>();
+    ledger.put("project-a", new CacheLedger.Usage(kb(1024), toEpochMillis("2021-09-10T10:00:00Z")));
+    ledger.put("project-b", new CacheLedger.Usage(kb(256), toEpochMillis("2021-09-14T10:00:00Z")));
+    Mockito.when(cacheLedger.exists(cacheRoot)).thenReturn(true);
+    Mockito.when(cacheLedger.update(Mockito.eq(cacheRoot), Mockito.any())).thenReturn(ledger);
+
+    executor.initialize(configuration, NOW);
+    executor.enforceTotalCacheSize();
+
+    Mockito.verify(cacheIndex).remove(projectA, fastCompile);
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectA, slowCompile);
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectB, b1);
+  }
+
+  @Test
+  public void testEnforceTotalCacheSizeKeepsProtectedEntries() throws IOException {
+    Mockito.when(configuration.hasTotalCacheMaxSizeMb()).thenReturn(true);
+    Mockito.when(configuration.getTotalCacheMaxSizeMb()).thenReturn(1);
+
+    Path cacheRoot = Paths.get("/user/home/.m2/buildcache");
+    Path projectA = cacheRoot.resolve("project-a");
+    String a1 = "classes-" + hash('a') + ".zip";
+    String a2 = "classes-" + hash('b') + ".zip";
+    Mockito.when(cacheIndex.getEntries(projectA)).thenReturn(Arrays.asList(
+        indexEntry(a1, "2021-09-10T10:00:00Z", kb(768), 0),
+        indexEntry(a2, "2021-09-13T10:00:00Z", kb(512), 0)));
+
+    Map<String, CacheLedger.Usage> ledger = new TreeMap<>();
+    ledger.put("project-a", new CacheLedger.Usage(kb(1280), toEpochMillis("2021-09-10T10:00:00Z")));
+    Mockito.when(cacheLedger.exists(cacheRoot)).thenReturn(true);
+    Mockito.when(cacheLedger.update(Mockito.eq(cacheRoot), Mockito.any())).thenReturn(ledger);
+
+    executor.initialize(configuration, NOW);
+    executor.protectEntry(projectA, a1);
+    executor.awaitCompletion();
+    executor.enforceTotalCacheSize();
+
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectA, a1);
+    Mockito.verify(cacheIndex).remove(projectA, a2);
+  }
+
+  @Test
+  public void testEnforceFreeDiskSpaceWatermarks() throws IOException {
+    Mockito.when(configuration.hasMinFreeDiskSpaceMb()).thenReturn(true);
+    Mockito.when(configuration.getMinFreeDiskSpaceMb()).thenReturn(1);
+    Mockito.when(configuration.getTargetFreeDiskSpaceMb()).thenReturn(2);
+
+    Path cacheRoot = Paths.get("/user/home/.m2/buildcache");
+    Path projectDir = cacheRoot.resolve("project-a");
+    String oldest = "classes-" + hash('a') + ".zip";
+    String older = "classes-" + hash('b') + ".zip";
+    String newest = "classes-" + hash('c') + ".zip";
+    Mockito.when(cacheIndex.getEntries(projectDir)).thenReturn(Arrays.asList(
+        indexEntry(oldest, "2021-09-10T10:00:00Z", kb(768), 0),
+        indexEntry(older, "2021-09-11T10:00:00Z", kb(768), 0),
+        indexEntry(newest, "2021-09-12T10:00:00Z", kb(768), 0)));
+
+    Map<String, CacheLedger.Usage> ledger = new TreeMap<>();
+    ledger.put("project-a", new CacheLedger.Usage(kb(3 * 768),
+        toEpochMillis("2021-09-10T10:00:00Z")));
+    Mockito.when(cacheLedger.exists(cacheRoot)).thenReturn(true);
+    Mockito.when(cacheLedger.update(Mockito.eq(cacheRoot), Mockito.any())).thenReturn(ledger);
+    Mockito.when(fileUtil.getUsableSpace(cacheRoot)).thenReturn((long) kb(512));
+
+    executor.initialize(configuration, NOW);
+    executor.enforceTotalCacheSize();
+
+    Mockito.verify(cacheIndex).remove(projectDir, oldest);
+    Mockito.verify(cacheIndex).remove(projectDir, older);
+    Mockito.verify(cacheIndex, Mockito.never()).remove(projectDir, newest);
+    Mockito.verify(logger)
+        .info("buildcache: free disk space 512.0 Kb is below 1.0 Mb, evicting cache entries");
+  }
+
+  @Test
+  public void testFreeDiskSpaceAboveLowWatermark() throws IOException {
+    Mockito.when(configuration.hasMinFreeDiskSpaceMb()).thenReturn(true);
+    Mockito.when(configuration.getMinFreeDiskSpaceMb()).thenReturn(1);
+    Mockito.when(configuration.getTargetFreeDiskSpaceMb()).thenReturn(2);
+
+    Path cacheRoot = Paths.get("/user/home/.m2/buildcache");
+    Map<String, CacheLedger.Usage> ledger = new TreeMap<>();
+    ledger.put("project-a", new CacheLedger.Usage(kb(3 * 768), NOW));
+    Mockito.when(cacheLedger.exists(cacheRoot)).thenReturn(true);
+    Mockito.when(cacheLedger.update(Mockito.eq(cacheRoot), Mockito.any())).thenReturn(ledger);
+    Mockito.when(fileUtil.getUsableSpace(cacheRoot)).thenReturn((long) kb(1024));
+
+    executor.initialize(configuration, NOW);
+    executor.enforceTotalCacheSize();
+
+    Mockito.verifyNoInteractions(cacheIndex);
+    Mockito.verify(cacheLedger, Mockito.times(1)).update(Mockito.eq(cacheRoot), Mockito.any());
+  }
+
+  @Test
+  public void testProjectCleanupSkippedWhenLocked() throws IOException {
+    File zip = mockFile("classes-" + hash('a') + ".zip", "2021-09-14T09:00:00Z", kb(10));
+    File projectDir = new File("project-dir");
+    Mockito.when(fileUtil.listFiles(projectDir)).thenReturn(new File[] {zip});
+    Mockito.when(cacheLock.acquireExclusive(projectDir.toPath())).thenReturn(Optional.empty());
+
+    executor.initialize(configuration, NOW);
+    executor.projectCacheCleanup(projectDir);
+
+    Mockito.verify(cacheIndex).getReconciledAt(projectDir.toPath());
+    Mockito.verifyNoMoreInteractions(cacheIndex);
+    Mockito.verify(fileUtil, Mockito.never()).deleteFile(Mockito.any(File.class));
+  }
+
+  @Test
+  public void testProjectCleanupListsDirectoryWithoutLock() throws IOException {
+    Path projectDir = Files.createTempDirectory("buildcache-maven-extension-");
+    try {
+      File index = mockFile(CacheIndex.INDEX_FILE, "2021-09-14T09:00:00Z", 1);
+      Mockito.when(fileUtil.listFiles(projectDir.toFile())).thenReturn(new File[] {index});
+      // written by a build after the directory was listed
+      File newZip = createFile(projectDir, "classes-" + hash('a') + ".zip");
+      Mockito.when(cacheIndex.getEntries(projectDir))
+          .thenReturn(Arrays.asList(indexEntry(newZip.getName(), "2021-09-14T09:30:00Z")));
+
+      executor.initialize(configuration, NOW);
+      executor.projectCacheCleanup(projectDir.toFile());
+
+      InOrder inOrder = Mockito.inOrder(fileUtil, cacheLock, cacheIndex);
+      inOrder.verify(fileUtil).listFiles(projectDir.toFile());
+      inOrder.verify(cacheLock).acquireExclusive(projectDir);
+      inOrder.verify(cacheIndex).setReconciledAt(projectDir, NOW);
+      Mockito.verify(cacheIndex, Mockito.never()).remove(Mockito.any(), Mockito.any());
+    } finally {
+      FileUtils.deleteQuietly(projectDir.toFile());
+    }
+  }
+
+  @Test
+  public void testEnforceTotalCacheSizeSkipsLockedProjects() throws IOException {
+    Mockito.when(configuration.hasTotalCacheMaxSizeMb()).thenReturn(true);
+    Mockito.when(configuration.getTotalCacheMaxSizeMb()).thenReturn(1);
+
+    Path cacheRoot = Paths.get("/user/home/.m2/buildcache");
+    Path projectA = cacheRoot.resolve("project-a");
+    Path projectB = cacheRoot.resolve("project-b");
+    String b1 = "classes-" + hash('c') + ".zip";
+    Mockito.when(cacheIndex.getEntries(projectB)).thenReturn(Arrays.asList(
+        indexEntry(b1, "2021-09-11T10:00:00Z", kb(1024), 0)));
+    Mockito.when(cacheLock.acquireExclusive(projectA)).thenReturn(Optional.empty());
+
+    Map<String, CacheLedger.Usage> ledger = new TreeMap<>();
+    ledger.put("project-a", new CacheLedger.Usage(kb(768), toEpochMillis("2021-09-10T10:00:00Z")));
+    ledger.put("project-b", new CacheLedger.Usage(kb(1024),
+        toEpochMillis("2021-09-11T10:00:00Z")));
+    Mockito.when(cacheLedger.exists(cacheRoot)).thenReturn(true);
+    Mockito.when(cacheLedger.update(Mockito.eq(cacheRoot), Mockito.any())).thenReturn(ledger);
+
+    executor.initialize(configuration, NOW);
+    executor.enforceTotalCacheSize();
+
+    Mockito.verify(cacheIndex, Mockito.never()).getEntries(projectA);
+    Mockito.verify(cacheIndex).remove(projectB, b1);
+    Mockito.verify(cacheLedger, Mockito.never()).invalidate(cacheRoot);
+  }
+
+  @Test
+  public void testEnforceTotalCacheSizeUpdatesLedgerForSessionProjects() throws IOException {
+    Mockito.when(configuration.hasTotalCacheMaxSizeMb()).thenReturn(true);
+    Mockito.when(configuration.getTotalCacheMaxSizeMb()).thenReturn(1);
+
+    Path cacheRoot = Paths.get("/user/home/.m2/buildcache");
+    Path projectDir = cacheRoot.resolve("group").resolve("project");
+    Mockito.when(cacheIndex.getReconciledAt(projectDir)).thenReturn(NOW);
+    Mockito.when(cacheIndex.getEntries(projectDir)).thenReturn(Arrays.asList(
+        indexEntry("classes-" + hash('a') + ".zip", "2021-09-13T10:00:00Z", kb(100), 0)));
+    Mockito.when(cacheLedger.exists(cacheRoot)).thenReturn(true);
+    Mockito.when(cacheLedger.update(Mockito.eq(cacheRoot), Mockito.any()))
+        .thenReturn(new TreeMap<>());
+
+    executor.initialize(configuration, NOW);
+    executor.submitProjectCleanup(projectDir.toFile());
+    executor.awaitCompletion();
+    executor.enforceTotalCacheSize();
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Map<String, CacheLedger.Usage>> updates = ArgumentCaptor.forClass(Map.class);
+    Mockito.verify(cacheLedger).update(Mockito.eq(cacheRoot), updates.capture());
+    CacheLedger.Usage usage = updates.getValue().get("group/project");
+    assertEquals(kb(100), usage.getSizeBytes());
+    assertEquals(toEpochMillis("2021-09-13T10:00:00Z"), usage.getOldestLastAccess());
+    Mockito.verify(cacheLedger).initialize(configuration);
+    Mockito.verify(cacheLedger).exists(cacheRoot);
+    Mockito.verifyNoMoreInteractions(cacheLedger);
+  }
+
+  private static String hash(char c) {
+    return StringUtils.repeat(c, 32);
+  }
+
+  private CacheIndex.Entry indexEntry(String key, String lastAccess) {
+    return indexEntry(key, lastAccess, kb(1), 0);
+  }
+
+  private CacheIndex.Entry indexEntry(String key, String lastAccess, long size,
+      long durationMillis) {
+    long time = toEpochMillis(lastAccess);
+    return new CacheIndex.Entry(key, CacheIndex.KIND_CLASSES, size, time, time, durationMillis);
+  }
+
+  private File createFile(Path dir, String name) throws IOException {
+    return Files.write(dir.resolve(name), new byte[] {1}).toFile();
+  }
+
   private int kb(int n) {
     return n * 1024;
   }
@@ -319,6 +892,7 @@ public class CacheCleanupExecutorTest {
     File dir = Mockito.mock(File.class);
     Mockito.when(dir.isDirectory()).thenReturn(true);
     Mockito.when(dir.getName()).thenReturn(name);
+    Mockito.when(dir.toPath()).thenReturn(Paths.get("/user/home/.m2/buildcache").resolve(name));
     return dir;
   }
 
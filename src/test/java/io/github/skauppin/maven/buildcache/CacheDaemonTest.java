@@ -0,0 +1,313 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class CacheDaemonTest {
+
+  private Path cacheDir;
+  private Path projectCacheDir;
+  private Configuration configuration;
+  private Logger logger;
+  private CacheDaemon daemon;
+
+  @BeforeEach
+  public void init() throws IOException {
+    cacheDir = Files.createTempDirectory("buildcache-maven-extension-");
+    projectCacheDir = cacheDir.resolve("com/test/test-lib");
+    configuration = new Configuration();
+    configuration.setCachingDefaults(cacheDir.toString());
+    logger = Mockito.mock(Logger.class);
+  }
+
+  @AfterEach
+  public void cleanup() {
+    if (daemon != null) {
+      daemon.close();
+    }
+    FileUtils.deleteQuietly(cacheDir.toFile());
+  }
+
+  private CacheDaemonClient newClient() {
+    CacheDaemonClient client = new CacheDaemonClient();
+    client.setLogger(logger);
+    client.initialize(configuration);
+    return client;
+  }
+
+  private CacheIndex newCacheIndex(CacheDaemonClient client) {
+    CacheIndex index = new CacheIndex();
+    index.setLogger(logger);
+    index.setFileUtil(new FileUtil());
+    index.setCacheDaemonClient(client);
+    index.setCacheLock(new CacheLock());
+    return index;
+  }
+
+  @Test
+  public void testNoDaemon() {
+    CacheDaemonClient client = newClient();
+    assertFalse(client.isConnected());
+    Mockito.verifyNoInteractions(logger);
+  }
+
+  @Test
+  public void testCacheIndexThroughDaemon() throws IOException {
+    daemon = CacheDaemon.create(configuration, logger);
+    daemon.start();
+    assertTrue(Files.exists(cacheDir.resolve(CacheDaemon.DAEMON_FILE)));
+
+    CacheDaemonClient client = newClient();
+    assertTrue(client.isConnected());
+    CacheIndex index = newCacheIndex(client);
+
+    index.put(projectCacheDir,
+        new CacheIndex.Entry("classes-1111.zip", CacheIndex.KIND_CLASSES, 10, 1000L, 500L));
+    index.put(projectCacheDir, new CacheIndex.Entry("test-2222", CacheIndex.KIND_TEST, 0, 2000L,
+        2000L, 250L));
+    index.touch(projectCacheDir, "classes-1111.zip", 3000L);
+
+    Optional<CacheIndex.Entry> entry = index.get(projectCacheDir, "classes-1111.zip");
+    assertTrue(entry.isPresent());
+    assertEquals(CacheIndex.KIND_CLASSES, entry.get().getKind());
+    assertEquals(10, entry.get().getSize());
+    assertEquals(1000L, entry.get().getCreated());
+    assertEquals(3000L, entry.get().getLastAccess());
+    assertEquals(500L, entry.get().getDurationMillis());
+    assertFalse(index.get(projectCacheDir, "test-3333").isPresent());
+    assertEquals(2, index.getEntries(projectCacheDir).size());
+
+    index.remove(projectCacheDir, "test-2222");
+    assertEquals(1, index.getEntries(projectCacheDir).size());
+
+    // the daemon keeps the index file up to date for builds without a daemon
+    daemon.close();
+    List<CacheIndex.Entry> entries =
+        newCacheIndex(new CacheDaemonClient()).getEntries(projectCacheDir);
+    assertEquals(1, entries.size());
+    assertEquals("classes-1111.zip", entries.get(0).getKey());
+    assertEquals(3000L, entries.get(0).getLastAccess());
+    assertFalse(Files.exists(cacheDir.resolve(CacheDaemon.DAEMON_FILE)));
+  }
+
+  @Test
+  public void testFallbackWhenDaemonStops() throws IOException {
+    daemon = CacheDaemon.create(configuration, logger);
+    daemon.start();
+
+    CacheDaemonClient client = newClient();
+    CacheIndex index = newCacheIndex(client);
+    index.put(projectCacheDir, new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0, 1000L,
+        250L));
+    daemon.close();
+
+    index.put(projectCacheDir, new CacheIndex.Entry("test-2222", CacheIndex.KIND_TEST, 0, 2000L,
+        250L));
+    assertFalse(client.isConnected());
+    assertTrue(index.get(projectCacheDir, "test-1111").isPresent());
+    assertTrue(index.get(projectCacheDir, "test-2222").isPresent());
+    Mockito.verify(logger).warn(Mockito.startsWith("buildcache: cache daemon request failed"));
+  }
+
+  @Test
+  public void testWrongToken() throws IOException {
+    daemon = CacheDaemon.create(configuration, logger);
+    daemon.start();
+
+    Path daemonFile = cacheDir.resolve(CacheDaemon.DAEMON_FILE);
+    List<String> lines = Files.readAllLines(daemonFile, StandardCharsets.UTF_8);
+    Files.write(daemonFile, Arrays.asList(lines.get(0), "0123456789abcdef"),
+        StandardCharsets.UTF_8);
+
+    CacheDaemonClient client = newClient();
+    assertFalse(client.isConnected());
+    Mockito.verify(logger).warn(Mockito.contains("is not available"));
+  }
+
+  @Test
+  public void testStaleDaemonFile() throws IOException {
+    Files.write(cacheDir.resolve(CacheDaemon.DAEMON_FILE),
+        Arrays.asList("1", "0123456789abcdef"), StandardCharsets.UTF_8);
+    assertFalse(newClient().isConnected());
+
+    daemon = CacheDaemon.create(configuration, logger);
+    daemon.start();
+    assertTrue(newClient().isConnected());
+  }
+
+  @Test
+  public void testSecondDaemonRefused() throws IOException {
+    daemon = CacheDaemon.create(configuration, logger);
+    daemon.start();
+
+    CacheDaemon second = CacheDaemon.create(configuration, logger);
+    assertThrows(IOException.class, second::start);
+    assertTrue(newClient().isConnected());
+  }
+
+  @Test
+  public void testProtectedEntriesReleasedOnDisconnect() throws IOException {
+    CacheCleanupExecutor cleanupExecutor = Mockito.mock(CacheCleanupExecutor.class);
+    daemon = new CacheDaemon(configuration, logger, new FileUtil(),
+        Mockito.mock(CacheIndex.class), cleanupExecutor, Mockito.mock(RemoteUploader.class));
+    daemon.start();
+
+    CacheDaemonClient first = newClient();
+    CacheDaemonClient second = newClient();
+    first.protectEntry(projectCacheDir, "classes-1111.zip");
+    first.protectEntry(projectCacheDir, "classes-1111.zip");
+    second.protectEntry(projectCacheDir, "classes-1111.zip");
+    Mockito.verify(cleanupExecutor).protectEntry(projectCacheDir, "classes-1111.zip");
+
+    first.close();
+    second.submitProjectCleanup(projectCacheDir.toFile());
+    Mockito.verify(cleanupExecutor, Mockito.after(200).never()).releaseEntry(Mockito.any(),
+        Mockito.any());
+
+    second.close();
+    Mockito.verify(cleanupExecutor, Mockito.timeout(2000)).releaseEntry(projectCacheDir,
+        "classes-1111.zip");
+  }
+
+  @Test
+  public void testCleanupAndEnforcement() throws IOException {
+    CacheCleanupExecutor cleanupExecutor = Mockito.mock(CacheCleanupExecutor.class);
+    daemon = new CacheDaemon(configuration, logger, new FileUtil(),
+        Mockito.mock(CacheIndex.class), cleanupExecutor, Mockito.mock(RemoteUploader.class));
+    daemon.start();
+
+    CacheDaemonClient client = newClient();
+    client.submitProjectCleanup(projectCacheDir.toFile());
+    client.enforceTotalCacheSize();
+
+    Mockito.verify(cleanupExecutor).submitProjectCleanup(new File(projectCacheDir.toString()));
+    Mockito.verify(cleanupExecutor, Mockito.timeout(2000)).enforceTotalCacheSize();
+  }
+
+  @Test
+  public void testUploadsDeduplicated() throws Exception {
+    configuration = remoteConfiguration("http://cache.example.com/cache");
+    RemoteUploader remoteUploader = Mockito.mock(RemoteUploader.class);
+    Mockito.when(remoteUploader.isEnabled()).thenReturn(true);
+    daemon = new CacheDaemon(configuration, logger, new FileUtil(),
+        Mockito.mock(CacheIndex.class), Mockito.mock(CacheCleanupExecutor.class), remoteUploader);
+    daemon.start();
+
+    String path = "com/test/test-lib/classes-1111.zip";
+    Path zipFile = projectCacheDir.resolve("classes-1111.zip");
+    CacheDaemonClient client = newClient();
+    assertTrue(client.isRemoteUploadEnabled());
+    client.submitUpload(path, zipFile, 10, 500);
+    // already in progress
+    newClient().submitUpload(path, zipFile, 10, 500);
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Consumer<Boolean>> completion = ArgumentCaptor.forClass(Consumer.class);
+    Mockito.verify(remoteUploader).submit(Mockito.eq(path), Mockito.eq(zipFile), Mockito.eq(10L),
+        Mockito.eq(500L), completion.capture());
+
+    // a failed upload is submitted again
+    completion.getValue().accept(false);
+    client.submitUpload(path, zipFile, 10, 500);
+    Mockito.verify(remoteUploader, Mockito.times(2)).submit(Mockito.eq(path),
+        Mockito.eq(zipFile), Mockito.eq(10L), Mockito.eq(500L), completion.capture());
+
+    completion.getValue().accept(true);
+    client.submitUpload(path, zipFile, 10, 500);
+    newClient().submitUpload("com/test/test-lib/test-2222", null, 0, 250);
+
+    Mockito.verify(remoteUploader, Mockito.times(2)).submit(Mockito.eq(path),
+        Mockito.eq(zipFile), Mockito.eq(10L), Mockito.eq(500L), Mockito.any());
+    Mockito.verify(remoteUploader).submit(Mockito.eq("com/test/test-lib/test-2222"),
+        Mockito.any(byte[].class), Mockito.eq(250L), Mockito.any());
+  }
+
+  @Test
+  public void testUploadToDifferentRemoteCache() throws Exception {
+    RemoteUploader remoteUploader = Mockito.mock(RemoteUploader.class);
+    Mockito.when(remoteUploader.isEnabled()).thenReturn(true);
+    daemon = new CacheDaemon(remoteConfiguration("http://cache.example.com/cache"), logger,
+        new FileUtil(), Mockito.mock(CacheIndex.class), Mockito.mock(CacheCleanupExecutor.class),
+        remoteUploader);
+    daemon.start();
+
+    configuration = remoteConfiguration("http://other.example.com/cache");
+    CacheDaemonClient client = newClient();
+    assertTrue(client.isConnected());
+    assertFalse(client.isRemoteUploadEnabled());
+    assertThrows(IOException.class, () -> client.submitUpload("com/test/test-lib/test-2222",
+        null, 0, 250));
+    Mockito.verify(remoteUploader, Mockito.never()).submit(Mockito.any(),
+        Mockito.any(byte[].class), Mockito.anyLong(), Mockito.any());
+  }
+
+  @Test
+  public void testBuildUploadsItselfWhenDaemonHasNoRemoteCache() throws Exception {
+    daemon = CacheDaemon.create(configuration, logger);
+    daemon.start();
+
+    configuration = remoteConfiguration("http://cache.example.com/cache");
+    CacheDaemonClient client = newClient();
+    assertTrue(client.isConnected());
+    assertFalse(client.isRemoteUploadEnabled());
+
+    RemoteCache remoteCache = Mockito.mock(RemoteCache.class);
+    Mockito.when(remoteCache.isUploadEnabled()).thenReturn(true);
+    Mockito.when(remoteCache.upload(Mockito.anyString(), Mockito.any(Path.class)))
+        .thenReturn(true);
+    RemoteUploader uploader = new RemoteUploader();
+    uploader.setLogger(logger);
+    uploader.setRemoteCache(remoteCache);
+    uploader.setCacheDaemonClient(client);
+    uploader.initialize(configuration);
+
+    Path zipFile = Files.createDirectories(projectCacheDir).resolve("classes-1111.zip");
+    Files.write(zipFile, new byte[10]);
+    uploader.submit("com/test/test-lib/classes-1111.zip", zipFile, 10, 500);
+    uploader.awaitCompletion();
+
+    Mockito.verify(remoteCache).upload("com/test/test-lib/classes-1111.zip", zipFile);
+    assertTrue(client.isConnected());
+  }
+
+  private Configuration remoteConfiguration(String remoteUrl) throws Exception {
+    Configuration remoteConfiguration = new Configuration();
+    String xml = "<buildcache><configuration><remote-url>" + remoteUrl
+        + "</remote-url></configuration></buildcache>";
+    remoteConfiguration.readCacheConfiguration(
+        new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), cacheDir.toString());
+    return remoteConfiguration;
+  }
+
+  @Test
+  public void testInvalidRequest() throws IOException {
+    daemon = CacheDaemon.create(configuration, logger);
+    daemon.start();
+
+    CacheDaemonClient client = newClient();
+    CacheIndex index = newCacheIndex(client);
+    assertThrows(IOException.class, () -> client.put(projectCacheDir,
+        new CacheIndex.Entry("test\t1111", CacheIndex.KIND_TEST, 0, 1000L, 250L)));
+    assertFalse(client.isConnected());
+    assertFalse(index.get(projectCacheDir, "test-1111").isPresent());
+  }
+}
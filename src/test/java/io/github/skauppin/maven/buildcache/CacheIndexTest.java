@@ -0,0 +1,233 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class CacheIndexTest {
+
+  private Path projectDir;
+  private CacheIndex cacheIndex;
+
+  @BeforeEach
+  public void init() throws IOException {
+    projectDir = Files.createTempDirectory("buildcache-maven-extension-");
+    cacheIndex = newCacheIndex();
+  }
+
+  @AfterEach
+  public void cleanup() {
+    FileUtils.deleteQuietly(projectDir.toFile());
+  }
+
+  private CacheIndex newCacheIndex() {
+    CacheIndex index = new CacheIndex();
+    index.setLogger(Mockito.mock(Logger.class));
+    index.setFileUtil(new FileUtil());
+    index.setCacheDaemonClient(new CacheDaemonClient());
+    index.setCacheLock(new CacheLock());
+    return index;
+  }
+
+  @Test
+  public void testPutAndGet() {
+    assertFalse(cacheIndex.get(projectDir, "test-1111").isPresent());
+
+    cacheIndex.put(projectDir, new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0, 1000L,
+        250L));
+    cacheIndex.put(projectDir, new CacheIndex.Entry("classes-2222.zip", CacheIndex.KIND_CLASSES,
+        4096L, 2000L, 500L));
+
+    CacheIndex.Entry entry = cacheIndex.get(projectDir, "classes-2222.zip").get();
+    assertEquals(CacheIndex.KIND_CLASSES, entry.getKind());
+    assertEquals(4096L, entry.getSize());
+    assertEquals(2000L, entry.getCreated());
+    assertEquals(2000L, entry.getLastAccess());
+    assertEquals(500L, entry.getDurationMillis());
+    assertEquals(2, cacheIndex.getEntries(projectDir).size());
+    assertTrue(Files.exists(projectDir.resolve(CacheIndex.INDEX_FILE)));
+  }
+
+  @Test
+  public void testReload() {
+    cacheIndex.put(projectDir, new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0, 1000L,
+        250L));
+    cacheIndex.put(projectDir, new CacheIndex.Entry("test-2222", CacheIndex.KIND_TEST, 0, 1000L,
+        250L));
+    cacheIndex.touch(projectDir, "test-1111", 3000L);
+    cacheIndex.remove(projectDir, "test-2222");
+    cacheIndex.flushAccessTimes();
+
+    CacheIndex reloaded = newCacheIndex();
+    assertEquals(3000L, reloaded.get(projectDir, "test-1111").get().getLastAccess());
+    assertFalse(reloaded.get(projectDir, "test-2222").isPresent());
+  }
+
+  @Test
+  public void testAccessTimesAreWrittenOnFlush() throws IOException {
+    cacheIndex.put(projectDir, new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0, 1000L,
+        250L));
+    Path indexFile = projectDir.resolve(CacheIndex.INDEX_FILE);
+
+    cacheIndex.touch(projectDir, "test-1111", 2000L);
+    cacheIndex.touch(projectDir, "test-1111", 3000L);
+
+    assertEquals(3000L, cacheIndex.get(projectDir, "test-1111").get().getLastAccess());
+    assertEquals(1000L, newCacheIndex().get(projectDir, "test-1111").get().getLastAccess());
+    assertEquals(1, Files.readAllLines(indexFile).size());
+
+    cacheIndex.flushAccessTimes();
+
+    assertEquals(3000L, newCacheIndex().get(projectDir, "test-1111").get().getLastAccess());
+    assertEquals(2, Files.readAllLines(indexFile).size());
+  }
+
+  @Test
+  public void testPendingAccessTimeSurvivesIndexRewrite() throws IOException {
+    cacheIndex.put(projectDir, new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0, 1000L,
+        250L));
+    cacheIndex.touch(projectDir, "test-1111", 3000L);
+
+    Path indexFile = projectDir.resolve(CacheIndex.INDEX_FILE);
+    Files.delete(indexFile);
+    Files.write(indexFile,
+        "put test-1111 test 0 1000 2000 250\n".getBytes(StandardCharsets.UTF_8));
+
+    assertEquals(3000L, cacheIndex.getEntries(projectDir).get(0).getLastAccess());
+  }
+
+  @Test
+  public void testSeesEntriesAppendedByOtherBuilds() {
+    assertFalse(cacheIndex.get(projectDir, "test-1111").isPresent());
+
+    newCacheIndex().put(projectDir, new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0,
+        1000L, 250L));
+
+    assertTrue(cacheIndex.get(projectDir, "test-1111").isPresent());
+  }
+
+  @Test
+  public void testIgnoresInvalidAndIncompleteRecords() throws IOException {
+    Files.write(projectDir.resolve(CacheIndex.INDEX_FILE),
+        "put test-1111 test 0 1000 1000 250\nput broken\nput test-2222 test 0 x 1 1\nput test-3333"
+            .getBytes(StandardCharsets.UTF_8));
+
+    List<CacheIndex.Entry> entries = cacheIndex.getEntries(projectDir);
+    assertEquals(1, entries.size());
+    assertEquals("test-1111", entries.get(0).getKey());
+
+    Files.write(projectDir.resolve(CacheIndex.INDEX_FILE),
+        " test 0 1000 1000 250\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    assertTrue(cacheIndex.get(projectDir, "test-3333").isPresent());
+  }
+
+  @Test
+  public void testReconciledAt() {
+    assertEquals(0, cacheIndex.getReconciledAt(projectDir));
+
+    cacheIndex.setReconciledAt(projectDir, 5000L);
+
+    assertEquals(5000L, cacheIndex.getReconciledAt(projectDir));
+    assertEquals(5000L, newCacheIndex().getReconciledAt(projectDir));
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    cacheIndex.setReconciledAt(projectDir, 1500L);
+    cacheIndex.put(projectDir, new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0, 1000L,
+        250L));
+    for (int i = 0; i < 100; i++) {
+      cacheIndex.touch(projectDir, "test-1111", 2000L + i);
+      cacheIndex.flushAccessTimes();
+    }
+    Path indexFile = projectDir.resolve(CacheIndex.INDEX_FILE);
+    assertEquals(102, Files.readAllLines(indexFile).size());
+
+    CacheIndex reloaded = newCacheIndex();
+    assertEquals(2099L, reloaded.get(projectDir, "test-1111").get().getLastAccess());
+    assertEquals(2, Files.readAllLines(indexFile).size());
+    assertEquals(1500L, reloaded.getReconciledAt(projectDir));
+
+    reloaded.touch(projectDir, "test-1111", 3000L);
+    reloaded.flushAccessTimes();
+    assertEquals(3000L, newCacheIndex().get(projectDir, "test-1111").get().getLastAccess());
+  }
+
+  @Test
+  public void testCompactionSkippedWhileLocked() throws IOException {
+    cacheIndex.put(projectDir, new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0, 1000L,
+        250L));
+    for (int i = 0; i < 100; i++) {
+      cacheIndex.touch(projectDir, "test-1111", 2000L + i);
+      cacheIndex.flushAccessTimes();
+    }
+    Path indexFile = projectDir.resolve(CacheIndex.INDEX_FILE);
+
+    CacheLock otherBuild = new CacheLock();
+    otherBuild.setLogger(Mockito.mock(Logger.class));
+    try (CacheLock.Lock lock = otherBuild.acquireExclusive(projectDir).get()) {
+      assertEquals(2099L, newCacheIndex().get(projectDir, "test-1111").get().getLastAccess());
+      assertEquals(101, Files.readAllLines(indexFile).size());
+    }
+
+    assertEquals(2099L, newCacheIndex().get(projectDir, "test-1111").get().getLastAccess());
+    assertEquals(1, Files.readAllLines(indexFile).size());
+  }
+
+  @Test
+  public void testGetReadOnlyDoesNotCompact() throws IOException {
+    cacheIndex.put(projectDir, new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0, 1000L,
+        250L));
+    for (int i = 0; i < 100; i++) {
+      cacheIndex.touch(projectDir, "test-1111", 2000L + i);
+      cacheIndex.flushAccessTimes();
+    }
+    Path indexFile = projectDir.resolve(CacheIndex.INDEX_FILE);
+
+    CacheIndex reloaded = newCacheIndex();
+    assertEquals(2099L, reloaded.getReadOnly(projectDir, "test-1111").get().getLastAccess());
+    assertFalse(reloaded.getReadOnly(projectDir, "test-2222").isPresent());
+    assertEquals(101, Files.readAllLines(indexFile).size());
+
+    assertFalse(reloaded.getReadOnly(projectDir.resolve("missing"), "test-1111").isPresent());
+    assertFalse(Files.exists(projectDir.resolve("missing")));
+  }
+
+  @Test
+  public void testRetainRecent() {
+    Path first = projectDir.resolve("first");
+    Path second = projectDir.resolve("second");
+    Path third = projectDir.resolve("third");
+    cacheIndex.put(first, new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0, 1000L, 250L));
+    cacheIndex.put(second, new CacheIndex.Entry("test-2222", CacheIndex.KIND_TEST, 0, 1000L,
+        250L));
+    cacheIndex.put(third, new CacheIndex.Entry("test-3333", CacheIndex.KIND_TEST, 0, 1000L, 250L));
+    cacheIndex.touch(first, "test-1111", 3000L);
+    cacheIndex.touch(second, "test-2222", 3000L);
+
+    cacheIndex.retainRecent(3);
+    assertEquals(3, cacheIndex.getLoadedIndexCount());
+
+    cacheIndex.retainRecent(1);
+    assertEquals(1, cacheIndex.getLoadedIndexCount());
+
+    // the access times of the dropped indexes were written before dropping them
+    assertEquals(3000L, cacheIndex.get(first, "test-1111").get().getLastAccess());
+    assertEquals(3000L, cacheIndex.get(second, "test-2222").get().getLastAccess());
+    assertTrue(cacheIndex.get(third, "test-3333").isPresent());
+    assertEquals(3, cacheIndex.getLoadedIndexCount());
+  }
+}
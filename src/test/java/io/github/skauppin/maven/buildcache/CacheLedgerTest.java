@@ -0,0 +1,119 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class CacheLedgerTest {
+
+  private Path cacheDir;
+  private CacheLedger cacheLedger;
+
+  @BeforeEach
+  public void init() throws IOException {
+    cacheDir = Files.createTempDirectory("buildcache-maven-extension-");
+    cacheLedger = new CacheLedger();
+  }
+
+  @AfterEach
+  public void cleanup() {
+    FileUtils.deleteQuietly(cacheDir.toFile());
+  }
+
+  @Test
+  public void testUpdateMergesProjects() throws IOException {
+    assertFalse(cacheLedger.exists(cacheDir));
+
+    cacheLedger.update(cacheDir, usages("group/a", 100, 1000L, "group/b", 200, 2000L));
+    Map<String, CacheLedger.Usage> ledger =
+        cacheLedger.update(cacheDir, usages("group/b", 300, 1500L, "group/c", 400, 3000L));
+
+    assertTrue(cacheLedger.exists(cacheDir));
+    assertEquals(3, ledger.size());
+    assertEquals(800, CacheLedger.getTotalSizeBytes(ledger));
+
+    Map<String, CacheLedger.Usage> reloaded =
+        new CacheLedger().update(cacheDir, Collections.emptyMap());
+    assertEquals(800, CacheLedger.getTotalSizeBytes(reloaded));
+    assertEquals(300, reloaded.get("group/b").getSizeBytes());
+    assertEquals(1500L, reloaded.get("group/b").getOldestLastAccess());
+  }
+
+  @Test
+  public void testUpdateRemovesEmptyProjects() throws IOException {
+    cacheLedger.update(cacheDir, usages("group/a", 100, 1000L, "group/b", 200, 2000L));
+    cacheLedger.update(cacheDir, usages("group/a", 0, Long.MAX_VALUE));
+
+    Map<String, CacheLedger.Usage> ledger = cacheLedger.update(cacheDir, Collections.emptyMap());
+    assertEquals(1, ledger.size());
+    assertFalse(ledger.containsKey("group/a"));
+  }
+
+  @Test
+  public void testReplace() throws IOException {
+    cacheLedger.update(cacheDir, usages("group/a", 100, 1000L, "group/b", 200, 2000L));
+    cacheLedger.replace(cacheDir, usages("group/c", 50, 500L));
+
+    Map<String, CacheLedger.Usage> ledger = cacheLedger.update(cacheDir, Collections.emptyMap());
+    assertEquals(1, ledger.size());
+    assertEquals(50, ledger.get("group/c").getSizeBytes());
+  }
+
+  @Test
+  public void testInvalidate() throws IOException {
+    cacheLedger.update(cacheDir, usages("group/a", 100, 1000L));
+    cacheLedger.invalidate(cacheDir);
+
+    assertFalse(cacheLedger.exists(cacheDir));
+  }
+
+  @Test
+  public void testLockTimeout() throws IOException {
+    Configuration configuration = Mockito.mock(Configuration.class);
+    Mockito.when(configuration.getLockTimeoutMillis()).thenReturn(100);
+    cacheLedger.initialize(configuration);
+    cacheLedger.update(cacheDir, usages("group/a", 100, 1000L));
+
+    try (FileChannel channel = FileChannel.open(cacheDir.resolve(CacheLedger.LEDGER_FILE),
+        StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+      assertThrows(IOException.class,
+          () -> cacheLedger.update(cacheDir, usages("group/b", 200, 2000L)));
+    }
+    assertEquals(1, cacheLedger.update(cacheDir, Collections.emptyMap()).size());
+  }
+
+  @Test
+  public void testIgnoresInvalidLines() throws IOException {
+    Files.write(cacheDir.resolve(CacheLedger.LEDGER_FILE),
+        "group/a 100 1000\ngroup/b x 2000\nbroken\n".getBytes(StandardCharsets.UTF_8));
+
+    Map<String, CacheLedger.Usage> ledger = cacheLedger.update(cacheDir, Collections.emptyMap());
+    assertEquals(1, ledger.size());
+    assertEquals(100, ledger.get("group/a").getSizeBytes());
+  }
+
+  private Map<String, CacheLedger.Usage> usages(Object... values) {
+    Map<String, CacheLedger.Usage> usages = new HashMap<>();
+    for (int i = 0; i < values.length; i += 3) {
+      usages.put((String) values[i],
+          new CacheLedger.Usage((Integer) values[i + 1], (Long) values[i + 2]));
+    }
+    return usages;
+  }
+}
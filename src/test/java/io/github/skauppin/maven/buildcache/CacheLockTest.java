@@ -0,0 +1,84 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class CacheLockTest {
+
+  private Path projectDir;
+  private CacheLock cacheLock;
+
+  @BeforeEach
+  public void init() throws IOException {
+    projectDir = Files.createTempDirectory("buildcache-maven-extension-").resolve("project");
+
+    Configuration configuration = Mockito.mock(Configuration.class);
+    Mockito.when(configuration.getLockTimeoutMillis()).thenReturn(100);
+
+    cacheLock = new CacheLock();
+    cacheLock.setLogger(Mockito.mock(Logger.class));
+    cacheLock.initialize(configuration);
+  }
+
+  @AfterEach
+  public void cleanup() {
+    FileUtils.deleteQuietly(projectDir.getParent().toFile());
+  }
+
+  @Test
+  public void testSharedLocks() throws Exception {
+    try (CacheLock.Lock lock = cacheLock.acquireShared(projectDir).get()) {
+      assertTrue(Files.exists(projectDir.resolve(CacheLock.LOCK_FILE)));
+      assertTrue(lockInOtherThread(true));
+      assertFalse(lockInOtherThread(false));
+    }
+    assertTrue(lockInOtherThread(false));
+  }
+
+  @Test
+  public void testExclusiveLock() throws Exception {
+    try (CacheLock.Lock lock = cacheLock.acquireExclusive(projectDir).get()) {
+      assertFalse(lockInOtherThread(true));
+      assertFalse(lockInOtherThread(false));
+    }
+    assertTrue(lockInOtherThread(true));
+  }
+
+  @Test
+  public void testTimesOutWhenLockedByOtherProcess() throws IOException {
+    Files.createDirectories(projectDir);
+    try (FileChannel channel = FileChannel.open(projectDir.resolve(CacheLock.LOCK_FILE),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock other = channel.lock()) {
+      assertFalse(cacheLock.acquireShared(projectDir).isPresent());
+      assertFalse(cacheLock.acquireExclusive(projectDir).isPresent());
+    }
+
+    Optional<CacheLock.Lock> lock = cacheLock.acquireExclusive(projectDir);
+    assertTrue(lock.isPresent());
+    lock.get().close();
+  }
+
+  private boolean lockInOtherThread(boolean shared) throws Exception {
+    return CompletableFuture.supplyAsync(() -> {
+      Optional<CacheLock.Lock> lock =
+          shared ? cacheLock.acquireShared(projectDir) : cacheLock.acquireExclusive(projectDir);
+      lock.ifPresent(CacheLock.Lock::close);
+      return lock.isPresent();
+    }).get();
+  }
+}
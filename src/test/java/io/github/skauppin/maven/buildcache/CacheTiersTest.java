@@ -0,0 +1,172 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class CacheTiersTest {
+
+  private static final int MB = 1024 * 1024;
+
+  private Path tmpDir;
+  private Path cacheDir;
+  private Path hotTierDir;
+  private Path warmTierDir;
+  private CacheIndex cacheIndex;
+  private CacheLock cacheLock;
+  private CacheTiers cacheTiers;
+
+  @BeforeEach
+  public void init() throws IOException {
+    tmpDir = Files.createTempDirectory("buildcache-maven-extension-");
+    cacheDir = tmpDir.resolve("cache");
+    hotTierDir = tmpDir.resolve("hot");
+    warmTierDir = tmpDir.resolve("warm");
+
+    cacheLock = new CacheLock();
+    cacheLock.setLogger(Mockito.mock(Logger.class));
+    cacheIndex = Mockito.mock(CacheIndex.class);
+    Mockito.when(cacheIndex.getReadOnly(Mockito.any(), Mockito.any()))
+        .thenReturn(Optional.empty());
+    cacheTiers = createCacheTiers();
+  }
+
+  @AfterEach
+  public void cleanup() {
+    FileUtils.deleteQuietly(tmpDir.toFile());
+  }
+
+  @Test
+  public void testPromoteAndFind() throws IOException {
+    Path zipFile = createZipFile("com/test/test-lib/classes-1111.zip", 1024, 1000L);
+    assertTrue(cacheTiers.hasTiers());
+    assertFalse(cacheTiers.find(zipFile).isPresent());
+
+    cacheTiers.promote(zipFile);
+
+    Path hotFile = hotTierDir.resolve("com/test/test-lib/classes-1111.zip");
+    assertEquals(Optional.of(hotFile), cacheTiers.find(zipFile));
+    assertEquals(1024, Files.size(hotFile));
+    Mockito.verify(cacheIndex).touch(Mockito.eq(cacheDir.resolve("com/test/test-lib")),
+        Mockito.eq("classes-1111.zip"), Mockito.anyLong());
+
+    hotFile.toFile().setLastModified(1000L);
+    cacheTiers.find(zipFile);
+    assertEquals(1000L, hotFile.toFile().lastModified());
+  }
+
+  @Test
+  public void testDemoteWhenTierIsFull() throws IOException {
+    Path zipFile1 = createZipFile("a/classes-1111.zip", MB / 2, 1000L);
+    Path zipFile2 = createZipFile("a/classes-2222.zip", MB / 2, 2000L);
+    Path zipFile3 = createZipFile("b/classes-3333.zip", MB / 2, 3000L);
+
+    cacheTiers.promote(zipFile1);
+    cacheTiers.promote(zipFile2);
+    cacheTiers.find(zipFile1);
+    cacheTiers.promote(zipFile3);
+
+    assertFalse(Files.exists(hotTierDir.resolve("a/classes-2222.zip")));
+    assertTrue(Files.exists(warmTierDir.resolve("a/classes-2222.zip")));
+    assertEquals(Optional.of(warmTierDir.resolve("a/classes-2222.zip")),
+        cacheTiers.find(zipFile2));
+    assertEquals(Optional.of(hotTierDir.resolve("a/classes-1111.zip")),
+        cacheTiers.find(zipFile1));
+    assertEquals(Optional.of(hotTierDir.resolve("b/classes-3333.zip")),
+        cacheTiers.find(zipFile3));
+  }
+
+  @Test
+  public void testTierUsageIsReadFromDisk() throws IOException {
+    Files.createDirectories(hotTierDir.resolve("a"));
+    Files.write(hotTierDir.resolve("a/classes-1111.zip"), new byte[MB / 2]);
+    Files.write(hotTierDir.resolve("a/classes-2222.zip"), new byte[MB / 2]);
+    Mockito.when(cacheIndex.getReadOnly(cacheDir.resolve("a"), "classes-1111.zip"))
+        .thenReturn(Optional.of(new CacheIndex.Entry("classes-1111.zip",
+            CacheIndex.KIND_CLASSES, MB / 2, 1000L, 2000L, 250L)));
+    Mockito.when(cacheIndex.getReadOnly(cacheDir.resolve("a"), "classes-2222.zip"))
+        .thenReturn(Optional.of(new CacheIndex.Entry("classes-2222.zip",
+            CacheIndex.KIND_CLASSES, MB / 2, 1000L, 1000L, 250L)));
+
+    cacheTiers.promote(createZipFile("b/classes-3333.zip", MB / 4, 3000L));
+
+    // the least recently accessed file according to the cache index is demoted
+    assertTrue(Files.exists(hotTierDir.resolve("a/classes-1111.zip")));
+    assertFalse(Files.exists(hotTierDir.resolve("a/classes-2222.zip")));
+    assertTrue(Files.exists(warmTierDir.resolve("a/classes-2222.zip")));
+  }
+
+  @Test
+  public void testFilesWrittenByOtherBuildsCountTowardsTheLimit() throws IOException {
+    Path zipFile1 = createZipFile("a/classes-1111.zip", MB / 2, 1000L);
+    cacheTiers.promote(zipFile1);
+
+    // another build writes to the same tier after this one has loaded it
+    createCacheTiers().promote(createZipFile("a/classes-2222.zip", MB / 2, 2000L));
+    hotTierDir.resolve("a/classes-1111.zip").toFile().setLastModified(1000L);
+    hotTierDir.resolve("a/classes-2222.zip").toFile().setLastModified(2000L);
+
+    cacheTiers.promote(createZipFile("b/classes-3333.zip", MB / 4, 3000L));
+
+    assertFalse(Files.exists(hotTierDir.resolve("a/classes-1111.zip")));
+    assertTrue(Files.exists(warmTierDir.resolve("a/classes-1111.zip")));
+    assertTrue(Files.exists(hotTierDir.resolve("a/classes-2222.zip")));
+    assertTrue(Files.exists(hotTierDir.resolve("b/classes-3333.zip")));
+  }
+
+  @Test
+  public void testDelete() throws IOException {
+    Path zipFile = createZipFile("a/classes-1111.zip", 1024, 1000L);
+    cacheTiers.promote(zipFile);
+
+    cacheTiers.delete(zipFile);
+
+    assertFalse(cacheTiers.find(zipFile).isPresent());
+    assertTrue(Files.exists(zipFile));
+  }
+
+  @Test
+  public void testIgnoresFilesOutsideCacheDirectory() throws IOException {
+    Path other = Files.write(tmpDir.resolve("classes-1111.zip"), new byte[1]);
+
+    cacheTiers.promote(other);
+
+    assertFalse(cacheTiers.find(other).isPresent());
+    assertFalse(Files.exists(hotTierDir));
+  }
+
+  private CacheTiers createCacheTiers() {
+    Configuration configuration = Mockito.mock(Configuration.class);
+    Mockito.when(configuration.getCacheDirectory()).thenReturn(cacheDir.toString());
+    Mockito.when(configuration.getTiers())
+        .thenReturn(Arrays.asList(new Configuration.Tier(hotTierDir.toString(), 1),
+            new Configuration.Tier(warmTierDir.toString(), 2)));
+
+    CacheTiers tiers = new CacheTiers();
+    tiers.setLogger(Mockito.mock(Logger.class));
+    tiers.setFileUtil(new FileUtil());
+    tiers.setCacheIndex(cacheIndex);
+    tiers.setCacheLock(cacheLock);
+    tiers.initialize(configuration);
+    return tiers;
+  }
+
+  private Path createZipFile(String path, int size, long lastModified) throws IOException {
+    Path file = cacheDir.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, new byte[size]);
+    file.toFile().setLastModified(lastModified);
+    return file;
+  }
+}
@@ -0,0 +1,78 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class CacheWriterTest {
+
+  private Configuration configuration;
+  private Logger logger;
+  private CacheWriter cacheWriter;
+
+  @BeforeEach
+  public void init() {
+    configuration = Mockito.mock(Configuration.class);
+    Mockito.when(configuration.getCacheWriteQueueSize()).thenReturn(16);
+    logger = Mockito.mock(Logger.class);
+    cacheWriter = new CacheWriter();
+    cacheWriter.setLogger(logger);
+  }
+
+  @Test
+  public void testSynchronousWrite() {
+    cacheWriter.initialize(configuration);
+    assertFalse(cacheWriter.isAsync());
+
+    List<String> threads = new CopyOnWriteArrayList<>();
+    cacheWriter.submit("a", () -> threads.add(Thread.currentThread().getName()));
+
+    assertEquals(Collections.singletonList(Thread.currentThread().getName()), threads);
+    assertTrue(cacheWriter.awaitCompletion().isEmpty());
+  }
+
+  @Test
+  public void testAsynchronousWrite() {
+    Mockito.when(configuration.isAsyncCacheWrite()).thenReturn(true);
+    cacheWriter.initialize(configuration);
+    assertTrue(cacheWriter.isAsync());
+
+    List<String> threads = new CopyOnWriteArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      cacheWriter.submit("entry-" + i, () -> {
+        Thread.sleep(10);
+        threads.add(Thread.currentThread().getName());
+      });
+    }
+
+    assertTrue(cacheWriter.awaitCompletion().isEmpty());
+    assertEquals(10, threads.size());
+    assertNotEquals(Thread.currentThread().getName(), threads.get(0));
+    assertFalse(cacheWriter.isAsync());
+  }
+
+  @Test
+  public void testWriteErrors() {
+    Mockito.when(configuration.isAsyncCacheWrite()).thenReturn(true);
+    cacheWriter.initialize(configuration);
+
+    IOException exception = new IOException("disk full");
+    cacheWriter.submit("classes-abcd.zip", () -> {
+      throw exception;
+    });
+
+    assertEquals(Collections.singletonList("classes-abcd.zip (java.io.IOException: disk full)"),
+        cacheWriter.awaitCompletion());
+    Mockito.verify(logger).error("buildcache: failed to write classes-abcd.zip", exception);
+    assertTrue(cacheWriter.awaitCompletion().isEmpty());
+  }
+}
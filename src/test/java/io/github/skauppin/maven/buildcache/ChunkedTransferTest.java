@@ -0,0 +1,181 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class ChunkedTransferTest {
+
+  private static final String PATH_1 = "com/test/test-lib/classes-1111.zip";
+  private static final String PATH_2 = "com/test/test-lib/classes-2222.zip";
+
+  private Path tmpDir;
+  private Path localDir;
+  private Path otherDir;
+  private RemoteCacheServer server;
+  private Configuration configuration;
+  private RemoteCache remoteCache;
+
+  private byte[] content1;
+  private byte[] content2;
+
+  @BeforeEach
+  public void init() throws IOException {
+    tmpDir = Files.createTempDirectory("buildcache-maven-extension-");
+    localDir = tmpDir.resolve("local");
+    otherDir = tmpDir.resolve("other");
+    server = new RemoteCacheServer(tmpDir.resolve("remote"));
+
+    configuration = Mockito.mock(Configuration.class);
+    Mockito.when(configuration.hasRemoteUrl()).thenReturn(true);
+    Mockito.when(configuration.getRemoteUrl()).thenReturn(server.getUrl());
+    Mockito.when(configuration.isRemoteUpload()).thenReturn(true);
+    Mockito.when(configuration.isRemoteChunking()).thenReturn(true);
+    Mockito.when(configuration.getRemoteTimeoutMillis()).thenReturn(2000);
+
+    remoteCache = new RemoteCache();
+    remoteCache.setLogger(Mockito.mock(Logger.class));
+    remoteCache.setFileUtil(new FileUtil());
+    remoteCache.initialize(configuration);
+
+    content1 = ContentChunkerTest.randomContent(1024 * 1024);
+    content2 = new byte[content1.length + 100];
+    System.arraycopy(content1, 0, content2, 0, 500000);
+    System.arraycopy(content1, 500000, content2, 500100, content1.length - 500000);
+  }
+
+  @AfterEach
+  public void cleanup() {
+    server.close();
+    FileUtils.deleteQuietly(tmpDir.toFile());
+  }
+
+  @Test
+  public void testUploadAndDownload() throws IOException {
+    Path zipFile = write(localDir.resolve(PATH_1), content1);
+    assertTrue(remoteCache.upload(PATH_1, zipFile));
+
+    assertTrue(Files.exists(server.getDirectory().resolve("com/test/test-lib/classes-1111.chk")));
+    assertFalse(Files.exists(server.getDirectory().resolve(PATH_1)));
+    assertTrue(countChunks() > 10);
+    assertTrue(Files.exists(localDir.resolve("com/test/test-lib/classes-1111.chk")));
+
+    Path target = otherDir.resolve(PATH_1);
+    assertTrue(remoteCache.download(PATH_1, target));
+    assertArrayEquals(content1, Files.readAllBytes(target));
+    assertTrue(Files.exists(otherDir.resolve("com/test/test-lib/classes-1111.chk")));
+  }
+
+  @Test
+  public void testUploadSendsOnlyMissingChunks() throws IOException {
+    assertTrue(remoteCache.upload(PATH_1, write(localDir.resolve(PATH_1), content1)));
+    long chunks = countChunks();
+    server.getRequests().clear();
+
+    assertTrue(remoteCache.upload(PATH_2, write(localDir.resolve(PATH_2), content2)));
+    long puts = server.getRequests().stream().filter(r -> r.startsWith("PUT chunks/")).count();
+    assertTrue(puts >= 1 && puts <= 2, "uploaded chunks: " + puts);
+    assertEquals(chunks + puts, countChunks());
+  }
+
+  @Test
+  public void testDownloadReusesLocalChunks() throws IOException {
+    assertTrue(remoteCache.upload(PATH_1, write(localDir.resolve(PATH_1), content1)));
+    assertTrue(remoteCache.upload(PATH_2, write(localDir.resolve(PATH_2), content2)));
+
+    // built locally, so there is no chunk index yet
+    write(otherDir.resolve(PATH_1), content1);
+    server.getRequests().clear();
+
+    Path target = otherDir.resolve(PATH_2);
+    assertTrue(remoteCache.download(PATH_2, target));
+    assertArrayEquals(content2, Files.readAllBytes(target));
+
+    long gets = server.getRequests().stream().filter(r -> r.startsWith("GET chunks/")).count();
+    assertTrue(gets >= 1 && gets <= 2, "downloaded chunks: " + gets);
+    assertTrue(Files.exists(otherDir.resolve("com/test/test-lib/classes-1111.chk")));
+  }
+
+  @Test
+  public void testModifiedLocalChunksAreDownloaded() throws IOException {
+    assertTrue(remoteCache.upload(PATH_1, write(localDir.resolve(PATH_1), content1)));
+    assertTrue(remoteCache.upload(PATH_2, write(localDir.resolve(PATH_2), content2)));
+
+    byte[] modified = content1.clone();
+    modified[1000] ^= 1;
+    write(otherDir.resolve(PATH_1), modified);
+    Files.copy(localDir.resolve("com/test/test-lib/classes-1111.chk"),
+        otherDir.resolve("com/test/test-lib/classes-1111.chk"));
+
+    Path target = otherDir.resolve(PATH_2);
+    assertTrue(remoteCache.download(PATH_2, target));
+    assertArrayEquals(content2, Files.readAllBytes(target));
+  }
+
+  @Test
+  public void testMissingChunk() throws IOException {
+    assertTrue(remoteCache.upload(PATH_1, write(localDir.resolve(PATH_1), content1)));
+    try (Stream<Path> chunks = Files.list(server.getDirectory().resolve("chunks"))) {
+      Files.delete(chunks.findFirst().get());
+    }
+
+    Path target = otherDir.resolve(PATH_1);
+    assertFalse(remoteCache.download(PATH_1, target));
+    assertFalse(Files.exists(target));
+    assertFalse(Files.exists(otherDir.resolve("com/test/test-lib/classes-1111.chk")));
+  }
+
+  @Test
+  public void testMiss() {
+    Path target = otherDir.resolve(PATH_1);
+    assertFalse(remoteCache.download(PATH_1, target));
+    assertFalse(Files.exists(target));
+  }
+
+  @Test
+  public void testBazelContentStore() throws IOException {
+    try (BazelCacheServer bazelServer = new BazelCacheServer()) {
+      Mockito.when(configuration.getRemoteUrl()).thenReturn(bazelServer.getUrl());
+      Mockito.when(configuration.isBazelRemoteProtocol()).thenReturn(true);
+      remoteCache.initialize(configuration);
+
+      assertTrue(remoteCache.upload(PATH_1, write(localDir.resolve(PATH_1), content1)));
+      assertEquals(1, bazelServer.getActionCache().size());
+      assertTrue(bazelServer.getContentStore().size() > 10);
+
+      Path target = otherDir.resolve(PATH_1);
+      assertTrue(remoteCache.download(PATH_1, target));
+      assertArrayEquals(content1, Files.readAllBytes(target));
+    }
+  }
+
+  @Test
+  public void testChunkIndexPath() {
+    assertEquals("com/test/test-lib/classes-1111.chk",
+        ChunkedTransfer.getChunkIndexPath("com/test/test-lib/classes-1111.zip"));
+    assertEquals(tmpDir.resolve("test-classes-1111.chk"),
+        ChunkedTransfer.getChunkIndexFile(tmpDir.resolve("test-classes-1111.zip")));
+  }
+
+  private long countChunks() throws IOException {
+    try (Stream<Path> chunks = Files.list(server.getDirectory().resolve("chunks"))) {
+      return chunks.count();
+    }
+  }
+
+  private static Path write(Path file, byte[] content) throws IOException {
+    Files.createDirectories(file.getParent());
+    return Files.write(file, content);
+  }
+}
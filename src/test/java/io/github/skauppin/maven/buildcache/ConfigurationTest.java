@@ -108,6 +108,49 @@ public class ConfigurationTest {
 
     assertTrue(config.hasTotalCacheMaxSizeMb());
     assertEquals(500, config.getTotalCacheMaxSizeMb());
+
+    assertTrue(config.isLinkRestoreMode());
+
+    assertTrue(config.isAsyncCacheWrite());
+    assertEquals(4, config.getCacheWriteQueueSize());
+
+    assertTrue(config.isDeferredRestore());
+    assertTrue(config.isDeferredRestoreAtSessionEnd());
+
+    assertTrue(config.isCostAwareEviction());
+
+    assertTrue(config.hasMinFreeDiskSpaceMb());
+    assertEquals(2048, config.getMinFreeDiskSpaceMb());
+    assertEquals(4096, config.getTargetFreeDiskSpaceMb());
+
+    assertEquals(2500, config.getLockTimeoutMillis());
+
+    assertEquals(2, config.getTiers().size());
+    assertEquals("/dev/shm/buildcache", config.getTiers().get(0).getDirectory());
+    assertEquals(512, config.getTiers().get(0).getMaxSizeMb());
+    assertEquals("/ssd/buildcache", config.getTiers().get(1).getDirectory());
+    assertEquals(4096, config.getTiers().get(1).getMaxSizeMb());
+
+    assertEquals(2, config.getReadOnlyCaches().size());
+    assertEquals("/mnt/nfs/buildcache", config.getReadOnlyCaches().get(0).getDirectory());
+    assertTrue(config.getReadOnlyCaches().get(0).isCopyToPrimary());
+    assertEquals("/opt/buildcache", config.getReadOnlyCaches().get(1).getDirectory());
+    assertFalse(config.getReadOnlyCaches().get(1).isCopyToPrimary());
+
+    assertTrue(config.hasRemoteUrl());
+    assertEquals("http://buildcache.example.com:8080/cache", config.getRemoteUrl());
+    assertEquals(Configuration.REMOTE_PROTOCOL_BAZEL, config.getRemoteProtocol());
+    assertTrue(config.isBazelRemoteProtocol());
+    assertFalse(config.isS3RemoteProtocol());
+    assertFalse(config.isRemoteUpload());
+    assertTrue(config.isRemoteChunking());
+    assertEquals(2000, config.getRemoteTimeoutMillis());
+    assertEquals(8, config.getRemotePrefetchThreads());
+    assertEquals(3, config.getRemoteUploadThreads());
+    assertEquals(60000, config.getRemoteUploadDrainTimeoutMillis());
+    assertTrue(config.isRemoteKeyFilter());
+    assertEquals(1000000, config.getRemoteKeyFilterEntries());
+    assertEquals("eu-north-1", config.getRemoteS3Region());
   }
 
   @Test
@@ -188,6 +231,22 @@ public class ConfigurationTest {
     assertEquals("Invalid XML configuration: <directory> has empty value", e.getMessage());
   }
 
+  @Test
+  public void testReadOnlyCacheInsideCacheDirectory() throws Exception {
+    //@formatter:off
+    InputStream in = config("<buildcache><configuration>"
+        + "<cache-directory>/root/cache</cache-directory>"
+        + "<read-only-caches>"
+        + " <read-only-cache><directory>/root/cache/shared</directory></read-only-cache>"
+        + "</read-only-caches>"
+        + "</configuration></buildcache>");
+    //@formatter:on
+    ConfigurationException e = assertThrows(Configuration.ConfigurationException.class,
+        () -> new Configuration().readCacheConfiguration(in, "/default/cache/dir"));
+    assertEquals("Invalid XML configuration: read-only cache /root/cache/shared overlaps with"
+        + " <cache-directory> /root/cache", e.getMessage());
+  }
+
   @Test
   public void testEmptyConfiguration() throws Exception {
     Configuration config = new Configuration();
@@ -208,12 +267,62 @@ public class ConfigurationTest {
     assertFalse(config.hasTotalCacheMaxSizeMb());
     assertNull(config.getTotalCacheMaxSizeMb());
 
+    assertEquals(Configuration.RESTORE_MODE_COPY, config.getRestoreMode());
+    assertFalse(config.isLinkRestoreMode());
+
+    assertFalse(config.isAsyncCacheWrite());
+    assertEquals(16, config.getCacheWriteQueueSize());
+
+    assertFalse(config.isDeferredRestore());
+    assertFalse(config.isDeferredRestoreAtSessionEnd());
+
+    assertEquals(Configuration.EVICTION_POLICY_LRU, config.getEvictionPolicy());
+    assertFalse(config.isCostAwareEviction());
+
+    assertFalse(config.hasMinFreeDiskSpaceMb());
+    assertNull(config.getMinFreeDiskSpaceMb());
+    assertNull(config.getTargetFreeDiskSpaceMb());
+
+    assertEquals(10000, config.getLockTimeoutMillis());
+
+    assertTrue(config.getTiers().isEmpty());
+    assertTrue(config.getReadOnlyCaches().isEmpty());
+
+    assertFalse(config.hasRemoteUrl());
+    assertNull(config.getRemoteUrl());
+    assertEquals(Configuration.REMOTE_PROTOCOL_HTTP, config.getRemoteProtocol());
+    assertFalse(config.isBazelRemoteProtocol());
+    assertFalse(config.isS3RemoteProtocol());
+    assertTrue(config.isRemoteUpload());
+    assertFalse(config.isRemoteChunking());
+    assertEquals(5000, config.getRemoteTimeoutMillis());
+    assertEquals(4, config.getRemotePrefetchThreads());
+    assertEquals(2, config.getRemoteUploadThreads());
+    assertEquals(30000, config.getRemoteUploadDrainTimeoutMillis());
+    assertFalse(config.isRemoteKeyFilter());
+    assertEquals(250000, config.getRemoteKeyFilterEntries());
+    assertEquals("us-east-1", config.getRemoteS3Region());
 
     MavenProject project = mockProject("test");
     List<FileSet> compileFileSets = config.getMainCompileTriggers(project);
     assertTrue(compileFileSets.isEmpty());
   }
 
+  @Test
+  public void testTargetFreeDiskSpace() throws Exception {
+    Configuration config = new Configuration();
+    config.readCacheConfiguration(config("<buildcache><configuration>"
+        + "<min-free-disk-space>2048</min-free-disk-space></configuration></buildcache>"),
+        "/default/cache/dir");
+    assertEquals(2048, config.getTargetFreeDiskSpaceMb());
+
+    config.readCacheConfiguration(config("<buildcache><configuration>"
+        + "<min-free-disk-space>2048</min-free-disk-space>"
+        + "<target-free-disk-space>1024</target-free-disk-space></configuration></buildcache>"),
+        "/default/cache/dir");
+    assertEquals(2048, config.getTargetFreeDiskSpaceMb());
+  }
+
   @Test
   public void testSetCachingDefaults() throws Exception {
     Configuration config = new Configuration();
@@ -280,6 +389,47 @@ public class ConfigurationTest {
     assertThrows(ConfigurationException.class, () -> Configuration.parseDuration(str));
   }
 
+  @Test
+  public void testParseRestoreMode() {
+    assertEquals("copy", Configuration.parseRestoreMode(null));
+    assertEquals("copy", Configuration.parseRestoreMode("copy"));
+    assertEquals("link", Configuration.parseRestoreMode("link"));
+    assertEquals("link", Configuration.parseRestoreMode(" LINK "));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"", " ", "x", "symlink"})
+  public void testParseRestoreModeErrors(String str) {
+    assertThrows(ConfigurationException.class, () -> Configuration.parseRestoreMode(str));
+  }
+
+  @Test
+  public void testParseRemoteProtocol() {
+    assertEquals("http", Configuration.parseRemoteProtocol(null));
+    assertEquals("http", Configuration.parseRemoteProtocol("http"));
+    assertEquals("bazel", Configuration.parseRemoteProtocol(" Bazel "));
+    assertEquals("s3", Configuration.parseRemoteProtocol("S3"));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"", " ", "https", "grpc"})
+  public void testParseRemoteProtocolErrors(String str) {
+    assertThrows(ConfigurationException.class, () -> Configuration.parseRemoteProtocol(str));
+  }
+
+  @Test
+  public void testParseEvictionPolicy() {
+    assertEquals("lru", Configuration.parseEvictionPolicy(null));
+    assertEquals("lru", Configuration.parseEvictionPolicy("lru"));
+    assertEquals("cost-aware", Configuration.parseEvictionPolicy(" Cost-Aware "));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"", " ", "lfu", "cost"})
+  public void testParseEvictionPolicyErrors(String str) {
+    assertThrows(ConfigurationException.class, () -> Configuration.parseEvictionPolicy(str));
+  }
+
   @Test
   private void verifyFileSet(FileSet actual, String directory, List<String> includes,
       List<String> excludes) {
@@ -0,0 +1,87 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+public class ContentChunkerTest {
+
+  @Test
+  public void testSplit() {
+    byte[] content = randomContent(1024 * 1024);
+    List<ContentChunker.Chunk> chunks = ContentChunker.split(content);
+
+    int offset = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      ContentChunker.Chunk chunk = chunks.get(i);
+      assertEquals(offset, chunk.getOffset());
+      assertTrue(chunk.getLength() <= ContentChunker.MAX_CHUNK_SIZE);
+      if (i < chunks.size() - 1) {
+        assertTrue(chunk.getLength() > ContentChunker.MIN_CHUNK_SIZE);
+      }
+      offset += chunk.getLength();
+    }
+    assertEquals(content.length, offset);
+    assertTrue(chunks.size() > 10);
+    assertTrue(chunks.size() < 100);
+  }
+
+  @Test
+  public void testSplitSmallContent() {
+    assertTrue(ContentChunker.split(new byte[0]).isEmpty());
+    assertEquals(1, ContentChunker.split(randomContent(ContentChunker.MIN_CHUNK_SIZE)).size());
+  }
+
+  @Test
+  public void testInsertionChangesNearbyChunks() {
+    byte[] content = randomContent(1024 * 1024);
+    byte[] modified = new byte[content.length + 100];
+    System.arraycopy(content, 0, modified, 0, 500000);
+    System.arraycopy(content, 500000, modified, 500100, content.length - 500000);
+
+    Set<String> original = hashes(ContentChunker.split(content));
+    List<ContentChunker.Chunk> chunks = ContentChunker.split(modified);
+    long changed = chunks.stream().filter(c -> !original.contains(c.getHash())).count();
+    assertTrue(changed <= 2, "changed chunks: " + changed);
+  }
+
+  @Test
+  public void testFormatAndParse() {
+    List<ContentChunker.Chunk> chunks = ContentChunker.split(randomContent(300000));
+    List<ContentChunker.Chunk> parsed = ContentChunker.parse(ContentChunker.format(chunks));
+
+    assertEquals(chunks.size(), parsed.size());
+    for (int i = 0; i < chunks.size(); i++) {
+      assertEquals(chunks.get(i).getHash(), parsed.get(i).getHash());
+      assertEquals(chunks.get(i).getOffset(), parsed.get(i).getOffset());
+      assertEquals(chunks.get(i).getLength(), parsed.get(i).getLength());
+    }
+  }
+
+  @Test
+  public void testParseInvalid() {
+    assertThrows(IllegalArgumentException.class,
+        () -> ContentChunker.parse("1234 10\n".getBytes(StandardCharsets.UTF_8)));
+    String hash = "039058c6f2c0cb492c533b0a4d14ef77cc0f78abccced5287d84a1a2011cfb81";
+    assertThrows(IllegalArgumentException.class,
+        () -> ContentChunker.parse((hash + " x\n").getBytes(StandardCharsets.UTF_8)));
+    assertThrows(IllegalArgumentException.class,
+        () -> ContentChunker.parse((hash + " 0\n").getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static Set<String> hashes(List<ContentChunker.Chunk> chunks) {
+    return chunks.stream().map(ContentChunker.Chunk::getHash).collect(Collectors.toSet());
+  }
+
+  static byte[] randomContent(int size) {
+    byte[] content = new byte[size];
+    new Random(42).nextBytes(content);
+    return content;
+  }
+}
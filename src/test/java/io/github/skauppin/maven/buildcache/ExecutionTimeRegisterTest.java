@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import org.apache.maven.plugin.MojoExecution;
@@ -72,4 +73,30 @@ public class ExecutionTimeRegisterTest {
         "  test-compile .............. com.test:plugin2:1.0.1:test-compile ....................................... [  0.100 s] ");
     Mockito.verifyNoMoreInteractions(logger);
   }
+
+  @Test
+  public void testGetExecutionTimeMillis() {
+    MavenProject project = Mockito.mock(MavenProject.class);
+    Mockito.when(project.getGroupId()).thenReturn("com.test");
+    Mockito.when(project.getArtifactId()).thenReturn("test-lib");
+
+    MojoExecution mojoCompile = Mockito.mock(MojoExecution.class);
+    Mockito.when(mojoCompile.getLifecyclePhase()).thenReturn("compile");
+    MojoExecution mojoProcessClasses = Mockito.mock(MojoExecution.class);
+    Mockito.when(mojoProcessClasses.getLifecyclePhase()).thenReturn("process-classes");
+    MojoExecution mojoTest = Mockito.mock(MojoExecution.class);
+    Mockito.when(mojoTest.getLifecyclePhase()).thenReturn("test");
+
+    ExecutionTimeRegister register = new ExecutionTimeRegister();
+    assertEquals(0, register.getExecutionTimeMillis(project, MojoExecUtil.PHASE_COMPILE));
+
+    register.record(project, mojoCompile, 10, false);
+    register.record(project, mojoProcessClasses, 20, false);
+    register.record(project, mojoCompile, 40, true);
+    register.record(project, mojoTest, 100, false);
+
+    assertEquals(30, register.getExecutionTimeMillis(project, MojoExecUtil.PHASE_COMPILE));
+    assertEquals(130, register.getExecutionTimeMillis(project,
+        Arrays.asList("compile", "process-classes", "test")));
+  }
 }
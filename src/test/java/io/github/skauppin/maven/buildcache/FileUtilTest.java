@@ -1,18 +1,28 @@
 package io.github.skauppin.maven.buildcache;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.zip.ZipFile;
 import org.apache.commons.io.FileUtils;
 import org.apache.maven.shared.model.fileset.FileSet;
 import org.codehaus.plexus.logging.Logger;
@@ -222,6 +232,177 @@ public class FileUtilTest {
     }
   }
 
+  @Test
+  public void testCreateZipFileFromPreviousZipFile() throws IOException {
+    Path dir = Files.createTempDirectory("buildcache-maven-extension-");
+    try {
+      Path archiveBaseDir = Paths.get(FileUtilTest.class.getResource("/").getFile());
+      String[] files = TEXT_FILES.toArray(new String[0]);
+      Path previousZipFile = dir.resolve("classes-1111.zip");
+      Path zipFile = dir.resolve("classes-2222.zip");
+      fileUtil.createZipFile(previousZipFile, archiveBaseDir, files);
+      fileUtil.createZipFile(zipFile, previousZipFile, archiveBaseDir, files);
+
+      Path unzipDir = dir.resolve("unzip");
+      fileUtil.unzip(zipFile, unzipDir);
+      assertEquals(TEXT_FILES, Arrays.asList(fileUtil.scanFilesFromDirectory(unzipDir)));
+
+    } finally {
+      FileUtils.deleteQuietly(dir.toFile());
+    }
+  }
+
+  @Test
+  public void testUnzipReplacesLinkedFiles() throws IOException {
+    Path dir = Files.createTempDirectory("buildcache-maven-extension-");
+    try {
+      Path blob = dir.resolve("objects/blob");
+      Files.createDirectories(blob.getParent());
+      Files.write(blob, new byte[] {1, 2, 3});
+      blob.toFile().setReadOnly();
+      Path classesDir = dir.resolve("classes");
+      Path classFile = classesDir.resolve("test/Test.class");
+      Files.createDirectories(classFile.getParent());
+      Files.createLink(classFile, blob);
+
+      Path zipFile = dir.resolve("classes-1111.zip");
+      fileUtil.createZipFile(zipFile,
+          Collections.singletonMap("test/Test.class", new byte[] {4, 5, 6}));
+      fileUtil.unzip(zipFile, classesDir);
+
+      assertArrayEquals(new byte[] {4, 5, 6}, Files.readAllBytes(classFile));
+      assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(blob));
+    } finally {
+      FileUtils.deleteQuietly(dir.toFile());
+    }
+  }
+
+  @Test
+  public void testZipFilesOfSimilarClassesShareChunks() throws IOException {
+    Path dir = Files.createTempDirectory("buildcache-maven-extension-");
+    try {
+      Random random = new Random(1);
+      Map<String, byte[]> classes = new LinkedHashMap<>();
+      for (int i = 0; i < 200; i++) {
+        byte[] content = new byte[4096];
+        random.nextBytes(content);
+        classes.put(String.format("test/Class%d.class", i), content);
+      }
+      Map<String, byte[]> changedClasses = new LinkedHashMap<>(classes);
+      byte[] changed = changedClasses.get("test/Class100.class").clone();
+      changed[0]++;
+      changedClasses.put("test/Class100.class", changed);
+
+      Path zipFile1 = dir.resolve("classes-1111.zip");
+      Path zipFile2 = dir.resolve("classes-2222.zip");
+      Path zipFile3 = dir.resolve("classes-3333.zip");
+      Path zipFile4 = dir.resolve("classes-4444.zip");
+      fileUtil.createZipFile(zipFile1, classes);
+      fileUtil.createZipFile(zipFile2, changedClasses);
+      fileUtil.createZipFile(zipFile3, zipFile1, classes);
+      fileUtil.createZipFile(zipFile4, zipFile3, changedClasses);
+
+      assertChangedChunks(zipFile1, zipFile2);
+      assertChangedChunks(zipFile3, zipFile4);
+      for (Path zipFile : Arrays.asList(zipFile1, zipFile4)) {
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+          assertTrue(zip.stream().allMatch(e -> e.getTime() == FileUtil.ZIP_ENTRY_TIME));
+        }
+      }
+    } finally {
+      FileUtils.deleteQuietly(dir.toFile());
+    }
+  }
+
+  private static void assertChangedChunks(Path zipFile, Path changedZipFile) throws IOException {
+    Set<String> hashes = ContentChunker.split(Files.readAllBytes(zipFile)).stream()
+        .map(ContentChunker.Chunk::getHash).collect(Collectors.toSet());
+    List<ContentChunker.Chunk> chunks =
+        ContentChunker.split(Files.readAllBytes(changedZipFile));
+    long changed = chunks.stream().filter(c -> !hashes.contains(c.getHash())).count();
+    assertTrue(chunks.size() > 10);
+    assertTrue(changed <= 3, "changed chunks: " + changed);
+  }
+
+  @Test
+  public void testWriteFileReplacesAtomically() throws IOException {
+    Path dir = Files.createTempDirectory("buildcache-maven-extension-");
+    try {
+      Path file = dir.resolve("cache/test-abcd.txt");
+      fileUtil.writeFile(file, "first");
+      fileUtil.writeFile(file, "second");
+
+      assertEquals(Collections.singletonList("second"), Files.readAllLines(file));
+      assertEquals(1, dir.resolve("cache").toFile().list().length);
+
+    } finally {
+      FileUtils.deleteQuietly(dir.toFile());
+    }
+  }
+
+  @Test
+  public void testWriteAtomicallyFailure() throws IOException {
+    Path dir = Files.createTempDirectory("buildcache-maven-extension-");
+    try {
+      Path file = dir.resolve("classes-abcd.zip");
+      assertThrows(IOException.class, () -> fileUtil.writeAtomically(file, tmp -> {
+        Files.write(tmp, new byte[] {1, 2, 3});
+        throw new IOException("disk full");
+      }));
+
+      assertEquals(0, dir.toFile().list().length);
+
+    } finally {
+      FileUtils.deleteQuietly(dir.toFile());
+    }
+  }
+
+  @Test
+  public void testCreateTempFile() throws IOException {
+    Path dir = Files.createTempDirectory("buildcache-maven-extension-");
+    try {
+      Path tmp = fileUtil.createTempFile(dir.resolve("classes-abcd.zip"));
+      String name = tmp.getFileName().toString();
+
+      assertTrue(name.startsWith(".classes-abcd.zip."));
+      assertTrue(FileUtil.isTempFile(name));
+      assertFalse(FileUtil.isTempFile("classes-abcd.zip"));
+      assertFalse(FileUtil.isStaleTempFile(tmp.toFile(), System.currentTimeMillis()));
+      assertTrue(FileUtil.isStaleTempFile(tmp.toFile(),
+          System.currentTimeMillis() + FileUtil.STALE_TEMP_FILE_MILLIS + 1000));
+
+    } finally {
+      FileUtils.deleteQuietly(dir.toFile());
+    }
+  }
+
+  @Test
+  public void testListFiles() throws IOException {
+    Path dir = Files.createTempDirectory("buildcache-maven-extension-");
+    try {
+      Path zip = Files.write(dir.resolve("classes-abcd.zip"), new byte[] {1, 2, 3});
+      Files.setLastModifiedTime(zip, FileTime.fromMillis(1631613600000L));
+      Files.createDirectory(dir.resolve("subdir"));
+
+      File[] files = fileUtil.listFiles(dir.toFile());
+      Arrays.sort(files);
+      assertEquals(2, files.length);
+      assertEquals(zip.toFile(), files[0]);
+      assertFalse(files[0].isDirectory());
+      assertEquals(3, files[0].length());
+      assertEquals(1631613600000L, files[0].lastModified());
+      assertTrue(files[1].isDirectory());
+
+      // the attributes are read when the directory is listed
+      Files.delete(zip);
+      assertEquals(3, files[0].length());
+      assertNull(fileUtil.listFiles(dir.resolve("missing").toFile()));
+
+    } finally {
+      FileUtils.deleteQuietly(dir.toFile());
+    }
+  }
+
   private void verifyScanFiles(FileSet set, List<String> expectedFiles) {
     List<String> files = Arrays.asList(fileUtil.scanFiles(set));
     assertEquals(expectedFiles, files);
@@ -0,0 +1,139 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class IncrementalZipWriterTest {
+
+  private Path tmpDir;
+  private Path previousZipFile;
+  private Path zipFile;
+
+  @BeforeEach
+  public void init() throws IOException {
+    tmpDir = Files.createTempDirectory("buildcache-maven-extension-");
+    previousZipFile = tmpDir.resolve("classes-1111.zip");
+    zipFile = tmpDir.resolve("classes-2222.zip");
+  }
+
+  @AfterEach
+  public void cleanup() {
+    FileUtils.deleteQuietly(tmpDir.toFile());
+  }
+
+  @Test
+  public void testWriteWithoutPreviousZipFile() throws IOException {
+    Map<String, String> contents = contents("a/A.class", "class A", "B.class", "class B");
+
+    assertEquals(0, write(null, contents));
+    assertEquals(contents, readZipFile(zipFile));
+  }
+
+  @Test
+  public void testReuseUnchangedEntries() throws IOException {
+    createZipFile(previousZipFile,
+        contents("a/A.class", "class A", "B.class", "class B", "C.class", "class C"), false);
+
+    Map<String, String> contents =
+        contents("a/A.class", "class A", "B.class", "class B modified", "D.class", "class D");
+
+    assertEquals(1, write(previousZipFile, contents));
+    assertEquals(contents, readZipFile(zipFile));
+  }
+
+  @Test
+  public void testReuseStoredEntries() throws IOException {
+    createZipFile(previousZipFile, contents("a/A.class", "class A", "B.class", "class B"), true);
+
+    Map<String, String> contents = contents("a/A.class", "class A", "B.class", "class B");
+
+    assertEquals(2, write(previousZipFile, contents));
+    assertEquals(contents, readZipFile(zipFile));
+  }
+
+  @Test
+  public void testInvalidPreviousZipFile() throws IOException {
+    Files.write(previousZipFile, "not a zip file".getBytes(StandardCharsets.UTF_8));
+
+    Map<String, String> contents = contents("a/A.class", "class A");
+
+    assertEquals(0, write(previousZipFile, contents));
+    assertEquals(contents, readZipFile(zipFile));
+  }
+
+  @Test
+  public void testEmptyZipFile() throws IOException {
+    assertEquals(0, write(null, Collections.emptyMap()));
+    assertEquals(Collections.emptyMap(), readZipFile(zipFile));
+  }
+
+  private int write(Path previous, Map<String, String> contents) throws IOException {
+    try (IncrementalZipWriter writer = new IncrementalZipWriter(zipFile, previous)) {
+      for (Map.Entry<String, String> entry : contents.entrySet()) {
+        writer.write(entry.getKey(), entry.getValue().getBytes(StandardCharsets.UTF_8));
+      }
+      writer.finish();
+      return writer.getReusedEntries();
+    }
+  }
+
+  private Map<String, String> contents(String... namesAndContents) {
+    Map<String, String> contents = new LinkedHashMap<>();
+    for (int i = 0; i < namesAndContents.length; i += 2) {
+      contents.put(namesAndContents[i], namesAndContents[i + 1]);
+    }
+    return contents;
+  }
+
+  private void createZipFile(Path file, Map<String, String> contents, boolean stored)
+      throws IOException {
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file.toFile()))) {
+      for (Map.Entry<String, String> content : contents.entrySet()) {
+        byte[] bytes = content.getValue().getBytes(StandardCharsets.UTF_8);
+        ZipEntry entry = new ZipEntry(content.getKey());
+        if (stored) {
+          CRC32 crc = new CRC32();
+          crc.update(bytes);
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(bytes.length);
+          entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(bytes);
+        zip.closeEntry();
+      }
+    }
+  }
+
+  private Map<String, String> readZipFile(Path file) throws IOException {
+    Map<String, String> contents = new LinkedHashMap<>();
+    try (ZipFile zip = new ZipFile(file.toFile())) {
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        try (InputStream in = zip.getInputStream(entry)) {
+          contents.put(entry.getName(), IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+      }
+    }
+    return contents;
+  }
+}
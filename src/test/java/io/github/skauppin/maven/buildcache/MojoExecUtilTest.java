@@ -68,4 +68,21 @@ public class MojoExecUtilTest {
     Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("test");
     assertTrue(MojoExecUtil.isTestRelatedPhase(mojoExecution));
   }
+
+  @Test
+  public void testUsesClasses() {
+    MojoExecution mojoExecution = Mockito.mock(MojoExecution.class);
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("package");
+    assertTrue(MojoExecUtil.usesClasses(mojoExecution));
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("compile");
+    assertTrue(MojoExecUtil.usesClasses(mojoExecution));
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn(null);
+    assertTrue(MojoExecUtil.usesClasses(mojoExecution));
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("process-resources");
+    assertFalse(MojoExecUtil.usesClasses(mojoExecution));
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("validate");
+    assertFalse(MojoExecUtil.usesClasses(mojoExecution));
+    Mockito.when(mojoExecution.getLifecyclePhase()).thenReturn("clean");
+    assertFalse(MojoExecUtil.usesClasses(mojoExecution));
+  }
 }
@@ -0,0 +1,156 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class ObjectStoreTest {
+
+  private Path tmpDir;
+  private Path classesDir;
+  private Path targetDir;
+  private Path manifestFile;
+  private Path linksFile;
+
+  private ObjectStore objectStore;
+
+  @BeforeEach
+  public void init() throws IOException {
+    tmpDir = Files.createTempDirectory("buildcache-maven-extension-");
+    classesDir = tmpDir.resolve("classes");
+    targetDir = tmpDir.resolve("target");
+    manifestFile = tmpDir.resolve("cache").resolve("classes-abcd.lnk");
+    linksFile = tmpDir.resolve("buildcache-classes.links");
+
+    write(classesDir.resolve("a/A.class"), "class A");
+    write(classesDir.resolve("B.class"), "class B");
+    Files.createDirectories(manifestFile.getParent());
+
+    Configuration configuration = Mockito.mock(Configuration.class);
+    Mockito.when(configuration.getCacheDirectory()).thenReturn(tmpDir.resolve("cache").toString());
+
+    FileUtil fileUtil = new FileUtil();
+    HashUtil hashUtil = new HashUtil();
+    hashUtil.setFileUtil(fileUtil);
+
+    objectStore = new ObjectStore();
+    objectStore.setLogger(Mockito.mock(Logger.class));
+    objectStore.setFileUtil(fileUtil);
+    objectStore.setHashUtil(hashUtil);
+    objectStore.initialize(configuration);
+  }
+
+  @AfterEach
+  public void cleanup() {
+    FileUtils.deleteQuietly(tmpDir.toFile());
+  }
+
+  @Test
+  public void testStoreAndLink() throws IOException {
+    objectStore.store(manifestFile, classesDir, new String[] {"a/A.class", "B.class"});
+
+    assertTrue(objectStore.link(manifestFile, targetDir, linksFile));
+
+    assertEquals("class A", read(targetDir.resolve("a/A.class")));
+    assertEquals("class B", read(targetDir.resolve("B.class")));
+    assertEquals(Arrays.asList("a/A.class", "B.class"),
+        Files.readAllLines(linksFile, StandardCharsets.UTF_8));
+    assertTrue(Files.isSameFile(targetDir.resolve("B.class"),
+        objectStore.getBlob(new HashUtil().hash("class B"))));
+  }
+
+  @Test
+  public void testLinkWhenManifestMissing() {
+    assertFalse(objectStore.link(manifestFile, targetDir, linksFile));
+    assertFalse(Files.exists(targetDir));
+  }
+
+  @Test
+  public void testLinkWhenBlobModified() throws IOException {
+    objectStore.store(manifestFile, classesDir, new String[] {"B.class"});
+    File blob = objectStore.getBlob(new HashUtil().hash("class B")).toFile();
+    blob.setWritable(true);
+    write(blob.toPath(), "class B modified");
+
+    assertFalse(objectStore.link(manifestFile, targetDir, linksFile));
+    assertFalse(blob.exists());
+  }
+
+  @Test
+  public void testLinkWhenBlobModifiedWithSameSize() throws IOException {
+    objectStore.store(manifestFile, classesDir, new String[] {"B.class"});
+    File blob = objectStore.getBlob(new HashUtil().hash("class B")).toFile();
+    long lastModified = blob.lastModified();
+    blob.setWritable(true);
+    write(blob.toPath(), "class C");
+    blob.setLastModified(lastModified + 2000);
+
+    assertFalse(objectStore.link(manifestFile, targetDir, linksFile));
+    assertFalse(blob.exists());
+  }
+
+  @Test
+  public void testLinkWithManifestOfEarlierVersion() throws IOException {
+    objectStore.store(manifestFile, classesDir, new String[] {"B.class"});
+    String hash = new HashUtil().hash("class B");
+    write(manifestFile, hash + " 7 B.class\n");
+
+    assertFalse(objectStore.link(manifestFile, targetDir, linksFile));
+    assertTrue(Files.exists(objectStore.getBlob(hash)));
+    long[] deleted =
+        objectStore.collectGarbage(Collections.singletonList(manifestFile.toFile()));
+    assertEquals(0, deleted[0]);
+  }
+
+  @Test
+  public void testUnlink() throws IOException {
+    objectStore.store(manifestFile, classesDir, new String[] {"B.class"});
+    objectStore.link(manifestFile, targetDir, linksFile);
+
+    objectStore.unlink(targetDir, linksFile);
+
+    Path target = targetDir.resolve("B.class");
+    Path blob = objectStore.getBlob(new HashUtil().hash("class B"));
+    assertFalse(Files.isSameFile(target, blob));
+    assertTrue(target.toFile().canWrite());
+    assertEquals("class B", read(target));
+    assertFalse(Files.exists(linksFile));
+  }
+
+  @Test
+  public void testCollectGarbage() throws IOException {
+    objectStore.store(manifestFile, classesDir, new String[] {"a/A.class", "B.class"});
+    Path otherManifest = manifestFile.resolveSibling("classes-efgh.lnk");
+    objectStore.store(otherManifest, classesDir, new String[] {"B.class"});
+
+    long[] deleted =
+        objectStore.collectGarbage(Collections.singletonList(otherManifest.toFile()));
+
+    assertEquals(1, deleted[0]);
+    assertEquals(7, deleted[1]);
+    assertFalse(Files.exists(objectStore.getBlob(new HashUtil().hash("class A"))));
+    assertTrue(Files.exists(objectStore.getBlob(new HashUtil().hash("class B"))));
+  }
+
+  private void write(Path file, String content) throws IOException {
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String read(Path file) throws IOException {
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,117 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class ReadOnlyCachesTest {
+
+  private Path tmpDir;
+  private Path cacheDir;
+  private Path nfsDir;
+  private Path imageDir;
+  private CacheIndex cacheIndex;
+  private ReadOnlyCaches readOnlyCaches;
+
+  @BeforeEach
+  public void init() throws IOException {
+    tmpDir = Files.createTempDirectory("buildcache-maven-extension-");
+    cacheDir = tmpDir.resolve("cache");
+    nfsDir = tmpDir.resolve("nfs");
+    imageDir = tmpDir.resolve("image");
+
+    Configuration configuration = Mockito.mock(Configuration.class);
+    Mockito.when(configuration.getCacheDirectory()).thenReturn(cacheDir.toString());
+    Mockito.when(configuration.getReadOnlyCaches())
+        .thenReturn(Arrays.asList(new Configuration.ReadOnlyCache(nfsDir.toString(), true),
+            new Configuration.ReadOnlyCache(imageDir.toString(), false)));
+
+    cacheIndex = new CacheIndex();
+    cacheIndex.setLogger(Mockito.mock(Logger.class));
+    cacheIndex.setFileUtil(new FileUtil());
+    cacheIndex.setCacheDaemonClient(new CacheDaemonClient());
+    cacheIndex.setCacheLock(new CacheLock());
+
+    readOnlyCaches = new ReadOnlyCaches();
+    readOnlyCaches.setLogger(Mockito.mock(Logger.class));
+    readOnlyCaches.setFileUtil(new FileUtil());
+    readOnlyCaches.setCacheIndex(cacheIndex);
+    readOnlyCaches.initialize(configuration);
+  }
+
+  @AfterEach
+  public void cleanup() {
+    FileUtils.deleteQuietly(tmpDir.toFile());
+  }
+
+  @Test
+  public void testFindZipFile() throws IOException {
+    Path zipFile = cacheDir.resolve("com/test/test-lib/classes-1111.zip");
+    assertTrue(readOnlyCaches.hasLayers());
+    assertFalse(readOnlyCaches.findZipFile(zipFile).isPresent());
+
+    Path imageFile = createFile(imageDir.resolve("com/test/test-lib/classes-1111.zip"));
+    assertEquals(Optional.of(imageFile), readOnlyCaches.findZipFile(zipFile));
+
+    Path nfsFile = createFile(nfsDir.resolve("com/test/test-lib/classes-1111.zip"));
+    assertEquals(Optional.of(nfsFile), readOnlyCaches.findZipFile(zipFile));
+  }
+
+  @Test
+  public void testCopyToPrimary() throws IOException {
+    Path zipFile = cacheDir.resolve("com/test/test-lib/classes-1111.zip");
+    Path nfsFile = createFile(nfsDir.resolve("com/test/test-lib/classes-1111.zip"));
+    Path imageFile = createFile(imageDir.resolve("com/test/test-lib/classes-1111.zip"));
+
+    assertFalse(readOnlyCaches.copyToPrimary(imageFile, zipFile));
+    assertFalse(Files.exists(zipFile));
+
+    assertTrue(readOnlyCaches.copyToPrimary(nfsFile, zipFile));
+    assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(zipFile));
+    assertTrue(Files.exists(nfsFile));
+  }
+
+  @Test
+  public void testFindTestExecution() throws IOException {
+    Path projectCacheDir = cacheDir.resolve("com/test/test-lib");
+    assertFalse(readOnlyCaches.findTestExecution(projectCacheDir, "test-1111").isPresent());
+
+    CacheIndex writer = new CacheIndex();
+    writer.setLogger(Mockito.mock(Logger.class));
+    writer.setFileUtil(new FileUtil());
+    writer.setCacheDaemonClient(new CacheDaemonClient());
+    writer.setCacheLock(new CacheLock());
+    writer.put(imageDir.resolve("com/test/test-lib"),
+        new CacheIndex.Entry("test-1111", CacheIndex.KIND_TEST, 0, 1000L, 250L));
+
+    ReadOnlyCaches.TestExecution testExecution =
+        readOnlyCaches.findTestExecution(projectCacheDir, "test-1111").get();
+    assertEquals(CacheIndex.KIND_TEST, testExecution.getEntry().getKind());
+    assertEquals(250L, testExecution.getEntry().getDurationMillis());
+    assertFalse(testExecution.isCopyToPrimary());
+    assertFalse(Files.exists(nfsDir));
+  }
+
+  @Test
+  public void testOutsideCacheDirectory() {
+    assertFalse(readOnlyCaches.findZipFile(tmpDir.resolve("other/classes-1111.zip")).isPresent());
+    assertFalse(readOnlyCaches.findTestExecution(tmpDir.resolve("other"), "test-1111").isPresent());
+  }
+
+  private Path createFile(Path file) throws IOException {
+    Files.createDirectories(file.getParent());
+    return Files.write(file, new byte[] {1, 2, 3});
+  }
+}
@@ -0,0 +1,121 @@
+package io.github.skauppin.maven.buildcache;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Minimal HTTP cache server for tests, storing entries under a local directory.
+ */
+public class RemoteCacheServer implements AutoCloseable {
+
+  private final Path directory;
+  private final HttpServer server;
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+  private volatile int errorStatus;
+  private volatile Consumer<String> requestListener = request -> {
+  };
+
+  public RemoteCacheServer(Path directory) throws IOException {
+    this.directory = directory;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/cache/", this::handle);
+    this.server.start();
+  }
+
+  public String getUrl() {
+    return String.format("http://localhost:%d/cache", server.getAddress().getPort());
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  public List<String> getRequests() {
+    return requests;
+  }
+
+  /**
+   * Makes every following request fail with the given status, or succeed again with 0.
+   */
+  public void setErrorStatus(int errorStatus) {
+    this.errorStatus = errorStatus;
+  }
+
+  /**
+   * Calls the listener with every request before handling it.
+   */
+  public void setRequestListener(Consumer<String> requestListener) {
+    this.requestListener = requestListener;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath().substring("/cache/".length());
+    requests.add(method + " " + path);
+    requestListener.accept(method + " " + path);
+    // the JDK server can't reuse a keep-alive connection after a HEAD response
+    exchange.getResponseHeaders().set("Connection", "close");
+    Path file = directory.resolve(path).normalize();
+
+    try {
+      if (errorStatus != 0) {
+        exchange.sendResponseHeaders(errorStatus, -1);
+      } else if (!file.startsWith(directory)) {
+        exchange.sendResponseHeaders(400, -1);
+      } else if ("PUT".equals(method) && !matches(exchange, file)) {
+        exchange.sendResponseHeaders(412, -1);
+      } else if ("PUT".equals(method)) {
+        Files.createDirectories(file.getParent());
+        try (InputStream in = exchange.getRequestBody()) {
+          Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        exchange.sendResponseHeaders(201, -1);
+      } else if (!Files.isRegularFile(file)) {
+        exchange.sendResponseHeaders(404, -1);
+      } else if ("HEAD".equals(method)) {
+        exchange.getResponseHeaders().add("Content-Length", String.valueOf(Files.size(file)));
+        exchange.sendResponseHeaders(200, -1);
+      } else if ("GET".equals(method)) {
+        exchange.getResponseHeaders().add("ETag", getETag(file));
+        exchange.sendResponseHeaders(200, Files.size(file));
+        try (OutputStream out = exchange.getResponseBody()) {
+          Files.copy(file, out);
+        }
+      } else {
+        exchange.sendResponseHeaders(405, -1);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static boolean matches(HttpExchange exchange, Path file) throws IOException {
+    String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+    if (ifMatch != null) {
+      return Files.isRegularFile(file) && ifMatch.equals(getETag(file));
+    }
+    return !"*".equals(ifNoneMatch) || !Files.exists(file);
+  }
+
+  private static String getETag(Path file) throws IOException {
+    return "\"" + DigestUtils.md5Hex(Files.readAllBytes(file)) + "\"";
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+}
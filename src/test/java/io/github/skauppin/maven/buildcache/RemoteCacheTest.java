@@ -0,0 +1,566 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class RemoteCacheTest {
+
+  private Path tmpDir;
+  private RemoteCacheServer server;
+  private Configuration configuration;
+  private RemoteCache remoteCache;
+
+  @BeforeEach
+  public void init() throws IOException {
+    tmpDir = Files.createTempDirectory("buildcache-maven-extension-");
+    server = new RemoteCacheServer(tmpDir.resolve("remote"));
+
+    configuration = Mockito.mock(Configuration.class);
+    Mockito.when(configuration.hasRemoteUrl()).thenReturn(true);
+    Mockito.when(configuration.getRemoteUrl()).thenReturn(server.getUrl());
+    Mockito.when(configuration.isRemoteUpload()).thenReturn(true);
+    Mockito.when(configuration.getRemoteTimeoutMillis()).thenReturn(2000);
+
+    remoteCache = new RemoteCache();
+    remoteCache.setLogger(Mockito.mock(Logger.class));
+    remoteCache.setFileUtil(new FileUtil());
+    remoteCache.initialize(configuration);
+  }
+
+  @AfterEach
+  public void cleanup() {
+    System.clearProperty("aws.accessKeyId");
+    System.clearProperty("aws.secretAccessKey");
+    server.close();
+    FileUtils.deleteQuietly(tmpDir.toFile());
+  }
+
+  @Test
+  public void testUploadAndDownload() throws IOException {
+    Path zipFile = tmpDir.resolve("classes-1111.zip");
+    Files.write(zipFile, new byte[] {1, 2, 3});
+
+    assertTrue(remoteCache.isEnabled());
+    assertTrue(remoteCache.upload("com/test/test-lib/classes-1111.zip", zipFile));
+    assertTrue(remoteCache.exists("com/test/test-lib/classes-1111.zip"));
+
+    Path target = tmpDir.resolve("local/com/test/test-lib/classes-1111.zip");
+    assertTrue(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+    assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(target));
+
+    assertEquals(Arrays.asList("PUT com/test/test-lib/classes-1111.zip",
+        "HEAD com/test/test-lib/classes-1111.zip", "GET com/test/test-lib/classes-1111.zip"),
+        server.getRequests());
+  }
+
+  @Test
+  public void testRequestDeadline() throws IOException {
+    try (ServerSocket unresponsive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      Mockito.when(configuration.getRemoteUrl())
+          .thenReturn("http://localhost:" + unresponsive.getLocalPort() + "/");
+      Mockito.when(configuration.getRemoteTimeoutMillis()).thenReturn(10000);
+      remoteCache.initialize(configuration);
+
+      long start = System.currentTimeMillis();
+      remoteCache.setRequestDeadline(start + 200);
+
+      assertFalse(remoteCache.upload("com/test/test-lib/test-1111", new byte[] {1}));
+      assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+  }
+
+  @Test
+  public void testEmptyEntry() {
+    assertTrue(remoteCache.upload("com/test/test-lib/test-1111", new byte[0]));
+    assertTrue(remoteCache.exists("com/test/test-lib/test-1111"));
+    assertTrue(Files.exists(server.getDirectory().resolve("com/test/test-lib/test-1111")));
+  }
+
+  @Test
+  public void testMiss() {
+    Path target = tmpDir.resolve("local/classes-1111.zip");
+    assertFalse(remoteCache.exists("com/test/test-lib/classes-1111.zip"));
+    assertFalse(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+    assertFalse(Files.exists(target));
+  }
+
+  @Test
+  public void testUploadDisabled() {
+    Mockito.when(configuration.isRemoteUpload()).thenReturn(false);
+    remoteCache.initialize(configuration);
+
+    assertTrue(remoteCache.isEnabled());
+    assertFalse(remoteCache.isUploadEnabled());
+    assertFalse(remoteCache.upload("com/test/test-lib/test-1111", new byte[0]));
+    assertTrue(server.getRequests().isEmpty());
+  }
+
+  @Test
+  public void testNotConfigured() {
+    Mockito.when(configuration.hasRemoteUrl()).thenReturn(false);
+    remoteCache.initialize(configuration);
+
+    assertFalse(remoteCache.isEnabled());
+    assertFalse(remoteCache.exists("com/test/test-lib/test-1111"));
+    assertTrue(server.getRequests().isEmpty());
+  }
+
+  @Test
+  public void testServerNotAvailable() {
+    server.close();
+
+    Path target = tmpDir.resolve("local/classes-1111.zip");
+    assertFalse(remoteCache.exists("com/test/test-lib/classes-1111.zip"));
+    assertFalse(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+    assertFalse(remoteCache.upload("com/test/test-lib/test-1111", new byte[0]));
+  }
+
+  @Test
+  public void testCircuitOpensOnServerErrors() {
+    Logger logger = Mockito.mock(Logger.class);
+    remoteCache.setLogger(logger);
+    server.setErrorStatus(503);
+
+    for (int i = 0; i < RemoteCircuitBreaker.FAILURE_THRESHOLD; i++) {
+      assertFalse(remoteCache.exists("com/test/test-lib/test-1111"));
+    }
+    Mockito.verify(logger).warn(
+        "buildcache: remote cache is not responding, skipping it for 30 seconds");
+
+    server.setErrorStatus(0);
+    server.getRequests().clear();
+    assertFalse(remoteCache.exists("com/test/test-lib/test-1111"));
+    assertFalse(remoteCache.upload("com/test/test-lib/test-1111", new byte[0]));
+    assertTrue(server.getRequests().isEmpty());
+
+    remoteCache.logSummary();
+    Mockito.verify(logger).info("buildcache: remote cache: 3 requests, 3 failed, "
+        + "circuit open (opened 1 times), 2 requests skipped while open");
+  }
+
+  @Test
+  public void testNotFoundIsNotFailure() {
+    for (int i = 0; i < RemoteCircuitBreaker.FAILURE_THRESHOLD + 1; i++) {
+      assertFalse(remoteCache.exists("com/test/test-lib/test-1111"));
+    }
+    assertEquals(RemoteCircuitBreaker.FAILURE_THRESHOLD + 1, server.getRequests().size());
+  }
+
+  @Test
+  public void testKeyFilter() throws IOException {
+    enableKeyFilter();
+    assertTrue(remoteCache.upload("com/test/test-lib/test-1111", new byte[0]));
+    assertTrue(remoteCache.upload("com/test/test-lib/test-2222", new byte[0]));
+    remoteCache.publishKeyFilter();
+    assertTrue(Files.exists(server.getDirectory().resolve(RemoteCache.KEY_FILTER_FILE)));
+
+    remoteCache.initialize(configuration);
+    assertTrue(Files.exists(tmpDir.resolve("local/" + RemoteCache.KEY_FILTER_FILE)));
+    server.getRequests().clear();
+
+    Path target = tmpDir.resolve("local/com/test/test-lib/classes-3333.zip");
+    assertTrue(remoteCache.exists("com/test/test-lib/test-1111"));
+    assertFalse(remoteCache.exists("com/test/test-lib/test-3333"));
+    assertFalse(remoteCache.download("com/test/test-lib/classes-3333.zip", target));
+    assertEquals(Arrays.asList("HEAD com/test/test-lib/test-1111"), server.getRequests());
+  }
+
+  @Test
+  public void testKeyFilterMerged() throws IOException {
+    enableKeyFilter();
+    assertTrue(remoteCache.upload("com/test/test-lib/test-1111", new byte[0]));
+    remoteCache.publishKeyFilter();
+
+    remoteCache.initialize(configuration);
+    assertTrue(remoteCache.upload("com/test/test-lib/test-2222", new byte[0]));
+    remoteCache.publishKeyFilter();
+
+    remoteCache.initialize(configuration);
+    assertTrue(remoteCache.exists("com/test/test-lib/test-1111"));
+    assertTrue(remoteCache.exists("com/test/test-lib/test-2222"));
+  }
+
+  @Test
+  public void testKeyFilterChangedByAnotherBuild() throws IOException {
+    enableKeyFilter();
+    assertTrue(remoteCache.upload("com/test/test-lib/test-1111", new byte[0]));
+    remoteCache.publishKeyFilter();
+
+    BloomFilter otherBuild = BloomFilter.read(ByteBuffer.wrap(
+        Files.readAllBytes(server.getDirectory().resolve(RemoteCache.KEY_FILTER_FILE))));
+    otherBuild.put("com/test/test-lib/test-3333");
+    AtomicBoolean changed = new AtomicBoolean();
+    server.setRequestListener(request -> {
+      if (request.equals("PUT " + RemoteCache.KEY_FILTER_FILE) && !changed.getAndSet(true)) {
+        try {
+          Files.write(server.getDirectory().resolve(RemoteCache.KEY_FILTER_FILE),
+              otherBuild.toByteArray());
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    });
+
+    assertTrue(remoteCache.upload("com/test/test-lib/test-2222", new byte[0]));
+    server.getRequests().clear();
+    remoteCache.publishKeyFilter();
+    assertEquals(Arrays.asList("GET " + RemoteCache.KEY_FILTER_FILE,
+        "PUT " + RemoteCache.KEY_FILTER_FILE, "GET " + RemoteCache.KEY_FILTER_FILE,
+        "PUT " + RemoteCache.KEY_FILTER_FILE), server.getRequests());
+
+    remoteCache.initialize(configuration);
+    assertTrue(remoteCache.exists("com/test/test-lib/test-1111"));
+    assertTrue(remoteCache.exists("com/test/test-lib/test-2222"));
+    assertFalse(remoteCache.exists("com/test/test-lib/test-3333"));
+    assertTrue(server.getRequests().contains("HEAD com/test/test-lib/test-3333"));
+  }
+
+  @Test
+  public void testFullKeyFilterKept() throws IOException {
+    BloomFilter full = fullKeyFilter();
+    Files.createDirectories(server.getDirectory());
+    Path filterFile = server.getDirectory().resolve(RemoteCache.KEY_FILTER_FILE);
+    Files.write(filterFile, full.toByteArray());
+    enableKeyFilter();
+
+    // a full filter isn't used for lookups
+    assertFalse(remoteCache.exists("com/test/test-lib/test-b"));
+    assertTrue(server.getRequests().contains("HEAD com/test/test-lib/test-b"));
+
+    assertTrue(remoteCache.upload("com/test/test-lib/test-a", new byte[0]));
+    remoteCache.publishKeyFilter();
+
+    // the entries of the remote cache can't be listed to rebuild the filter
+    assertArrayEquals(full.toByteArray(), Files.readAllBytes(filterFile));
+  }
+
+  @Test
+  public void testFullKeyFilterRebuiltFromS3Listing() throws IOException {
+    try (S3Server s3Server = new S3Server()) {
+      s3Server.setListPageSize(2);
+      s3Server.getObjects().put("com/test/test-lib/test-1111", new byte[0]);
+      s3Server.getObjects().put("com/test/test-lib/test-2222", new byte[0]);
+      s3Server.getObjects().put("com/test/test-lib/classes-3333.zip", new byte[] {1});
+      s3Server.getObjects().put(RemoteCache.KEY_FILTER_FILE, fullKeyFilter().toByteArray());
+      initializeS3(s3Server, S3Server.SECRET_ACCESS_KEY);
+      enableKeyFilter();
+
+      assertTrue(remoteCache.upload("com/test/test-lib/test-a", new byte[0]));
+      remoteCache.publishKeyFilter();
+
+      BloomFilter rebuilt = BloomFilter
+          .read(ByteBuffer.wrap(s3Server.getObjects().get(RemoteCache.KEY_FILTER_FILE)));
+      assertEquals(1000, rebuilt.getCapacity());
+      assertTrue(rebuilt.mightContain("com/test/test-lib/test-1111"));
+      assertTrue(rebuilt.mightContain("com/test/test-lib/test-2222"));
+      assertTrue(rebuilt.mightContain("com/test/test-lib/classes-3333.zip"));
+      assertTrue(rebuilt.mightContain("com/test/test-lib/test-a"));
+      assertTrue(rebuilt.estimateEntries() < 10);
+      assertEquals(3, s3Server.getRequests().stream().filter(r -> r.startsWith("GET ?list-type=2"))
+          .count());
+    }
+  }
+
+  private static BloomFilter fullKeyFilter() {
+    BloomFilter full = BloomFilter.create(1000);
+    for (int i = 0; i < 2000; i++) {
+      full.put(String.format("com/test/test-lib/test-%d", i));
+    }
+    return full;
+  }
+
+  @Test
+  public void testKeyFilterNotPublished() throws IOException {
+    Files.createDirectories(server.getDirectory().resolve("com/test/test-lib"));
+    Files.write(server.getDirectory().resolve("com/test/test-lib/test-1111"), new byte[0]);
+    enableKeyFilter();
+
+    assertTrue(remoteCache.exists("com/test/test-lib/test-1111"));
+    assertFalse(remoteCache.exists("com/test/test-lib/test-2222"));
+    assertEquals(Arrays.asList("GET " + RemoteCache.KEY_FILTER_FILE,
+        "HEAD com/test/test-lib/test-1111", "HEAD com/test/test-lib/test-2222"),
+        server.getRequests());
+
+    // nothing uploaded in the session
+    remoteCache.publishKeyFilter();
+    assertFalse(Files.exists(server.getDirectory().resolve(RemoteCache.KEY_FILTER_FILE)));
+  }
+
+  @Test
+  public void testBazelUploadAndDownload() throws IOException {
+    Path zipFile = tmpDir.resolve("classes-1111.zip");
+    Files.write(zipFile, new byte[] {1, 2, 3});
+    String actionKey = DigestUtils.sha256Hex("com/test/test-lib/classes-1111.zip");
+    String blobKey = DigestUtils.sha256Hex(new byte[] {1, 2, 3});
+
+    try (BazelCacheServer bazelServer = new BazelCacheServer()) {
+      initializeBazel(bazelServer);
+
+      assertTrue(remoteCache.upload("com/test/test-lib/classes-1111.zip", zipFile));
+      assertTrue(remoteCache.exists("com/test/test-lib/classes-1111.zip"));
+
+      Path target = tmpDir.resolve("local/com/test/test-lib/classes-1111.zip");
+      assertTrue(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+      assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(target));
+
+      assertEquals(Arrays.asList("PUT cas/" + blobKey, "PUT ac/" + actionKey,
+          "HEAD ac/" + actionKey, "GET ac/" + actionKey, "GET cas/" + blobKey),
+          bazelServer.getRequests());
+    }
+    assertTrue(server.getRequests().isEmpty());
+  }
+
+  @Test
+  public void testBazelEmptyEntry() throws IOException {
+    try (BazelCacheServer bazelServer = new BazelCacheServer()) {
+      initializeBazel(bazelServer);
+
+      assertFalse(remoteCache.exists("com/test/test-lib/test-1111"));
+      assertTrue(remoteCache.upload("com/test/test-lib/test-1111", new byte[0]));
+      assertTrue(remoteCache.exists("com/test/test-lib/test-1111"));
+      assertTrue(bazelServer.getContentStore().containsKey(DigestUtils.sha256Hex(new byte[0])));
+    }
+  }
+
+  @Test
+  public void testBazelMiss() throws IOException {
+    try (BazelCacheServer bazelServer = new BazelCacheServer()) {
+      initializeBazel(bazelServer);
+
+      Path target = tmpDir.resolve("local/classes-1111.zip");
+      assertFalse(remoteCache.exists("com/test/test-lib/classes-1111.zip"));
+      assertFalse(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+      assertFalse(Files.exists(target));
+    }
+  }
+
+  @Test
+  public void testBazelBlobEvicted() throws IOException {
+    try (BazelCacheServer bazelServer = new BazelCacheServer()) {
+      initializeBazel(bazelServer);
+      assertTrue(remoteCache.upload("com/test/test-lib/classes-1111.zip", new byte[] {1, 2, 3}));
+      bazelServer.getContentStore().clear();
+
+      Path target = tmpDir.resolve("local/classes-1111.zip");
+      assertFalse(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+      assertFalse(Files.exists(target));
+    }
+  }
+
+  @Test
+  public void testBazelCorruptBlob() throws IOException {
+    try (BazelCacheServer bazelServer = new BazelCacheServer()) {
+      initializeBazel(bazelServer);
+      assertTrue(remoteCache.upload("com/test/test-lib/classes-1111.zip", new byte[] {1, 2, 3}));
+      bazelServer.getContentStore().replaceAll((hash, content) -> new byte[] {4, 5, 6});
+
+      Path target = tmpDir.resolve("local/classes-1111.zip");
+      assertFalse(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+      assertFalse(Files.exists(target));
+    }
+  }
+
+  @Test
+  public void testBazelInvalidActionResult() throws IOException {
+    try (BazelCacheServer bazelServer = new BazelCacheServer()) {
+      initializeBazel(bazelServer);
+      bazelServer.getActionCache().put(
+          DigestUtils.sha256Hex("com/test/test-lib/classes-1111.zip"), new byte[] {1, 2, 3});
+
+      Path target = tmpDir.resolve("local/classes-1111.zip");
+      assertFalse(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+      assertFalse(Files.exists(target));
+    }
+  }
+
+  @Test
+  public void testS3UploadAndDownload() throws IOException {
+    Path zipFile = tmpDir.resolve("classes-1111.zip");
+    Files.write(zipFile, new byte[] {1, 2, 3});
+
+    try (S3Server s3Server = new S3Server()) {
+      initializeS3(s3Server, S3Server.SECRET_ACCESS_KEY);
+
+      assertTrue(remoteCache.upload("com/test/test-lib/classes-1111.zip", zipFile));
+      assertTrue(remoteCache.exists("com/test/test-lib/classes-1111.zip"));
+
+      Path target = tmpDir.resolve("local/com/test/test-lib/classes-1111.zip");
+      assertTrue(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+      assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(target));
+
+      assertEquals(Arrays.asList("PUT com/test/test-lib/classes-1111.zip",
+          "HEAD com/test/test-lib/classes-1111.zip", "GET com/test/test-lib/classes-1111.zip"),
+          s3Server.getRequests());
+    }
+  }
+
+  @Test
+  public void testS3EmptyEntry() throws IOException {
+    try (S3Server s3Server = new S3Server()) {
+      initializeS3(s3Server, S3Server.SECRET_ACCESS_KEY);
+
+      assertTrue(remoteCache.upload("com/test/test-lib/test-1111", new byte[0]));
+      assertTrue(remoteCache.exists("com/test/test-lib/test-1111"));
+
+      Path target = tmpDir.resolve("local/test-1111");
+      assertTrue(remoteCache.download("com/test/test-lib/test-1111", target));
+      assertEquals(0, Files.size(target));
+    }
+  }
+
+  @Test
+  public void testS3Miss() throws IOException {
+    try (S3Server s3Server = new S3Server()) {
+      initializeS3(s3Server, S3Server.SECRET_ACCESS_KEY);
+
+      Path target = tmpDir.resolve("local/classes-1111.zip");
+      assertFalse(remoteCache.exists("com/test/test-lib/classes-1111.zip"));
+      assertFalse(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+      assertFalse(Files.exists(target));
+    }
+  }
+
+  @Test
+  public void testS3InvalidCredentials() throws IOException {
+    try (S3Server s3Server = new S3Server()) {
+      initializeS3(s3Server, "invalid");
+
+      assertFalse(remoteCache.upload("com/test/test-lib/test-1111", new byte[0]));
+      assertTrue(s3Server.getObjects().isEmpty());
+    }
+  }
+
+  @Test
+  public void testS3MultipartUploadAndRangedDownload() throws IOException {
+    byte[] content = new byte[2500];
+    new Random(1).nextBytes(content);
+
+    try (S3Server s3Server = new S3Server()) {
+      initializeS3(s3Server, S3Server.SECRET_ACCESS_KEY);
+      remoteCache.setS3PartSize(1000);
+
+      assertTrue(remoteCache.upload("com/test/test-lib/classes-1111.zip", content));
+      assertArrayEquals(content, s3Server.getObjects().get("com/test/test-lib/classes-1111.zip"));
+      assertTrue(s3Server.getUploads().isEmpty());
+
+      Path target = tmpDir.resolve("local/classes-1111.zip");
+      assertTrue(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+      assertArrayEquals(content, Files.readAllBytes(target));
+
+      String uploadId = "uploadId=1.upload%2Bcom%2Ftest%2Ftest-lib%2Fclasses-1111.zip";
+      assertEquals(Arrays.asList("POST com/test/test-lib/classes-1111.zip?uploads",
+          "PUT com/test/test-lib/classes-1111.zip?partNumber=1&" + uploadId,
+          "PUT com/test/test-lib/classes-1111.zip?partNumber=2&" + uploadId,
+          "PUT com/test/test-lib/classes-1111.zip?partNumber=3&" + uploadId,
+          "POST com/test/test-lib/classes-1111.zip?" + uploadId,
+          "GET com/test/test-lib/classes-1111.zip", "GET com/test/test-lib/classes-1111.zip",
+          "GET com/test/test-lib/classes-1111.zip"), s3Server.getRequests());
+    }
+  }
+
+  @Test
+  public void testS3MultipartUploadFromFile() throws IOException {
+    byte[] content = new byte[2500];
+    new Random(1).nextBytes(content);
+    Path zipFile = tmpDir.resolve("classes-1111.zip");
+    Files.write(zipFile, content);
+
+    try (S3Server s3Server = new S3Server()) {
+      initializeS3(s3Server, S3Server.SECRET_ACCESS_KEY);
+      remoteCache.setS3PartSize(1000);
+
+      assertTrue(remoteCache.upload("com/test/test-lib/classes-1111.zip", zipFile));
+      assertArrayEquals(content, s3Server.getObjects().get("com/test/test-lib/classes-1111.zip"));
+      assertEquals(3, s3Server.getRequests().stream().filter(r -> r.startsWith("PUT ")).count());
+    }
+  }
+
+  @Test
+  public void testS3MultipartUploadAborted() throws IOException {
+    try (S3Server s3Server = new S3Server()) {
+      initializeS3(s3Server, S3Server.SECRET_ACCESS_KEY);
+      remoteCache.setS3PartSize(1000);
+      s3Server.setFailCompleteUpload(true);
+
+      assertFalse(remoteCache.upload("com/test/test-lib/classes-1111.zip", new byte[1500]));
+      assertTrue(s3Server.getObjects().isEmpty());
+      assertTrue(s3Server.getUploads().isEmpty());
+      assertTrue(s3Server.getRequests().get(s3Server.getRequests().size() - 1)
+          .startsWith("DELETE com/test/test-lib/classes-1111.zip?uploadId="));
+    }
+  }
+
+  @Test
+  public void testS3DownloadResumed() throws IOException {
+    byte[] content = new byte[2500];
+    new Random(1).nextBytes(content);
+
+    try (S3Server s3Server = new S3Server()) {
+      initializeS3(s3Server, S3Server.SECRET_ACCESS_KEY);
+      remoteCache.setS3PartSize(1000);
+      s3Server.getObjects().put("com/test/test-lib/classes-1111.zip", content);
+      s3Server.breakNextDownloadAfter(600);
+
+      Path target = tmpDir.resolve("local/classes-1111.zip");
+      assertTrue(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+      assertArrayEquals(content, Files.readAllBytes(target));
+      // bytes 0-599, 600-1599 and 1600-2499
+      assertEquals(3, s3Server.getRequests().size());
+    }
+  }
+
+  @Test
+  public void testS3ObjectReplacedDuringDownload() throws IOException {
+    try (S3Server s3Server = new S3Server()) {
+      initializeS3(s3Server, S3Server.SECRET_ACCESS_KEY);
+      remoteCache.setS3PartSize(1000);
+      s3Server.getObjects().put("com/test/test-lib/classes-1111.zip", new byte[2500]);
+      s3Server.replaceAfterNextDownload("com/test/test-lib/classes-1111.zip", new byte[3000]);
+
+      Path target = tmpDir.resolve("local/classes-1111.zip");
+      assertFalse(remoteCache.download("com/test/test-lib/classes-1111.zip", target));
+      assertFalse(Files.exists(target));
+    }
+  }
+
+  private void initializeS3(S3Server s3Server, String secretAccessKey) {
+    System.setProperty("aws.accessKeyId", S3Server.ACCESS_KEY_ID);
+    System.setProperty("aws.secretAccessKey", secretAccessKey);
+    Mockito.when(configuration.getRemoteUrl()).thenReturn(s3Server.getUrl());
+    Mockito.when(configuration.isS3RemoteProtocol()).thenReturn(true);
+    Mockito.when(configuration.getRemoteS3Region()).thenReturn(S3Server.REGION);
+    remoteCache.initialize(configuration);
+  }
+
+  private void initializeBazel(BazelCacheServer bazelServer) {
+    Mockito.when(configuration.getRemoteUrl()).thenReturn(bazelServer.getUrl());
+    Mockito.when(configuration.isBazelRemoteProtocol()).thenReturn(true);
+    remoteCache.initialize(configuration);
+  }
+
+  private void enableKeyFilter() {
+    Mockito.when(configuration.getCacheDirectory()).thenReturn(tmpDir.resolve("local").toString());
+    Mockito.when(configuration.isRemoteKeyFilter()).thenReturn(true);
+    Mockito.when(configuration.getRemoteKeyFilterEntries()).thenReturn(1000);
+    remoteCache.initialize(configuration);
+  }
+}
@@ -0,0 +1,142 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class RemoteCircuitBreakerTest {
+
+  private long now;
+  private RemoteCircuitBreaker circuitBreaker;
+
+  @BeforeEach
+  public void init() {
+    now = 1000000L;
+    circuitBreaker = new RemoteCircuitBreaker(10000, () -> now);
+  }
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+    assertEquals(0, circuitBreaker.recordFailure());
+    circuitBreaker.recordSuccess(10);
+    assertEquals(0, circuitBreaker.recordFailure());
+    assertEquals(0, circuitBreaker.recordFailure());
+    assertTrue(circuitBreaker.allowRequest());
+    assertEquals(RemoteCircuitBreaker.INITIAL_COOLDOWN_MILLIS, circuitBreaker.recordFailure());
+
+    assertEquals(RemoteCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    assertFalse(circuitBreaker.allowRequest());
+    now += RemoteCircuitBreaker.INITIAL_COOLDOWN_MILLIS - 1;
+    assertFalse(circuitBreaker.allowRequest());
+  }
+
+  @Test
+  public void testTrialSuccessCloses() {
+    open();
+    now += RemoteCircuitBreaker.INITIAL_COOLDOWN_MILLIS;
+
+    assertTrue(circuitBreaker.allowRequest());
+    assertEquals(RemoteCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    assertFalse(circuitBreaker.allowRequest());
+
+    circuitBreaker.recordSuccess(10);
+    assertEquals(RemoteCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    assertTrue(circuitBreaker.allowRequest());
+  }
+
+  @Test
+  public void testTrialFailureDoublesCooldown() {
+    open();
+    now += RemoteCircuitBreaker.INITIAL_COOLDOWN_MILLIS;
+    assertTrue(circuitBreaker.allowRequest());
+    assertEquals(2 * RemoteCircuitBreaker.INITIAL_COOLDOWN_MILLIS, circuitBreaker.recordFailure());
+
+    now += 2 * RemoteCircuitBreaker.INITIAL_COOLDOWN_MILLIS - 1;
+    assertFalse(circuitBreaker.allowRequest());
+    now += 1;
+    assertTrue(circuitBreaker.allowRequest());
+
+    for (int i = 0; i < 10; i++) {
+      now += RemoteCircuitBreaker.MAX_COOLDOWN_MILLIS;
+      assertTrue(circuitBreaker.allowRequest());
+      circuitBreaker.recordFailure();
+    }
+    now += RemoteCircuitBreaker.MAX_COOLDOWN_MILLIS - 1;
+    assertFalse(circuitBreaker.allowRequest());
+  }
+
+  @Test
+  public void testUnfinishedTrialExpires() {
+    open();
+    now += RemoteCircuitBreaker.INITIAL_COOLDOWN_MILLIS;
+    assertTrue(circuitBreaker.allowRequest());
+
+    now += 19999;
+    assertFalse(circuitBreaker.allowRequest());
+    now += 1;
+    assertTrue(circuitBreaker.allowRequest());
+  }
+
+  @Test
+  public void testAdaptiveTimeout() {
+    assertEquals(10000, circuitBreaker.getTimeoutMillis());
+    for (int i = 0; i < 9; i++) {
+      circuitBreaker.recordSuccess(200);
+    }
+    assertEquals(10000, circuitBreaker.getTimeoutMillis());
+    circuitBreaker.recordSuccess(300);
+    assertEquals(1200, circuitBreaker.getTimeoutMillis());
+
+    for (int i = 0; i < 64; i++) {
+      circuitBreaker.recordSuccess(10);
+    }
+    assertEquals(RemoteCircuitBreaker.MIN_TIMEOUT_MILLIS, circuitBreaker.getTimeoutMillis());
+    assertEquals(10000, circuitBreaker.getMaxTimeoutMillis());
+
+    for (int i = 0; i < 64; i++) {
+      circuitBreaker.recordSuccess(5000);
+    }
+    assertEquals(10000, circuitBreaker.getTimeoutMillis());
+  }
+
+  @Test
+  public void testExpectedMillis() {
+    assertEquals(-1, circuitBreaker.getExpectedLookupMillis());
+    assertEquals(-1, circuitBreaker.getExpectedDownloadMillis());
+
+    for (int i = 1; i <= 10; i++) {
+      circuitBreaker.recordSuccess(i * 10);
+      circuitBreaker.recordDownload(i * 100);
+    }
+    // latencies without a measurement don't count
+    circuitBreaker.recordSuccess(-1);
+
+    assertEquals(90, circuitBreaker.getExpectedLookupMillis());
+    assertEquals(900, circuitBreaker.getExpectedDownloadMillis());
+  }
+
+  @Test
+  public void testSummary() {
+    assertFalse(circuitBreaker.hasActivity());
+    for (int i = 1; i <= 20; i++) {
+      circuitBreaker.recordSuccess(i * 10);
+    }
+    circuitBreaker.recordSkippedAsSlower();
+    open();
+    circuitBreaker.allowRequest();
+
+    assertTrue(circuitBreaker.hasActivity());
+    assertEquals("23 requests, 3 failed, latency p50 100 ms p95 190 ms, timeout 800 ms, "
+        + "circuit open (opened 1 times), 1 requests skipped while open, "
+        + "1 lookups skipped as slower than building", circuitBreaker.getSummary());
+  }
+
+  private void open() {
+    for (int i = 0; i < RemoteCircuitBreaker.FAILURE_THRESHOLD; i++) {
+      circuitBreaker.recordFailure();
+    }
+    assertEquals(RemoteCircuitBreaker.State.OPEN, circuitBreaker.getState());
+  }
+}
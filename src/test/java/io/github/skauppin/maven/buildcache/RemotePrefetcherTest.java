@@ -0,0 +1,154 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class RemotePrefetcherTest {
+
+  private Path tmpDir;
+  private RemoteCacheServer server;
+  private Configuration configuration;
+  private CacheIndex cacheIndex;
+  private RemotePrefetcher remotePrefetcher;
+
+  @BeforeEach
+  public void init() throws IOException {
+    tmpDir = Files.createTempDirectory("buildcache-maven-extension-");
+    server = new RemoteCacheServer(tmpDir.resolve("remote"));
+
+    configuration = Mockito.mock(Configuration.class);
+    Mockito.when(configuration.hasRemoteUrl()).thenReturn(true);
+    Mockito.when(configuration.getRemoteUrl()).thenReturn(server.getUrl());
+    Mockito.when(configuration.isRemoteUpload()).thenReturn(true);
+    Mockito.when(configuration.getRemoteTimeoutMillis()).thenReturn(2000);
+    Mockito.when(configuration.getRemotePrefetchThreads()).thenReturn(2);
+
+    RemoteCache remoteCache = new RemoteCache();
+    remoteCache.setLogger(Mockito.mock(Logger.class));
+    remoteCache.setFileUtil(new FileUtil());
+    remoteCache.initialize(configuration);
+
+    remotePrefetcher = new RemotePrefetcher();
+    remotePrefetcher.setLogger(Mockito.mock(Logger.class));
+    remotePrefetcher.setRemoteCache(remoteCache);
+    CacheLock cacheLock = new CacheLock();
+    cacheLock.setLogger(Mockito.mock(Logger.class));
+    cacheIndex = new CacheIndex();
+    cacheIndex.setLogger(Mockito.mock(Logger.class));
+    cacheIndex.setFileUtil(new FileUtil());
+    cacheIndex.setCacheDaemonClient(new CacheDaemonClient());
+    cacheIndex.setCacheLock(cacheLock);
+    remotePrefetcher.setCacheIndex(cacheIndex);
+    remotePrefetcher.setCacheLock(cacheLock);
+    remotePrefetcher.setFileUtil(new FileUtil());
+    remotePrefetcher.initialize(configuration);
+  }
+
+  @AfterEach
+  public void cleanup() {
+    remotePrefetcher.shutdown();
+    server.close();
+    FileUtils.deleteQuietly(tmpDir.toFile());
+  }
+
+  @Test
+  public void testPrefetch() throws IOException {
+    Path remoteFile = server.getDirectory().resolve("com/test/test-lib/test-classes-1111.zip");
+    Files.createDirectories(remoteFile.getParent());
+    Files.write(remoteFile, new byte[] {1, 2, 3});
+    Files.write(server.getDirectory().resolve("com/test/test-lib/test-2222"), new byte[0]);
+
+    Path target = tmpDir.resolve("local/com/test/test-lib/test-classes-1111.zip");
+    assertTrue(remotePrefetcher.isEnabled());
+    remotePrefetcher.prefetch("com/test/test-lib/test-classes-1111.zip", target,
+        CacheIndex.KIND_TEST_CLASSES);
+    remotePrefetcher.prefetchExists("com/test/test-lib/test-2222");
+    remotePrefetcher.prefetchExists("com/test/test-lib/it-test-3333");
+
+    assertEquals(Optional.of(true),
+        remotePrefetcher.awaitDownload("com/test/test-lib/test-classes-1111.zip"));
+    assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(target));
+    assertEquals(3, cacheIndex.get(target.getParent(), "test-classes-1111.zip").get().getSize());
+    assertEquals(Optional.of(true), remotePrefetcher.awaitExists("com/test/test-lib/test-2222"));
+    assertEquals(Optional.of(false),
+        remotePrefetcher.awaitExists("com/test/test-lib/it-test-3333"));
+  }
+
+  @Test
+  public void testPrefetchIsIndexedWithoutAwait() throws IOException {
+    Path remoteFile = server.getDirectory().resolve("com/test/test-lib/test-classes-1111.zip");
+    Files.createDirectories(remoteFile.getParent());
+    Files.write(remoteFile, new byte[] {1, 2, 3});
+
+    Path target = tmpDir.resolve("local/com/test/test-lib/test-classes-1111.zip");
+    remotePrefetcher.prefetch("com/test/test-lib/test-classes-1111.zip", target,
+        CacheIndex.KIND_TEST_CLASSES);
+    remotePrefetcher.prefetch("com/test/test-lib/test-classes-2222.zip",
+        target.resolveSibling("test-classes-2222.zip"), CacheIndex.KIND_TEST_CLASSES);
+
+    long deadline = System.currentTimeMillis() + 2000;
+    while (!cacheIndex.get(target.getParent(), "test-classes-1111.zip").isPresent()
+        && System.currentTimeMillis() < deadline) {
+      sleep(10);
+    }
+    CacheIndex.Entry entry = cacheIndex.get(target.getParent(), "test-classes-1111.zip").get();
+    assertEquals(CacheIndex.KIND_TEST_CLASSES, entry.getKind());
+    assertEquals(3, entry.getSize());
+    assertTrue(Files.exists(target));
+
+    assertEquals(Optional.of(false),
+        remotePrefetcher.awaitDownload("com/test/test-lib/test-classes-2222.zip"));
+    try (Stream<Path> files = Files.list(target.getParent())) {
+      assertFalse(files.anyMatch(f -> FileUtil.isTempFile(f.getFileName().toString())));
+    }
+  }
+
+  @Test
+  public void testPrefetchIsRequestedOnce() {
+    remotePrefetcher.prefetchExists("com/test/test-lib/test-2222");
+    remotePrefetcher.prefetchExists("com/test/test-lib/test-2222");
+
+    assertEquals(Optional.of(false), remotePrefetcher.awaitExists("com/test/test-lib/test-2222"));
+    assertEquals(1, server.getRequests().size());
+    assertEquals(Optional.empty(), remotePrefetcher.awaitExists("com/test/test-lib/test-2222"));
+  }
+
+  @Test
+  public void testAwaitWithoutPrefetch() {
+    assertEquals(Optional.empty(), remotePrefetcher.awaitDownload("com/test/test-lib/x.zip"));
+    assertEquals(Optional.empty(), remotePrefetcher.awaitExists("com/test/test-lib/test-2222"));
+    assertTrue(server.getRequests().isEmpty());
+  }
+
+  @Test
+  public void testDisabled() {
+    Mockito.when(configuration.getRemotePrefetchThreads()).thenReturn(0);
+    remotePrefetcher.initialize(configuration);
+
+    assertFalse(remotePrefetcher.isEnabled());
+    remotePrefetcher.prefetchExists("com/test/test-lib/test-2222");
+    assertEquals(Optional.empty(), remotePrefetcher.awaitExists("com/test/test-lib/test-2222"));
+    assertTrue(server.getRequests().isEmpty());
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package io.github.skauppin.maven.buildcache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class RemoteUploaderTest {
+
+  private Path tmpDir;
+  private Configuration configuration;
+  private Logger logger;
+
+  @BeforeEach
+  public void init() throws IOException {
+    tmpDir = Files.createTempDirectory("buildcache-maven-extension-");
+
+    configuration = Mockito.mock(Configuration.class);
+    Mockito.when(configuration.getRemoteUploadThreads()).thenReturn(1);
+    Mockito.when(configuration.getRemoteUploadDrainTimeoutMillis()).thenReturn(10000);
+    logger = Mockito.mock(Logger.class);
+  }
+
+  @AfterEach
+  public void cleanup() {
+    FileUtils.deleteQuietly(tmpDir.toFile());
+  }
+
+  @Test
+  public void testUpload() throws IOException {
+    try (RemoteCacheServer server = new RemoteCacheServer(tmpDir.resolve("remote"))) {
+      Mockito.when(configuration.hasRemoteUrl()).thenReturn(true);
+      Mockito.when(configuration.getRemoteUrl()).thenReturn(server.getUrl());
+      Mockito.when(configuration.isRemoteUpload()).thenReturn(true);
+      Mockito.when(configuration.getRemoteTimeoutMillis()).thenReturn(2000);
+
+      RemoteCache remoteCache = new RemoteCache();
+      remoteCache.setLogger(logger);
+      remoteCache.setFileUtil(new FileUtil());
+      remoteCache.initialize(configuration);
+
+      Path zipFile = tmpDir.resolve("classes-1111.zip");
+      Files.write(zipFile, new byte[] {1, 2, 3});
+
+      RemoteUploader uploader = newUploader(remoteCache);
+      assertTrue(uploader.isEnabled());
+      uploader.submit("com/test/test-lib/classes-1111.zip", zipFile, 3, 1000);
+      uploader.submit("com/test/test-lib/test-2222", new byte[0], 5000);
+      uploader.awaitCompletion();
+
+      assertFalse(uploader.isEnabled());
+      assertArrayEquals(new byte[] {1, 2, 3}, Files
+          .readAllBytes(server.getDirectory().resolve("com/test/test-lib/classes-1111.zip")));
+      assertTrue(Files.exists(server.getDirectory().resolve("com/test/test-lib/test-2222")));
+    }
+  }
+
+  @Test
+  public void testUploadsByValuePerByte() throws Exception {
+    RemoteCache remoteCache = Mockito.mock(RemoteCache.class);
+    Mockito.when(remoteCache.isUploadEnabled()).thenReturn(true);
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> uploaded = new CopyOnWriteArrayList<>();
+    Mockito.when(remoteCache.upload(Mockito.anyString(), Mockito.any(byte[].class))).then(a -> {
+      String path = a.getArgument(0);
+      if (path.equals("first")) {
+        started.countDown();
+        release.await(10, TimeUnit.SECONDS);
+      }
+      uploaded.add(path);
+      return true;
+    });
+
+    RemoteUploader uploader = newUploader(remoteCache);
+    uploader.submit("first", new byte[0], 0);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    uploader.submit("cheap", new byte[10000], 100);
+    uploader.submit("valuable", new byte[10000], 60000);
+    uploader.submit("test-execution", new byte[0], 30000);
+    release.countDown();
+    uploader.awaitCompletion();
+
+    assertEquals(Arrays.asList("first", "test-execution", "valuable", "cheap"), uploaded);
+  }
+
+  @Test
+  public void testRetry() {
+    RemoteCache remoteCache = Mockito.mock(RemoteCache.class);
+    Mockito.when(remoteCache.isUploadEnabled()).thenReturn(true);
+    Mockito.when(remoteCache.upload(Mockito.eq("test-1111"), Mockito.any(byte[].class)))
+        .thenReturn(false, false, true);
+    Mockito.when(remoteCache.upload(Mockito.eq("test-2222"), Mockito.any(byte[].class)))
+        .thenReturn(false);
+
+    RemoteUploader uploader = newUploader(remoteCache);
+    uploader.submit("test-1111", new byte[0], 0);
+    uploader.submit("test-2222", new byte[0], 0);
+    uploader.awaitCompletion();
+
+    Mockito.verify(remoteCache, Mockito.times(3)).upload(Mockito.eq("test-1111"),
+        Mockito.any(byte[].class));
+    Mockito.verify(remoteCache, Mockito.times(3)).upload(Mockito.eq("test-2222"),
+        Mockito.any(byte[].class));
+    Mockito.verify(logger).warn("buildcache: 1 cache entries could not be uploaded");
+  }
+
+  @Test
+  public void testSkipsEvictedFile() {
+    RemoteCache remoteCache = Mockito.mock(RemoteCache.class);
+    Mockito.when(remoteCache.isUploadEnabled()).thenReturn(true);
+
+    RemoteUploader uploader = newUploader(remoteCache);
+    uploader.submit("classes-1111.zip", tmpDir.resolve("classes-1111.zip"), 100, 1000);
+    uploader.awaitCompletion();
+
+    Mockito.verify(remoteCache, Mockito.never()).upload(Mockito.anyString(),
+        Mockito.any(Path.class));
+  }
+
+  @Test
+  public void testDrainTimeout() throws Exception {
+    RemoteCache remoteCache = Mockito.mock(RemoteCache.class);
+    Mockito.when(remoteCache.isUploadEnabled()).thenReturn(true);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    Mockito.when(remoteCache.upload(Mockito.anyString(), Mockito.any(byte[].class))).then(a -> {
+      started.countDown();
+      try {
+        Thread.sleep(10000);
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+        Thread.currentThread().interrupt();
+      }
+      return false;
+    });
+    Mockito.when(configuration.getRemoteUploadDrainTimeoutMillis()).thenReturn(100);
+
+    RemoteUploader uploader = newUploader(remoteCache);
+    uploader.submit("test-1111", new byte[0], 0);
+    uploader.submit("test-2222", new byte[0], 0);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    long start = System.currentTimeMillis();
+    uploader.awaitCompletion();
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    Mockito.verify(remoteCache)
+        .setRequestDeadline(Mockito.longThat(d -> d >= start + 100 && d < start + 5000));
+
+    Mockito.verify(logger).warn(
+        "buildcache: remote cache uploads didn't complete in 100 ms, 2 uploads abandoned");
+  }
+
+  @Test
+  public void testUploadDisabled() {
+    RemoteCache remoteCache = Mockito.mock(RemoteCache.class);
+
+    RemoteUploader uploader = newUploader(remoteCache);
+    assertFalse(uploader.isEnabled());
+    uploader.submit("test-1111", new byte[0], 0);
+    uploader.awaitCompletion();
+
+    Mockito.verify(remoteCache).isUploadEnabled();
+    Mockito.verifyNoMoreInteractions(remoteCache);
+  }
+
+  private RemoteUploader newUploader(RemoteCache remoteCache) {
+    RemoteUploader uploader = new RemoteUploader();
+    uploader.setLogger(logger);
+    uploader.setRemoteCache(remoteCache);
+    uploader.setCacheDaemonClient(new CacheDaemonClient());
+    uploader.setRetryBackoffMillis(1);
+    uploader.initialize(configuration);
+    return uploader;
+  }
+}
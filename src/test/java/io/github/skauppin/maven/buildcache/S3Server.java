@@ -0,0 +1,365 @@
+package io.github.skauppin.maven.buildcache;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Minimal S3 server for tests, implementing object PUT, GET with ranges, HEAD, ListObjectsV2
+ * and multipart uploads for a single bucket. Requests have to be signed with the access key of
+ * the server.
+ */
+public class S3Server implements AutoCloseable {
+
+  public static final String ACCESS_KEY_ID = "AKIDEXAMPLE";
+  public static final String SECRET_ACCESS_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+  public static final String REGION = "eu-north-1";
+
+  private static final String BUCKET = "/bucket/";
+  private static final DateTimeFormatter DATE_TIME_FORMAT =
+      DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+  private static final Pattern PART =
+      Pattern.compile("<Part><PartNumber>(\\d+)</PartNumber><ETag>([^<]*)</ETag></Part>");
+
+  private final HttpServer server;
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+  private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+  private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+  private final AtomicInteger uploadCount = new AtomicInteger();
+  private volatile int listPageSize = 1000;
+  private volatile int breakNextDownloadAfter = -1;
+  private volatile boolean failCompleteUpload;
+  private volatile Map.Entry<String, byte[]> replacement;
+
+  public S3Server() throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext(BUCKET, this::handle);
+    this.server.start();
+  }
+
+  public String getUrl() {
+    return String.format("http://localhost:%d/bucket", server.getAddress().getPort());
+  }
+
+  public List<String> getRequests() {
+    return requests;
+  }
+
+  public Map<String, byte[]> getObjects() {
+    return objects;
+  }
+
+  public Map<String, Map<Integer, byte[]>> getUploads() {
+    return uploads;
+  }
+
+  public void setListPageSize(int listPageSize) {
+    this.listPageSize = listPageSize;
+  }
+
+  /**
+   * Closes the connection of the next GET after the given number of bytes.
+   */
+  public void breakNextDownloadAfter(int bytes) {
+    this.breakNextDownloadAfter = bytes;
+  }
+
+  /**
+   * Replaces an object after the next GET has been sent.
+   */
+  public void replaceAfterNextDownload(String key, byte[] content) {
+    this.replacement = new AbstractMap.SimpleEntry<>(key, content);
+  }
+
+  /**
+   * Makes completing a multipart upload fail after the 200 status, like S3 can.
+   */
+  public void setFailCompleteUpload(boolean failCompleteUpload) {
+    this.failCompleteUpload = failCompleteUpload;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String key = exchange.getRequestURI().getRawPath().substring(BUCKET.length());
+    String query = exchange.getRequestURI().getRawQuery();
+    requests.add(method + " " + key + (query != null ? "?" + query : ""));
+    // the JDK server can't reuse a keep-alive connection after a HEAD response
+    exchange.getResponseHeaders().set("Connection", "close");
+
+    try {
+      byte[] body;
+      try (InputStream in = exchange.getRequestBody()) {
+        body = IOUtils.toByteArray(in);
+      }
+      if (!isAuthorized(exchange, body)) {
+        sendError(exchange, 403, "SignatureDoesNotMatch");
+        return;
+      }
+      Map<String, String> parameters = parseQuery(query);
+      if ("PUT".equals(method) && parameters.containsKey("uploadId")) {
+        putPart(exchange, parameters, body);
+      } else if ("PUT".equals(method)) {
+        objects.put(key, body);
+        exchange.getResponseHeaders().set("ETag", getETag(body));
+        exchange.sendResponseHeaders(200, -1);
+      } else if ("POST".equals(method) && parameters.containsKey("uploads")) {
+        String uploadId = String.format("%d.upload+%s", uploadCount.incrementAndGet(), key);
+        uploads.put(uploadId, new TreeMap<>());
+        sendXml(exchange, String.format("<InitiateMultipartUploadResult><Key>%s</Key>"
+            + "<UploadId>%s</UploadId></InitiateMultipartUploadResult>", key, uploadId));
+      } else if ("POST".equals(method) && parameters.containsKey("uploadId")) {
+        completeUpload(exchange, key, parameters, body);
+      } else if ("DELETE".equals(method) && parameters.containsKey("uploadId")) {
+        uploads.remove(parameters.get("uploadId"));
+        exchange.sendResponseHeaders(204, -1);
+      } else if ("GET".equals(method) && key.isEmpty() && parameters.containsKey("list-type")) {
+        listObjects(exchange, parameters);
+      } else if (!objects.containsKey(key)) {
+        sendError(exchange, 404, "NoSuchKey");
+      } else if ("HEAD".equals(method)) {
+        byte[] object = objects.get(key);
+        exchange.getResponseHeaders().set("ETag", getETag(object));
+        exchange.getResponseHeaders().set("Content-Length", String.valueOf(object.length));
+        exchange.sendResponseHeaders(200, -1);
+      } else if ("GET".equals(method)) {
+        getObject(exchange, objects.get(key));
+        Map.Entry<String, byte[]> replaced = replacement;
+        replacement = null;
+        if (replaced != null) {
+          objects.put(replaced.getKey(), replaced.getValue());
+        }
+      } else {
+        sendError(exchange, 405, "MethodNotAllowed");
+      }
+    } catch (IOException e) {
+      // a broken download
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void getObject(HttpExchange exchange, byte[] object) throws IOException {
+    String etag = getETag(object);
+    String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+    if (ifMatch != null && !ifMatch.equals(etag)) {
+      sendError(exchange, 412, "PreconditionFailed");
+      return;
+    }
+    exchange.getResponseHeaders().set("ETag", etag);
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    int start = 0;
+    int end = object.length - 1;
+    int status = 200;
+    if (range != null) {
+      Matcher m = RANGE.matcher(range);
+      if (!m.matches()) {
+        sendError(exchange, 400, "InvalidArgument");
+        return;
+      }
+      start = Integer.parseInt(m.group(1));
+      end = Math.min(end, Integer.parseInt(m.group(2)));
+      if (start >= object.length) {
+        sendError(exchange, 416, "InvalidRange");
+        return;
+      }
+      status = 206;
+      exchange.getResponseHeaders().set("Content-Range",
+          String.format("bytes %d-%d/%d", start, end, object.length));
+    }
+    int length = end - start + 1;
+    exchange.sendResponseHeaders(status, length);
+    int breakAfter = breakNextDownloadAfter;
+    breakNextDownloadAfter = -1;
+    try (OutputStream out = exchange.getResponseBody()) {
+      if (breakAfter >= 0 && breakAfter < length) {
+        out.write(object, start, breakAfter);
+        out.flush();
+        // closing with bytes missing closes the connection
+        return;
+      }
+      out.write(object, start, length);
+    }
+  }
+
+  private void listObjects(HttpExchange exchange, Map<String, String> parameters)
+      throws IOException {
+    String prefix = parameters.getOrDefault("prefix", "");
+    String after = parameters.get("continuation-token");
+    List<String> keys = objects.keySet().stream()
+        .filter(k -> k.startsWith(prefix) && (after == null || k.compareTo(after) > 0)).sorted()
+        .collect(Collectors.toList());
+    int pageSize = listPageSize;
+    boolean truncated = keys.size() > pageSize;
+    StringBuilder xml = new StringBuilder("<ListBucketResult>");
+    keys.stream().limit(pageSize)
+        .forEach(k -> xml.append("<Contents><Key>").append(k).append("</Key></Contents>"));
+    xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+    if (truncated) {
+      xml.append("<NextContinuationToken>").append(keys.get(pageSize - 1))
+          .append("</NextContinuationToken>");
+    }
+    sendXml(exchange, xml.append("</ListBucketResult>").toString());
+  }
+
+  private void putPart(HttpExchange exchange, Map<String, String> parameters, byte[] body)
+      throws IOException {
+    Map<Integer, byte[]> parts = uploads.get(parameters.get("uploadId"));
+    if (parts == null) {
+      sendError(exchange, 404, "NoSuchUpload");
+      return;
+    }
+    parts.put(Integer.parseInt(parameters.get("partNumber")), body);
+    exchange.getResponseHeaders().set("ETag", getETag(body));
+    exchange.sendResponseHeaders(200, -1);
+  }
+
+  private void completeUpload(HttpExchange exchange, String key, Map<String, String> parameters,
+      byte[] body) throws IOException {
+    Map<Integer, byte[]> parts = uploads.get(parameters.get("uploadId"));
+    if (parts == null) {
+      sendError(exchange, 404, "NoSuchUpload");
+      return;
+    }
+    if (failCompleteUpload) {
+      sendXml(exchange, "<Error><Code>InternalError</Code></Error>");
+      return;
+    }
+    ByteArrayOutputStream object = new ByteArrayOutputStream();
+    Matcher m = PART.matcher(new String(body, StandardCharsets.UTF_8));
+    int previous = 0;
+    while (m.find()) {
+      int partNumber = Integer.parseInt(m.group(1));
+      byte[] part = parts.get(partNumber);
+      if (partNumber <= previous || part == null || !getETag(part).equals(m.group(2))) {
+        sendError(exchange, 400, "InvalidPart");
+        return;
+      }
+      object.write(part);
+      previous = partNumber;
+    }
+    uploads.remove(parameters.get("uploadId"));
+    objects.put(key, object.toByteArray());
+    sendXml(exchange, String.format(
+        "<CompleteMultipartUploadResult><Key>%s</Key></CompleteMultipartUploadResult>", key));
+  }
+
+  private boolean isAuthorized(HttpExchange exchange, byte[] body) {
+    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+    String payloadSha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+    String dateTime = exchange.getRequestHeaders().getFirst("x-amz-date");
+    if (authorization == null || payloadSha256 == null || dateTime == null
+        || !payloadSha256.equals(DigestUtils.sha256Hex(body))) {
+      return false;
+    }
+    Matcher m = Pattern.compile("SignedHeaders=([^,]*)").matcher(authorization);
+    if (!m.find()) {
+      return false;
+    }
+    Map<String, String> headers = new HashMap<>();
+    for (String name : m.group(1).split(";")) {
+      if (!name.equals("host") && !name.startsWith("x-amz-")) {
+        headers.put(name, exchange.getRequestHeaders().getFirst(name));
+      }
+    }
+    try {
+      URL url = new URL("http://" + exchange.getRequestHeaders().getFirst("Host")
+          + exchange.getRequestURI().getRawPath()
+          + (exchange.getRequestURI().getRawQuery() != null
+              ? "?" + exchange.getRequestURI().getRawQuery()
+              : ""));
+      Instant time = Instant.from(DATE_TIME_FORMAT.parse(dateTime));
+      S3Signer signer = new S3Signer(ACCESS_KEY_ID, SECRET_ACCESS_KEY, null, REGION);
+      return authorization.equals(signer.sign(exchange.getRequestMethod(), url, headers,
+          payloadSha256, time).get("Authorization"));
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> parameters = new HashMap<>();
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        int separator = parameter.indexOf('=');
+        if (separator < 0) {
+          parameters.put(parameter, "");
+        } else {
+          parameters.put(parameter.substring(0, separator),
+              decode(parameter.substring(separator + 1)));
+        }
+      }
+    }
+    return parameters;
+  }
+
+  private static String decode(String value) {
+    ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '%' && i + 2 < value.length()) {
+        decoded.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+        i += 2;
+      } else {
+        decoded.write(c);
+      }
+    }
+    return new String(decoded.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String getETag(byte[] content) {
+    return "\"" + DigestUtils.md5Hex(content) + "\"";
+  }
+
+  private static void sendXml(HttpExchange exchange, String xml) throws IOException {
+    byte[] body = xml.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/xml");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static void sendError(HttpExchange exchange, int status, String code)
+      throws IOException {
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    byte[] body = String.format("<Error><Code>%s</Code></Error>", code)
+        .getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/xml");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+}